@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which turns large single-part writes
+ * into backend multipart uploads.  It cuts the request stream into parts,
+ * growing the part size when needed to stay within the backend part count
+ * limit, and uploads up to parallelism parts concurrently so that memory is
+ * bounded by parallelism times the part size.  Parts are held in pooled
+ * buffers of at most BufferPool.MAX_BUFFER_SIZE bytes.  Failed parts are
+ * retried individually.  putBlob returns the ETag of the completed upload so
+ * that it matches later reads.
+ */
+final class AutoMultipartBlobStore extends ForwardingBlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(
+            AutoMultipartBlobStore.class);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long PART_SIZE_ALIGNMENT = 1024 * 1024;
+
+    private final ExecutorService executorService;
+    private final long threshold;
+    private final long partSize;
+    private final int parallelism;
+    private final BufferPool bufferPool = BufferPool.getDefault();
+
+    private AutoMultipartBlobStore(BlobStore blobStore,
+            ExecutorService executorService, long threshold, long partSize,
+            int parallelism) {
+        super(blobStore);
+        checkArgument(partSize > 0, "Part size must be positive, was: %s",
+                partSize);
+        checkArgument(parallelism > 0,
+                "Parallelism must be positive, was: %s", parallelism);
+        this.executorService = requireNonNull(executorService);
+        this.threshold = threshold;
+        this.partSize = partSize;
+        this.parallelism = parallelism;
+    }
+
+    static AutoMultipartBlobStore newAutoMultipartBlobStore(
+            BlobStore blobStore, ExecutorService executorService,
+            long threshold, long partSize, int parallelism) {
+        return new AutoMultipartBlobStore(blobStore, executorService,
+                threshold, partSize, parallelism);
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        return putBlob(containerName, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        Long contentLength = blob.getMetadata().getContentMetadata()
+                .getContentLength();
+        if (options.isMultipart() || contentLength == null ||
+                contentLength < threshold) {
+            return super.putBlob(containerName, blob, options);
+        }
+        long length = contentLength;
+        long size = choosePartSize(length);
+        if (size > Integer.MAX_VALUE) {
+            return super.putBlob(containerName, blob, options);
+        }
+
+        HashCode expectedMD5 = blob.getMetadata().getContentMetadata()
+                .getContentMD5AsHashCode();
+        MultipartUpload mpu = super.initiateMultipartUpload(containerName,
+                blob.getMetadata(), options);
+        List<Future<MultipartPart>> futures = new ArrayList<>();
+        Semaphore permits = new Semaphore(parallelism);
+        try (InputStream is = blob.getPayload().openStream()) {
+            HashingInputStream his = new HashingInputStream(Hashing.md5(),
+                    is);
+            long remaining = length;
+            for (int partNumber = 1; remaining > 0; ++partNumber) {
+                permits.acquire();
+                checkFailedParts(futures);
+                int partLength = (int) Math.min(size, remaining);
+                List<byte[]> part;
+                try {
+                    part = readPart(his, partLength);
+                } catch (IOException ioe) {
+                    permits.release();
+                    throw ioe;
+                }
+                remaining -= partLength;
+                futures.add(executorService.submit(new PartUploader(mpu,
+                        partNumber, part, partLength, permits)));
+            }
+            HashCode md5 = his.hash();
+            if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+                throw new HttpResponseException("Content-MD5 mismatch", null,
+                        HttpResponse.builder().statusCode(400).build());
+            }
+
+            List<MultipartPart> parts = new ArrayList<>(futures.size());
+            for (Future<MultipartPart> future : futures) {
+                parts.add(future.get());
+            }
+            return super.completeMultipartUpload(mpu, parts);
+        } catch (IOException | InterruptedException | ExecutionException |
+                RuntimeException e) {
+            for (Future<MultipartPart> future : futures) {
+                future.cancel(/*mayInterruptIfRunning=*/ true);
+            }
+            try {
+                super.abortMultipartUpload(mpu);
+            } catch (RuntimeException re) {
+                logger.debug("Could not abort upload {}", mpu.id(), re);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            Throwable cause = e instanceof ExecutionException ?
+                    e.getCause() : e;
+            Throwables.throwIfUnchecked(cause);
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Start from the configured part size and grow it to stay within the
+     * backend part count limit.
+     */
+    private long choosePartSize(long length) {
+        long size = Math.max(partSize, getMinimumMultipartPartSize());
+        long maxParts = getMaximumNumberOfParts();
+        if (maxParts > 0 && (length + size - 1) / size > maxParts) {
+            size = (length + maxParts - 1) / maxParts;
+            size = (size + PART_SIZE_ALIGNMENT - 1) / PART_SIZE_ALIGNMENT *
+                    PART_SIZE_ALIGNMENT;
+        }
+        return Math.min(size, getMaximumMultipartPartSize());
+    }
+
+    /** Read length bytes into pooled buffers. */
+    private List<byte[]> readPart(InputStream is, int length)
+            throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        try {
+            for (int offset = 0; offset < length;
+                    offset += BufferPool.MAX_BUFFER_SIZE) {
+                int chunkLength = Math.min(BufferPool.MAX_BUFFER_SIZE,
+                        length - offset);
+                byte[] chunk = bufferPool.acquire(chunkLength);
+                chunks.add(chunk);
+                ByteStreams.readFully(is, chunk, 0, chunkLength);
+            }
+        } catch (IOException ioe) {
+            releaseAll(chunks);
+            throw ioe;
+        }
+        return chunks;
+    }
+
+    private void releaseAll(List<byte[]> chunks) {
+        for (byte[] chunk : chunks) {
+            bufferPool.release(chunk);
+        }
+    }
+
+    /** Stop reading the request early when a part has already failed. */
+    private static void checkFailedParts(List<Future<MultipartPart>> futures)
+            throws ExecutionException, InterruptedException {
+        for (Future<MultipartPart> future : futures) {
+            if (future.isDone()) {
+                future.get();
+            }
+        }
+    }
+
+    private final class PartUploader implements Callable<MultipartPart> {
+        private final MultipartUpload mpu;
+        private final int partNumber;
+        private final List<byte[]> part;
+        private final int length;
+        private final Semaphore permits;
+
+        PartUploader(MultipartUpload mpu, int partNumber, List<byte[]> part,
+                int length, Semaphore permits) {
+            this.mpu = mpu;
+            this.partNumber = partNumber;
+            this.part = part;
+            this.length = length;
+            this.permits = permits;
+        }
+
+        @Override
+        public MultipartPart call() throws InterruptedException {
+            try {
+                List<ByteSource> sources = new ArrayList<>(part.size());
+                Hasher hasher = Hashing.md5().newHasher();
+                int offset = 0;
+                for (byte[] chunk : part) {
+                    int chunkLength = Math.min(BufferPool.MAX_BUFFER_SIZE,
+                            length - offset);
+                    sources.add(ByteSource.wrap(chunk).slice(0,
+                            chunkLength));
+                    hasher.putBytes(chunk, 0, chunkLength);
+                    offset += chunkLength;
+                }
+                HashCode md5 = hasher.hash();
+                int attempt = 1;
+                while (true) {
+                    Payload payload = Payloads.newByteSourcePayload(
+                            ByteSource.concat(sources));
+                    payload.getContentMetadata().setContentLength(
+                            (long) length);
+                    payload.getContentMetadata().setContentMD5(md5);
+                    try {
+                        return uploadMultipartPart(mpu, partNumber, payload);
+                    } catch (RuntimeException re) {
+                        if (attempt == MAX_ATTEMPTS) {
+                            throw re;
+                        }
+                        logger.debug("Retrying part {} of upload {}",
+                                partNumber, mpu.id(), re);
+                        TimeUnit.MILLISECONDS.sleep(100L << attempt);
+                        ++attempt;
+                    }
+                }
+            } finally {
+                releaseAll(part);
+                permits.release();
+            }
+        }
+    }
+}
@@ -272,6 +272,9 @@ final class AwsSignature {
             digest = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
         } else if ("UNSIGNED-PAYLOAD".equals(xAmzContentSha256)) {
             digest = "UNSIGNED-PAYLOAD";
+        } else if (payload == null) {
+            // caller verifies the body against the declared digest later
+            digest = xAmzContentSha256;
         } else {
             digest = getMessageDigest(payload, hashAlgorithm);
         }
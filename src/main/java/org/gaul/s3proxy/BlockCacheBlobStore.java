@@ -0,0 +1,490 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+/**
+ * This class is a BlobStore wrapper which caches fixed-size, aligned blocks
+ * of objects on local disk.  Blocks are keyed by container, name, ETag and
+ * block index so that overwritten objects never serve stale data; their
+ * blocks simply age out.  The cache evicts in LRU order under a disk budget
+ * and recovers its index from the cache directory on startup, ordering
+ * blocks by modification time.  Object metadata, and thus the ETag which
+ * selects blocks, is cached for metadataTtl so that hits avoid a backend
+ * round trip; writes through this BlobStore invalidate it, while writes
+ * made elsewhere become visible once it expires.  A zero TTL revalidates
+ * on every read.
+ */
+final class BlockCacheBlobStore extends ForwardingBlobStore {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxSize;
+    private final int blockSize;
+    @Nullable
+    private final Cache<Map.Entry<String, String>, BlobMetadata>
+            metadataCache;
+    // file name to size, in access order
+    private final LinkedHashMap<String, Long> index =
+            new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true);
+    private long size;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private BlockCacheBlobStore(BlobStore blobStore, Path directory,
+            long maxSize, int blockSize, long metadataTtl, TimeUnit unit)
+            throws IOException {
+        super(blobStore);
+        checkArgument(blockSize > 0, "Block size must be positive, was: %s",
+                blockSize);
+        checkArgument(maxSize >= blockSize,
+                "Cache size must be at least the block size, was: %s",
+                maxSize);
+        this.directory = requireNonNull(directory);
+        this.maxSize = maxSize;
+        this.blockSize = blockSize;
+        this.metadataCache = metadataTtl <= 0 ? null :
+                CacheBuilder.newBuilder()
+                        .expireAfterWrite(metadataTtl, unit)
+                        .maximumSize(100_000)
+                        .build();
+        Files.createDirectories(directory);
+        loadIndex();
+    }
+
+    /**
+     * @param metadataTtl time for which object metadata is trusted without
+     *     asking the backend, or zero to revalidate on every read
+     */
+    static BlockCacheBlobStore newBlockCacheBlobStore(BlobStore blobStore,
+            Path directory, long maxSize, int blockSize, long metadataTtl,
+            TimeUnit unit) throws IOException {
+        return new BlockCacheBlobStore(blobStore, directory, maxSize,
+                blockSize, metadataTtl, unit);
+    }
+
+    /** Number of blocks read from the cache. */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Number of blocks fetched from the backend. */
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        if (options.getIfMatch() != null || options.getIfNoneMatch() != null ||
+                options.getIfModifiedSince() != null ||
+                options.getIfUnmodifiedSince() != null ||
+                options.getRanges().size() > 1) {
+            return super.getBlob(container, name, options);
+        }
+
+        BlobMetadata metadata = getMetadata(container, name);
+        if (metadata == null) {
+            return null;
+        }
+        String eTag = metadata.getETag();
+        Long contentLength = metadata.getContentMetadata().getContentLength();
+        if (eTag == null || contentLength == null || contentLength == 0) {
+            return super.getBlob(container, name, options);
+        }
+        long length = contentLength;
+
+        long offset = 0;
+        long count = length;
+        String range = options.getRanges().isEmpty() ? null :
+                options.getRanges().get(0);
+        if (range != null) {
+            long[] resolved = ByteRanges.parse(range, length);
+            if (resolved == null) {
+                // let the backend emit the appropriate error
+                return super.getBlob(container, name, options);
+            }
+            offset = resolved[0];
+            count = resolved[1];
+        }
+
+        MutableBlobMetadataImpl blobMetadata =
+                new MutableBlobMetadataImpl(metadata);
+        Blob blob = new BlobImpl(blobMetadata);
+        Payload payload = Payloads.newInputStreamPayload(new BlockInputStream(
+                container, name, eTag, length, offset, offset + count));
+        payload.setContentMetadata(blobMetadata.getContentMetadata());
+        payload.getContentMetadata().setContentLength(count);
+        blob.setPayload(payload);
+        if (range != null) {
+            payload.getContentMetadata().setContentMD5((HashCode) null);
+            blob.setAllHeaders(ImmutableMultimap.of(
+                    HttpHeaders.CONTENT_RANGE,
+                    ByteRanges.contentRange(offset, count, length)));
+        }
+        return blob;
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        try {
+            return super.putBlob(container, blob, options);
+        } finally {
+            invalidate(container, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        try {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        } finally {
+            invalidate(toContainer, toName);
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            super.removeBlob(container, name);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        try {
+            super.removeBlobs(container, names);
+        } finally {
+            for (String name : names) {
+                invalidate(container, name);
+            }
+        }
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        try {
+            return super.completeMultipartUpload(mpu, parts);
+        } finally {
+            invalidate(mpu.containerName(), mpu.blobName());
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        try {
+            super.clearContainer(container);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        try {
+            super.clearContainer(container, options);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    /** Metadata from the local cache or, on a miss, the backend. */
+    @Nullable
+    private BlobMetadata getMetadata(String container, String name) {
+        if (metadataCache == null) {
+            return super.blobMetadata(container, name);
+        }
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        BlobMetadata cached = metadataCache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        BlobMetadata fetched = super.blobMetadata(container, name);
+        if (fetched != null) {
+            metadataCache.put(key, fetched);
+        }
+        return fetched;
+    }
+
+    private void invalidate(String container, String name) {
+        if (metadataCache != null) {
+            metadataCache.invalidate(Maps.immutableEntry(container, name));
+        }
+    }
+
+    private void invalidateAll() {
+        if (metadataCache != null) {
+            metadataCache.invalidateAll();
+        }
+    }
+
+    /** Read a block from the cache, fetching it on a miss. */
+    private byte[] readBlock(String container, String name, String eTag,
+            long length, long blockIndex) throws IOException {
+        String fileName = blockFileName(container, name, eTag, blockIndex);
+        Path path = directory.resolve(fileName);
+        boolean cached;
+        synchronized (this) {
+            cached = index.get(fileName) != null;
+        }
+        if (cached) {
+            try {
+                byte[] block = Files.readAllBytes(path);
+                Files.setLastModifiedTime(path, FileTime.fromMillis(
+                        System.currentTimeMillis()));
+                hitCount.incrementAndGet();
+                return block;
+            } catch (NoSuchFileException nsfe) {
+                // evicted concurrently; fall through and fetch
+            }
+        }
+
+        missCount.incrementAndGet();
+        long start = blockIndex * blockSize;
+        long end = Math.min(start + blockSize, length) - 1;
+        Blob blob;
+        try {
+            blob = super.getBlob(container, name, new GetOptions()
+                    .range(start, end).ifETagMatches(eTag));
+        } catch (HttpResponseException hre) {
+            // the cached ETag is stale
+            invalidate(container, name);
+            throw hre;
+        }
+        if (blob == null) {
+            invalidate(container, name);
+            throw new IOException("Object removed while reading: " + name);
+        }
+        byte[] block;
+        try (InputStream is = blob.getPayload().openStream()) {
+            block = ByteStreams.toByteArray(is);
+        }
+        if (block.length != end - start + 1) {
+            throw new IOException("Unexpected block length: " +
+                    block.length);
+        }
+
+        Path temp = Files.createTempFile(directory, fileName, TEMP_SUFFIX);
+        try {
+            Files.write(temp, block);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        addToIndex(fileName, block.length);
+        return block;
+    }
+
+    private void addToIndex(String fileName, long blockLength)
+            throws IOException {
+        List<String> victims = new ArrayList<>();
+        synchronized (this) {
+            Long old = index.put(fileName, blockLength);
+            if (old != null) {
+                size -= old;
+            }
+            size += blockLength;
+            Iterator<Map.Entry<String, Long>> it =
+                    index.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (entry.getKey().equals(fileName)) {
+                    continue;
+                }
+                it.remove();
+                size -= entry.getValue();
+                victims.add(entry.getKey());
+            }
+        }
+        for (String victim : victims) {
+            Files.deleteIfExists(directory.resolve(victim));
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    // left behind by an interrupted fetch
+                    Files.deleteIfExists(path);
+                } else if (Files.isRegularFile(path)) {
+                    paths.add(path);
+                }
+            }
+        }
+        final Map<Path, FileTime> times = new LinkedHashMap<>();
+        for (Path path : paths) {
+            times.put(path, Files.getLastModifiedTime(path));
+        }
+        Collections.sort(paths, new Comparator<Path>() {
+            @Override
+            public int compare(Path path1, Path path2) {
+                return times.get(path1).compareTo(times.get(path2));
+            }
+        });
+        for (Path path : paths) {
+            addToIndex(path.getFileName().toString(), Files.size(path));
+        }
+    }
+
+    private static String blockFileName(String container, String name,
+            String eTag, long blockIndex) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(container, StandardCharsets.UTF_8);
+        hasher.putByte((byte) 0);
+        hasher.putString(name, StandardCharsets.UTF_8);
+        hasher.putByte((byte) 0);
+        hasher.putString(eTag, StandardCharsets.UTF_8);
+        return hasher.hash() + "-" + blockIndex;
+    }
+
+    /** Stream a byte range by walking the blocks which cover it. */
+    private final class BlockInputStream extends InputStream {
+        private final String container;
+        private final String name;
+        private final String eTag;
+        private final long length;
+        private final long end;
+        private long position;
+        private byte[] block;
+        private long blockIndex = -1;
+
+        BlockInputStream(String container, String name, String eTag,
+                long length, long start, long end) {
+            this.container = container;
+            this.name = name;
+            this.eTag = eTag;
+            this.length = length;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            long index = position / blockSize;
+            if (index != blockIndex) {
+                block = readBlock(container, name, eTag, length, index);
+                blockIndex = index;
+            }
+            int blockOffset = (int) (position - index * blockSize);
+            len = (int) Math.min(Math.min(len, block.length - blockOffset),
+                    end - position);
+            System.arraycopy(block, blockOffset, b, off, len);
+            position += len;
+            return len;
+        }
+    }
+}
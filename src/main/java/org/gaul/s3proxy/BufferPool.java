@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of byte arrays for body copies.  Classes are powers of
+ * two between MIN_BUFFER_SIZE and MAX_BUFFER_SIZE; larger requests are
+ * allocated and discarded.  Each thread caches a few buffers per class
+ * before returning them to a shared pool.  Buffers in both the thread
+ * caches and the shared pool count against maxPooledBytes, so buffers
+ * acquired on one thread and released on another cannot grow the pool
+ * beyond it.
+ */
+final class BufferPool {
+    static final int MIN_BUFFER_SIZE = 4 * 1024;
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    static final int DEFAULT_COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int THREAD_CACHE_SIZE = 2;
+    private static final int NUM_CLASSES =
+            Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) -
+            Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+    private static final BufferPool DEFAULT =
+            new BufferPool(64L * 1024 * 1024);
+
+    private final long maxPooledBytes;
+    // bytes held in thread caches and the shared pool
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final Queue<byte[]>[] shared;
+    private final ThreadLocal<ArrayDeque<byte[]>[]> threadCaches;
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong outstandingCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    BufferPool(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0,
+                "Pool size must be non-negative, was: %s", maxPooledBytes);
+        this.maxPooledBytes = maxPooledBytes;
+        this.shared = new Queue[NUM_CLASSES];
+        for (int i = 0; i < NUM_CLASSES; ++i) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.threadCaches = new ThreadLocal<ArrayDeque<byte[]>[]>() {
+            @Override
+            protected ArrayDeque<byte[]>[] initialValue() {
+                ArrayDeque<byte[]>[] caches = new ArrayDeque[NUM_CLASSES];
+                for (int i = 0; i < NUM_CLASSES; ++i) {
+                    caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+                }
+                return caches;
+            }
+        };
+    }
+
+    /** Pool shared by the request handler and middlewares. */
+    static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** Return a buffer of at least size bytes, possibly with stale data. */
+    byte[] acquire(int size) {
+        acquireCount.incrementAndGet();
+        outstandingCount.incrementAndGet();
+        int index = sizeClass(size);
+        if (index == -1) {
+            return new byte[size];
+        }
+        byte[] buffer = threadCaches.get()[index].poll();
+        if (buffer == null) {
+            buffer = shared[index].poll();
+        }
+        if (buffer == null) {
+            return new byte[MIN_BUFFER_SIZE << index];
+        }
+        pooledBytes.addAndGet(-buffer.length);
+        hitCount.incrementAndGet();
+        return buffer;
+    }
+
+    /** Return a buffer obtained from acquire to the pool. */
+    void release(byte[] buffer) {
+        outstandingCount.decrementAndGet();
+        int index = sizeClass(buffer.length);
+        if (index == -1 || buffer.length != MIN_BUFFER_SIZE << index) {
+            return;
+        }
+        if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        ArrayDeque<byte[]> cache = threadCaches.get()[index];
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.push(buffer);
+        } else {
+            shared[index].offer(buffer);
+        }
+    }
+
+    /**
+     * Copy all bytes from is to os with a pooled buffer.
+     *
+     * @return number of bytes copied
+     */
+    long copy(InputStream is, OutputStream os, int bufferSize)
+            throws IOException {
+        byte[] buffer = acquire(bufferSize);
+        try {
+            long total = 0;
+            while (true) {
+                int count = is.read(buffer, 0, bufferSize);
+                if (count == -1) {
+                    return total;
+                }
+                os.write(buffer, 0, count);
+                total += count;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /** Number of acquisitions satisfied without allocating. */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Bytes held by the pool, including per-thread caches. */
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /** Number of buffers acquired but not yet released. */
+    long getOutstandingCount() {
+        return outstandingCount.get();
+    }
+
+    /** @return index of the smallest class holding size or -1 if none */
+    private static int sizeClass(int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return -1;
+        } else if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) -
+                Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import javax.annotation.Nullable;
+
+/** Helpers for middlewares which serve byte ranges themselves. */
+final class ByteRanges {
+    private ByteRanges() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /**
+     * Resolve a jclouds range string, e.g., "a-b", "a-" or "-n", against an
+     * object length.
+     *
+     * @return offset and count or null if the range is not satisfiable
+     */
+    @Nullable
+    static long[] parse(String range, long length) {
+        String[] ranges = range.split("-", 2);
+        long offset;
+        long count;
+        try {
+            if (ranges[0].isEmpty()) {
+                count = Math.min(Long.parseLong(ranges[1]), length);
+                offset = length - count;
+            } else if (ranges[1].isEmpty()) {
+                offset = Long.parseLong(ranges[0]);
+                count = length - offset;
+            } else {
+                offset = Long.parseLong(ranges[0]);
+                count = Math.min(Long.parseLong(ranges[1]) + 1, length) -
+                        offset;
+            }
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        if (offset >= length || count <= 0) {
+            return null;
+        }
+        return new long[] {offset, count};
+    }
+
+    static String contentRange(long offset, long count, long length) {
+        return "bytes " + offset + "-" + (offset + count - 1) + "/" + length;
+    }
+}
@@ -43,40 +43,71 @@ final class ChunkedInputStream extends FilterInputStream {
 
     @Override
     public int read() throws IOException {
+        if (!fillChunk()) {
+            return -1;
+        }
+        return chunk[currentIndex++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillChunk()) {
+            return -1;
+        }
+        len = Math.min(len, currentLength - currentIndex);
+        System.arraycopy(chunk, currentIndex, b, off, len);
+        currentIndex += len;
+        return len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseChunk();
+        super.close();
+    }
+
+    /**
+     * Read the next chunk if the current one is consumed.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fillChunk() throws IOException {
         while (currentIndex == currentLength) {
             String line = readLine(in);
             if (line.equals("")) {
-                return -1;
+                releaseChunk();
+                return false;
             }
             String[] parts = line.split(";", 2);
             currentLength = Integer.parseInt(parts[0], 16);
             currentSignature = parts[1];
-            chunk = new byte[currentLength];
+            if (chunk == null || chunk.length < currentLength) {
+                if (chunk != null) {
+                    BufferPool.getDefault().release(chunk);
+                }
+                chunk = BufferPool.getDefault().acquire(currentLength);
+            }
             currentIndex = 0;
-            ByteStreams.readFully(in, chunk);
+            ByteStreams.readFully(in, chunk, 0, currentLength);
             // TODO: check currentSignature
             if (currentLength == 0) {
-                return -1;
+                releaseChunk();
+                return false;
             }
             readLine(in);
         }
-        return chunk[currentIndex++] & 0xFF;
+        return true;
     }
 
-    @Override
-    public int read(byte[] b, int off, int len) throws IOException {
-        int i;
-        for (i = 0; i < len; ++i) {
-            int ch = read();
-            if (ch == -1) {
-                break;
-            }
-            b[off + i] = (byte) ch;
-        }
-        if (i == 0) {
-            return -1;
+    /** Return the chunk buffer to the pool at the end of the stream. */
+    private void releaseChunk() {
+        if (chunk != null) {
+            BufferPool.getDefault().release(chunk);
+            chunk = null;
         }
-        return i;
     }
 
     /**
@@ -0,0 +1,566 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+/**
+ * This class is a BlobStore wrapper which coalesces concurrent reads of the
+ * same container, name and range into a single backend fetch.  The fetched
+ * data fans out to all readers through a bounded window of recently read
+ * chunks.  A reader which falls behind the window detaches and continues
+ * with its own range request, pinned to the ETag of the shared fetch.  A
+ * new reader can join a fetch only while the window still holds its
+ * beginning; once none can, a lone remaining reader keeps only the chunk it
+ * is reading.  Chunks come from the shared BufferPool.
+ */
+final class CoalescingBlobStore extends ForwardingBlobStore {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int DETACHED = -2;
+
+    private final ConcurrentMap<List<String>, Flight> flights =
+            new ConcurrentHashMap<>();
+    private final long bufferSize;
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final BufferPool bufferPool = BufferPool.getDefault();
+
+    private CoalescingBlobStore(BlobStore blobStore, long bufferSize) {
+        super(blobStore);
+        checkArgument(bufferSize >= CHUNK_SIZE,
+                "Buffer size must be at least %s, was: %s", CHUNK_SIZE,
+                bufferSize);
+        this.bufferSize = bufferSize;
+    }
+
+    static CoalescingBlobStore newCoalescingBlobStore(BlobStore blobStore,
+            long bufferSize) {
+        return new CoalescingBlobStore(blobStore, bufferSize);
+    }
+
+    /** Number of backend fetches. */
+    long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /** Number of reads which joined an existing fetch. */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /** Number of readers which fell behind and fetched independently. */
+    long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /** Number of bytes held in the windows of all fetches. */
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        if (options.getIfMatch() != null || options.getIfNoneMatch() != null ||
+                options.getIfModifiedSince() != null ||
+                options.getIfUnmodifiedSince() != null ||
+                options.getRanges().size() > 1) {
+            return super.getBlob(container, name, options);
+        }
+        String range = options.getRanges().isEmpty() ? "" :
+                options.getRanges().get(0);
+        List<String> key = ImmutableList.of(container, name, range);
+
+        while (true) {
+            Flight flight = new Flight(key, container, name, options);
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                fetchCount.incrementAndGet();
+                flight.task.run();
+            } else {
+                flight = existing;
+            }
+
+            Blob shared;
+            try {
+                shared = flight.task.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
+            } catch (ExecutionException ee) {
+                flights.remove(key, flight);
+                Throwables.throwIfUnchecked(ee.getCause());
+                throw new RuntimeException(ee.getCause());
+            }
+            if (shared == null) {
+                flights.remove(key, flight);
+                return null;
+            }
+            if (!flight.attach()) {
+                // window no longer holds the beginning; start a new fetch
+                continue;
+            }
+            if (existing != null) {
+                coalescedCount.incrementAndGet();
+            }
+
+            MutableBlobMetadataImpl metadata = new MutableBlobMetadataImpl(
+                    shared.getMetadata());
+            Blob blob = new BlobImpl(metadata);
+            blob.setAllHeaders(shared.getAllHeaders());
+            Payload payload = Payloads.newInputStreamPayload(
+                    new ConsumerInputStream(flight, shared, range));
+            payload.setContentMetadata(metadata.getContentMetadata());
+            blob.setPayload(payload);
+            return blob;
+        }
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        return putBlob(containerName, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        try {
+            return super.putBlob(containerName, blob, options);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        try {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        } finally {
+            invalidate(toContainer, toName);
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            super.removeBlob(container, name);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        try {
+            super.removeBlobs(container, names);
+        } finally {
+            for (String name : names) {
+                invalidate(container, name);
+            }
+        }
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        try {
+            return super.completeMultipartUpload(mpu, parts);
+        } finally {
+            invalidate(mpu.containerName(), mpu.blobName());
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        try {
+            super.clearContainer(container);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        try {
+            super.clearContainer(container, options);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    /**
+     * Prevent new readers from joining fetches of an overwritten object, or
+     * of any object in the container if name is null.
+     */
+    private void invalidate(String container, @Nullable String name) {
+        for (Flight flight : flights.values()) {
+            if (flight.container.equals(container) &&
+                    (name == null || flight.name.equals(name))) {
+                flight.closeToNewReaders();
+            }
+        }
+    }
+
+    private final class Flight {
+        private final List<String> key;
+        private final String container;
+        private final String name;
+        private final FutureTask<Blob> task;
+        // the following fields are guarded by this
+        private InputStream source;
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+        private long windowStart;
+        private long windowEnd;
+        private boolean eof;
+        private boolean fetching;
+        private boolean joinable = true;
+        private boolean closed;
+        private int consumers;
+        private IOException error;
+
+        Flight(List<String> key, final String container, final String name,
+                final GetOptions options) {
+            this.key = key;
+            this.container = container;
+            this.name = name;
+            this.task = new FutureTask<>(new Callable<Blob>() {
+                @Override
+                public Blob call() {
+                    return CoalescingBlobStore.super.getBlob(container, name,
+                            options);
+                }
+            });
+        }
+
+        synchronized boolean attach() {
+            if (!joinable) {
+                return false;
+            }
+            ++consumers;
+            return true;
+        }
+
+        synchronized void closeToNewReaders() {
+            joinable = false;
+            flights.remove(key, this);
+        }
+
+        void release() throws IOException {
+            InputStream toClose = null;
+            synchronized (this) {
+                if (--consumers > 0) {
+                    return;
+                }
+                joinable = false;
+                closed = true;
+                flights.remove(key, this);
+                while (!chunks.isEmpty()) {
+                    releaseChunk(chunks.removeFirst());
+                }
+                if (!fetching) {
+                    toClose = source;
+                    source = null;
+                }
+            }
+            closeSource(toClose);
+        }
+
+        /**
+         * Copy data at position into b, fetching from the backend when no
+         * reader has yet done so.
+         *
+         * @return number of bytes copied, -1 at the end of the stream or
+         *     DETACHED if position is no longer in the window
+         */
+        int read(Blob shared, long position, byte[] b, int off, int len)
+                throws IOException {
+            synchronized (this) {
+                while (true) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    if (position < windowStart) {
+                        return DETACHED;
+                    }
+                    if (position < windowEnd) {
+                        if (!joinable && consumers == 1) {
+                            // no other reader can need data behind this one
+                            while (windowStart + chunks.getFirst().length <=
+                                    position) {
+                                windowStart += chunks.getFirst().length;
+                                releaseChunk(chunks.removeFirst());
+                            }
+                        }
+                        return copy(position, b, off, len);
+                    }
+                    if (eof) {
+                        return -1;
+                    }
+                    if (!fetching) {
+                        fetching = true;
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            byte[] chunk = bufferPool.acquire(CHUNK_SIZE);
+            int count = 0;
+            IOException ioe = null;
+            try {
+                if (source == null) {
+                    source = shared.getPayload().openStream();
+                }
+                count = ByteStreams.read(source, chunk, 0, chunk.length);
+            } catch (IOException e) {
+                ioe = e;
+            }
+
+            InputStream toClose = null;
+            synchronized (this) {
+                fetching = false;
+                notifyAll();
+                if (ioe != null) {
+                    error = ioe;
+                    joinable = false;
+                    flights.remove(key, this);
+                } else if (count < chunk.length) {
+                    eof = true;
+                    joinable = false;
+                    flights.remove(key, this);
+                }
+                if (!closed && count > 0) {
+                    if (count < chunk.length) {
+                        byte[] last = Arrays.copyOf(chunk, count);
+                        bufferPool.release(chunk);
+                        chunk = last;
+                    }
+                    chunks.addLast(chunk);
+                    bufferedBytes.addAndGet(chunk.length);
+                    windowEnd += count;
+                    while (windowEnd - windowStart > bufferSize &&
+                            chunks.size() > 1) {
+                        windowStart += chunks.getFirst().length;
+                        releaseChunk(chunks.removeFirst());
+                        joinable = false;
+                        flights.remove(key, this);
+                    }
+                } else {
+                    bufferPool.release(chunk);
+                }
+                if (closed || eof || error != null) {
+                    toClose = source;
+                    source = null;
+                }
+            }
+            closeSource(toClose);
+            if (ioe != null) {
+                throw ioe;
+            }
+            return read(shared, position, b, off, len);
+        }
+
+        private void releaseChunk(byte[] chunk) {
+            bufferedBytes.addAndGet(-chunk.length);
+            if (chunk.length == CHUNK_SIZE) {
+                bufferPool.release(chunk);
+            }
+        }
+
+        private int copy(long position, byte[] b, int off, int len) {
+            long chunkStart = windowStart;
+            for (byte[] chunk : chunks) {
+                if (position < chunkStart + chunk.length) {
+                    int chunkOffset = (int) (position - chunkStart);
+                    len = Math.min(len, chunk.length - chunkOffset);
+                    System.arraycopy(chunk, chunkOffset, b, off, len);
+                    return len;
+                }
+                chunkStart += chunk.length;
+            }
+            throw new IllegalStateException("position not in window");
+        }
+    }
+
+    private static void closeSource(@Nullable InputStream is)
+            throws IOException {
+        if (is != null) {
+            is.close();
+        }
+    }
+
+    private final class ConsumerInputStream extends InputStream {
+        private final Blob shared;
+        private final String range;
+        private Flight flight;
+        private InputStream fallback;
+        private long position;
+        private boolean closed;
+
+        ConsumerInputStream(Flight flight, Blob shared, String range) {
+            this.flight = flight;
+            this.shared = shared;
+            this.range = range;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (fallback == null) {
+                int count = flight.read(shared, position, b, off, len);
+                if (count != DETACHED) {
+                    if (count > 0) {
+                        position += count;
+                    }
+                    return count;
+                }
+                fallbackCount.incrementAndGet();
+                fallback = openFallback();
+                Flight oldFlight = flight;
+                flight = null;
+                oldFlight.release();
+            }
+            return fallback.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (fallback != null) {
+                fallback.close();
+            } else {
+                flight.release();
+            }
+        }
+
+        /** Fetch the rest of this reader's range independently. */
+        private InputStream openFallback() throws IOException {
+            long start;
+            if (range.isEmpty()) {
+                start = 0;
+            } else if (!range.startsWith("-")) {
+                start = Long.parseLong(range.substring(0,
+                        range.indexOf('-')));
+            } else {
+                String contentRange = shared.getAllHeaders().containsKey(
+                        HttpHeaders.CONTENT_RANGE) ?
+                        shared.getAllHeaders().get(HttpHeaders.CONTENT_RANGE)
+                                .iterator().next() : null;
+                if (contentRange == null) {
+                    throw new IOException("Reader fell behind shared fetch");
+                }
+                // bytes start-end/length
+                start = Long.parseLong(contentRange.substring(
+                        "bytes ".length(), contentRange.indexOf('-')));
+            }
+
+            GetOptions options = new GetOptions();
+            Long length = shared.getMetadata().getContentMetadata()
+                    .getContentLength();
+            if (length != null && position >= length) {
+                return new ByteArrayInputStream(new byte[0]);
+            } else if (length != null) {
+                options.range(start + position, start + length - 1);
+            } else {
+                options.startAt(start + position);
+            }
+            String eTag = shared.getMetadata().getETag();
+            if (eTag != null) {
+                options.ifETagMatches(eTag);
+            }
+            Blob blob = CoalescingBlobStore.super.getBlob(flight.container,
+                    flight.name, options);
+            if (blob == null) {
+                throw new IOException("Object removed while reading");
+            }
+            return blob.getPayload().openStream();
+        }
+    }
+}
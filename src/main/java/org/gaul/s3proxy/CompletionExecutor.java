@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs slow backend operations, e.g., CompleteMultipartUpload, on a bounded
+ * pool while the request thread keeps the client connection alive.  A
+ * single scheduler writes whitespace to all waiting clients and cancels the
+ * operation when a write fails because the client disconnected.  Idle
+ * threads exit so that unused handlers do not hold any.
+ */
+final class CompletionExecutor {
+    static final int DEFAULT_THREADS = 16;
+    static final int DEFAULT_QUEUE_SIZE = 1024;
+    static final long DEFAULT_KEEP_ALIVE_INTERVAL_MILLIS = 1000;
+    private static final Logger logger = LoggerFactory.getLogger(
+            CompletionExecutor.class);
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor keepAliveScheduler;
+    private final long keepAliveIntervalMillis;
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    CompletionExecutor(int threads, int queueSize,
+            long keepAliveIntervalMillis) {
+        checkArgument(threads > 0, "Threads must be positive, was: %s",
+                threads);
+        checkArgument(queueSize > 0, "Queue size must be positive, was: %s",
+                queueSize);
+        checkArgument(keepAliveIntervalMillis > 0,
+                "Keep-alive interval must be positive, was: %s",
+                keepAliveIntervalMillis);
+        this.keepAliveIntervalMillis = keepAliveIntervalMillis;
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("complete-multipart-upload-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        this.keepAliveScheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("complete-multipart-upload-keepalive")
+                        .setDaemon(true)
+                        .build());
+        keepAliveScheduler.setKeepAliveTime(IDLE_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS);
+        keepAliveScheduler.allowCoreThreadTimeOut(true);
+        keepAliveScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queue an operation.  Callers must submit before committing the
+     * response so that a full queue can still be reported as SlowDown.
+     */
+    <T> Future<T> submit(Callable<T> task) throws S3Exception {
+        long start = System.nanoTime();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    recordLatency(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            rejectedCount.incrementAndGet();
+            throw new S3Exception(S3ErrorCode.SLOW_DOWN, ree);
+        }
+    }
+
+    /**
+     * Wait for an operation while writing a newline to the client every
+     * interval.  Throws IOException and cancels the operation when the
+     * client goes away; rethrows unchecked exceptions from the operation.
+     */
+    <T> T await(Future<T> future, PrintWriter writer) throws IOException {
+        Runnable task = () -> keepAlive(future, writer);
+        ScheduledFuture<?> keepAlive =
+                keepAliveScheduler.scheduleWithFixedDelay(task,
+                        keepAliveIntervalMillis, keepAliveIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+        try {
+            return future.get();
+        } catch (CancellationException ce) {
+            throw new IOException("Client disconnected", ce);
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            future.cancel(/*mayInterruptIfRunning=*/ true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            keepAlive.cancel(/*mayInterruptIfRunning=*/ false);
+            // wait for an in-flight keep-alive before the caller writes
+            synchronized (writer) {
+                // future is done so later keep-alives do nothing
+            }
+        }
+    }
+
+    private void keepAlive(Future<?> future, PrintWriter writer) {
+        synchronized (writer) {
+            if (future.isDone()) {
+                return;
+            }
+            writer.write("\n");
+            // PrintWriter swallows IOException and only sets an error flag
+            if (writer.checkError() &&
+                    future.cancel(/*mayInterruptIfRunning=*/ true)) {
+                logger.debug("Client disconnected, cancelling completion");
+                cancelledCount.incrementAndGet();
+                executor.purge();
+            }
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        completedCount.incrementAndGet();
+        totalLatencyNanos.addAndGet(nanos);
+        maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /** Operations waiting for a thread. */
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Operations currently running. */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** Mean time from submission to completion, including queueing. */
+    long getMeanLatencyNanos() {
+        long count = completedCount.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / count;
+    }
+
+    long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+}
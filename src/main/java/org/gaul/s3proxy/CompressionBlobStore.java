@@ -0,0 +1,1060 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.FileBackedOutputStream;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.Striped;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.MutableStorageMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.domain.internal.MutableStorageMetadataImpl;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
+import org.jclouds.io.MutableContentMetadata;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which stores payloads compressed.
+ * putBlob and uploadMultipartPart split each payload into fixed-size blocks
+ * and deflate each block independently, keeping blocks which do not shrink
+ * as-is.  A manifest holding the original size, the original ETag and the
+ * raw and stored length of every block is written as a sidecar blob, which
+ * lets range reads fetch and inflate only the blocks they cover.  The data
+ * blob carries a nonce in its user metadata which selects its manifest.  A
+ * write adds its manifest to the sidecar before writing the data and drops
+ * the older manifests only afterwards, so readers and failed writes always
+ * find the manifest matching the data.  Writes to a key are serialized.
+ * Parts smaller than the backend minimum after compression are padded.
+ * Objects with a Content-Encoding are stored as-is.  This assumes a single
+ * S3Proxy instance writes to each container.
+ */
+final class CompressionBlobStore extends ForwardingBlobStore {
+    static final String COMPRESSION_PREFIX = ".s3proxy-compression/";
+    private static final String MANIFEST_PREFIX =
+            COMPRESSION_PREFIX + "manifests/";
+    private static final String PART_PREFIX = COMPRESSION_PREFIX + "parts/";
+    private static final String NONCE_KEY = "s3proxy-compression";
+    /** Part number whose manifest records the nonce of an upload. */
+    private static final int NONCE_PART = 0;
+    private static final int MANIFEST_MAGIC = 0x5333435a;
+
+    private static final Logger logger = LoggerFactory.getLogger(
+            CompressionBlobStore.class);
+
+    private final int blockSize;
+    private final int spoolThreshold;
+    private final Cache<Map.Entry<String, String>, Manifest> manifests;
+    private final Striped<Lock> keyLocks = Striped.lock(256);
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    private CompressionBlobStore(BlobStore blobStore, int blockSize,
+            int spoolThreshold, long maxCachedBlocks) {
+        super(blobStore);
+        checkArgument(blockSize > 0,
+                "Block size must be positive, was: %s", blockSize);
+        checkArgument(spoolThreshold >= 0,
+                "Spool threshold must be non-negative, was: %s",
+                spoolThreshold);
+        this.blockSize = blockSize;
+        this.spoolThreshold = spoolThreshold;
+        this.manifests = CacheBuilder.newBuilder()
+                .maximumWeight(maxCachedBlocks)
+                .weigher(CompressionBlobStore::weigh)
+                .build();
+    }
+
+    static CompressionBlobStore newCompressionBlobStore(BlobStore blobStore,
+            int blockSize, int spoolThreshold, long maxCachedBlocks) {
+        return new CompressionBlobStore(blobStore, blockSize, spoolThreshold,
+                maxCachedBlocks);
+    }
+
+    @Override
+    public BlobMetadata blobMetadata(String container, String name) {
+        BlobMetadata metadata = super.blobMetadata(container, name);
+        if (metadata == null || getNonce(metadata) == null) {
+            return metadata;
+        }
+        return toLogical(metadata, getManifest(container, name,
+                getNonce(metadata)));
+    }
+
+    @Override
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name, GetOptions options) {
+        BlobMetadata metadata = super.blobMetadata(container, name);
+        String nonce = metadata == null ? null : getNonce(metadata);
+        if (nonce == null) {
+            return super.getBlob(container, name, options);
+        }
+        Manifest manifest = getManifest(container, name, nonce);
+        MutableBlobMetadata logical = toLogical(metadata, manifest);
+        int status = ConditionalRequests.status(logical,
+                options);
+        if (status != 200) {
+            throw new HttpResponseException("conditional request failed",
+                    null, HttpResponse.builder().statusCode(status).build());
+        }
+
+        String range = options.getRanges().isEmpty() ? null :
+                options.getRanges().get(0);
+        long offset = 0;
+        long count = manifest.size;
+        if (range != null) {
+            long[] resolved = ByteRanges.parse(range, manifest.size);
+            if (resolved == null) {
+                throw new HttpResponseException("invalid range", null,
+                        HttpResponse.builder().statusCode(416).build());
+            }
+            offset = resolved[0];
+            count = resolved[1];
+        }
+
+        Payload payload;
+        if (count == 0) {
+            payload = Payloads.newByteArrayPayload(new byte[0]);
+        } else {
+            int first = manifest.blockFor(offset);
+            int last = manifest.blockFor(offset + count - 1);
+            long start = manifest.storedOffsets[first];
+            long end = manifest.storedOffsets[last + 1];
+            Blob blob = super.getBlob(container, name,
+                    new GetOptions().range(start, end - 1));
+            if (blob == null) {
+                return null;
+            }
+            try {
+                payload = Payloads.newInputStreamPayload(
+                        new BlockInputStream(blob.getPayload().openStream(),
+                                manifest, first, last + 1,
+                                offset - manifest.rawOffsets[first], count));
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        Blob blob = new BlobImpl(logical);
+        payload.setContentMetadata(logical.getContentMetadata());
+        payload.getContentMetadata().setContentLength(count);
+        blob.setPayload(payload);
+        if (range != null) {
+            payload.getContentMetadata().setContentMD5((HashCode) null);
+            blob.setAllHeaders(ImmutableMultimap.of(
+                    HttpHeaders.CONTENT_RANGE,
+                    ByteRanges.contentRange(offset, count, manifest.size)));
+        }
+        return blob;
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        String name = blob.getMetadata().getName();
+        ContentMetadata contentMetadata =
+                blob.getMetadata().getContentMetadata();
+        if (name.startsWith(COMPRESSION_PREFIX) ||
+                contentMetadata.getContentEncoding() != null) {
+            Lock lock = keyLocks.get(container + "/" + name);
+            lock.lock();
+            try {
+                String eTag = super.putBlob(container, blob, options);
+                removeManifest(container, name);
+                return eTag;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        FileBackedOutputStream spool = new FileBackedOutputStream(
+                spoolThreshold);
+        try {
+            List<int[]> blocks = new ArrayList<>();
+            HashCode md5;
+            try (InputStream is = blob.getPayload().openStream()) {
+                md5 = compress(is, spool, blocks);
+            }
+            HashCode expectedMD5 = contentMetadata.getContentMD5AsHashCode();
+            if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+                throw new HttpResponseException("Content-MD5 mismatch", null,
+                        HttpResponse.builder().statusCode(400).build());
+            }
+
+            String nonce = UUID.randomUUID().toString();
+            Manifest manifest = new Manifest(nonce, md5.toString(), blocks);
+            Map<String, String> userMetadata = new HashMap<>();
+            if (blob.getMetadata().getUserMetadata() != null) {
+                userMetadata.putAll(blob.getMetadata().getUserMetadata());
+            }
+            userMetadata.put(NONCE_KEY, nonce);
+            Blob compressed = blobBuilder(name)
+                    .userMetadata(userMetadata)
+                    .payload(spool.asByteSource())
+                    .contentLength(manifest.storedSize)
+                    .build();
+            copyContentMetadata(contentMetadata,
+                    compressed.getPayload().getContentMetadata());
+            writeWithManifest(container, name, manifest, () ->
+                    super.putBlob(container, compressed, options));
+            logicalBytes.addAndGet(manifest.size);
+            storedBytes.addAndGet(manifest.storedSize);
+            return manifest.eTag;
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            try {
+                spool.reset();
+            } catch (IOException ioe) {
+                logger.debug("Could not delete spool file", ioe);
+            }
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        BlobMetadata metadata = super.blobMetadata(fromContainer, fromName);
+        String nonce = metadata == null ? null : getNonce(metadata);
+        if (nonce == null) {
+            Lock lock = keyLocks.get(toContainer + "/" + toName);
+            lock.lock();
+            try {
+                String eTag = super.copyBlob(fromContainer, fromName,
+                        toContainer, toName, options);
+                removeManifest(toContainer, toName);
+                return eTag;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // copy the compressed data and its manifest without inflating
+        Manifest manifest = getManifest(fromContainer, fromName, nonce);
+        int status = ConditionalRequests.status(
+                toLogical(metadata, manifest),
+                ConditionalRequests.toGetOptions(options));
+        if (status != 200) {
+            throw new HttpResponseException("conditional request failed",
+                    null, HttpResponse.builder().statusCode(412).build());
+        }
+        CopyOptions.Builder builder = CopyOptions.builder();
+        if (options.contentMetadata() != null) {
+            builder.contentMetadata(options.contentMetadata());
+        }
+        if (options.userMetadata() != null) {
+            Map<String, String> userMetadata = new HashMap<>(
+                    options.userMetadata());
+            userMetadata.put(NONCE_KEY, nonce);
+            builder.userMetadata(userMetadata);
+        }
+        writeWithManifest(toContainer, toName, manifest, () ->
+                super.copyBlob(fromContainer, fromName, toContainer, toName,
+                        builder.build()));
+        return manifest.eTag;
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        Lock lock = keyLocks.get(container + "/" + name);
+        lock.lock();
+        try {
+            super.removeBlob(container, name);
+            removeManifest(container, name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        List<String> keys = new ArrayList<>();
+        List<String> manifestNames = new ArrayList<>();
+        for (String name : names) {
+            keys.add(container + "/" + name);
+            manifestNames.add(MANIFEST_PREFIX + name);
+        }
+        // bulkGet orders the locks so that concurrent callers cannot deadlock
+        Iterable<Lock> locks = keyLocks.bulkGet(keys);
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            for (String name : names) {
+                manifests.invalidate(Maps.immutableEntry(container, name));
+            }
+            super.removeBlobs(container, names);
+            super.removeBlobs(container, manifestNames);
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(String container,
+            ListContainerOptions options) {
+        PageSet<? extends StorageMetadata> page = super.list(container,
+                options);
+        String lastName = null;
+        for (StorageMetadata metadata : page) {
+            if (metadata.getType() == StorageType.BLOB) {
+                lastName = metadata.getName();
+            }
+        }
+        Set<String> compressed = lastName == null ?
+                new HashSet<>() :
+                listManifests(container, options, lastName);
+
+        List<StorageMetadata> results = new ArrayList<>();
+        for (StorageMetadata metadata : page) {
+            String name = metadata.getName();
+            if (name.startsWith(COMPRESSION_PREFIX) ||
+                    (name + "/").equals(COMPRESSION_PREFIX)) {
+                continue;
+            }
+            if (metadata.getType() != StorageType.BLOB ||
+                    !compressed.contains(name)) {
+                results.add(metadata);
+                continue;
+            }
+            Manifest manifest = getManifest(container, name, null);
+            MutableStorageMetadata logical =
+                    new MutableStorageMetadataImpl(metadata);
+            logical.setSize(manifest.size);
+            logical.setETag(manifest.eTag);
+            results.add(logical);
+        }
+        return new PageSetImpl<>(results, page.getNextMarker());
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String container,
+            BlobMetadata blobMetadata, PutOptions options) {
+        // record the nonce so that completion can write its manifest first
+        String nonce = UUID.randomUUID().toString();
+        MultipartUpload mpu = super.initiateMultipartUpload(container,
+                withNonce(blobMetadata, nonce), options);
+        writeManifests(container, partName(mpu, NONCE_PART),
+                ImmutableList.of(new Manifest(nonce, "",
+                        ImmutableList.<int[]>of())));
+        return mpu;
+    }
+
+    @Override
+    public MultipartPart uploadMultipartPart(MultipartUpload mpu,
+            int partNumber, Payload payload) {
+        FileBackedOutputStream spool = new FileBackedOutputStream(
+                spoolThreshold);
+        try {
+            List<int[]> blocks = new ArrayList<>();
+            HashCode md5;
+            try (InputStream is = payload.openStream()) {
+                md5 = compress(is, spool, blocks);
+            }
+            HashCode expectedMD5 =
+                    payload.getContentMetadata().getContentMD5AsHashCode();
+            if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+                throw new HttpResponseException("Content-MD5 mismatch", null,
+                        HttpResponse.builder().statusCode(400).build());
+            }
+
+            // only the last part may be small so pad compressed parts
+            long minimumSize = super.getMinimumMultipartPartSize();
+            Manifest manifest = new Manifest("", md5.toString(), blocks);
+            if (manifest.size >= minimumSize &&
+                    manifest.storedSize < minimumSize) {
+                long padding = minimumSize - manifest.storedSize;
+                blocks.add(new int[] {0, (int) padding});
+                byte[] zeros = new byte[BufferPool.DEFAULT_COPY_BUFFER_SIZE];
+                while (padding > 0) {
+                    int length = (int) Math.min(padding, zeros.length);
+                    spool.write(zeros, 0, length);
+                    padding -= length;
+                }
+                manifest = new Manifest("", md5.toString(), blocks);
+            }
+
+            MultipartPart part = super.uploadMultipartPart(mpu, partNumber,
+                    Payloads.newByteSourcePayload(spool.asByteSource()));
+            // remember the backend ETag to complete the upload later
+            writeManifests(mpu.containerName(), partName(mpu, partNumber),
+                    ImmutableList.of(new Manifest(part.partETag(),
+                            manifest.eTag, blocks)));
+            logicalBytes.addAndGet(manifest.size);
+            storedBytes.addAndGet(manifest.storedSize);
+            return MultipartPart.create(partNumber, manifest.size,
+                    manifest.eTag, part.lastModified());
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            try {
+                spool.reset();
+            } catch (IOException ioe) {
+                logger.debug("Could not delete spool file", ioe);
+            }
+        }
+    }
+
+    @Override
+    public List<MultipartPart> listMultipartUpload(MultipartUpload mpu) {
+        ImmutableList.Builder<MultipartPart> parts = ImmutableList.builder();
+        for (MultipartPart part : super.listMultipartUpload(mpu)) {
+            Manifest manifest = readManifest(mpu.containerName(),
+                    partName(mpu, part.partNumber()));
+            if (manifest == null) {
+                continue;
+            }
+            parts.add(MultipartPart.create(part.partNumber(), manifest.size,
+                    manifest.eTag, part.lastModified()));
+        }
+        return parts.build();
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        String container = mpu.containerName();
+        List<MultipartPart> backendParts = new ArrayList<>();
+        List<int[]> blocks = new ArrayList<>();
+        Hasher hasher = Hashing.md5().newHasher();
+        for (MultipartPart part : parts) {
+            Manifest manifest = readManifest(container,
+                    partName(mpu, part.partNumber()));
+            if (manifest == null || (part.partETag() != null &&
+                    !manifest.eTag.equals(part.partETag()))) {
+                // a bare 400 would be reported as BadDigest
+                throw new RuntimeException(new S3Exception(
+                        S3ErrorCode.INVALID_PART));
+            }
+            backendParts.add(MultipartPart.create(part.partNumber(),
+                    manifest.storedSize, manifest.reference,
+                    part.lastModified()));
+            for (int i = 0; i < manifest.rawLengths.length; ++i) {
+                blocks.add(new int[] {manifest.rawLengths[i],
+                        manifest.storedLengths[i]});
+            }
+            hasher.putBytes(HashCode.fromString(manifest.eTag).asBytes());
+        }
+
+        // some providers apply the metadata at completion
+        Manifest nonceManifest = readManifest(container,
+                partName(mpu, NONCE_PART));
+        String nonce = nonceManifest == null ?
+                UUID.randomUUID().toString() : nonceManifest.reference;
+        MultipartUpload marked = mpu.blobMetadata() == null ? mpu :
+                MultipartUpload.create(container, mpu.blobName(), mpu.id(),
+                        withNonce(mpu.blobMetadata(), nonce),
+                        mpu.putOptions());
+        String eTag = hasher.hash() + "-" + parts.size();
+        if (nonceManifest == null) {
+            // upload initiated without a recorded nonce
+            super.completeMultipartUpload(marked, backendParts);
+            String actual = getCompletedNonce(container, mpu.blobName());
+            Manifest manifest = new Manifest(actual, eTag, blocks);
+            writeManifests(container, MANIFEST_PREFIX + mpu.blobName(),
+                    ImmutableList.of(manifest));
+            manifests.put(Maps.immutableEntry(container, mpu.blobName()),
+                    manifest);
+        } else {
+            writeWithManifest(container, mpu.blobName(),
+                    new Manifest(nonce, eTag, blocks), () -> {
+                        super.completeMultipartUpload(marked, backendParts);
+                        if (!nonce.equals(getCompletedNonce(container,
+                                mpu.blobName()))) {
+                            throw new IllegalStateException(
+                                    "Backend changed compression metadata" +
+                                    " for " + mpu.blobName());
+                        }
+                        return null;
+                    });
+        }
+        removeParts(mpu);
+        return eTag;
+    }
+
+    private String getCompletedNonce(String container, String name) {
+        BlobMetadata metadata = super.blobMetadata(container, name);
+        String nonce = metadata == null ? null : getNonce(metadata);
+        if (nonce == null) {
+            throw new IllegalStateException(
+                    "Backend dropped compression metadata for " + name);
+        }
+        return nonce;
+    }
+
+    @Override
+    public void abortMultipartUpload(MultipartUpload mpu) {
+        super.abortMultipartUpload(mpu);
+        removeParts(mpu);
+    }
+
+    /** Bytes written by clients. */
+    long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    /** Bytes written to the backend, excluding manifests. */
+    long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Deflate is into os in independent blocks, recording the raw and
+     * stored length of each.
+     *
+     * @return MD5 of the uncompressed input
+     */
+    private HashCode compress(InputStream is, OutputStream os,
+            List<int[]> blocks) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] raw = pool.acquire(blockSize);
+        byte[] deflated = pool.acquire(blockSize);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        Hasher hasher = Hashing.md5().newHasher();
+        try {
+            while (true) {
+                int length = ByteStreams.read(is, raw, 0, blockSize);
+                if (length == 0) {
+                    break;
+                }
+                hasher.putBytes(raw, 0, length);
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                int stored = 0;
+                while (!deflater.finished() && stored < length) {
+                    stored += deflater.deflate(deflated, stored,
+                            length - stored);
+                }
+                if (deflater.finished() && stored < length) {
+                    os.write(deflated, 0, stored);
+                } else {
+                    // incompressible
+                    os.write(raw, 0, length);
+                    stored = length;
+                }
+                blocks.add(new int[] {length, stored});
+                if (length < blockSize) {
+                    break;
+                }
+            }
+        } finally {
+            deflater.end();
+            pool.release(deflated);
+            pool.release(raw);
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * Return the manifest for a compressed blob.
+     *
+     * @param nonce value stored with the data or null to skip validation
+     */
+    private Manifest getManifest(String container, String name,
+            @Nullable String nonce) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        Manifest manifest = manifests.getIfPresent(key);
+        if (manifest == null ||
+                (nonce != null && !manifest.reference.equals(nonce))) {
+            manifest = null;
+            // the first manifest is the newest
+            for (Manifest candidate : readManifests(container,
+                    MANIFEST_PREFIX + name)) {
+                if (nonce == null || candidate.reference.equals(nonce)) {
+                    manifest = candidate;
+                    break;
+                }
+            }
+            if (manifest == null) {
+                throw new IllegalStateException(
+                        "Missing compression manifest for " + container +
+                        "/" + name);
+            }
+            manifests.put(key, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Write data whose nonce is manifest.reference.  The sidecar holds the
+     * new manifest ahead of the previous one until the write succeeds.
+     */
+    private <T> T writeWithManifest(String container, String name,
+            Manifest manifest, Supplier<T> writer) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        String manifestName = MANIFEST_PREFIX + name;
+        Lock lock = keyLocks.get(container + "/" + name);
+        lock.lock();
+        try {
+            // writes are serialized so a cached manifest matches the data
+            Manifest cached = manifests.getIfPresent(key);
+            List<Manifest> previous = cached != null ?
+                    ImmutableList.of(cached) :
+                    readManifests(container, manifestName);
+            manifests.invalidate(key);
+            writeManifests(container, manifestName, ImmutableList.<Manifest>
+                    builder().add(manifest).addAll(previous).build());
+            T result;
+            try {
+                result = writer.get();
+            } catch (RuntimeException re) {
+                if (previous.isEmpty()) {
+                    try {
+                        super.removeBlob(container, manifestName);
+                    } catch (RuntimeException re2) {
+                        re.addSuppressed(re2);
+                    }
+                }
+                throw re;
+            }
+            if (!previous.isEmpty()) {
+                try {
+                    writeManifests(container, manifestName,
+                            ImmutableList.of(manifest));
+                } catch (RuntimeException re) {
+                    // the untrimmed sidecar still holds the new manifest
+                    logger.warn("Could not trim manifest {}", manifestName,
+                            re);
+                }
+            }
+            manifests.put(key, manifest);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Manifest readManifest(String container, String manifestName) {
+        List<Manifest> list = readManifests(container, manifestName);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    private List<Manifest> readManifests(String container,
+            String manifestName) {
+        Blob blob = super.getBlob(container, manifestName);
+        if (blob == null) {
+            return ImmutableList.of();
+        }
+        List<Manifest> list = new ArrayList<>();
+        try (PushbackInputStream is = new PushbackInputStream(
+                blob.getPayload().openStream())) {
+            DataInputStream dis = new DataInputStream(is);
+            while (true) {
+                int b = is.read();
+                if (b == -1) {
+                    return list;
+                }
+                is.unread(b);
+                list.add(Manifest.read(dis));
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private void writeManifests(String container, String manifestName,
+            List<Manifest> list) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(os)) {
+            for (Manifest manifest : list) {
+                manifest.write(dos);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        byte[] bytes = os.toByteArray();
+        super.putBlob(container, blobBuilder(manifestName)
+                .payload(bytes)
+                .contentLength(bytes.length)
+                .build());
+    }
+
+    private void removeManifest(String container, String name) {
+        manifests.invalidate(Maps.immutableEntry(container, name));
+        super.removeBlob(container, MANIFEST_PREFIX + name);
+    }
+
+    private void removeParts(MultipartUpload mpu) {
+        List<String> names = new ArrayList<>();
+        for (StorageMetadata metadata : super.list(mpu.containerName(),
+                new ListContainerOptions()
+                        .prefix(PART_PREFIX + mpu.id() + "/")
+                        .recursive())) {
+            names.add(metadata.getName());
+        }
+        if (!names.isEmpty()) {
+            super.removeBlobs(mpu.containerName(), names);
+        }
+    }
+
+    /**
+     * Return the names in the listed range, up to lastName, which have a
+     * manifest.
+     */
+    private Set<String> listManifests(String container,
+            ListContainerOptions options, String lastName) {
+        ListContainerOptions manifestOptions = new ListContainerOptions()
+                .prefix(MANIFEST_PREFIX + (options.getPrefix() == null ? "" :
+                        options.getPrefix()));
+        if (options.isRecursive()) {
+            manifestOptions.recursive();
+        }
+        if (options.getDelimiter() != null) {
+            manifestOptions.delimiter(options.getDelimiter());
+        }
+        String marker = options.getMarker() == null ? null :
+                MANIFEST_PREFIX + options.getMarker();
+        Set<String> names = new HashSet<>();
+        while (true) {
+            if (marker != null) {
+                manifestOptions.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> page = super.list(container,
+                    manifestOptions);
+            for (StorageMetadata metadata : page) {
+                if (metadata.getType() != StorageType.BLOB) {
+                    continue;
+                }
+                String name = metadata.getName().substring(
+                        MANIFEST_PREFIX.length());
+                if (name.compareTo(lastName) > 0) {
+                    return names;
+                }
+                names.add(name);
+            }
+            marker = page.getNextMarker();
+            if (marker == null) {
+                return names;
+            }
+        }
+    }
+
+    private static MutableBlobMetadata withNonce(BlobMetadata blobMetadata,
+            String nonce) {
+        MutableBlobMetadata metadata = new MutableBlobMetadataImpl(
+                blobMetadata);
+        Map<String, String> userMetadata = new HashMap<>();
+        if (blobMetadata.getUserMetadata() != null) {
+            userMetadata.putAll(blobMetadata.getUserMetadata());
+        }
+        userMetadata.put(NONCE_KEY, nonce);
+        metadata.setUserMetadata(userMetadata);
+        return metadata;
+    }
+
+    private static int weigh(Map.Entry<String, String> key,
+            Manifest manifest) {
+        return manifest.rawLengths.length + 1;
+    }
+
+    private static String partName(MultipartUpload mpu, int partNumber) {
+        return String.format("%s%s/%08d", PART_PREFIX, mpu.id(), partNumber);
+    }
+
+    @Nullable
+    private static String getNonce(BlobMetadata metadata) {
+        return metadata.getUserMetadata() == null ? null :
+                metadata.getUserMetadata().get(NONCE_KEY);
+    }
+
+    /** Metadata of the uncompressed object. */
+    private static MutableBlobMetadata toLogical(BlobMetadata metadata,
+            Manifest manifest) {
+        MutableBlobMetadata logical = new MutableBlobMetadataImpl(metadata);
+        Map<String, String> userMetadata = new HashMap<>(
+                metadata.getUserMetadata());
+        userMetadata.remove(NONCE_KEY);
+        logical.setUserMetadata(userMetadata);
+        logical.setETag(manifest.eTag);
+        logical.setSize(manifest.size);
+        logical.getContentMetadata().setContentLength(manifest.size);
+        logical.getContentMetadata().setContentMD5(
+                manifest.eTag.contains("-") ? null :
+                        HashCode.fromString(manifest.eTag));
+        return logical;
+    }
+
+    private static void copyContentMetadata(ContentMetadata from,
+            MutableContentMetadata to) {
+        to.setCacheControl(from.getCacheControl());
+        to.setContentDisposition(from.getContentDisposition());
+        to.setContentLanguage(from.getContentLanguage());
+        to.setContentType(from.getContentType());
+        to.setExpires(from.getExpires());
+    }
+
+
+    /**
+     * Block index of a compressed blob or part.  A block whose stored
+     * length equals its raw length is stored as-is and a block with no raw
+     * bytes is padding.
+     */
+    private static final class Manifest {
+        /** Nonce for objects and backend ETag for parts. */
+        private final String reference;
+        private final String eTag;
+        private final long size;
+        private final long storedSize;
+        private final int[] rawLengths;
+        private final int[] storedLengths;
+        private final long[] rawOffsets;
+        private final long[] storedOffsets;
+
+        Manifest(String reference, String eTag, List<int[]> blocks) {
+            this.reference = reference;
+            this.eTag = eTag;
+            int count = blocks.size();
+            rawLengths = new int[count];
+            storedLengths = new int[count];
+            rawOffsets = new long[count + 1];
+            storedOffsets = new long[count + 1];
+            for (int i = 0; i < count; ++i) {
+                rawLengths[i] = blocks.get(i)[0];
+                storedLengths[i] = blocks.get(i)[1];
+                rawOffsets[i + 1] = rawOffsets[i] + rawLengths[i];
+                storedOffsets[i + 1] = storedOffsets[i] + storedLengths[i];
+            }
+            size = rawOffsets[count];
+            storedSize = storedOffsets[count];
+        }
+
+        /** @return index of the block holding the byte at offset */
+        int blockFor(long offset) {
+            // padding shares its offset with the next block so take the last
+            int low = 0;
+            int high = rawLengths.length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (rawOffsets[middle] <= offset) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        int maxRawLength() {
+            int max = 0;
+            for (int length : rawLengths) {
+                max = Math.max(max, length);
+            }
+            return max;
+        }
+
+        int maxStoredLength() {
+            int max = 0;
+            for (int i = 0; i < storedLengths.length; ++i) {
+                if (rawLengths[i] != 0) {
+                    max = Math.max(max, storedLengths[i]);
+                }
+            }
+            return max;
+        }
+
+        void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(MANIFEST_MAGIC);
+            dos.writeUTF(reference);
+            dos.writeUTF(eTag);
+            dos.writeInt(rawLengths.length);
+            for (int i = 0; i < rawLengths.length; ++i) {
+                dos.writeInt(rawLengths[i]);
+                dos.writeInt(storedLengths[i]);
+            }
+        }
+
+        static Manifest read(DataInputStream dis) throws IOException {
+            if (dis.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Invalid compression manifest");
+            }
+            String reference = dis.readUTF();
+            String eTag = dis.readUTF();
+            int count = dis.readInt();
+            List<int[]> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                blocks.add(new int[] {dis.readInt(), dis.readInt()});
+            }
+            return new Manifest(reference, eTag, blocks);
+        }
+    }
+
+    /** Inflate a run of blocks, returning count bytes after skipping some. */
+    private static final class BlockInputStream extends InputStream {
+        private final InputStream is;
+        private final Manifest manifest;
+        private final int end;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] input;
+        private final byte[] buffer;
+        private int block;
+        private int position;
+        private int limit;
+        private long skip;
+        private long remaining;
+
+        BlockInputStream(InputStream is, Manifest manifest, int start,
+                int end, long skip, long count) {
+            this.is = is;
+            this.manifest = manifest;
+            this.block = start;
+            this.end = end;
+            this.skip = skip;
+            this.remaining = count;
+            this.input = new byte[manifest.maxStoredLength()];
+            this.buffer = new byte[manifest.maxRawLength()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0 || !fill()) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, limit - position),
+                    remaining);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            is.close();
+        }
+
+        /** @return false at the end of the requested bytes */
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (block == end) {
+                    return false;
+                }
+                int rawLength = manifest.rawLengths[block];
+                int storedLength = manifest.storedLengths[block];
+                ++block;
+                if (rawLength == 0) {
+                    ByteStreams.skipFully(is, storedLength);
+                } else if (rawLength == storedLength) {
+                    ByteStreams.readFully(is, buffer, 0, rawLength);
+                } else {
+                    ByteStreams.readFully(is, input, 0, storedLength);
+                    inflate(storedLength, rawLength);
+                }
+                position = (int) Math.min(skip, rawLength);
+                skip -= position;
+                limit = rawLength;
+            }
+            return true;
+        }
+
+        private void inflate(int storedLength, int rawLength)
+                throws IOException {
+            inflater.reset();
+            inflater.setInput(input, 0, storedLength);
+            int length = 0;
+            try {
+                while (length < rawLength) {
+                    int n = inflater.inflate(buffer, length,
+                            rawLength - length);
+                    if (n == 0 && (inflater.finished() ||
+                            inflater.needsInput())) {
+                        throw new IOException("Truncated compressed block");
+                    }
+                    length += n;
+                }
+            } catch (DataFormatException dfe) {
+                throw new IOException(dfe);
+            }
+        }
+    }
+}
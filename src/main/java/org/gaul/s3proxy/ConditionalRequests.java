@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.util.Date;
+
+import com.google.common.base.Splitter;
+
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+
+/**
+ * Helpers for middlewares which evaluate If-Match and related conditions
+ * themselves, e.g., against cached or logical metadata.
+ */
+final class ConditionalRequests {
+    private ConditionalRequests() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /**
+     * Evaluate conditional options against locally known metadata.
+     *
+     * @return 304 or 412 if the request must fail, otherwise 200
+     */
+    static int status(BlobMetadata metadata, GetOptions options) {
+        String eTag = metadata.getETag();
+        if (eTag != null) {
+            eTag = S3ProxyHandler.maybeQuoteETag(eTag);
+            String ifMatch = options.getIfMatch();
+            if (ifMatch != null && !eTagListMatches(ifMatch, eTag)) {
+                return 412;
+            }
+            String ifNoneMatch = options.getIfNoneMatch();
+            if (ifNoneMatch != null && eTagListMatches(ifNoneMatch, eTag)) {
+                return 304;
+            }
+        }
+
+        Date lastModified = metadata.getLastModified();
+        if (lastModified != null) {
+            // HTTP dates have second precision
+            long lastModifiedSeconds = lastModified.getTime() / 1000;
+            Date ifUnmodifiedSince = options.getIfUnmodifiedSince();
+            if (options.getIfMatch() == null && ifUnmodifiedSince != null &&
+                    lastModifiedSeconds > ifUnmodifiedSince.getTime() / 1000) {
+                return 412;
+            }
+            Date ifModifiedSince = options.getIfModifiedSince();
+            if (options.getIfNoneMatch() == null && ifModifiedSince != null &&
+                    lastModifiedSeconds <= ifModifiedSince.getTime() / 1000) {
+                return 304;
+            }
+        }
+        return 200;
+    }
+
+    /** Whether a comma-separated If-Match list matches a quoted ETag. */
+    private static boolean eTagListMatches(String eTags, String eTag) {
+        for (String candidate : Splitter.on(',').trimResults()
+                .omitEmptyStrings().split(eTags)) {
+            if (candidate.equals("*") ||
+                    S3ProxyHandler.maybeQuoteETag(candidate).equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Conditions of a copy as GetOptions for status. */
+    static GetOptions toGetOptions(CopyOptions options) {
+        GetOptions getOptions = new GetOptions();
+        if (options.ifMatch() != null) {
+            getOptions.ifETagMatches(options.ifMatch());
+        }
+        if (options.ifNoneMatch() != null) {
+            getOptions.ifETagDoesntMatch(options.ifNoneMatch());
+        }
+        if (options.ifModifiedSince() != null) {
+            getOptions.ifModifiedSince(options.ifModifiedSince());
+        }
+        if (options.ifUnmodifiedSince() != null) {
+            getOptions.ifUnmodifiedSince(options.ifUnmodifiedSince());
+        }
+        return getOptions;
+    }
+}
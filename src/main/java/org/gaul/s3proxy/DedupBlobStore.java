@@ -0,0 +1,674 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.FileBackedOutputStream;
+import com.google.common.util.concurrent.Striped;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.KeyNotFoundException;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
+import org.jclouds.io.MutableContentMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which stores each unique payload once.
+ * putBlob spools the payload while hashing it and uploads the content under
+ * its SHA-256 digest only if no other key references it; the key itself
+ * becomes an empty pointer blob whose user metadata holds the digest,
+ * logical size and ETag.  Each reference is an empty marker blob under the
+ * content, so the reference count survives restarts and content is deleted
+ * when the last marker is removed.  copyBlob of a pointer only writes a new
+ * pointer and marker.  Objects written before enabling this middleware and
+ * multipart uploads are stored as-is.  getBlob recognizes pointers from
+ * the GET response rather than a separate HEAD.  Client requests for keys
+ * under DEDUP_PREFIX fail with AccessDenied and client user metadata under
+ * the pointer keys is dropped.  This assumes a single S3Proxy instance
+ * writes to each container.
+ */
+final class DedupBlobStore extends ForwardingBlobStore {
+    static final String DEDUP_PREFIX = ".s3proxy-dedup/";
+    static final String CONTENT_PREFIX = DEDUP_PREFIX + "content/";
+    private static final String REFS_PREFIX = DEDUP_PREFIX + "refs/";
+    private static final String METADATA_PREFIX = "s3proxy-dedup-";
+    private static final String DIGEST_KEY = METADATA_PREFIX + "digest";
+    private static final String SIZE_KEY = METADATA_PREFIX + "size";
+    private static final String ETAG_KEY = METADATA_PREFIX + "etag";
+
+    private static final Logger logger = LoggerFactory.getLogger(
+            DedupBlobStore.class);
+
+    private final int spoolThreshold;
+    private final Striped<Lock> digestLocks = Striped.lock(64);
+    /** Key to digest map, also used to fill in listings. */
+    private final Cache<Map.Entry<String, String>, Pointer> pointers;
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    private DedupBlobStore(BlobStore blobStore, int spoolThreshold,
+            long maxPointers) {
+        super(blobStore);
+        checkArgument(spoolThreshold >= 0,
+                "Spool threshold must be non-negative, was: %s",
+                spoolThreshold);
+        this.spoolThreshold = spoolThreshold;
+        this.pointers = CacheBuilder.newBuilder()
+                .maximumSize(maxPointers)
+                .build();
+    }
+
+    static DedupBlobStore newDedupBlobStore(BlobStore blobStore,
+            int spoolThreshold, long maxPointers) {
+        return new DedupBlobStore(blobStore, spoolThreshold, maxPointers);
+    }
+
+    @Override
+    public BlobMetadata blobMetadata(String container, String name) {
+        BlobMetadata metadata = super.blobMetadata(container, name);
+        if (metadata == null) {
+            return null;
+        }
+        Pointer pointer = Pointer.fromMetadata(metadata);
+        if (pointer == null) {
+            return metadata;
+        }
+        pointers.put(Maps.immutableEntry(container, name), pointer);
+        return pointer.toLogical(metadata);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name, GetOptions options) {
+        Blob blob;
+        try {
+            blob = super.getBlob(container, name, options);
+        } catch (HttpResponseException hre) {
+            // the backend evaluated conditions and ranges against the empty
+            // pointer, so evaluate them against the logical object instead
+            int status = hre.getResponse() == null ? 0 :
+                    hre.getResponse().getStatusCode();
+            if (status != 304 && status != 412 && status != 416) {
+                throw hre;
+            }
+            BlobMetadata metadata = super.blobMetadata(container, name);
+            Pointer pointer = metadata == null ? null :
+                    Pointer.fromMetadata(metadata);
+            if (pointer == null) {
+                throw hre;
+            }
+            return getContent(container, name, options, metadata, pointer);
+        }
+        if (blob == null) {
+            return null;
+        }
+        Pointer pointer = Pointer.fromMetadata(blob.getMetadata());
+        if (pointer == null) {
+            return blob;
+        }
+        blob.getPayload().release();
+        return getContent(container, name, options, blob.getMetadata(),
+                pointer);
+    }
+
+    /** Read the content which pointer references as the logical object. */
+    @Nullable
+    private Blob getContent(String container, String name,
+            GetOptions options, BlobMetadata metadata, Pointer pointer) {
+        MutableBlobMetadata logical = pointer.toLogical(metadata);
+        int status = ConditionalRequests.status(logical,
+                options);
+        if (status != 200) {
+            throw new HttpResponseException("conditional request failed",
+                    null, HttpResponse.builder().statusCode(status).build());
+        }
+        GetOptions contentOptions = new GetOptions();
+        for (String range : options.getRanges()) {
+            long[] resolved = ByteRanges.parse(range, pointer.size);
+            if (resolved == null) {
+                throw new HttpResponseException("invalid range", null,
+                        HttpResponse.builder().statusCode(416).build());
+            }
+            contentOptions.range(resolved[0], resolved[0] + resolved[1] - 1);
+        }
+        Blob blob = super.getBlob(container, contentName(pointer.digest),
+                contentOptions);
+        if (blob == null) {
+            logger.error("Missing content {} for {}/{}", pointer.digest,
+                    container, name);
+            return null;
+        }
+
+        // present the content under the logical name and metadata
+        MutableContentMetadata contentMetadata =
+                blob.getPayload().getContentMetadata();
+        Long length = contentMetadata.getContentLength();
+        HashCode md5 = contentMetadata.getContentMD5AsHashCode();
+        contentMetadata.setContentType(
+                logical.getContentMetadata().getContentType());
+        contentMetadata.setContentDisposition(
+                logical.getContentMetadata().getContentDisposition());
+        contentMetadata.setContentEncoding(
+                logical.getContentMetadata().getContentEncoding());
+        contentMetadata.setContentLanguage(
+                logical.getContentMetadata().getContentLanguage());
+        contentMetadata.setCacheControl(
+                logical.getContentMetadata().getCacheControl());
+        contentMetadata.setExpires(
+                logical.getContentMetadata().getExpires());
+        contentMetadata.setContentLength(length);
+        contentMetadata.setContentMD5(options.getRanges().isEmpty() ?
+                HashCode.fromString(pointer.eTag) : md5);
+        MutableBlobMetadata blobMetadata = blob.getMetadata();
+        blobMetadata.setName(name);
+        blobMetadata.setETag(pointer.eTag);
+        blobMetadata.setLastModified(logical.getLastModified());
+        blobMetadata.setUserMetadata(logical.getUserMetadata());
+        blobMetadata.setSize(pointer.size);
+        return blob;
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        String name = blob.getMetadata().getName();
+        checkName(name);
+        blob.getMetadata().setUserMetadata(withoutReservedKeys(
+                blob.getMetadata().getUserMetadata()));
+        if (options.isMultipart()) {
+            Pointer previous = getPointer(container, name);
+            String eTag = super.putBlob(container, blob, options);
+            release(container, name, previous);
+            return eTag;
+        }
+
+        FileBackedOutputStream spool = new FileBackedOutputStream(
+                spoolThreshold);
+        try {
+            HashCode sha256;
+            HashCode md5;
+            long size;
+            try (InputStream is = blob.getPayload().openStream();
+                 HashingOutputStream md5Stream = new HashingOutputStream(
+                         Hashing.md5(), spool);
+                 HashingOutputStream sha256Stream = new HashingOutputStream(
+                         Hashing.sha256(), md5Stream)) {
+                size = ByteStreams.copy(is, sha256Stream);
+                sha256Stream.flush();
+                sha256 = sha256Stream.hash();
+                md5 = md5Stream.hash();
+            }
+            ContentMetadata contentMetadata =
+                    blob.getMetadata().getContentMetadata();
+            HashCode expectedMD5 = contentMetadata.getContentMD5AsHashCode();
+            if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+                throw new HttpResponseException("Content-MD5 mismatch", null,
+                        HttpResponse.builder().statusCode(400).build());
+            }
+
+            Pointer pointer = new Pointer(sha256.toString(), size,
+                    md5.toString());
+            Pointer previous = getPointer(container, name);
+            addReference(container, name, pointer, spool.asByteSource());
+            writePointer(container, name, pointer, blob.getMetadata(),
+                    contentMetadata, options);
+            release(container, name, previous);
+            logicalBytes.addAndGet(size);
+            return pointer.eTag;
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            try {
+                spool.reset();
+            } catch (IOException ioe) {
+                logger.debug("Could not delete spool file", ioe);
+            }
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        checkName(fromName);
+        checkName(toName);
+        BlobMetadata metadata = super.blobMetadata(fromContainer, fromName);
+        Pointer pointer = metadata == null ? null :
+                Pointer.fromMetadata(metadata);
+        if (pointer == null) {
+            Pointer previous = getPointer(toContainer, toName);
+            String eTag = super.copyBlob(fromContainer, fromName,
+                    toContainer, toName, withoutReservedKeys(options));
+            release(toContainer, toName, previous);
+            return eTag;
+        }
+
+        BlobMetadata logical = pointer.toLogical(metadata);
+        int status = ConditionalRequests.status(logical,
+                ConditionalRequests.toGetOptions(options));
+        if (status != 200) {
+            throw new HttpResponseException("conditional request failed",
+                    null, HttpResponse.builder().statusCode(412).build());
+        }
+        if (!fromContainer.equals(toContainer)) {
+            // content is per container so copy the logical object
+            Blob blob = getContent(fromContainer, fromName, GetOptions.NONE,
+                    metadata, pointer);
+            if (blob == null) {
+                throw new KeyNotFoundException(fromContainer, fromName,
+                        "missing content");
+            }
+            blob.getMetadata().setName(toName);
+            if (options.userMetadata() != null) {
+                blob.getMetadata().setUserMetadata(options.userMetadata());
+            }
+            if (options.contentMetadata() != null) {
+                blob.getPayload().setContentMetadata(copyContentMetadata(
+                        options.contentMetadata(), pointer.size));
+            }
+            return putBlob(toContainer, blob);
+        }
+
+        MutableBlobMetadata target = new MutableBlobMetadataImpl(logical);
+        if (options.userMetadata() != null) {
+            target.setUserMetadata(withoutReservedKeys(
+                    options.userMetadata()));
+        }
+        ContentMetadata contentMetadata = options.contentMetadata() != null ?
+                options.contentMetadata() : logical.getContentMetadata();
+
+        Pointer previous = getPointer(toContainer, toName);
+        addReference(toContainer, toName, pointer, null);
+        writePointer(toContainer, toName, pointer, target, contentMetadata,
+                PutOptions.NONE);
+        release(toContainer, toName, previous);
+        logicalBytes.addAndGet(pointer.size);
+        duplicateCount.incrementAndGet();
+        return pointer.eTag;
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        checkName(name);
+        Pointer pointer = getPointer(container, name);
+        super.removeBlob(container, name);
+        release(container, name, pointer);
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        for (String name : names) {
+            removeBlob(container, name);
+        }
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String container,
+            BlobMetadata blobMetadata, PutOptions options) {
+        checkName(blobMetadata.getName());
+        MutableBlobMetadata metadata = new MutableBlobMetadataImpl(
+                blobMetadata);
+        metadata.setUserMetadata(withoutReservedKeys(
+                blobMetadata.getUserMetadata()));
+        return super.initiateMultipartUpload(container, metadata, options);
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        Pointer previous = getPointer(mpu.containerName(), mpu.blobName());
+        String eTag = super.completeMultipartUpload(mpu, parts);
+        release(mpu.containerName(), mpu.blobName(), previous);
+        return eTag;
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(String container,
+            ListContainerOptions options) {
+        PageSet<? extends StorageMetadata> page = super.list(container,
+                options);
+        List<StorageMetadata> results = new ArrayList<>();
+        for (StorageMetadata metadata : page) {
+            String name = metadata.getName();
+            if (name.startsWith(DEDUP_PREFIX) ||
+                    (name + "/").equals(DEDUP_PREFIX)) {
+                continue;
+            }
+            Long size = metadata.getSize();
+            if (metadata.getType() != StorageType.BLOB || size == null ||
+                    size != 0) {
+                results.add(metadata);
+                continue;
+            }
+            // pointers are empty so look up their logical size and ETag
+            Map.Entry<String, String> key = Maps.immutableEntry(container,
+                    name);
+            Pointer pointer = pointers.getIfPresent(key);
+            if (pointer == null) {
+                BlobMetadata blobMetadata = blobMetadata(container, name);
+                results.add(blobMetadata == null ? metadata : blobMetadata);
+            } else {
+                MutableBlobMetadata blobMetadata =
+                        new MutableBlobMetadataImpl();
+                blobMetadata.setType(StorageType.BLOB);
+                blobMetadata.setContainer(container);
+                blobMetadata.setName(name);
+                blobMetadata.setLastModified(metadata.getLastModified());
+                blobMetadata.setTier(metadata.getTier());
+                blobMetadata.setETag(pointer.eTag);
+                blobMetadata.setSize(pointer.size);
+                results.add(blobMetadata);
+            }
+        }
+        return new PageSetImpl<>(results, page.getNextMarker());
+    }
+
+    /** Bytes written by clients, including duplicates and copies. */
+    long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    /** Bytes of unique content uploaded to the backend. */
+    long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /** Number of writes and copies which reused existing content. */
+    long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /** Logical bytes written per byte stored, 1.0 without duplicates. */
+    double getDedupRatio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1.0 : (double) logicalBytes.get() / stored;
+    }
+
+    /** Reject client requests which would access dedup state directly. */
+    private static void checkName(String name) {
+        if (name.startsWith(DEDUP_PREFIX)) {
+            throw new RuntimeException(new S3Exception(
+                    S3ErrorCode.ACCESS_DENIED,
+                    "Keys under " + DEDUP_PREFIX + " are reserved"));
+        }
+    }
+
+    /** Drop client user metadata which could forge a pointer. */
+    private static Map<String, String> withoutReservedKeys(
+            @Nullable Map<String, String> userMetadata) {
+        Map<String, String> result = new HashMap<>();
+        if (userMetadata != null) {
+            for (Map.Entry<String, String> entry : userMetadata.entrySet()) {
+                if (!entry.getKey().toLowerCase(Locale.ROOT).startsWith(
+                        METADATA_PREFIX)) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static CopyOptions withoutReservedKeys(CopyOptions options) {
+        if (options.userMetadata() == null) {
+            return options;
+        }
+        CopyOptions.Builder builder = CopyOptions.builder()
+                .userMetadata(withoutReservedKeys(options.userMetadata()));
+        if (options.contentMetadata() != null) {
+            builder.contentMetadata(options.contentMetadata());
+        }
+        if (options.ifMatch() != null) {
+            builder.ifMatch(options.ifMatch());
+        }
+        if (options.ifNoneMatch() != null) {
+            builder.ifNoneMatch(options.ifNoneMatch());
+        }
+        if (options.ifModifiedSince() != null) {
+            builder.ifModifiedSince(options.ifModifiedSince());
+        }
+        if (options.ifUnmodifiedSince() != null) {
+            builder.ifUnmodifiedSince(options.ifUnmodifiedSince());
+        }
+        return builder.build();
+    }
+
+    @Nullable
+    private Pointer getPointer(String container, String name) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        Pointer pointer = pointers.getIfPresent(key);
+        if (pointer != null) {
+            return pointer;
+        }
+        BlobMetadata metadata = super.blobMetadata(container, name);
+        return metadata == null ? null : Pointer.fromMetadata(metadata);
+    }
+
+    /**
+     * Add a reference from name to the content, uploading the content if no
+     * other key references it.
+     */
+    private void addReference(String container, String name,
+            Pointer pointer, @Nullable ByteSource content) {
+        Lock lock = digestLocks.get(pointer.digest);
+        lock.lock();
+        try {
+            String contentName = contentName(pointer.digest);
+            if (!super.blobExists(container, contentName)) {
+                if (content == null) {
+                    throw new IllegalStateException(
+                            "Missing content " + pointer.digest);
+                }
+                Blob blob = blobBuilder(contentName)
+                        .payload(content)
+                        .contentLength(pointer.size)
+                        .contentMD5(HashCode.fromString(pointer.eTag))
+                        .build();
+                super.putBlob(container, blob);
+                storedBytes.addAndGet(pointer.size);
+            } else if (content != null) {
+                duplicateCount.incrementAndGet();
+                logger.debug("Deduplicated {} bytes for {}/{}, ratio {}",
+                        pointer.size, container, name, getDedupRatio());
+            }
+            Blob marker = blobBuilder(referenceName(pointer.digest, name))
+                    .payload(new byte[0])
+                    .contentLength(0)
+                    .build();
+            super.putBlob(container, marker);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drop the reference from name and reclaim unreferenced content. */
+    private void release(String container, String name,
+            @Nullable Pointer pointer) {
+        pointers.invalidate(Maps.immutableEntry(container, name));
+        if (pointer == null) {
+            return;
+        }
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        Pointer current = getPointer(container, name);
+        if (current != null && current.digest.equals(pointer.digest)) {
+            // name still references the same content, e.g., a rewrite
+            pointers.put(key, current);
+            return;
+        }
+
+        Lock lock = digestLocks.get(pointer.digest);
+        lock.lock();
+        try {
+            super.removeBlob(container, referenceName(pointer.digest, name));
+            PageSet<? extends StorageMetadata> references = super.list(
+                    container, new ListContainerOptions()
+                            .prefix(REFS_PREFIX + pointer.digest + "/")
+                            .recursive()
+                            .maxResults(1));
+            if (references.isEmpty()) {
+                super.removeBlob(container, contentName(pointer.digest));
+                storedBytes.addAndGet(-pointer.size);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writePointer(String container, String name,
+            Pointer pointer, BlobMetadata source,
+            ContentMetadata contentMetadata, PutOptions options) {
+        Map<String, String> userMetadata = new HashMap<>();
+        if (source.getUserMetadata() != null) {
+            userMetadata.putAll(source.getUserMetadata());
+        }
+        userMetadata.put(DIGEST_KEY, pointer.digest);
+        userMetadata.put(SIZE_KEY, String.valueOf(pointer.size));
+        userMetadata.put(ETAG_KEY, pointer.eTag);
+        Blob blob = blobBuilder(name)
+                .userMetadata(userMetadata)
+                .payload(new byte[0])
+                .contentLength(0)
+                .build();
+        MutableContentMetadata metadata =
+                blob.getPayload().getContentMetadata();
+        metadata.setCacheControl(contentMetadata.getCacheControl());
+        metadata.setContentDisposition(
+                contentMetadata.getContentDisposition());
+        metadata.setContentEncoding(contentMetadata.getContentEncoding());
+        metadata.setContentLanguage(contentMetadata.getContentLanguage());
+        metadata.setContentType(contentMetadata.getContentType());
+        metadata.setExpires(contentMetadata.getExpires());
+        super.putBlob(container, blob, options);
+        pointers.put(Maps.immutableEntry(container, name), pointer);
+    }
+
+    private static MutableContentMetadata copyContentMetadata(
+            ContentMetadata source, long size) {
+        MutableBlobMetadata metadata = new MutableBlobMetadataImpl();
+        MutableContentMetadata contentMetadata =
+                metadata.getContentMetadata();
+        contentMetadata.setCacheControl(source.getCacheControl());
+        contentMetadata.setContentDisposition(
+                source.getContentDisposition());
+        contentMetadata.setContentEncoding(source.getContentEncoding());
+        contentMetadata.setContentLanguage(source.getContentLanguage());
+        contentMetadata.setContentType(source.getContentType());
+        contentMetadata.setExpires(source.getExpires());
+        contentMetadata.setContentLength(size);
+        return contentMetadata;
+    }
+
+
+    private static String contentName(String digest) {
+        return CONTENT_PREFIX + digest;
+    }
+
+    private static String referenceName(String digest, String name) {
+        return REFS_PREFIX + digest + "/" +
+                Hashing.sha256().hashString(name, StandardCharsets.UTF_8);
+    }
+
+    /** Reference from a key to its content. */
+    private static final class Pointer {
+        private final String digest;
+        private final long size;
+        private final String eTag;
+
+        Pointer(String digest, long size, String eTag) {
+            this.digest = digest;
+            this.size = size;
+            this.eTag = eTag;
+        }
+
+        @Nullable
+        static Pointer fromMetadata(BlobMetadata metadata) {
+            Map<String, String> userMetadata = metadata.getUserMetadata();
+            String digest = userMetadata.get(DIGEST_KEY);
+            String size = userMetadata.get(SIZE_KEY);
+            String eTag = userMetadata.get(ETAG_KEY);
+            if (digest == null || size == null || eTag == null) {
+                return null;
+            }
+            return new Pointer(digest, Long.parseLong(size), eTag);
+        }
+
+        /** Metadata of the object which this pointer stands for. */
+        MutableBlobMetadata toLogical(BlobMetadata metadata) {
+            MutableBlobMetadata logical = new MutableBlobMetadataImpl(
+                    metadata);
+            Map<String, String> userMetadata = new HashMap<>(
+                    metadata.getUserMetadata());
+            userMetadata.remove(DIGEST_KEY);
+            userMetadata.remove(SIZE_KEY);
+            userMetadata.remove(ETAG_KEY);
+            logical.setUserMetadata(userMetadata);
+            logical.setETag(eTag);
+            logical.setSize(size);
+            logical.getContentMetadata().setContentLength(size);
+            logical.getContentMetadata().setContentMD5(
+                    HashCode.fromString(eTag));
+            return logical;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+
+/**
+ * Google Cloud Storage composes at most 32 objects at a time.  Emulate S3
+ * multipart uploads with a tree of composes: part p of upload U is stored as
+ * part ((p - 1) % 32) + 1 of leaf upload U_branch_leaf, each leaf is
+ * composed into part leaf of branch upload U_branch and each branch is
+ * composed into part branch of U.  Three levels cover all 10,000 parts and
+ * the composes within a level run concurrently.  Uploads with a single
+ * branch compose each leaf directly into part leaf of U.  Earlier versions
+ * stored part p as part ((p - 1) % 32) + 1 of U_leaf, with at most 1,024
+ * parts, and uploads which only have parts in that layout still complete.
+ */
+final class GcsMultipartTree {
+    static final int MAX_COMPOSE_PARTS = 32;
+    static final int DEFAULT_THREADS = 8;
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private GcsMultipartTree() {
+        throw new AssertionError("Intentionally unimplemented");
+    }
+
+    /** Pool which bounds the number of concurrent composes. */
+    static ExecutorService newExecutor(int threads) {
+        checkArgument(threads > 0, "Threads must be positive, was: %s",
+                threads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                threads, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("gcs-compose-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Leaf upload which stores the given S3 part. */
+    static String leafUploadId(String uploadId, int partNumber) {
+        int leaf = (partNumber - 1) / MAX_COMPOSE_PARTS;
+        return String.format("%s_%08d_%08d", uploadId,
+                leaf / MAX_COMPOSE_PARTS + 1, leaf % MAX_COMPOSE_PARTS + 1);
+    }
+
+    /** Part number of the given S3 part within its leaf upload. */
+    static int leafPartNumber(int partNumber) {
+        return (partNumber - 1) % MAX_COMPOSE_PARTS + 1;
+    }
+
+    /**
+     * List the leaves holding the requested S3 parts and check that every
+     * requested part exists with the requested ETag.  This runs before the
+     * response starts so that a bad request fails with InvalidPart.  The
+     * size of each requested S3 part is recorded in partSizes.
+     */
+    static List<Leaf> listLeaves(BlobStore blobStore, MultipartUpload mpu,
+            SortedMap<Integer, String> requestParts,
+            Map<Integer, Long> partSizes, ExecutorService executor)
+            throws InterruptedException, S3Exception {
+        try {
+            return listLeaves(blobStore, mpu, requestParts, partSizes,
+                    executor, /*legacy=*/ false);
+        } catch (S3Exception se) {
+            if (se.getError() != S3ErrorCode.INVALID_PART ||
+                    requestParts.lastKey() >
+                    MAX_COMPOSE_PARTS * MAX_COMPOSE_PARTS) {
+                throw se;
+            }
+            // upload initiated before the tree layout
+            partSizes.clear();
+            return listLeaves(blobStore, mpu, requestParts, partSizes,
+                    executor, /*legacy=*/ true);
+        }
+    }
+
+    private static List<Leaf> listLeaves(BlobStore blobStore,
+            MultipartUpload mpu, SortedMap<Integer, String> requestParts,
+            Map<Integer, Long> partSizes, ExecutorService executor,
+            boolean legacy) throws InterruptedException, S3Exception {
+        SortedMap<Integer, SortedMap<Integer, String>> leafParts =
+                new TreeMap<>();
+        for (Map.Entry<Integer, String> entry : requestParts.entrySet()) {
+            int leafIndex = (entry.getKey() - 1) / MAX_COMPOSE_PARTS;
+            SortedMap<Integer, String> parts = leafParts.get(leafIndex);
+            if (parts == null) {
+                parts = new TreeMap<>();
+                leafParts.put(leafIndex, parts);
+            }
+            parts.put(leafPartNumber(entry.getKey()), entry.getValue());
+        }
+
+        List<Future<Leaf>> futures = new ArrayList<>();
+        for (Map.Entry<Integer, SortedMap<Integer, String>> entry :
+                leafParts.entrySet()) {
+            int leafIndex = entry.getKey();
+            SortedMap<Integer, String> parts = entry.getValue();
+            Callable<Leaf> task = () -> listLeaf(blobStore, mpu, leafIndex,
+                    parts, partSizes, legacy);
+            futures.add(executor.submit(task));
+        }
+        List<Leaf> leaves = new ArrayList<>();
+        try {
+            for (Future<Leaf> future : futures) {
+                try {
+                    leaves.add(future.get());
+                } catch (ExecutionException ee) {
+                    Throwables.throwIfInstanceOf(ee.getCause(),
+                            S3Exception.class);
+                    Throwables.throwIfUnchecked(ee.getCause());
+                    throw new UncheckedExecutionException(ee.getCause());
+                }
+            }
+        } finally {
+            for (Future<Leaf> future : futures) {
+                future.cancel(/*mayInterruptIfRunning=*/ true);
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Compose the given leaves, and their branches if there is more than
+     * one, and return the parts which the caller completes into mpu.  A
+     * single branch is skipped so that uploads of up to 1,024 parts need
+     * only two rounds of composes.
+     */
+    static List<MultipartPart> composeBranches(BlobStore blobStore,
+            MultipartUpload mpu, List<Leaf> leaves, ExecutorService executor)
+            throws InterruptedException {
+        SortedMap<Integer, List<Leaf>> branches = new TreeMap<>();
+        for (Leaf leaf : leaves) {
+            List<Leaf> branch = branches.get(leaf.branch);
+            if (branch == null) {
+                branch = new ArrayList<>();
+                branches.put(leaf.branch, branch);
+            }
+            branch.add(leaf);
+        }
+        boolean singleBranch = branches.size() == 1;
+
+        // compose every leaf at once
+        SortedMap<Integer, List<Future<MultipartPart>>> leafFutures =
+                new TreeMap<>();
+        for (Map.Entry<Integer, List<Leaf>> entry : branches.entrySet()) {
+            List<Future<MultipartPart>> futures = new ArrayList<>();
+            for (Leaf leaf : entry.getValue()) {
+                // a leaf is a part of its branch or, without branches, of
+                // the object itself
+                String name = singleBranch ?
+                        String.format("%s_%08d", mpu.id(), leaf.leaf) :
+                        leaf.id;
+                Callable<MultipartPart> task = () -> composeLeaf(blobStore,
+                        mpu, leaf, name);
+                futures.add(executor.submit(task));
+            }
+            leafFutures.put(entry.getKey(), futures);
+        }
+        SortedMap<Integer, List<MultipartPart>> leafParts = new TreeMap<>();
+        try {
+            for (Map.Entry<Integer, List<Future<MultipartPart>>> entry :
+                    leafFutures.entrySet()) {
+                List<MultipartPart> parts = new ArrayList<>();
+                for (Future<MultipartPart> future : entry.getValue()) {
+                    parts.add(getUnchecked(future));
+                }
+                leafParts.put(entry.getKey(), parts);
+            }
+        } finally {
+            // stop outstanding composes after a failure or disconnect
+            for (List<Future<MultipartPart>> futures : leafFutures.values()) {
+                for (Future<MultipartPart> future : futures) {
+                    future.cancel(/*mayInterruptIfRunning=*/ true);
+                }
+            }
+        }
+        if (singleBranch) {
+            return leafParts.get(leafParts.firstKey());
+        }
+
+        // then compose every branch from its leaves
+        List<Future<MultipartPart>> branchFutures = new ArrayList<>();
+        for (Map.Entry<Integer, List<MultipartPart>> entry :
+                leafParts.entrySet()) {
+            int branch = entry.getKey();
+            List<MultipartPart> parts = entry.getValue();
+            String id = String.format("%s_%08d", mpu.id(), branch);
+            Callable<MultipartPart> task = () -> compose(blobStore, mpu, id,
+                    id, branch, parts);
+            branchFutures.add(executor.submit(task));
+        }
+        List<MultipartPart> branchParts = new ArrayList<>();
+        try {
+            for (Future<MultipartPart> future : branchFutures) {
+                branchParts.add(getUnchecked(future));
+            }
+        } finally {
+            for (Future<MultipartPart> future : branchFutures) {
+                future.cancel(/*mayInterruptIfRunning=*/ true);
+            }
+        }
+        return branchParts;
+    }
+
+    private static Leaf listLeaf(BlobStore blobStore, MultipartUpload mpu,
+            int leafIndex, SortedMap<Integer, String> requestParts,
+            Map<Integer, Long> partSizes, boolean legacy)
+            throws S3Exception {
+        int branch = leafIndex / MAX_COMPOSE_PARTS + 1;
+        int leaf = leafIndex % MAX_COMPOSE_PARTS + 1;
+        // a legacy leaf is named like the composed leaf of a single branch
+        String leafId = legacy ?
+                String.format("%s_%08d", mpu.id(), leaf) :
+                String.format("%s_%08d_%08d", mpu.id(), branch, leaf);
+        Map<Integer, MultipartPart> listed = new HashMap<>();
+        for (MultipartPart part : blobStore.listMultipartUpload(
+                MultipartUpload.create(mpu.containerName(), leafId, leafId,
+                        mpu.blobMetadata(), mpu.putOptions()))) {
+            listed.put(part.partNumber(), part);
+        }
+        List<MultipartPart> parts = new ArrayList<>();
+        int firstPartNumber = leafIndex * MAX_COMPOSE_PARTS;
+        for (Map.Entry<Integer, String> entry : requestParts.entrySet()) {
+            MultipartPart part = listed.remove(entry.getKey());
+            if (part == null || (part.partETag() != null &&
+                    entry.getValue() != null &&
+                    !S3ProxyHandler.maybeQuoteETag(part.partETag()).equals(
+                            S3ProxyHandler.maybeQuoteETag(entry.getValue())))) {
+                throw new S3Exception(S3ErrorCode.INVALID_PART);
+            }
+            parts.add(part);
+            partSizes.put(firstPartNumber + part.partNumber(),
+                    part.partSize());
+        }
+        return new Leaf(branch, leaf, leafId, parts, listed.keySet());
+    }
+
+    private static MultipartPart composeLeaf(BlobStore blobStore,
+            MultipartUpload mpu, Leaf leaf, String name) {
+        MultipartPart part = compose(blobStore, mpu, leaf.id, name,
+                leaf.leaf, leaf.parts);
+        // S3 discards uploaded parts which the request omits
+        for (int partNumber : leaf.unusedPartNumbers) {
+            blobStore.removeBlob(mpu.containerName(),
+                    String.format("%s_%08d", leaf.id, partNumber));
+        }
+        return part;
+    }
+
+    /**
+     * Compose the parts of upload id into the object named name, which is
+     * also the name of the given part of the parent upload.
+     */
+    private static MultipartPart compose(BlobStore blobStore,
+            MultipartUpload mpu, String id, String name, int partNumber,
+            List<MultipartPart> parts) {
+        long size = 0;
+        for (MultipartPart part : parts) {
+            size += part.partSize();
+        }
+        String eTag = blobStore.completeMultipartUpload(
+                MultipartUpload.create(mpu.containerName(), name, id,
+                        mpu.blobMetadata(), mpu.putOptions()), parts);
+        return MultipartPart.create(partNumber, size, eTag,
+                /*lastModified=*/ null);
+    }
+
+    private static <T> T getUnchecked(Future<T> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new UncheckedExecutionException(ee.getCause());
+        }
+    }
+
+    /** Requested parts of one leaf upload. */
+    static final class Leaf {
+        private final int branch;
+        private final int leaf;
+        private final String id;
+        private final List<MultipartPart> parts;
+        private final Set<Integer> unusedPartNumbers;
+
+        Leaf(int branch, int leaf, String id, List<MultipartPart> parts,
+                Set<Integer> unusedPartNumbers) {
+            this.branch = branch;
+            this.leaf = leaf;
+            this.id = id;
+            this.parts = parts;
+            this.unusedPartNumbers = unusedPartNumbers;
+        }
+    }
+}
@@ -23,15 +23,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -102,6 +106,7 @@ public final class Main {
                 1, 20, 60 * 1000, factory);
         ImmutableMap.Builder<String, Map.Entry<String, BlobStore>> locators =
                 ImmutableMap.builder();
+        boolean serverSideCopyPart = true;
         for (File propertiesFile : options.propertiesFiles) {
             Properties properties = new Properties();
             try (InputStream is = new FileInputStream(propertiesFile)) {
@@ -113,6 +118,11 @@ public final class Main {
 
             blobStore = parseMiddlewareProperties(blobStore, executorService,
                     properties);
+            if (changesStoredObjects(properties)) {
+                serverSideCopyPart = false;
+            }
+
+            startMultipartUploadReaper(blobStore, properties);
 
             String s3ProxyAuthorizationString = properties.getProperty(
                     S3ProxyConstants.PROPERTY_AUTHORIZATION);
@@ -139,6 +149,11 @@ public final class Main {
             s3ProxyBuilder = s3ProxyBuilder2;
         }
 
+        if (!serverSideCopyPart) {
+            // backend copies would bypass the middlewares
+            s3ProxyBuilder.serverSideCopyPart(false);
+        }
+
         S3Proxy s3Proxy;
         try {
             s3Proxy = s3ProxyBuilder.build();
@@ -177,6 +192,26 @@ public final class Main {
         }
     }
 
+    /**
+     * @return whether the configured middlewares store objects under other
+     *     names, in other backends or with other bytes than clients see
+     */
+    private static boolean changesStoredObjects(Properties properties) {
+        for (String property : ImmutableList.of(
+                S3ProxyConstants.PROPERTY_PACKING,
+                S3ProxyConstants.PROPERTY_COMPRESSION,
+                S3ProxyConstants.PROPERTY_DEDUP)) {
+            if ("true".equalsIgnoreCase(properties.getProperty(property))) {
+                return true;
+            }
+        }
+        return properties.getProperty(
+                        S3ProxyConstants.PROPERTY_MIRROR_BACKENDS) != null ||
+                !ShardedBlobStore.parseBucketShards(properties).isEmpty() ||
+                !Strings.isNullOrEmpty(properties.getProperty(
+                        S3ProxyConstants.PROPERTY_WRITE_BEHIND_DIRECTORY));
+    }
+
     private static BlobStore parseMiddlewareProperties(BlobStore blobStore,
             ExecutorService executorService, Properties properties)
             throws IOException {
@@ -190,6 +225,16 @@ public final class Main {
             }
         }
 
+        ImmutableMap<String, BlobStore> backends = createBackends(properties,
+                executorService);
+
+        String syntheticBlobStore = properties.getProperty(
+                S3ProxyConstants.PROPERTY_SYNTHETIC_BLOBSTORE);
+        if ("true".equalsIgnoreCase(syntheticBlobStore)) {
+            System.err.println("Using synthetic storage backend");
+            blobStore = SyntheticBlobStore.newSyntheticBlobStore(blobStore);
+        }
+
         String eventualConsistency = properties.getProperty(
                 S3ProxyConstants.PROPERTY_EVENTUAL_CONSISTENCY);
         if ("true".equalsIgnoreCase(eventualConsistency)) {
@@ -210,6 +255,32 @@ public final class Main {
                     delay, TimeUnit.SECONDS, probability);
         }
 
+        String mirrorBackends = properties.getProperty(
+                S3ProxyConstants.PROPERTY_MIRROR_BACKENDS);
+        if (mirrorBackends != null) {
+            List<BlobStore> replicas = new ArrayList<>();
+            replicas.add(blobStore);
+            for (String name : Splitter.on(',').trimResults()
+                    .omitEmptyStrings().split(mirrorBackends)) {
+                BlobStore backend = backends.get(name);
+                if (backend == null) {
+                    throw new IllegalArgumentException(
+                            "Unknown mirror backend: " + name);
+                }
+                replicas.add(backend);
+            }
+            int writeQuorum = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_MIRROR_WRITE_QUORUM,
+                    String.valueOf(replicas.size())));
+            long repairDelay = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_MIRROR_REPAIR_DELAY, "30"));
+            System.err.println("Mirroring writes to " + replicas.size() +
+                    " backends with write quorum " + writeQuorum);
+            blobStore = MirrorBlobStore.newMirrorBlobStore(replicas,
+                    writeQuorum, 1024 * 1024, repairDelay, TimeUnit.SECONDS,
+                    1_000_000);
+        }
+
         String nullBlobStore = properties.getProperty(
                 S3ProxyConstants.PROPERTY_NULL_BLOBSTORE);
         if ("true".equalsIgnoreCase(nullBlobStore)) {
@@ -228,15 +299,232 @@ public final class Main {
                 ShardedBlobStore.parseBucketShards(properties);
         ImmutableMap<String, String> prefixes =
                 ShardedBlobStore.parsePrefixes(properties);
+        ImmutableMap<String, Integer> previousShards =
+                ShardedBlobStore.parsePreviousShards(properties);
+        ImmutableMap<String, ImmutableList<String>> shardBackends =
+                ShardedBlobStore.parseBackends(properties);
         if (!shards.isEmpty()) {
             System.err.println("Using sharded buckets backend");
-            blobStore = ShardedBlobStore.newShardedBlobStore(blobStore,
-                    shards, prefixes);
+            ShardedBlobStore shardedBlobStore =
+                    ShardedBlobStore.newShardedBlobStore(blobStore, shards,
+                            prefixes, previousShards, shardBackends,
+                            backends);
+            if (!previousShards.isEmpty()) {
+                double rate = Double.parseDouble(properties.getProperty(
+                        S3ProxyConstants
+                                .PROPERTY_SHARDED_BLOBSTORE_MIGRATION_RATE,
+                        "100"));
+                System.err.println("Resharding buckets at up to " + rate +
+                        " objects per second");
+                shardedBlobStore.startMigration(rate);
+            }
+            blobStore = shardedBlobStore;
+        }
+
+        String packing = properties.getProperty(
+                S3ProxyConstants.PROPERTY_PACKING);
+        if ("true".equalsIgnoreCase(packing)) {
+            long maxObjectSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PACKING_MAX_OBJECT_SIZE,
+                    String.valueOf(16 * 1024)));
+            long packSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PACKING_PACK_SIZE,
+                    String.valueOf(8L * 1024 * 1024)));
+            long commitDelay = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PACKING_COMMIT_DELAY, "10"));
+            double compactionThreshold = Double.parseDouble(
+                    properties.getProperty(S3ProxyConstants
+                            .PROPERTY_PACKING_COMPACTION_THRESHOLD, "0.5"));
+            System.err.println("Packing objects up to " + maxObjectSize +
+                    " bytes into packs of " + packSize + " bytes");
+            blobStore = PackingBlobStore.newPackingBlobStore(blobStore,
+                    maxObjectSize, packSize, commitDelay,
+                    TimeUnit.MILLISECONDS, compactionThreshold, 1_000_000);
+        }
+
+        String compression = properties.getProperty(
+                S3ProxyConstants.PROPERTY_COMPRESSION);
+        if ("true".equalsIgnoreCase(compression)) {
+            int blockSize = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_COMPRESSION_BLOCK_SIZE,
+                    String.valueOf(256 * 1024)));
+            System.err.println("Compressing objects in blocks of " +
+                    blockSize + " bytes");
+            blobStore = CompressionBlobStore.newCompressionBlobStore(
+                    blobStore, blockSize, 1024 * 1024, 1_000_000);
+        }
+
+        String dedup = properties.getProperty(
+                S3ProxyConstants.PROPERTY_DEDUP);
+        if ("true".equalsIgnoreCase(dedup)) {
+            int spoolThreshold = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_DEDUP_SPOOL_THRESHOLD,
+                    String.valueOf(1024 * 1024)));
+            System.err.println("Deduplicating object content");
+            blobStore = DedupBlobStore.newDedupBlobStore(blobStore,
+                    spoolThreshold, 100_000);
+        }
+
+        String autoMultipart = properties.getProperty(
+                S3ProxyConstants.PROPERTY_AUTO_MULTIPART);
+        if ("true".equalsIgnoreCase(autoMultipart)) {
+            long threshold = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_AUTO_MULTIPART_THRESHOLD,
+                    String.valueOf(64L * 1024 * 1024)));
+            long partSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_AUTO_MULTIPART_PART_SIZE,
+                    String.valueOf(16L * 1024 * 1024)));
+            int parallelism = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_AUTO_MULTIPART_PARALLELISM,
+                    "4"));
+            int threads = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_AUTO_MULTIPART_THREADS, "16"));
+            System.err.println("Using multipart uploads for objects larger" +
+                    " than " + threshold + " bytes");
+            ExecutorService autoMultipartExecutor =
+                    Executors.newFixedThreadPool(threads,
+                            new ThreadFactoryBuilder()
+                                    .setNameFormat("auto-multipart-%d")
+                                    .setDaemon(true)
+                                    .build());
+            blobStore = AutoMultipartBlobStore.newAutoMultipartBlobStore(
+                    blobStore, autoMultipartExecutor, threshold, partSize,
+                    parallelism);
+        }
+
+        String parallelGet = properties.getProperty(
+                S3ProxyConstants.PROPERTY_PARALLEL_GET);
+        if ("true".equalsIgnoreCase(parallelGet)) {
+            long partSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PARALLEL_GET_PART_SIZE,
+                    String.valueOf(16L * 1024 * 1024)));
+            int parallelism = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PARALLEL_GET_PARALLELISM, "4"));
+            long threshold = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PARALLEL_GET_THRESHOLD,
+                    String.valueOf(2 * partSize)));
+            long maxBufferSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PARALLEL_GET_MAX_BUFFER_SIZE,
+                    String.valueOf(16 * partSize)));
+            int threads = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_PARALLEL_GET_THREADS, "16"));
+            System.err.println("Using parallel reads with " + parallelism +
+                    " parts of " + partSize + " bytes");
+            ExecutorService parallelGetExecutor = Executors.newFixedThreadPool(
+                    threads, new ThreadFactoryBuilder()
+                            .setNameFormat("parallel-get-%d")
+                            .setDaemon(true)
+                            .build());
+            blobStore = ParallelGetBlobStore.newParallelGetBlobStore(
+                    blobStore, parallelGetExecutor, partSize, parallelism,
+                    threshold, maxBufferSize);
+        }
+
+        String coalescing = properties.getProperty(
+                S3ProxyConstants.PROPERTY_COALESCING);
+        if ("true".equalsIgnoreCase(coalescing)) {
+            long bufferSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_COALESCING_BUFFER_SIZE,
+                    String.valueOf(8L * 1024 * 1024)));
+            System.err.println("Coalescing concurrent reads with buffer of " +
+                    bufferSize + " bytes");
+            blobStore = CoalescingBlobStore.newCoalescingBlobStore(blobStore,
+                    bufferSize);
+        }
+
+        String writeBehindDirectory = properties.getProperty(
+                S3ProxyConstants.PROPERTY_WRITE_BEHIND_DIRECTORY);
+        if (!Strings.isNullOrEmpty(writeBehindDirectory)) {
+            long segmentSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_WRITE_BEHIND_SEGMENT_SIZE,
+                    String.valueOf(64L * 1024 * 1024)));
+            int threads = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_WRITE_BEHIND_THREADS, "4"));
+            long flushTimeout = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_WRITE_BEHIND_FLUSH_TIMEOUT,
+                    "30"));
+            System.err.println("Using write-behind journal in " +
+                    writeBehindDirectory);
+            blobStore = WriteBehindBlobStore.newWriteBehindBlobStore(
+                    blobStore, new File(writeBehindDirectory).toPath(),
+                    segmentSize, threads, flushTimeout, TimeUnit.SECONDS);
+        }
+
+        String blockCacheDirectory = properties.getProperty(
+                S3ProxyConstants.PROPERTY_BLOCK_CACHE_DIRECTORY);
+        if (!Strings.isNullOrEmpty(blockCacheDirectory)) {
+            long maxSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_BLOCK_CACHE_MAX_SIZE,
+                    String.valueOf(1024L * 1024 * 1024)));
+            int blockSize = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_BLOCK_CACHE_BLOCK_SIZE,
+                    String.valueOf(1024 * 1024)));
+            long metadataTtl = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_BLOCK_CACHE_METADATA_TTL, "10"));
+            System.err.println("Using block cache in " + blockCacheDirectory +
+                    " of " + maxSize + " bytes");
+            blobStore = BlockCacheBlobStore.newBlockCacheBlobStore(blobStore,
+                    new File(blockCacheDirectory).toPath(), maxSize,
+                    blockSize, metadataTtl, TimeUnit.SECONDS);
+        }
+
+        String objectCache = properties.getProperty(
+                S3ProxyConstants.PROPERTY_OBJECT_CACHE);
+        if ("true".equalsIgnoreCase(objectCache)) {
+            long maxSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_OBJECT_CACHE_MAX_SIZE,
+                    String.valueOf(64L * 1024 * 1024)));
+            long maxObjectSize = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_OBJECT_CACHE_MAX_OBJECT_SIZE,
+                    String.valueOf(64L * 1024)));
+            System.err.println("Using object cache of " + maxSize +
+                    " bytes for objects up to " + maxObjectSize + " bytes");
+            blobStore = ObjectCacheBlobStore.newObjectCacheBlobStore(
+                    blobStore, maxSize, maxObjectSize);
+        }
+
+        String metadataCache = properties.getProperty(
+                S3ProxyConstants.PROPERTY_METADATA_CACHE);
+        if ("true".equalsIgnoreCase(metadataCache)) {
+            long ttl = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_METADATA_CACHE_TTL, "5"));
+            long maxEntries = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_METADATA_CACHE_MAX_ENTRIES,
+                    "10000"));
+            System.err.println("Using metadata cache with TTL " + ttl +
+                    " seconds");
+            blobStore = MetadataCacheBlobStore.newMetadataCacheBlobStore(
+                    blobStore, ttl, TimeUnit.SECONDS, maxEntries);
         }
 
         return blobStore;
     }
 
+    private static void startMultipartUploadReaper(BlobStore blobStore,
+            Properties properties) {
+        String maxAge = properties.getProperty(
+                S3ProxyConstants.PROPERTY_MULTIPART_REAPER_MAX_AGE);
+        ImmutableMap<String, Duration> maxAges =
+                MultipartUploadReaper.parseMaxAges(properties);
+        if (maxAge == null && maxAges.isEmpty()) {
+            return;
+        }
+        long interval = Long.parseLong(properties.getProperty(
+                S3ProxyConstants.PROPERTY_MULTIPART_REAPER_INTERVAL,
+                "3600"));
+        int parallelism = Integer.parseInt(properties.getProperty(
+                S3ProxyConstants.PROPERTY_MULTIPART_REAPER_PARALLELISM, "4"));
+        double rate = Double.parseDouble(properties.getProperty(
+                S3ProxyConstants.PROPERTY_MULTIPART_REAPER_RATE, "10"));
+        System.err.println("Reaping incomplete multipart uploads every " +
+                interval + " seconds");
+        MultipartUploadReaper reaper = new MultipartUploadReaper(blobStore,
+                maxAge == null ? null :
+                        Duration.ofSeconds(Long.parseLong(maxAge)),
+                maxAges, parallelism, rate, Clock.systemUTC());
+        reaper.start(interval, TimeUnit.SECONDS);
+    }
+
     private static PrintStream createLoggerErrorPrintStream() {
         return new PrintStream(System.err) {
             private final StringBuilder builder = new StringBuilder();
@@ -265,6 +553,44 @@ public final class Main {
         };
     }
 
+    /**
+     * Create the blobstores configured by s3proxy.backend.&lt;name&gt;.*
+     * properties, keyed by name.
+     */
+    private static ImmutableMap<String, BlobStore> createBackends(
+            Properties properties, ExecutorService executorService)
+            throws IOException {
+        String prefix = S3ProxyConstants.PROPERTY_BACKEND + ".";
+        Map<String, Properties> backendProperties = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            String suffix = key.substring(prefix.length());
+            int index = suffix.indexOf('.');
+            if (index <= 0) {
+                continue;
+            }
+            String name = suffix.substring(0, index);
+            Properties backend = backendProperties.get(name);
+            if (backend == null) {
+                backend = new Properties();
+                backendProperties.put(name, backend);
+            }
+            backend.setProperty(suffix.substring(index + 1),
+                    properties.getProperty(key));
+        }
+        ImmutableMap.Builder<String, BlobStore> backends =
+                ImmutableMap.builder();
+        for (Map.Entry<String, Properties> entry :
+                backendProperties.entrySet()) {
+            System.err.println("Using backend " + entry.getKey());
+            backends.put(entry.getKey(), createBlobStore(entry.getValue(),
+                    executorService));
+        }
+        return backends.build();
+    }
+
     private static BlobStore createBlobStore(Properties properties,
             ExecutorService executorService) throws IOException {
         String provider = properties.getProperty(Constants.PROPERTY_PROVIDER);
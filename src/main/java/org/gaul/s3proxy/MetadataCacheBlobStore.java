@@ -0,0 +1,304 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.ContainerAccess;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+
+/**
+ * This class is a BlobStore wrapper which caches object metadata, including
+ * the absence of objects, and object and container access for a bounded
+ * time.  Whole-object GETs populate the metadata cache as HEADs do.
+ * Conditional GETs which the cached metadata shows would fail return 304 or
+ * 412 without contacting the backend.  Writes which pass through this
+ * BlobStore invalidate the corresponding entries; writes made elsewhere
+ * become visible when entries expire.
+ */
+final class MetadataCacheBlobStore extends ForwardingBlobStore {
+    private final Cache<Map.Entry<String, String>, Optional<BlobMetadata>>
+            metadataCache;
+    private final Cache<Map.Entry<String, String>, BlobAccess>
+            blobAccessCache;
+    private final Cache<String, ContainerAccess> containerAccessCache;
+    // incremented on every invalidation to avoid caching stale fetches
+    private final StripedGenerations generations = new StripedGenerations();
+
+    private MetadataCacheBlobStore(BlobStore blobStore, long ttl,
+            TimeUnit unit, long maxEntries) {
+        super(blobStore);
+        metadataCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, unit)
+                .maximumSize(maxEntries)
+                .build();
+        blobAccessCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, unit)
+                .maximumSize(maxEntries)
+                .build();
+        containerAccessCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, unit)
+                .maximumSize(maxEntries)
+                .build();
+    }
+
+    static MetadataCacheBlobStore newMetadataCacheBlobStore(
+            BlobStore blobStore, long ttl, TimeUnit unit, long maxEntries) {
+        return new MetadataCacheBlobStore(blobStore, ttl, unit, maxEntries);
+    }
+
+    @Override
+    @Nullable
+    public BlobMetadata blobMetadata(String container, String name) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        Optional<BlobMetadata> metadata = metadataCache.getIfPresent(key);
+        if (metadata == null) {
+            long startGeneration = generations.get(container, name);
+            metadata = Optional.ofNullable(super.blobMetadata(container,
+                    name));
+            cache(metadataCache, key, metadata, container, name,
+                    startGeneration);
+        }
+        return metadata.isPresent() ?
+                new MutableBlobMetadataImpl(metadata.get()) : null;
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        Optional<BlobMetadata> metadata = metadataCache.getIfPresent(key);
+        if (metadata != null) {
+            if (!metadata.isPresent()) {
+                return null;
+            }
+            int status = ConditionalRequests.status(metadata.get(), options);
+            if (status != 200) {
+                throw new HttpResponseException(
+                        "conditional request failed", null,
+                        HttpResponse.builder().statusCode(status).build());
+            }
+        }
+        long startGeneration = generations.get(container, name);
+        Blob blob = super.getBlob(container, name, options);
+        if (blob == null) {
+            cache(metadataCache, key, Optional.<BlobMetadata>empty(),
+                    container, name, startGeneration);
+        } else if (options.getRanges().isEmpty()) {
+            // ranged responses describe only part of the object
+            cache(metadataCache, key, Optional.<BlobMetadata>of(
+                    new MutableBlobMetadataImpl(blob.getMetadata())),
+                    container, name, startGeneration);
+        }
+        return blob;
+    }
+
+    @Override
+    public BlobAccess getBlobAccess(String container, String name) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        BlobAccess access = blobAccessCache.getIfPresent(key);
+        if (access == null) {
+            long startGeneration = generations.get(container, name);
+            access = super.getBlobAccess(container, name);
+            cache(blobAccessCache, key, access, container, name,
+                    startGeneration);
+        }
+        return access;
+    }
+
+    @Override
+    public void setBlobAccess(String container, String name,
+            BlobAccess access) {
+        try {
+            super.setBlobAccess(container, name, access);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public ContainerAccess getContainerAccess(String container) {
+        ContainerAccess access = containerAccessCache.getIfPresent(container);
+        if (access == null) {
+            long startGeneration = generations.get(container, null);
+            access = super.getContainerAccess(container);
+            cache(containerAccessCache, container, access, container, null,
+                    startGeneration);
+        }
+        return access;
+    }
+
+    @Override
+    public void setContainerAccess(String container,
+            ContainerAccess access) {
+        try {
+            super.setContainerAccess(container, access);
+        } finally {
+            invalidateContainerAccess(container);
+        }
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        return putBlob(containerName, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        try {
+            return super.putBlob(containerName, blob, options);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        try {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        } finally {
+            invalidate(toContainer, toName);
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            super.removeBlob(container, name);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        try {
+            super.removeBlobs(container, names);
+        } finally {
+            for (String name : names) {
+                invalidate(container, name);
+            }
+        }
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        try {
+            return super.completeMultipartUpload(mpu, parts);
+        } finally {
+            invalidate(mpu.containerName(), mpu.blobName());
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        try {
+            super.clearContainer(container);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        try {
+            super.clearContainer(container, options);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            invalidateContainer(container);
+            invalidateContainerAccess(container);
+        }
+    }
+
+    /** Cache a fetched value unless an invalidation raced with the fetch. */
+    private synchronized <K, V> void cache(Cache<K, V> cache, K key,
+            V value, String container, @Nullable String name,
+            long startGeneration) {
+        if (startGeneration == generations.get(container, name)) {
+            cache.put(key, value);
+        }
+    }
+
+    private synchronized void invalidate(String container, String name) {
+        generations.invalidate(container, name);
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        metadataCache.invalidate(key);
+        blobAccessCache.invalidate(key);
+    }
+
+    private synchronized void invalidateContainerAccess(String container) {
+        generations.invalidateContainer(container);
+        containerAccessCache.invalidate(container);
+    }
+
+    private synchronized void invalidateContainer(String container) {
+        generations.invalidateContainer(container);
+        for (Map.Entry<String, String> key :
+                metadataCache.asMap().keySet()) {
+            if (key.getKey().equals(container)) {
+                metadataCache.invalidate(key);
+            }
+        }
+        for (Map.Entry<String, String> key :
+                blobAccessCache.asMap().keySet()) {
+            if (key.getKey().equals(container)) {
+                blobAccessCache.invalidate(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,872 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.FileBackedOutputStream;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobBuilder;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.ContainerAccess;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.CreateContainerOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.domain.Location;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which mirrors writes to several
+ * backends, the first of which is the primary.  putBlob, copyBlob,
+ * removals and multipart uploads run against every replica in parallel and
+ * return once writeQuorum replicas succeed; replicas which fail or finish
+ * late are queued for repair, which copies the current object from a
+ * replica which succeeded.  getBlob and blobMetadata read from the replica
+ * with the lowest recent latency, occasionally probing the others, and fall
+ * back to the next replica on errors, or on missing objects which the
+ * replica may lack due to an unfinished write or repair.  Listings, access
+ * queries and multipart upload listings come from the primary, so the
+ * primary must accept every container and multipart operation.  S3Proxy
+ * applies the quirks of the primary provider to every request so all
+ * replicas must use the same provider.  Pending multipart uploads and
+ * repairs are kept in memory; a replica which misses a repair because too
+ * many are pending always falls back on missing objects.
+ */
+final class MirrorBlobStore extends ForwardingBlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(
+            MirrorBlobStore.class);
+    private static final int MAX_THREADS = 16;
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+    /** Every PROBE_INTERVAL reads go to a replica out of turn. */
+    private static final int PROBE_INTERVAL = 64;
+    private static final long FAILURE_PENALTY_NANOS =
+            TimeUnit.SECONDS.toNanos(1);
+
+    private final ImmutableList<BlobStore> replicas;
+    private final int writeQuorum;
+    private final int spoolThreshold;
+    private final long repairDelay;
+    private final TimeUnit repairDelayUnit;
+    private final int maxPendingRepairs;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService repairer;
+    /** Moving average of read latency of each replica, in nanoseconds. */
+    private final AtomicLongArray latencies;
+    private final AtomicLong readCount = new AtomicLong();
+    private final Set<Repair> pendingRepairs = ConcurrentHashMap.newKeySet();
+    private final Set<Repair> runningRepairs = ConcurrentHashMap.newKeySet();
+    /** Number of unfinished writes of each name to each replica. */
+    private final Map<Repair, Integer> pendingWrites =
+            new ConcurrentHashMap<>();
+    private final AtomicLong repairedCount = new AtomicLong();
+    /** Replicas which missed repairs because too many were pending. */
+    private final Set<Integer> staleReplicas = ConcurrentHashMap.newKeySet();
+    /** Serializes writes of a name to a replica with its repairs. */
+    private final Striped<Lock> keyLocks = Striped.lock(256);
+    /** Multipart uploads keyed by the upload ID of the primary. */
+    private final Map<String, MirroredUpload> uploads =
+            new ConcurrentHashMap<>();
+
+    private MirrorBlobStore(List<BlobStore> replicas, int writeQuorum,
+            int spoolThreshold, long repairDelay, TimeUnit repairDelayUnit,
+            int maxPendingRepairs) {
+        super(replicas.get(0));
+        checkArgument(writeQuorum > 0 && writeQuorum <= replicas.size(),
+                "Write quorum must be between 1 and %s, was: %s",
+                replicas.size(), writeQuorum);
+        checkArgument(spoolThreshold >= 0,
+                "Spool threshold must be non-negative, was: %s",
+                spoolThreshold);
+        checkArgument(maxPendingRepairs > 0,
+                "Maximum pending repairs must be positive, was: %s",
+                maxPendingRepairs);
+        String provider = getProviderId(replicas.get(0));
+        for (BlobStore replica : replicas) {
+            checkArgument(getProviderId(replica).equals(provider),
+                    "Replicas must use the provider of the primary, %s," +
+                    " was: %s", provider, getProviderId(replica));
+        }
+        this.replicas = ImmutableList.copyOf(replicas);
+        this.writeQuorum = writeQuorum;
+        this.spoolThreshold = spoolThreshold;
+        this.repairDelay = repairDelay;
+        this.repairDelayUnit = repairDelayUnit;
+        this.maxPendingRepairs = maxPendingRepairs;
+        this.latencies = new AtomicLongArray(replicas.size());
+        this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("mirror-blobstore-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        this.repairer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("mirror-blobstore-repair")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * @param replicas backends which hold the same data, primary first
+     * @param repairDelay delay before retrying a failed repair
+     */
+    static MirrorBlobStore newMirrorBlobStore(List<BlobStore> replicas,
+            int writeQuorum, int spoolThreshold, long repairDelay,
+            TimeUnit repairDelayUnit, int maxPendingRepairs) {
+        return new MirrorBlobStore(replicas, writeQuorum, spoolThreshold,
+                repairDelay, repairDelayUnit, maxPendingRepairs);
+    }
+
+    private static String getProviderId(BlobStore blobStore) {
+        return blobStore.getContext().unwrap().getProviderMetadata().getId();
+    }
+
+    long getRepairedCount() {
+        return repairedCount.get();
+    }
+
+    int getPendingRepairCount() {
+        return pendingRepairs.size();
+    }
+
+    int getStaleReplicaCount() {
+        return staleReplicas.size();
+    }
+
+    @Override
+    public boolean createContainerInLocation(Location location,
+            String container) {
+        return createContainerInLocation(location, container,
+                CreateContainerOptions.NONE);
+    }
+
+    @Override
+    public boolean createContainerInLocation(Location location,
+            String container, CreateContainerOptions options) {
+        // locations are specific to the provider of the primary
+        return mirror(container, ImmutableList.of(), true, replica ->
+                replicas.get(replica).createContainerInLocation(
+                        replica == 0 ? location : null, container, options),
+                null);
+    }
+
+    @Override
+    public void setContainerAccess(String container, ContainerAccess access) {
+        mirror(container, ImmutableList.of(), true, replica -> {
+            replicas.get(replica).setContainerAccess(container, access);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        mirror(container, ImmutableList.of(), true, replica -> {
+            replicas.get(replica).clearContainer(container);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        mirror(container, ImmutableList.of(), true, replica -> {
+            replicas.get(replica).clearContainer(container, options);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        mirror(container, ImmutableList.of(), true, replica -> {
+            replicas.get(replica).deleteContainer(container);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        return mirror(container, ImmutableList.of(), true, replica ->
+                replicas.get(replica).deleteContainerIfEmpty(container),
+                null);
+    }
+
+    @Override
+    public boolean blobExists(String container, String name) {
+        Boolean exists = read(container, name, replica ->
+                replica.blobExists(container, name) ? Boolean.TRUE : null);
+        return exists != null;
+    }
+
+    @Override
+    @Nullable
+    public BlobMetadata blobMetadata(String container, String name) {
+        return read(container, name, replica ->
+                replica.blobMetadata(container, name));
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return read(container, name, replica ->
+                replica.getBlob(container, name));
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        return read(container, name, replica ->
+                replica.getBlob(container, name, options));
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        BlobMetadata metadata = blob.getMetadata();
+        Payload payload = blob.getPayload();
+        FileBackedOutputStream spool = null;
+        ByteSource content;
+        long length;
+        Long contentLength = metadata.getContentMetadata().getContentLength();
+        if (payload.isRepeatable() && contentLength != null) {
+            content = new ByteSource() {
+                @Override
+                public InputStream openStream() throws IOException {
+                    return payload.openStream();
+                }
+            };
+            length = contentLength;
+        } else {
+            spool = new FileBackedOutputStream(spoolThreshold);
+            try (InputStream is = payload.openStream()) {
+                length = ByteStreams.copy(is, spool);
+            } catch (IOException ioe) {
+                reset(spool);
+                throw new RuntimeException(ioe);
+            }
+            content = spool.asByteSource();
+        }
+        FileBackedOutputStream finalSpool = spool;
+        return mirror(container, ImmutableList.of(metadata.getName()), false,
+                replica -> {
+                    BlobStore blobStore = replicas.get(replica);
+                    return blobStore.putBlob(container, newBlob(blobStore,
+                            metadata, Payloads.newByteSourcePayload(content),
+                            length), options);
+                }, finalSpool == null ? null : () -> reset(finalSpool));
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        return mirror(toContainer, ImmutableList.of(toName), false,
+                replica -> replicas.get(replica).copyBlob(fromContainer,
+                        fromName, toContainer, toName, options), null);
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        mirror(container, ImmutableList.of(name), false, replica -> {
+            replicas.get(replica).removeBlob(container, name);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        ImmutableList<String> list = ImmutableList.copyOf(names);
+        mirror(container, list, false, replica -> {
+            replicas.get(replica).removeBlobs(container, list);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void setBlobAccess(String container, String name,
+            BlobAccess access) {
+        mirror(container, ImmutableList.of(), true, replica -> {
+            replicas.get(replica).setBlobAccess(container, name, access);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String container,
+            BlobMetadata blobMetadata, PutOptions options) {
+        MultipartUpload primary = super.initiateMultipartUpload(container,
+                blobMetadata, options);
+        ImmutableList.Builder<CompletableFuture<MultipartUpload>> builder =
+                ImmutableList.builder();
+        builder.add(CompletableFuture.completedFuture(primary));
+        for (BlobStore replica : replicas.subList(1, replicas.size())) {
+            builder.add(CompletableFuture.supplyAsync(() ->
+                    replica.initiateMultipartUpload(container, blobMetadata,
+                            options), executor));
+        }
+        uploads.put(primary.id(), new MirroredUpload(builder.build()));
+        return primary;
+    }
+
+    @Override
+    public MultipartPart uploadMultipartPart(MultipartUpload mpu,
+            int partNumber, Payload payload) {
+        MirroredUpload upload = uploads.get(mpu.id());
+        if (upload == null) {
+            // uploads which predate a restart complete on the primary alone
+            return super.uploadMultipartPart(mpu, partNumber, payload);
+        }
+        FileBackedOutputStream spool = new FileBackedOutputStream(
+                spoolThreshold);
+        long length;
+        try (InputStream is = payload.openStream()) {
+            length = ByteStreams.copy(is, spool);
+        } catch (IOException ioe) {
+            reset(spool);
+            throw new RuntimeException(ioe);
+        }
+        ByteSource content = spool.asByteSource();
+        HashCode md5 = payload.getContentMetadata().getContentMD5AsHashCode();
+        return mirror(mpu.containerName(), ImmutableList.of(), true,
+                replica -> upload.uploadPart(replica, partNumber, content,
+                        length, md5),
+                () -> reset(spool));
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        MirroredUpload upload = uploads.remove(mpu.id());
+        if (upload == null) {
+            String eTag = super.completeMultipartUpload(mpu, parts);
+            for (int replica = 1; replica < replicas.size(); ++replica) {
+                enqueueRepair(new Repair(mpu.containerName(), mpu.blobName(),
+                        0, replica));
+            }
+            return eTag;
+        }
+        return mirror(mpu.containerName(),
+                ImmutableList.of(mpu.blobName()), true, replica ->
+                        upload.complete(replica, mpu, parts), null);
+    }
+
+    @Override
+    public void abortMultipartUpload(MultipartUpload mpu) {
+        MirroredUpload upload = uploads.remove(mpu.id());
+        if (upload == null) {
+            super.abortMultipartUpload(mpu);
+            return;
+        }
+        mirror(mpu.containerName(), ImmutableList.of(), true, replica -> {
+            upload.abort(replica, mpu);
+            return null;
+        }, null);
+    }
+
+    /**
+     * Run reader against replicas in order of their recent latency until
+     * one returns an object.  A replica may lack an object because its
+     * write has not finished or it missed a write which awaits repair, so
+     * only then do missing objects fall back to the next replica like
+     * errors do.
+     */
+    @Nullable
+    private <T> T read(String container, String name,
+            Function<BlobStore, T> reader) {
+        RuntimeException failure = null;
+        for (int replica : readOrder()) {
+            long start = System.nanoTime();
+            T result;
+            try {
+                result = reader.apply(replicas.get(replica));
+            } catch (HttpResponseException hre) {
+                if (isConditionalFailure(hre)) {
+                    recordLatency(replica, System.nanoTime() - start);
+                    throw hre;
+                }
+                recordLatency(replica, System.nanoTime() - start +
+                        FAILURE_PENALTY_NANOS);
+                failure = hre;
+                continue;
+            } catch (RuntimeException re) {
+                recordLatency(replica, System.nanoTime() - start +
+                        FAILURE_PENALTY_NANOS);
+                failure = re;
+                continue;
+            }
+            recordLatency(replica, System.nanoTime() - start);
+            if (result != null || !mayBeStale(container, name, replica)) {
+                return result;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    /** Whether replica may lack the latest write of name. */
+    private boolean mayBeStale(String container, String name, int replica) {
+        Repair key = new Repair(container, name, -1, replica);
+        return staleReplicas.contains(replica) ||
+                pendingWrites.containsKey(key) ||
+                pendingRepairs.contains(key) || runningRepairs.contains(key);
+    }
+
+    /** Responses to preconditions and ranges are the same on every replica. */
+    private static boolean isConditionalFailure(HttpResponseException hre) {
+        if (hre.getResponse() == null) {
+            return false;
+        }
+        int status = hre.getResponse().getStatusCode();
+        return status == 304 || status == 412 || status == 416;
+    }
+
+    private List<Integer> readOrder() {
+        List<Integer> order = new ArrayList<>(replicas.size());
+        for (int replica = 0; replica < replicas.size(); ++replica) {
+            order.add(replica);
+        }
+        order.sort(Comparator.comparingLong(latencies::get));
+        long count = readCount.incrementAndGet();
+        if (count % PROBE_INTERVAL == 0) {
+            // keep the latency of slower replicas current
+            Integer probe = (int) ((count / PROBE_INTERVAL) %
+                    replicas.size());
+            order.remove(probe);
+            order.add(0, probe);
+        }
+        return order;
+    }
+
+    private void recordLatency(int replica, long nanos) {
+        latencies.accumulateAndGet(replica, nanos, (average, sample) ->
+                average == 0 ? sample : average + (sample - average) / 8);
+    }
+
+    /**
+     * Run write against every replica in parallel and return once
+     * writeQuorum replicas succeed or too many fail.  Writes which fail
+     * after enough replicas succeeded queue repairs of names.
+     *
+     * @param requirePrimary whether the primary must succeed, in which case
+     *     its result is returned
+     * @param cleanup runs after every replica finishes
+     */
+    private <T> T mirror(String container, Collection<String> names,
+            boolean requirePrimary, IntFunction<T> write,
+            @Nullable Runnable cleanup) {
+        MirroredWrite<T> mirroredWrite = new MirroredWrite<>(container,
+                names, requirePrimary, cleanup);
+        for (String name : names) {
+            for (int replica = 0; replica < replicas.size(); ++replica) {
+                pendingWrites.merge(new Repair(container, name, -1, replica),
+                        1, Integer::sum);
+            }
+        }
+        for (int replica = 0; replica < replicas.size(); ++replica) {
+            int index = replica;
+            executor.execute(() -> mirroredWrite.run(index, write));
+        }
+        try {
+            return mirroredWrite.result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private final class MirroredWrite<T> {
+        private final String container;
+        private final Collection<String> names;
+        private final boolean requirePrimary;
+        @Nullable
+        private final Runnable cleanup;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Set<Integer> failed = new HashSet<>();
+        private int successes;
+        private int finished;
+        private int source = -1;
+        private boolean primarySucceeded;
+        @Nullable
+        private T primaryValue;
+
+        private MirroredWrite(String container, Collection<String> names,
+                boolean requirePrimary, @Nullable Runnable cleanup) {
+            this.container = container;
+            this.names = names;
+            this.requirePrimary = requirePrimary;
+            this.cleanup = cleanup;
+        }
+
+        private void run(int replica, IntFunction<T> write) {
+            T value = null;
+            Throwable failure = null;
+            List<Repair> keys = new ArrayList<>(names.size());
+            for (String name : names) {
+                keys.add(new Repair(container, name, -1, replica));
+            }
+            Iterable<Lock> locks = keyLocks.bulkGet(keys);
+            for (Lock lock : locks) {
+                lock.lock();
+            }
+            try {
+                value = write.apply(replica);
+            } catch (Throwable t) {
+                failure = t;
+                logger.warn("Could not write {} {} to replica {}", container,
+                        names, replica, t);
+            } finally {
+                for (Lock lock : locks) {
+                    lock.unlock();
+                }
+            }
+            boolean last;
+            synchronized (this) {
+                if (failure == null) {
+                    ++successes;
+                    if (source == -1) {
+                        source = replica;
+                    }
+                    if (replica == 0) {
+                        primarySucceeded = true;
+                        primaryValue = value;
+                    }
+                    if (successes >= writeQuorum &&
+                            (!requirePrimary || primarySucceeded)) {
+                        result.complete(requirePrimary ? primaryValue : value);
+                    }
+                } else {
+                    failed.add(replica);
+                    if ((requirePrimary && replica == 0) ||
+                            failed.size() > replicas.size() - writeQuorum) {
+                        result.completeExceptionally(failure);
+                    }
+                }
+                last = ++finished == replicas.size();
+            }
+            if (last) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (cleanup != null) {
+                cleanup.run();
+            }
+            if (source != -1) {
+                for (int replica : failed) {
+                    for (String name : names) {
+                        enqueueRepair(new Repair(container, name, source,
+                                replica));
+                    }
+                }
+            }
+            // queue repairs before reads may trust missing objects
+            for (String name : names) {
+                for (int replica = 0; replica < replicas.size(); ++replica) {
+                    pendingWrites.computeIfPresent(new Repair(container,
+                            name, -1, replica), (key, count) ->
+                            count == 1 ? null : count - 1);
+                }
+            }
+        }
+    }
+
+    private void enqueueRepair(Repair repair) {
+        if (pendingRepairs.size() >= maxPendingRepairs) {
+            if (staleReplicas.add(repair.target)) {
+                logger.error("Dropping repair of {}/{} on replica {}," +
+                        " reads of missing objects will fall back from" +
+                        " it until restart", repair.container, repair.name,
+                        repair.target);
+            }
+            return;
+        }
+        if (pendingRepairs.add(repair)) {
+            repairer.execute(() -> repair(repair));
+        }
+    }
+
+    /**
+     * Copy the current object, or its absence, from source to target.  The
+     * lock of the target orders the copy before writes which start later,
+     * while writes which already started may be newer than the source, so
+     * those postpone the repair.
+     */
+    private void repair(Repair repair) {
+        // writes during the repair queue another one
+        runningRepairs.add(repair);
+        pendingRepairs.remove(repair);
+        BlobStore source = replicas.get(repair.source);
+        BlobStore target = replicas.get(repair.target);
+        Repair key = new Repair(repair.container, repair.name, -1,
+                repair.target);
+        Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            if (pendingWrites.containsKey(key)) {
+                logger.debug("Postponing repair of {}/{} on replica {}",
+                        repair.container, repair.name, repair.target);
+                retryRepair(repair);
+                return;
+            }
+            Blob blob = source.getBlob(repair.container, repair.name);
+            if (blob == null) {
+                target.removeBlob(repair.container, repair.name);
+            } else {
+                BlobAccess access = source.getBlobAccess(repair.container,
+                        repair.name);
+                try (InputStream is = blob.getPayload().openStream()) {
+                    target.putBlob(repair.container, newBlob(target,
+                            blob.getMetadata(),
+                            Payloads.newInputStreamPayload(is),
+                            blob.getMetadata().getContentMetadata()
+                                    .getContentLength()),
+                            new PutOptions().setBlobAccess(access));
+                }
+            }
+            repairedCount.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not repair {}/{} on replica {}, retrying",
+                    repair.container, repair.name, repair.target, e);
+            retryRepair(repair);
+        } finally {
+            lock.unlock();
+            runningRepairs.remove(repair);
+        }
+    }
+
+    private void retryRepair(Repair repair) {
+        if (pendingRepairs.add(repair)) {
+            repairer.schedule(() -> repair(repair), repairDelay,
+                    repairDelayUnit);
+        }
+    }
+
+    private static Blob newBlob(BlobStore blobStore, BlobMetadata metadata,
+            Payload payload, long length) {
+        ContentMetadata contentMetadata = metadata.getContentMetadata();
+        BlobBuilder.PayloadBlobBuilder builder = blobStore
+                .blobBuilder(metadata.getName())
+                .payload(payload)
+                .contentLength(length)
+                .cacheControl(contentMetadata.getCacheControl())
+                .contentDisposition(contentMetadata.getContentDisposition())
+                .contentEncoding(contentMetadata.getContentEncoding())
+                .contentLanguage(contentMetadata.getContentLanguage())
+                .contentType(contentMetadata.getContentType())
+                .expires(contentMetadata.getExpires())
+                .userMetadata(metadata.getUserMetadata());
+        HashCode md5 = contentMetadata.getContentMD5AsHashCode();
+        if (md5 != null) {
+            builder.contentMD5(md5);
+        }
+        return builder.build();
+    }
+
+    private static void reset(FileBackedOutputStream spool) {
+        try {
+            spool.reset();
+        } catch (IOException ioe) {
+            logger.debug("Could not delete spool file", ioe);
+        }
+    }
+
+    /**
+     * Multipart upload on every replica.  A replica which fails a part
+     * leaves the upload and receives the whole object by repair after
+     * completion.
+     */
+    private final class MirroredUpload {
+        private final ImmutableList<CompletableFuture<MultipartUpload>>
+                replicaUploads;
+        /** Parts of each replica keyed by part number. */
+        private final List<Map<Integer, MultipartPart>> parts;
+        private final Set<Integer> dropped = ConcurrentHashMap.newKeySet();
+
+        private MirroredUpload(
+                ImmutableList<CompletableFuture<MultipartUpload>> uploads) {
+            this.replicaUploads = uploads;
+            this.parts = new ArrayList<>(uploads.size());
+            for (int i = 0; i < uploads.size(); ++i) {
+                parts.add(new ConcurrentHashMap<>());
+            }
+        }
+
+        private MultipartUpload getUpload(int replica) {
+            if (dropped.contains(replica)) {
+                throw new IllegalStateException(
+                        "Replica " + replica + " left the upload");
+            }
+            try {
+                return replicaUploads.get(replica).join();
+            } catch (CompletionException ce) {
+                dropped.add(replica);
+                Throwables.throwIfUnchecked(ce.getCause());
+                throw new RuntimeException(ce.getCause());
+            }
+        }
+
+        private MultipartPart uploadPart(int replica, int partNumber,
+                ByteSource content, long length, @Nullable HashCode md5) {
+            MultipartUpload upload = getUpload(replica);
+            Payload payload = Payloads.newByteSourcePayload(content);
+            payload.getContentMetadata().setContentLength(length);
+            if (md5 != null) {
+                payload.getContentMetadata().setContentMD5(md5);
+            }
+            try {
+                MultipartPart part = replicas.get(replica)
+                        .uploadMultipartPart(upload, partNumber, payload);
+                parts.get(replica).put(partNumber, part);
+                return part;
+            } catch (RuntimeException re) {
+                if (replica != 0 && dropped.add(replica)) {
+                    abortQuietly(replica, upload);
+                }
+                throw re;
+            }
+        }
+
+        private String complete(int replica, MultipartUpload mpu,
+                List<MultipartPart> clientParts) {
+            if (replica == 0) {
+                return replicas.get(0).completeMultipartUpload(mpu,
+                        clientParts);
+            }
+            MultipartUpload upload = getUpload(replica);
+            List<MultipartPart> replicaParts = new ArrayList<>(
+                    clientParts.size());
+            for (MultipartPart clientPart : clientParts) {
+                MultipartPart part = parts.get(replica).get(
+                        clientPart.partNumber());
+                if (part == null) {
+                    abortQuietly(replica, upload);
+                    throw new IllegalStateException("Replica " + replica +
+                            " lacks part " + clientPart.partNumber());
+                }
+                replicaParts.add(part);
+            }
+            return replicas.get(replica).completeMultipartUpload(upload,
+                    replicaParts);
+        }
+
+        private void abort(int replica, MultipartUpload mpu) {
+            if (replica == 0) {
+                replicas.get(0).abortMultipartUpload(mpu);
+            } else if (!dropped.contains(replica)) {
+                replicas.get(replica).abortMultipartUpload(
+                        getUpload(replica));
+            }
+        }
+
+        private void abortQuietly(int replica, MultipartUpload upload) {
+            try {
+                replicas.get(replica).abortMultipartUpload(upload);
+            } catch (RuntimeException re) {
+                logger.debug("Could not abort upload on replica {}",
+                        replica, re);
+            }
+        }
+    }
+
+    private static final class Repair {
+        private final String container;
+        private final String name;
+        private final int source;
+        private final int target;
+
+        private Repair(String container, String name, int source,
+                int target) {
+            this.container = container;
+            this.name = name;
+            this.source = source;
+            this.target = target;
+        }
+
+        // the source does not matter for deduplicating repairs
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Repair)) {
+                return false;
+            }
+            Repair that = (Repair) other;
+            return container.equals(that.container) &&
+                    name.equals(that.name) && target == that.target;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(container, name, target);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.rest.ResourceNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically aborts multipart uploads which clients abandoned and removes
+ * the stub blobs which S3ProxyHandler creates for MULTIPART_REQUIRES_STUB
+ * providers.  The age of an upload is the modification time of its stub or,
+ * for backends without stubs, the time this reaper first listed it.  Empty
+ * blobs with UUID names are stub candidates; only those carrying the
+ * S3ProxyHandler.MULTIPART_STUB_MARKER user metadata are removed so that
+ * similar user objects survive.  Each backend call
+ * takes a permit from a shared rate limiter to protect foreground traffic.
+ */
+final class MultipartUploadReaper {
+    private static final Logger logger = LoggerFactory.getLogger(
+            MultipartUploadReaper.class);
+    private static final Pattern PROPERTIES_MAX_AGE_RE = Pattern.compile(
+            S3ProxyConstants.PROPERTY_MULTIPART_REAPER_MAX_AGE +
+            "\\.(?<bucket>.+)");
+    private static final Pattern UUID_RE = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final BlobStore blobStore;
+    @Nullable
+    private final Duration defaultMaxAge;
+    private final Map<String, Duration> maxAges;
+    private final RateLimiter rateLimiter;
+    private final Clock clock;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    /** When each upload without a stub was first listed, in millis. */
+    private final Map<Map.Entry<String, String>, Long> firstSeen =
+            new ConcurrentHashMap<>();
+    private final AtomicLong abortedUploadCount = new AtomicLong();
+    private final AtomicLong removedStubCount = new AtomicLong();
+    private final AtomicLong removedPartCount = new AtomicLong();
+
+    /**
+     * @param defaultMaxAge age after which uploads in buckets without an
+     *     entry in maxAges are reaped, or null to only reap those buckets
+     * @param operationsPerSecond maximum rate of backend calls
+     */
+    MultipartUploadReaper(BlobStore blobStore,
+            @Nullable Duration defaultMaxAge,
+            Map<String, Duration> maxAges, int parallelism,
+            double operationsPerSecond, Clock clock) {
+        checkArgument(defaultMaxAge != null || !maxAges.isEmpty(),
+                "Must specify a maximum age");
+        checkArgument(parallelism > 0,
+                "Parallelism must be positive, was: %s", parallelism);
+        checkArgument(operationsPerSecond > 0,
+                "Rate must be positive, was: %s", operationsPerSecond);
+        this.blobStore = blobStore;
+        this.defaultMaxAge = defaultMaxAge;
+        this.maxAges = ImmutableMap.copyOf(maxAges);
+        this.rateLimiter = RateLimiter.create(operationsPerSecond);
+        this.clock = clock;
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("multipart-upload-reaper-%d")
+                        .setDaemon(true)
+                        .build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("multipart-upload-reaper-scheduler")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /** Parse per-bucket ages, in seconds, from properties. */
+    static ImmutableMap<String, Duration> parseMaxAges(
+            Properties properties) {
+        ImmutableMap.Builder<String, Duration> maxAges =
+                new ImmutableMap.Builder<>();
+        for (String key : properties.stringPropertyNames()) {
+            Matcher matcher = PROPERTIES_MAX_AGE_RE.matcher(key);
+            if (!matcher.matches()) {
+                continue;
+            }
+            maxAges.put(matcher.group("bucket"), Duration.ofSeconds(
+                    Long.parseLong(properties.getProperty(key))));
+        }
+        return maxAges.build();
+    }
+
+    void start(long interval, TimeUnit unit) {
+        Runnable task = () -> {
+            try {
+                reap();
+            } catch (RuntimeException re) {
+                logger.warn("Could not reap multipart uploads", re);
+            }
+        };
+        scheduler.scheduleWithFixedDelay(task, interval, interval, unit);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /** Reap every configured bucket once. */
+    void reap() {
+        Set<String> containers = new HashSet<>(maxAges.keySet());
+        if (defaultMaxAge != null) {
+            rateLimiter.acquire();
+            for (StorageMetadata sm : blobStore.list()) {
+                containers.add(sm.getName());
+            }
+        }
+        for (String container : containers) {
+            try {
+                reap(container);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException re) {
+                logger.warn("Could not reap multipart uploads in {}",
+                        container, re);
+            }
+        }
+    }
+
+    private void reap(String container) throws InterruptedException {
+        Duration maxAge = maxAges.getOrDefault(container, defaultMaxAge);
+        long now = clock.millis();
+        String blobStoreType = blobStore.getContext().unwrap()
+                .getProviderMetadata().getId();
+
+        Map<String, MultipartUpload> uploads = new HashMap<>();
+        try {
+            rateLimiter.acquire();
+            for (MultipartUpload mpu : blobStore.listMultipartUploads(
+                    container)) {
+                uploads.put(mpu.id(), mpu);
+            }
+        } catch (UnsupportedOperationException uoe) {
+            // rely on stubs alone
+        } catch (ResourceNotFoundException rnfe) {
+            return;
+        }
+
+        Map<String, Long> stubs = new HashMap<>();
+        if (Quirks.MULTIPART_REQUIRES_STUB.contains(blobStoreType)) {
+            stubs = listStubs(container);
+        }
+
+        Set<String> ids = new HashSet<>(uploads.keySet());
+        ids.addAll(stubs.keySet());
+        List<Future<?>> futures = new ArrayList<>();
+        for (String id : ids) {
+            Long lastModified = stubs.get(id);
+            Map.Entry<String, String> key = Maps.immutableEntry(container,
+                    id);
+            if (lastModified == null) {
+                lastModified = firstSeen.computeIfAbsent(key, k -> now);
+            }
+            if (now - lastModified < maxAge.toMillis()) {
+                continue;
+            }
+            MultipartUpload mpu = uploads.get(id);
+            boolean hasStub = stubs.containsKey(id);
+            Runnable task = () -> reapUpload(container, id, mpu, hasStub,
+                    blobStoreType);
+            futures.add(executor.submit(task));
+        }
+        // forget uploads which completed or were aborted elsewhere
+        firstSeen.keySet().removeIf(key -> key.getKey().equals(container) &&
+                !uploads.containsKey(key.getValue()));
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ee) {
+                logger.warn("Could not reap multipart upload in {}",
+                        container, ee.getCause());
+            }
+        }
+        if (!futures.isEmpty()) {
+            logger.info("Reaped {} multipart uploads older than {} in {};" +
+                    " totals: {} uploads, {} stubs, {} parts", futures.size(),
+                    maxAge, container, abortedUploadCount.get(),
+                    removedStubCount.get(), removedPartCount.get());
+        }
+    }
+
+    private void reapUpload(String container, String id,
+            MultipartUpload mpu, boolean hasStub, String blobStoreType) {
+        boolean removeStub = hasStub;
+        if (hasStub) {
+            rateLimiter.acquire();
+            BlobMetadata metadata = blobStore.blobMetadata(container, id);
+            if (metadata == null || !metadata.getUserMetadata().containsKey(
+                    S3ProxyHandler.MULTIPART_STUB_MARKER)) {
+                // empty user object which happens to have a UUID name
+                if (mpu == null) {
+                    return;
+                }
+                removeStub = false;
+            }
+        }
+        if (mpu != null) {
+            rateLimiter.acquire();
+            blobStore.abortMultipartUpload(mpu);
+            abortedUploadCount.incrementAndGet();
+            firstSeen.remove(Maps.immutableEntry(container, id));
+        } else if (blobStoreType.equals("google-cloud-storage")) {
+            // GCS cannot list uploads and its abort does not find the
+            // parts of a GcsMultipartTree, so remove them by prefix.
+            List<String> parts = new ArrayList<>();
+            String marker = null;
+            do {
+                rateLimiter.acquire();
+                ListContainerOptions options = new ListContainerOptions()
+                        .prefix(id + "_").recursive();
+                if (marker != null) {
+                    options.afterMarker(marker);
+                }
+                PageSet<? extends StorageMetadata> set = blobStore.list(
+                        container, options);
+                for (StorageMetadata sm : set) {
+                    parts.add(sm.getName());
+                }
+                marker = set.getNextMarker();
+            } while (marker != null);
+            if (!parts.isEmpty()) {
+                rateLimiter.acquire();
+                blobStore.removeBlobs(container, parts);
+                removedPartCount.addAndGet(parts.size());
+            }
+            abortedUploadCount.incrementAndGet();
+        }
+        if (removeStub) {
+            rateLimiter.acquire();
+            blobStore.removeBlob(container, id);
+            removedStubCount.incrementAndGet();
+        }
+    }
+
+    /** @return modification time of each stub candidate in container */
+    private Map<String, Long> listStubs(String container) {
+        Map<String, Long> stubs = new HashMap<>();
+        String marker = null;
+        do {
+            rateLimiter.acquire();
+            ListContainerOptions options = new ListContainerOptions();
+            if (marker != null) {
+                options.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> set = blobStore.list(
+                    container, options);
+            for (StorageMetadata sm : set) {
+                if (sm.getType() == StorageType.BLOB &&
+                        UUID_RE.matcher(sm.getName()).matches() &&
+                        (sm.getSize() == null || sm.getSize() == 0) &&
+                        sm.getLastModified() != null) {
+                    stubs.put(sm.getName(), sm.getLastModified().getTime());
+                }
+            }
+            marker = set.getNextMarker();
+        } while (marker != null);
+        return stubs;
+    }
+
+    long getAbortedUploadCount() {
+        return abortedUploadCount.get();
+    }
+
+    long getRemovedStubCount() {
+        return removedStubCount.get();
+    }
+
+    long getRemovedPartCount() {
+        return removedPartCount.get();
+    }
+}
@@ -119,7 +119,9 @@ final class NullBlobStore extends ForwardingBlobStore {
             PutOptions options) {
         long length;
         try (InputStream is = blob.getPayload().openStream()) {
-            length = ByteStreams.copy(is, ByteStreams.nullOutputStream());
+            length = BufferPool.getDefault().copy(is,
+                    ByteStreams.nullOutputStream(),
+                    BufferPool.DEFAULT_COPY_BUFFER_SIZE);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -175,7 +177,9 @@ final class NullBlobStore extends ForwardingBlobStore {
             int partNumber, Payload payload) {
         long length;
         try (InputStream is = payload.openStream()) {
-            length = ByteStreams.copy(is, ByteStreams.nullOutputStream());
+            length = BufferPool.getDefault().copy(is,
+                    ByteStreams.nullOutputStream(),
+                    BufferPool.DEFAULT_COPY_BUFFER_SIZE);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+/**
+ * This class is a BlobStore wrapper which caches the bodies and metadata of
+ * small, frequently read objects in memory.  Bodies live in direct buffers
+ * outside the Java heap.  The cache evicts in LRU order but only admits a new
+ * object when a TinyLFU frequency sketch estimates that it is read more often
+ * than the object it would evict, which keeps one-hit wonders from flushing
+ * hot objects.  Writes which pass through this BlobStore invalidate the
+ * corresponding entries.
+ */
+final class ObjectCacheBlobStore extends ForwardingBlobStore {
+    private final long maxSize;
+    private final long maxObjectSize;
+    private final LinkedHashMap<Map.Entry<String, String>, CacheEntry>
+            entries = new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true);
+    private final FrequencySketch sketch;
+    private long size;
+    // bumped by invalidations to avoid admitting stale fetches
+    private final StripedGenerations generations = new StripedGenerations();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    private ObjectCacheBlobStore(BlobStore blobStore, long maxSize,
+            long maxObjectSize) {
+        super(blobStore);
+        checkArgument(maxSize > 0, "Cache size must be positive, was: %s",
+                maxSize);
+        checkArgument(maxObjectSize > 0 && maxObjectSize <= maxSize &&
+                maxObjectSize <= Integer.MAX_VALUE,
+                "Object size must be between 1 and %s, was: %s", maxSize,
+                maxObjectSize);
+        this.maxSize = maxSize;
+        this.maxObjectSize = maxObjectSize;
+        this.sketch = new FrequencySketch(
+                (int) Math.min(maxSize / maxObjectSize * 16, 1 << 24));
+    }
+
+    static ObjectCacheBlobStore newObjectCacheBlobStore(BlobStore blobStore,
+            long maxSize, long maxObjectSize) {
+        return new ObjectCacheBlobStore(blobStore, maxSize, maxObjectSize);
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /** Number of fetched objects which TinyLFU declined to admit. */
+    long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    @Nullable
+    public BlobMetadata blobMetadata(String container, String name) {
+        CacheEntry entry = lookup(container, name);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return super.blobMetadata(container, name);
+        }
+        hitCount.incrementAndGet();
+        return new MutableBlobMetadataImpl(entry.metadata);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        if (options.getIfMatch() != null || options.getIfNoneMatch() != null ||
+                options.getIfModifiedSince() != null ||
+                options.getIfUnmodifiedSince() != null ||
+                options.getRanges().size() > 1) {
+            return super.getBlob(container, name, options);
+        }
+        String range = options.getRanges().isEmpty() ? null :
+                options.getRanges().get(0);
+
+        CacheEntry entry = lookup(container, name);
+        if (entry != null) {
+            Blob blob = entry.toBlob(range);
+            if (blob != null) {
+                hitCount.incrementAndGet();
+                return blob;
+            }
+        }
+        missCount.incrementAndGet();
+        if (range != null) {
+            return super.getBlob(container, name, options);
+        }
+
+        long startGeneration = generations.get(container, name);
+        Blob blob = super.getBlob(container, name, options);
+        if (blob == null) {
+            return null;
+        }
+        Long contentLength = blob.getMetadata().getContentMetadata()
+                .getContentLength();
+        if (contentLength == null || contentLength > maxObjectSize) {
+            return blob;
+        }
+
+        byte[] array;
+        try (InputStream is = blob.getPayload().openStream()) {
+            array = ByteStreams.toByteArray(is);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        ByteBuffer body = ByteBuffer.allocateDirect(array.length);
+        body.put(array);
+        body.flip();
+        entry = new CacheEntry(new MutableBlobMetadataImpl(
+                blob.getMetadata()), body);
+        admit(Maps.immutableEntry(container, name), entry, startGeneration);
+        return entry.toBlob(null);
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        return putBlob(containerName, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        try {
+            return super.putBlob(containerName, blob, options);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        try {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        } finally {
+            invalidate(toContainer, toName);
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            super.removeBlob(container, name);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        try {
+            super.removeBlobs(container, names);
+        } finally {
+            for (String name : names) {
+                invalidate(container, name);
+            }
+        }
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        try {
+            return super.completeMultipartUpload(mpu, parts);
+        } finally {
+            invalidate(mpu.containerName(), mpu.blobName());
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        try {
+            super.clearContainer(container);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        try {
+            super.clearContainer(container, options);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Nullable
+    private CacheEntry lookup(String container, String name) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        sketch.increment(key.hashCode());
+        synchronized (this) {
+            return entries.get(key);
+        }
+    }
+
+    private synchronized void admit(Map.Entry<String, String> key,
+            CacheEntry entry, long startGeneration) {
+        if (startGeneration != generations.get(key.getKey(),
+                key.getValue())) {
+            return;
+        }
+        long weight = entry.body.capacity();
+        CacheEntry old = entries.get(key);
+        long needed = size + weight - (old == null ? 0 :
+                old.body.capacity()) - maxSize;
+
+        // choose every victim before evicting any so that a rejection
+        // leaves the cache unchanged
+        int candidateFrequency = sketch.frequency(key.hashCode());
+        List<Map.Entry<String, String>> victims = new ArrayList<>();
+        for (Map.Entry<Map.Entry<String, String>, CacheEntry> victim :
+                entries.entrySet()) {
+            if (needed <= 0) {
+                break;
+            }
+            if (victim.getKey().equals(key)) {
+                continue;
+            }
+            if (candidateFrequency <= sketch.frequency(
+                    victim.getKey().hashCode())) {
+                rejectionCount.incrementAndGet();
+                return;
+            }
+            victims.add(victim.getKey());
+            needed -= victim.getValue().body.capacity();
+        }
+        if (needed > 0) {
+            rejectionCount.incrementAndGet();
+            return;
+        }
+
+        for (Map.Entry<String, String> victim : victims) {
+            size -= entries.remove(victim).body.capacity();
+            evictionCount.incrementAndGet();
+        }
+        if (old != null) {
+            entries.remove(key);
+            size -= old.body.capacity();
+        }
+        entries.put(key, entry);
+        size += weight;
+    }
+
+    private synchronized void invalidate(String container, String name) {
+        generations.invalidate(container, name);
+        CacheEntry entry = entries.remove(Maps.immutableEntry(container,
+                name));
+        if (entry != null) {
+            size -= entry.body.capacity();
+        }
+    }
+
+    private synchronized void invalidateContainer(String container) {
+        generations.invalidateContainer(container);
+        Iterator<Map.Entry<Map.Entry<String, String>, CacheEntry>> it =
+                entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Map.Entry<String, String>, CacheEntry> entry = it.next();
+            if (entry.getKey().getKey().equals(container)) {
+                it.remove();
+                size -= entry.getValue().body.capacity();
+            }
+        }
+    }
+
+    private static final class CacheEntry {
+        private final BlobMetadata metadata;
+        private final ByteBuffer body;
+
+        CacheEntry(BlobMetadata metadata, ByteBuffer body) {
+            this.metadata = requireNonNull(metadata);
+            this.body = requireNonNull(body);
+        }
+
+        /**
+         * Create a Blob backed by the cached body.
+         *
+         * @return blob or null if the range cannot be served from the cache
+         */
+        @Nullable
+        Blob toBlob(@Nullable String range) {
+            long length = body.capacity();
+            long offset = 0;
+            long count = length;
+            if (range != null) {
+                long[] resolved = ByteRanges.parse(range, length);
+                if (resolved == null) {
+                    // let the backend emit the appropriate error
+                    return null;
+                }
+                offset = resolved[0];
+                count = resolved[1];
+            }
+
+            MutableBlobMetadataImpl blobMetadata =
+                    new MutableBlobMetadataImpl(metadata);
+            Blob blob = new BlobImpl(blobMetadata);
+            Payload payload = Payloads.newByteSourcePayload(
+                    new ByteBufferByteSource(body).slice(offset, count));
+            payload.setContentMetadata(blobMetadata.getContentMetadata());
+            payload.getContentMetadata().setContentLength(count);
+            blob.setPayload(payload);
+            if (range != null) {
+                payload.getContentMetadata().setContentMD5((HashCode) null);
+                blob.setAllHeaders(ImmutableMultimap.of(
+                        HttpHeaders.CONTENT_RANGE,
+                        ByteRanges.contentRange(offset, count, length)));
+            }
+            return blob;
+        }
+    }
+
+    private static final class ByteBufferByteSource extends ByteSource {
+        private final ByteBuffer buffer;
+
+        ByteBufferByteSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteBufferInputStream(buffer.duplicate());
+        }
+
+        @Override
+        public long size() {
+            return buffer.capacity();
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters which estimates how often a key was
+     * accessed.  Counters are halved periodically so that the estimate
+     * favors recent history.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumEntries) {
+            int capacity = Integer.highestOneBit(
+                    Math.max(maximumEntries, 64) - 1) << 1;
+            this.table = new long[capacity];
+            this.tableMask = capacity - 1;
+            this.sampleSize = 10 * capacity;
+        }
+
+        synchronized int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; ++i) {
+                int shift = counterShift(hash, i);
+                int count = (int) ((table[indexOf(hash, i)] >>> shift) &
+                        0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        synchronized void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; ++i) {
+                int index = indexOf(hash, i);
+                int shift = counterShift(hash, i);
+                long mask = 0xfL << shift;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; ++i) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        /** Each long holds sixteen counters; pick one per row. */
+        private static int counterShift(int hash, int i) {
+            return ((hash >>> (i << 3)) & 0xf) << 2;
+        }
+    }
+}
@@ -0,0 +1,1141 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.MutableStorageMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.domain.internal.MutableStorageMetadataImpl;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which packs small objects into large
+ * backend pack blobs under PACK_PREFIX.  Concurrent small writes to a
+ * container are group committed: each waits up to the commit delay for
+ * others to join its pack, which is then written with a single backend PUT.
+ * Each pack ends with an index of its records so that the in-memory index
+ * from key to pack, offset and length can be rebuilt on first use of a
+ * container.  Reads become ranged reads of the pack and listings merge the
+ * index with the backend.  Deletes are recorded as tombstones and packs
+ * whose dead space passes the compaction threshold are rewritten in the
+ * background.  Large objects, objects with public ACLs and objects with
+ * content headers other than Content-Type bypass packing, as do all writes
+ * to a container whose index holds maxIndexEntries keys.  Making a packed
+ * object public moves it to its own backend blob.  Client requests for keys
+ * under PACK_PREFIX fail with AccessDenied.
+ * This assumes a single S3Proxy instance writes to each container.
+ */
+final class PackingBlobStore extends ForwardingBlobStore {
+    static final String PACK_PREFIX = ".s3proxy-pack/";
+    private static final Logger logger = LoggerFactory.getLogger(
+            PackingBlobStore.class);
+    private static final int PACK_MAGIC = 0x53335043;
+    /** Index length followed by magic. */
+    private static final int TRAILER_SIZE = 8 + 4;
+    /** Approximate cost of a record apart from its body. */
+    private static final long RECORD_OVERHEAD = 64;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private final long maxObjectSize;
+    private final long packSize;
+    private final long commitDelayMillis;
+    private final double compactionThreshold;
+    private final int maxIndexEntries;
+    private final ScheduledExecutorService executorService;
+    private final ConcurrentMap<String, Container> containers =
+            new ConcurrentHashMap<>();
+    private final AtomicLong packCount = new AtomicLong();
+    private final AtomicLong packedObjectCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    private PackingBlobStore(BlobStore blobStore, long maxObjectSize,
+            long packSize, long commitDelay, TimeUnit unit,
+            double compactionThreshold, int maxIndexEntries) {
+        super(blobStore);
+        checkArgument(maxObjectSize > 0 && maxObjectSize < packSize,
+                "Maximum object size must be positive and less than" +
+                " pack size, was: %s", maxObjectSize);
+        checkArgument(packSize <= Integer.MAX_VALUE,
+                "Pack size must fit in an array, was: %s", packSize);
+        checkArgument(commitDelay >= 0,
+                "Commit delay must be non-negative, was: %s", commitDelay);
+        checkArgument(compactionThreshold > 0 && compactionThreshold <= 1,
+                "Compaction threshold must be in (0, 1], was: %s",
+                compactionThreshold);
+        checkArgument(maxIndexEntries > 0,
+                "Maximum index entries must be positive, was: %s",
+                maxIndexEntries);
+        this.maxObjectSize = maxObjectSize;
+        this.packSize = packSize;
+        this.commitDelayMillis = unit.toMillis(commitDelay);
+        this.compactionThreshold = compactionThreshold;
+        this.maxIndexEntries = maxIndexEntries;
+        this.executorService = new ScheduledThreadPoolExecutor(2,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("packing-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    static PackingBlobStore newPackingBlobStore(BlobStore blobStore,
+            long maxObjectSize, long packSize, long commitDelay,
+            TimeUnit unit, double compactionThreshold, int maxIndexEntries) {
+        return new PackingBlobStore(blobStore, maxObjectSize, packSize,
+                commitDelay, unit, compactionThreshold, maxIndexEntries);
+    }
+
+    @Override
+    public boolean blobExists(String container, String name) {
+        if (getPacked(container, name) != null) {
+            return true;
+        }
+        return super.blobExists(container, name);
+    }
+
+    @Override
+    public BlobMetadata blobMetadata(String container, String name) {
+        Record record = getPacked(container, name);
+        if (record != null) {
+            return record.toMetadata(container);
+        }
+        return super.blobMetadata(container, name);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name, GetOptions options) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            Record record = getPacked(container, name);
+            if (record == null) {
+                return super.getBlob(container, name, options);
+            }
+            Blob blob = getPackedBlob(container, record, options);
+            if (blob != null) {
+                return blob;
+            }
+            // compaction moved the record; look it up again
+        }
+        logger.warn("Pack missing for {}/{}", container, name);
+        return super.getBlob(container, name, options);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        String name = blob.getMetadata().getName();
+        checkName(name);
+        ContentMetadata contentMetadata =
+                blob.getMetadata().getContentMetadata();
+        Long contentLength = contentMetadata.getContentLength();
+        Container state = getContainer(container);
+        if (options.isMultipart() || contentLength == null ||
+                contentLength > maxObjectSize ||
+                options.getBlobAccess() == BlobAccess.PUBLIC_READ ||
+                hasExtraContentMetadata(contentMetadata) ||
+                isIndexFull(state, name)) {
+            String eTag = super.putBlob(container, blob, options);
+            deletePacked(container, name);
+            return eTag;
+        }
+
+        byte[] body;
+        try (InputStream is = blob.getPayload().openStream()) {
+            body = ByteStreams.toByteArray(ByteStreams.limit(is,
+                    contentLength));
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        if (body.length != contentLength) {
+            throw new IllegalArgumentException("Expected " + contentLength +
+                    " bytes, received " + body.length);
+        }
+        HashCode md5 = Hashing.md5().hashBytes(body);
+        HashCode expectedMD5 = contentMetadata.getContentMD5AsHashCode();
+        if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+            throw new HttpResponseException("Content-MD5 mismatch", null,
+                    HttpResponse.builder().statusCode(400).build());
+        }
+
+        Batch batch;
+        synchronized (state) {
+            Record record = new Record(RECORD_PUT, state.nextSequence++,
+                    name, -1, -1, body.length, md5.toString(),
+                    System.currentTimeMillis(),
+                    contentMetadata.getContentType(),
+                    blob.getMetadata().getUserMetadata());
+            batch = append(state, new Item(record, body));
+        }
+        commit(state, batch);
+        packedObjectCount.incrementAndGet();
+        return md5.toString();
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        checkName(name);
+        super.removeBlob(container, name);
+        deletePacked(container, name);
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        for (String name : names) {
+            checkName(name);
+        }
+        super.removeBlobs(container, names);
+        for (String name : names) {
+            deletePacked(container, name);
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        checkName(fromName);
+        checkName(toName);
+        if (getPacked(fromContainer, fromName) == null) {
+            String eTag = super.copyBlob(fromContainer, fromName,
+                    toContainer, toName, options);
+            deletePacked(toContainer, toName);
+            return eTag;
+        }
+
+        Blob source = getBlob(fromContainer, fromName,
+                ConditionalRequests.toGetOptions(options));
+        if (source == null) {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        }
+        Map<String, String> userMetadata = options.userMetadata() != null ?
+                options.userMetadata() :
+                source.getMetadata().getUserMetadata();
+        ContentMetadata contentMetadata = options.contentMetadata() != null ?
+                options.contentMetadata() :
+                source.getMetadata().getContentMetadata();
+        try (InputStream is = source.getPayload().openStream()) {
+            Blob blob = blobBuilder(toName)
+                    .userMetadata(userMetadata)
+                    .payload(ByteStreams.toByteArray(is))
+                    .contentType(contentMetadata.getContentType())
+                    .build();
+            return putBlob(toContainer, blob);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String container,
+            BlobMetadata blobMetadata, PutOptions options) {
+        checkName(blobMetadata.getName());
+        return super.initiateMultipartUpload(container, blobMetadata,
+                options);
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        String eTag = super.completeMultipartUpload(mpu, parts);
+        deletePacked(mpu.containerName(), mpu.blobName());
+        return eTag;
+    }
+
+    @Override
+    public BlobAccess getBlobAccess(String container, String name) {
+        if (getPacked(container, name) != null) {
+            return BlobAccess.PRIVATE;
+        }
+        return super.getBlobAccess(container, name);
+    }
+
+    @Override
+    public void setBlobAccess(String container, String name,
+            BlobAccess access) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            Record record = getPacked(container, name);
+            if (record == null) {
+                break;
+            } else if (access == BlobAccess.PRIVATE) {
+                return;
+            }
+            // packs are private so move the object to its own backend blob
+            Blob packed = getPackedBlob(container, record, GetOptions.NONE);
+            if (packed == null) {
+                // compaction moved the record; look it up again
+                continue;
+            }
+            try (InputStream is = packed.getPayload().openStream()) {
+                Blob blob = blobBuilder(name)
+                        .userMetadata(record.userMetadata)
+                        .payload(ByteStreams.toByteArray(is))
+                        .contentType(record.contentType)
+                        .build();
+                super.putBlob(container, blob,
+                        new PutOptions().setBlobAccess(access));
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            deletePacked(container, name, record.sequence);
+            return;
+        }
+        super.setBlobAccess(container, name, access);
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(String container,
+            ListContainerOptions options) {
+        Container state = getContainer(container);
+        String prefix = options.getPrefix() == null ? "" :
+                options.getPrefix();
+        String delimiter = options.getDelimiter();
+        if (delimiter == null && !options.isRecursive()) {
+            delimiter = "/";
+        }
+        int maxResults = options.getMaxResults() == null ? 1000 :
+                options.getMaxResults();
+
+        // keep reading backend pages which contain only packs
+        TreeMap<String, StorageMetadata> merged = new TreeMap<>();
+        String marker = options.getMarker();
+        String nextMarker;
+        while (true) {
+            ListContainerOptions pageOptions = options.clone();
+            if (marker != null) {
+                pageOptions.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> page = super.list(container,
+                    pageOptions);
+            nextMarker = page.getNextMarker();
+            // the backend page covers names up to its last entry
+            String upper = nextMarker == null ? null :
+                    page.isEmpty() ? nextMarker : lastName(page);
+            synchronized (state) {
+                mergePage(state, page, merged);
+                mergeIndex(state, container, marker, upper, prefix,
+                        delimiter, merged);
+            }
+            if (nextMarker == null || merged.size() >= maxResults) {
+                break;
+            }
+            marker = nextMarker;
+        }
+
+        if (merged.size() <= maxResults) {
+            return new PageSetImpl<>(merged.values(), nextMarker);
+        }
+        List<StorageMetadata> results = new ArrayList<>(
+                merged.values()).subList(0, maxResults);
+        return new PageSetImpl<>(results,
+                results.get(results.size() - 1).getName());
+    }
+
+    /** Add backend entries which are neither packs nor shadowed. */
+    private static void mergePage(Container state,
+            Iterable<? extends StorageMetadata> page,
+            Map<String, StorageMetadata> merged) {
+        for (StorageMetadata metadata : page) {
+            String name = metadata.getName();
+            if (name.startsWith(PACK_PREFIX) ||
+                    (name + "/").equals(PACK_PREFIX)) {
+                continue;
+            }
+            Record record = state.index.get(name);
+            if (record == null || record.type != RECORD_PUT) {
+                merged.put(name, metadata);
+            }
+        }
+    }
+
+    /** Add packed keys after marker and up to upper, inclusive. */
+    private static void mergeIndex(Container state, String container,
+            @Nullable String marker, @Nullable String upper, String prefix,
+            @Nullable String delimiter, Map<String, StorageMetadata> merged) {
+        NavigableMap<String, Record> range = state.index;
+        if (marker != null) {
+            range = range.tailMap(marker, false);
+        } else if (!prefix.isEmpty()) {
+            range = range.tailMap(prefix, true);
+        }
+        if (upper != null) {
+            range = range.headMap(upper, true);
+        }
+        for (Record record : range.values()) {
+            if (!record.name.startsWith(prefix)) {
+                if (record.name.compareTo(prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (record.type != RECORD_PUT) {
+                continue;
+            }
+            int index = delimiter == null ? -1 : record.name.indexOf(
+                    delimiter, prefix.length());
+            if (index != -1) {
+                String commonPrefix = record.name.substring(0,
+                        index + delimiter.length());
+                MutableStorageMetadata metadata =
+                        new MutableStorageMetadataImpl();
+                metadata.setType(StorageType.RELATIVE_PATH);
+                metadata.setName(commonPrefix);
+                merged.putIfAbsent(commonPrefix, metadata);
+            } else {
+                merged.put(record.name, record.toMetadata(container));
+            }
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        super.clearContainer(container);
+        containers.remove(container);
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        Container state = getContainer(container);
+        List<Long> packIds;
+        synchronized (state) {
+            for (Record record : state.index.values()) {
+                if (record.type == RECORD_PUT) {
+                    return false;
+                }
+            }
+            packIds = new ArrayList<>(state.packs.keySet());
+        }
+        for (long packId : packIds) {
+            super.removeBlob(container, packName(packId));
+        }
+        containers.remove(container);
+        return super.deleteContainerIfEmpty(container);
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        super.deleteContainer(container);
+        containers.remove(container);
+    }
+
+    /** Number of pack blobs written, including by compaction. */
+    long getPackCount() {
+        return packCount.get();
+    }
+
+    long getPackedObjectCount() {
+        return packedObjectCount.get();
+    }
+
+    long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /** Reject client requests which would access packs directly. */
+    private static void checkName(String name) {
+        if (name.startsWith(PACK_PREFIX)) {
+            throw new RuntimeException(new S3Exception(
+                    S3ErrorCode.ACCESS_DENIED,
+                    "Keys under " + PACK_PREFIX + " are reserved"));
+        }
+    }
+
+    /** New keys bypass packing once the index reaches its bound. */
+    private boolean isIndexFull(Container state, String name) {
+        synchronized (state) {
+            return state.index.size() >= maxIndexEntries &&
+                    !state.index.containsKey(name);
+        }
+    }
+
+    /** Packs only retain the content type of each object. */
+    private static boolean hasExtraContentMetadata(
+            ContentMetadata contentMetadata) {
+        return contentMetadata.getCacheControl() != null ||
+                contentMetadata.getContentDisposition() != null ||
+                contentMetadata.getContentEncoding() != null ||
+                contentMetadata.getContentLanguage() != null ||
+                contentMetadata.getExpires() != null;
+    }
+
+    @Nullable
+    private Record getPacked(String container, String name) {
+        Container state = getContainer(container);
+        synchronized (state) {
+            Record record = state.index.get(name);
+            return record != null && record.type == RECORD_PUT ?
+                    record : null;
+        }
+    }
+
+    /**
+     * Read a packed object.
+     *
+     * @return blob or null if the pack no longer exists
+     */
+    @Nullable
+    private Blob getPackedBlob(String container, Record record,
+            GetOptions options) {
+        MutableBlobMetadata metadata = record.toMetadata(container);
+        int status = ConditionalRequests.status(metadata,
+                options);
+        if (status != 200) {
+            throw new HttpResponseException("conditional request failed",
+                    null, HttpResponse.builder().statusCode(status).build());
+        }
+
+        String range = options.getRanges().isEmpty() ? null :
+                options.getRanges().get(0);
+        long offset = 0;
+        long count = record.length;
+        if (range != null) {
+            long[] resolved = ByteRanges.parse(range, record.length);
+            if (resolved == null) {
+                throw new HttpResponseException("invalid range", null,
+                        HttpResponse.builder().statusCode(416).build());
+            }
+            offset = resolved[0];
+            count = resolved[1];
+        }
+
+        Payload payload;
+        if (count == 0) {
+            payload = Payloads.newByteArrayPayload(new byte[0]);
+        } else {
+            long start = record.offset + offset;
+            Blob pack = super.getBlob(container, packName(record.packId),
+                    new GetOptions().range(start, start + count - 1));
+            if (pack == null) {
+                return null;
+            }
+            try {
+                payload = Payloads.newInputStreamPayload(
+                        pack.getPayload().openStream());
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        Blob blob = new BlobImpl(metadata);
+        payload.setContentMetadata(metadata.getContentMetadata());
+        payload.getContentMetadata().setContentLength(count);
+        blob.setPayload(payload);
+        if (range != null) {
+            payload.getContentMetadata().setContentMD5((HashCode) null);
+            blob.setAllHeaders(ImmutableMultimap.of(
+                    HttpHeaders.CONTENT_RANGE,
+                    ByteRanges.contentRange(offset, count, record.length)));
+        }
+        return blob;
+    }
+
+    /** Record a tombstone if the key is packed. */
+    private void deletePacked(String container, String name) {
+        deletePacked(container, name, -1);
+    }
+
+    /**
+     * Record a tombstone if the key is packed and, unless sequence is -1,
+     * its current record has that sequence.
+     */
+    private void deletePacked(String container, String name, long sequence) {
+        Container state = getContainer(container);
+        Batch batch;
+        synchronized (state) {
+            Record record = state.index.get(name);
+            if (record == null || record.type != RECORD_PUT ||
+                    (sequence != -1 && record.sequence != sequence)) {
+                return;
+            }
+            batch = append(state, new Item(new Record(RECORD_DELETE,
+                    state.nextSequence++, name, -1, -1, 0, "", 0, null,
+                    null), new byte[0]));
+        }
+        commit(state, batch);
+    }
+
+    private Container getContainer(String container) {
+        Container state = containers.get(container);
+        if (state != null) {
+            return state;
+        }
+        // load outside the map lock since listing packs is slow
+        state = loadContainer(container);
+        Container existing = containers.putIfAbsent(container, state);
+        if (existing != null) {
+            return existing;
+        }
+        scheduleCompactions(state);
+        return state;
+    }
+
+    /** Add an item to the open batch, scheduling its commit. */
+    private Batch append(Container state, Item item) {
+        Batch batch = state.batch;
+        if (batch == null) {
+            Batch newBatch = new Batch();
+            batch = newBatch;
+            state.batch = batch;
+            executorService.schedule(() -> {
+                if (seal(state, newBatch)) {
+                    flush(state, newBatch.items, newBatch.done);
+                }
+            }, commitDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        batch.items.add(item);
+        batch.size += item.body.length;
+        return batch;
+    }
+
+    /** Flush a full batch early and wait for its pack to be written. */
+    private void commit(Container state, Batch batch) {
+        boolean full;
+        synchronized (state) {
+            full = batch.size >= packSize - maxObjectSize;
+        }
+        if (full && seal(state, batch)) {
+            flush(state, batch.items, batch.done);
+        }
+        try {
+            batch.done.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    /** @return true if the caller owns the batch and must flush it */
+    private static boolean seal(Container state, Batch batch) {
+        synchronized (state) {
+            if (state.batch != batch) {
+                return false;
+            }
+            state.batch = null;
+            return true;
+        }
+    }
+
+    /** Write items as a new pack and add them to the index. */
+    private void flush(Container state, List<Item> items,
+            CompletableFuture<Void> done) {
+        long packId;
+        synchronized (state) {
+            packId = state.nextPackId++;
+        }
+        try {
+            ByteArrayOutputStream pack = new ByteArrayOutputStream();
+            List<Record> records = new ArrayList<>(items.size());
+            for (Item item : items) {
+                records.add(item.record.at(packId, pack.size()));
+                pack.write(item.body);
+            }
+            byte[] index = encodeIndex(records);
+            pack.write(index);
+            pack.write(ByteBuffer.allocate(TRAILER_SIZE)
+                    .putLong(index.length)
+                    .putInt(PACK_MAGIC)
+                    .array());
+            byte[] bytes = pack.toByteArray();
+            Blob blob = blobBuilder(packName(packId))
+                    .payload(bytes)
+                    .contentLength(bytes.length)
+                    .build();
+            super.putBlob(state.name, blob);
+            packCount.incrementAndGet();
+
+            synchronized (state) {
+                state.packs.put(packId, new PackStats());
+                for (Record record : records) {
+                    apply(state, record);
+                }
+            }
+            done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+            return;
+        }
+        scheduleCompactions(state);
+    }
+
+    /** Make record current for its key unless a newer record exists. */
+    private void apply(Container state, Record record) {
+        PackStats stats = state.packs.get(record.packId);
+        ++stats.records;
+        stats.bytes += record.length;
+        Record current = state.index.get(record.name);
+        int copies = (current == null ? 0 : current.copies) +
+                (record.type == RECORD_PUT ? 1 : 0);
+        if (current != null && current.sequence > record.sequence) {
+            current.copies = copies;
+            markDead(state, record);
+            return;
+        }
+        if (current != null) {
+            markDead(state, current);
+        }
+        if (record.type == RECORD_DELETE && copies == 0) {
+            // no older version remains so the tombstone is unnecessary
+            state.index.remove(record.name);
+            markDead(state, record);
+            return;
+        }
+        record.copies = copies;
+        state.index.put(record.name, record);
+    }
+
+    private void markDead(Container state, Record record) {
+        PackStats stats = state.packs.get(record.packId);
+        if (stats == null) {
+            return;
+        }
+        ++stats.deadRecords;
+        stats.deadBytes += record.length;
+        double total = stats.bytes + stats.records * RECORD_OVERHEAD;
+        double dead = stats.deadBytes + stats.deadRecords * RECORD_OVERHEAD;
+        if (dead >= compactionThreshold * total &&
+                !state.compacting.contains(record.packId)) {
+            state.candidates.add(record.packId);
+        }
+    }
+
+    private void scheduleCompactions(Container state) {
+        List<Long> packIds;
+        synchronized (state) {
+            packIds = new ArrayList<>(state.candidates);
+            state.candidates.clear();
+            state.compacting.addAll(packIds);
+        }
+        for (long packId : packIds) {
+            executorService.execute(() -> {
+                try {
+                    compact(state, packId);
+                } catch (RuntimeException re) {
+                    logger.warn("Could not compact pack {} in {}", packId,
+                            state.name, re);
+                    synchronized (state) {
+                        state.compacting.remove(packId);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Move the live records of a pack to a new pack and delete it.  Older
+     * versions of a key are only forgotten after the pack holding them is
+     * deleted so that tombstones outlive the records they shadow.
+     */
+    private void compact(Container state, long packId) {
+        String packName = packName(packId);
+        Blob blob = super.getBlob(state.name, packName);
+        byte[] bytes;
+        if (blob == null) {
+            bytes = null;
+        } else {
+            try (InputStream is = blob.getPayload().openStream()) {
+                bytes = ByteStreams.toByteArray(is);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+        List<Record> records = bytes == null ? Collections.emptyList() :
+                decodePack(bytes, packId);
+
+        List<Item> live = new ArrayList<>();
+        synchronized (state) {
+            for (Record record : records) {
+                Record current = state.index.get(record.name);
+                if (current != null && current.packId == packId &&
+                        current.sequence == record.sequence) {
+                    live.add(new Item(record, Arrays.copyOfRange(bytes,
+                            (int) record.offset,
+                            (int) (record.offset + record.length))));
+                }
+            }
+        }
+        if (!live.isEmpty()) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            flush(state, live, done);
+            if (done.isCompletedExceptionally()) {
+                throw new IllegalStateException(
+                        "Could not rewrite pack " + packName);
+            }
+        }
+        if (blob != null) {
+            super.removeBlob(state.name, packName);
+        }
+        compactionCount.incrementAndGet();
+
+        synchronized (state) {
+            state.packs.remove(packId);
+            state.compacting.remove(packId);
+            for (Record record : records) {
+                if (record.type != RECORD_PUT) {
+                    continue;
+                }
+                Record current = state.index.get(record.name);
+                if (current == null) {
+                    continue;
+                }
+                --current.copies;
+                if (current.type == RECORD_DELETE && current.copies == 0) {
+                    state.index.remove(record.name);
+                    markDead(state, current);
+                }
+            }
+        }
+        scheduleCompactions(state);
+    }
+
+    /** Rebuild the index of a container from the trailers of its packs. */
+    private Container loadContainer(String container) {
+        Container state = new Container(container);
+        List<Record> records = new ArrayList<>();
+        String marker = null;
+        do {
+            ListContainerOptions options = new ListContainerOptions()
+                    .prefix(PACK_PREFIX).recursive();
+            if (marker != null) {
+                options.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> page;
+            try {
+                page = super.list(container, options);
+            } catch (ContainerNotFoundException cnfe) {
+                return state;
+            }
+            for (StorageMetadata metadata : page) {
+                if (metadata.getType() != StorageType.BLOB ||
+                        metadata.getSize() == null) {
+                    continue;
+                }
+                long packId;
+                try {
+                    packId = Long.parseLong(metadata.getName().substring(
+                            PACK_PREFIX.length()));
+                } catch (NumberFormatException nfe) {
+                    continue;
+                }
+                state.nextPackId = Math.max(state.nextPackId, packId + 1);
+                List<Record> packRecords = readIndex(container, packId,
+                        metadata.getSize());
+                if (packRecords != null) {
+                    state.packs.put(packId, new PackStats());
+                    records.addAll(packRecords);
+                }
+            }
+            marker = page.getNextMarker();
+        } while (marker != null);
+
+        records.sort(Comparator.comparingLong(record -> record.sequence));
+        for (Record record : records) {
+            state.nextSequence = Math.max(state.nextSequence,
+                    record.sequence + 1);
+            apply(state, record);
+        }
+        if (!records.isEmpty()) {
+            logger.info("Loaded {} packed records from {}", records.size(),
+                    container);
+        }
+        return state;
+    }
+
+    @Nullable
+    private List<Record> readIndex(String container, long packId,
+            long size) {
+        String packName = packName(packId);
+        try {
+            if (size < TRAILER_SIZE) {
+                throw new IOException("short pack");
+            }
+            Blob trailer = super.getBlob(container, packName,
+                    new GetOptions().range(size - TRAILER_SIZE, size - 1));
+            ByteBuffer buffer;
+            try (InputStream is = trailer.getPayload().openStream()) {
+                buffer = ByteBuffer.wrap(ByteStreams.toByteArray(is));
+            }
+            long indexLength = buffer.getLong();
+            if (buffer.getInt() != PACK_MAGIC || indexLength <= 0 ||
+                    indexLength > size - TRAILER_SIZE) {
+                throw new IOException("bad trailer");
+            }
+            long start = size - TRAILER_SIZE - indexLength;
+            Blob index = super.getBlob(container, packName,
+                    new GetOptions().range(start, start + indexLength - 1));
+            try (InputStream is = index.getPayload().openStream()) {
+                return decodeIndex(ByteStreams.toByteArray(is), packId);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable pack {}/{}", container,
+                    packName, e);
+            return null;
+        }
+    }
+
+    private static List<Record> decodePack(byte[] pack, long packId) {
+        ByteBuffer trailer = ByteBuffer.wrap(pack,
+                pack.length - TRAILER_SIZE, TRAILER_SIZE);
+        long indexLength = trailer.getLong();
+        byte[] index = new byte[(int) indexLength];
+        System.arraycopy(pack, (int) (pack.length - TRAILER_SIZE -
+                indexLength), index, 0, index.length);
+        try {
+            return decodeIndex(index, packId);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private static byte[] encodeIndex(List<Record> records)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(records.size());
+        for (Record record : records) {
+            out.writeByte(record.type);
+            out.writeLong(record.sequence);
+            out.writeUTF(record.name);
+            out.writeLong(record.offset);
+            out.writeLong(record.length);
+            out.writeUTF(record.eTag);
+            out.writeLong(record.lastModified);
+            out.writeBoolean(record.contentType != null);
+            if (record.contentType != null) {
+                out.writeUTF(record.contentType);
+            }
+            out.writeInt(record.userMetadata.size());
+            for (Map.Entry<String, String> entry :
+                    record.userMetadata.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<Record> decodeIndex(byte[] index, long packId)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(index));
+        int count = in.readInt();
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            byte type = in.readByte();
+            long sequence = in.readLong();
+            String name = in.readUTF();
+            long offset = in.readLong();
+            long length = in.readLong();
+            String eTag = in.readUTF();
+            long lastModified = in.readLong();
+            String contentType = in.readBoolean() ? in.readUTF() : null;
+            int metadataCount = in.readInt();
+            ImmutableMap.Builder<String, String> userMetadata =
+                    ImmutableMap.builder();
+            for (int j = 0; j < metadataCount; ++j) {
+                userMetadata.put(in.readUTF(), in.readUTF());
+            }
+            records.add(new Record(type, sequence, name, packId, offset,
+                    length, eTag, lastModified, contentType,
+                    userMetadata.build()));
+        }
+        return records;
+    }
+
+    private static String lastName(Iterable<? extends StorageMetadata> page) {
+        String name = null;
+        for (StorageMetadata metadata : page) {
+            name = metadata.getName();
+        }
+        return name;
+    }
+
+    private static String packName(long packId) {
+        return String.format("%s%020d", PACK_PREFIX, packId);
+    }
+
+    /** Location and metadata of one version of a key within a pack. */
+    private static final class Record {
+        private final byte type;
+        private final long sequence;
+        private final String name;
+        private final long packId;
+        private final long offset;
+        private final long length;
+        private final String eTag;
+        private final long lastModified;
+        @Nullable
+        private final String contentType;
+        private final Map<String, String> userMetadata;
+        /** Put records of this key still stored in packs. */
+        private int copies;
+
+        Record(byte type, long sequence, String name, long packId,
+                long offset, long length, String eTag, long lastModified,
+                @Nullable String contentType,
+                @Nullable Map<String, String> userMetadata) {
+            this.type = type;
+            this.sequence = sequence;
+            this.name = name;
+            this.packId = packId;
+            this.offset = offset;
+            this.length = length;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.userMetadata = userMetadata == null ?
+                    ImmutableMap.of() : ImmutableMap.copyOf(userMetadata);
+        }
+
+        Record at(long newPackId, long newOffset) {
+            return new Record(type, sequence, name, newPackId, newOffset,
+                    length, eTag, lastModified, contentType, userMetadata);
+        }
+
+        MutableBlobMetadata toMetadata(String container) {
+            MutableBlobMetadata metadata = new MutableBlobMetadataImpl();
+            metadata.setType(StorageType.BLOB);
+            metadata.setContainer(container);
+            metadata.setName(name);
+            metadata.setETag(eTag);
+            metadata.setLastModified(new Date(lastModified));
+            metadata.setSize(length);
+            metadata.setUserMetadata(userMetadata);
+            metadata.getContentMetadata().setContentType(contentType);
+            metadata.getContentMetadata().setContentLength(length);
+            metadata.getContentMetadata().setContentMD5(
+                    HashCode.fromString(eTag));
+            return metadata;
+        }
+    }
+
+    private static final class Item {
+        private final Record record;
+        private final byte[] body;
+
+        Item(Record record, byte[] body) {
+            this.record = record;
+            this.body = body;
+        }
+    }
+
+    private static final class Batch {
+        private final List<Item> items = new ArrayList<>();
+        private final CompletableFuture<Void> done =
+                new CompletableFuture<>();
+        private long size;
+    }
+
+    private static final class PackStats {
+        private long records;
+        private long bytes;
+        private long deadRecords;
+        private long deadBytes;
+    }
+
+    /** Index and pack accounting of one container, guarded by itself. */
+    private static final class Container {
+        private final String name;
+        private final NavigableMap<String, Record> index = new TreeMap<>();
+        private final Map<Long, PackStats> packs = new HashMap<>();
+        private final Set<Long> candidates = new HashSet<>();
+        private final Set<Long> compacting = new HashSet<>();
+        private long nextSequence;
+        private long nextPackId;
+        @Nullable
+        private Batch batch;
+
+        Container(String name) {
+            this.name = name;
+        }
+    }
+}
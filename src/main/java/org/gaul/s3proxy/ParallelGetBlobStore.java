@@ -0,0 +1,383 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which splits large reads into
+ * concurrent range requests against the backend.  The first part is fetched
+ * directly and its response supplies the ETag and size instead of a
+ * separate HEAD, so small objects cost a single request.  Later parts are
+ * fetched up to parallelism ahead of the reader, pinned to the first ETag,
+ * and returned in order.  All reads share a budget of buffered bytes; a
+ * read which finds the budget exhausted streams its remainder with one
+ * range request instead.
+ */
+final class ParallelGetBlobStore extends ForwardingBlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(
+            ParallelGetBlobStore.class);
+
+    private final ExecutorService executorService;
+    private final long partSize;
+    private final int parallelism;
+    private final long threshold;
+    /** Parts which all reads together may buffer. */
+    private final Semaphore bufferedParts;
+
+    private ParallelGetBlobStore(BlobStore blobStore,
+            ExecutorService executorService, long partSize, int parallelism,
+            long threshold, long maxBufferSize) {
+        super(blobStore);
+        checkArgument(partSize > 0 && partSize <= Integer.MAX_VALUE,
+                "Part size must be positive, was: %s", partSize);
+        checkArgument(parallelism > 0,
+                "Parallelism must be positive, was: %s", parallelism);
+        checkArgument(maxBufferSize >= partSize,
+                "Maximum buffer size must be at least the part size," +
+                " was: %s", maxBufferSize);
+        this.executorService = requireNonNull(executorService);
+        this.partSize = partSize;
+        this.parallelism = parallelism;
+        this.threshold = threshold;
+        this.bufferedParts = new Semaphore((int) Math.min(
+                maxBufferSize / partSize, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param executorService runs range requests and should be dedicated
+     *     to this BlobStore so that they cannot starve backend I/O
+     * @param maxBufferSize bytes which all reads together may buffer
+     */
+    static ParallelGetBlobStore newParallelGetBlobStore(BlobStore blobStore,
+            ExecutorService executorService, long partSize, int parallelism,
+            long threshold, long maxBufferSize) {
+        return new ParallelGetBlobStore(blobStore, executorService, partSize,
+                parallelism, threshold, maxBufferSize);
+    }
+
+    /** Parts which reads may still buffer. */
+    int getAvailableBufferedParts() {
+        return bufferedParts.availablePermits();
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        if (options.getIfMatch() != null || options.getIfNoneMatch() != null ||
+                options.getIfModifiedSince() != null ||
+                options.getIfUnmodifiedSince() != null ||
+                options.getRanges().size() > 1) {
+            return super.getBlob(container, name, options);
+        }
+        String range = options.getRanges().isEmpty() ? null :
+                options.getRanges().get(0);
+        long start = 0;
+        long probeEnd;
+        try {
+            if (range == null) {
+                probeEnd = partSize - 1;
+            } else {
+                String[] bounds = range.split("-", 2);
+                if (bounds[0].isEmpty()) {
+                    // suffix ranges are usually small tails
+                    return super.getBlob(container, name, options);
+                }
+                start = Long.parseLong(bounds[0]);
+                probeEnd = start + partSize - 1;
+                if (!bounds[1].isEmpty()) {
+                    long last = Long.parseLong(bounds[1]);
+                    if (last - start + 1 < threshold) {
+                        return super.getBlob(container, name, options);
+                    }
+                    probeEnd = Math.min(probeEnd, last);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            return super.getBlob(container, name, options);
+        }
+
+        Blob first;
+        try {
+            first = super.getBlob(container, name,
+                    new GetOptions().range(start, probeEnd));
+        } catch (HttpResponseException hre) {
+            if (range == null && hre.getResponse() != null &&
+                    hre.getResponse().getStatusCode() == 416) {
+                // empty objects cannot satisfy any range
+                return super.getBlob(container, name, options);
+            }
+            throw hre;
+        }
+        if (first == null) {
+            return null;
+        }
+        String eTag = first.getMetadata().getETag();
+        long length = getTotalLength(first);
+        long offset = start;
+        long count = length - start;
+        if (range != null && length != -1) {
+            long[] resolved = ByteRanges.parse(range, length);
+            if (resolved == null) {
+                length = -1;
+            } else {
+                offset = resolved[0];
+                count = resolved[1];
+            }
+        }
+        long firstCount = Math.min(partSize, count);
+        if (eTag == null || length == -1 ||
+                (count > firstCount && count < threshold)) {
+            // not worth splitting or the backend omitted what we need
+            first.getPayload().release();
+            return super.getBlob(container, name, options);
+        }
+
+        InputStream firstStream;
+        try {
+            firstStream = first.getPayload().openStream();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        MutableBlobMetadataImpl blobMetadata =
+                new MutableBlobMetadataImpl(first.getMetadata());
+        blobMetadata.setSize(length);
+        Blob blob = new BlobImpl(blobMetadata);
+        Payload payload = Payloads.newInputStreamPayload(
+                count == firstCount ? firstStream :
+                new ParallelInputStream(container, name, eTag, firstStream,
+                        offset + firstCount, offset + count));
+        payload.setContentMetadata(blobMetadata.getContentMetadata());
+        payload.getContentMetadata().setContentLength(count);
+        blob.setPayload(payload);
+        if (range != null) {
+            payload.getContentMetadata().setContentMD5((HashCode) null);
+            blob.setAllHeaders(ImmutableMultimap.of(
+                    HttpHeaders.CONTENT_RANGE,
+                    ByteRanges.contentRange(offset, count, length)));
+        }
+        return blob;
+    }
+
+    /** @return object length from the Content-Range of blob, or -1 */
+    private static long getTotalLength(Blob blob) {
+        for (String contentRange : blob.getAllHeaders().get(
+                HttpHeaders.CONTENT_RANGE)) {
+            int index = contentRange.lastIndexOf('/');
+            if (index != -1) {
+                try {
+                    return Long.parseLong(contentRange.substring(index + 1)
+                            .trim());
+                } catch (NumberFormatException nfe) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private InputStream openRange(String container, String name, String eTag,
+            long start, long end) throws IOException {
+        Blob blob;
+        try {
+            blob = super.getBlob(container, name, new GetOptions()
+                    .range(start, end - 1).ifETagMatches(eTag));
+        } catch (HttpResponseException hre) {
+            throw new IOException(hre);
+        }
+        if (blob == null) {
+            throw new IOException("Object removed while reading: " + name);
+        }
+        return blob.getPayload().openStream();
+    }
+
+    private byte[] fetchPart(String container, String name, String eTag,
+            long start, long end) throws IOException {
+        byte[] part;
+        try (InputStream is = openRange(container, name, eTag, start, end)) {
+            part = ByteStreams.toByteArray(is);
+        }
+        if (part.length != end - start) {
+            throw new IOException("Unexpected part length: " + part.length);
+        }
+        return part;
+    }
+
+    /** Stream parts in order while fetching the following ones. */
+    private final class ParallelInputStream extends InputStream {
+        private final String container;
+        private final String name;
+        private final String eTag;
+        private final long end;
+        // each pending part holds a permit of bufferedParts
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        // offset of the next part to submit
+        private long nextOffset;
+        @Nullable
+        private InputStream current;
+        private boolean currentHoldsPermit;
+        private boolean closed;
+
+        ParallelInputStream(String container, String name, String eTag,
+                InputStream first, long start, long end) {
+            this.container = container;
+            this.name = name;
+            this.eTag = eTag;
+            this.current = first;
+            this.nextOffset = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (true) {
+                if (current != null) {
+                    fillPending();
+                    int count = current.read(b, off, len);
+                    if (count != -1) {
+                        return count;
+                    }
+                    releaseCurrent();
+                }
+                fillPending();
+                Future<byte[]> future = pending.poll();
+                if (future != null) {
+                    currentHoldsPermit = true;
+                    current = new ByteArrayInputStream(getPart(future));
+                } else if (nextOffset < end) {
+                    // out of buffer budget so stream the remainder
+                    current = openRange(container, name, eTag, nextOffset,
+                            end);
+                    nextOffset = end;
+                } else {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            releaseCurrent();
+            for (Future<byte[]> future : pending) {
+                future.cancel(/*mayInterruptIfRunning=*/ true);
+            }
+            bufferedParts.release(pending.size());
+            pending.clear();
+        }
+
+        private void releaseCurrent() {
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ioe) {
+                    logger.debug("Could not close part", ioe);
+                }
+                current = null;
+            }
+            if (currentHoldsPermit) {
+                bufferedParts.release();
+                currentHoldsPermit = false;
+            }
+        }
+
+        private void fillPending() {
+            while (pending.size() < parallelism && nextOffset < end &&
+                    bufferedParts.tryAcquire()) {
+                final long start = nextOffset;
+                final long partEnd = Math.min(start + partSize, end);
+                pending.add(executorService.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return fetchPart(container, name, eTag, start,
+                                partEnd);
+                    }
+                }));
+                nextOffset = partEnd;
+            }
+        }
+
+        private byte[] getPart(Future<byte[]> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ee) {
+                close();
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.primitives.Ints;
+
+import org.jclouds.azureblob.AzureBlobClient;
+import org.jclouds.azureblob.domain.BlobBlockProperties;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.MultipartPart;
+
+/**
+ * Byte ranges of the parts of a multipart object, which allow GetObject and
+ * HeadObject with partNumber to return a single part.  S3Proxy records them
+ * when completing an upload and, for Azure, recovers them from the block
+ * list.  The ETag identifies the object version which the ranges describe.
+ */
+final class PartBoundaries {
+    /** Azure block ids encode 10,000 * partNumber + subPartNumber. */
+    private static final int AZURE_SUB_PARTS = 10_000;
+
+    private final String eTag;
+    /** Offset one past the last byte of each part. */
+    private final long[] ends;
+
+    private PartBoundaries(String eTag, long[] ends) {
+        this.eTag = eTag;
+        this.ends = ends;
+    }
+
+    /**
+     * @param partSizes sizes keyed by part number, in order
+     * @return boundaries, or null if a size is unknown or empty
+     */
+    @Nullable
+    static PartBoundaries create(@Nullable String eTag,
+            SortedMap<Integer, Long> partSizes) {
+        if (eTag == null || partSizes.isEmpty()) {
+            return null;
+        }
+        long[] ends = new long[partSizes.size()];
+        long offset = 0;
+        int i = 0;
+        for (long partSize : partSizes.values()) {
+            if (partSize <= 0) {
+                return null;
+            }
+            offset += partSize;
+            ends[i] = offset;
+            ++i;
+        }
+        return new PartBoundaries(eTag, ends);
+    }
+
+    /**
+     * Sizes of the S3 parts within backend parts which may split each S3
+     * part into several sub-parts, e.g., Azure blocks.
+     */
+    static SortedMap<Integer, Long> partSizes(List<MultipartPart> parts,
+            int subParts) {
+        SortedMap<Integer, Long> partSizes = new TreeMap<>();
+        for (MultipartPart part : parts) {
+            long partSize = part.partSize();
+            int partNumber = part.partNumber() / subParts;
+            Long previous = partSizes.get(partNumber);
+            if (partSize < 0 || (previous != null && previous < 0)) {
+                partSizes.put(partNumber, -1L);
+            } else {
+                partSizes.put(partNumber,
+                        (previous == null ? 0 : previous) + partSize);
+            }
+        }
+        return partSizes;
+    }
+
+    /**
+     * Recover the parts of an Azure blob from the ids of its committed
+     * blocks.  Blobs which S3Proxy did not upload have other block ids and
+     * yield null.
+     */
+    @Nullable
+    static PartBoundaries fromAzureBlockList(BlobStore blobStore,
+            String containerName, String blobName, @Nullable String eTag) {
+        AzureBlobClient client = blobStore.getContext().unwrapApi(
+                AzureBlobClient.class);
+        List<MultipartPart> parts = new ArrayList<>();
+        for (BlobBlockProperties block : client.getBlockList(containerName,
+                blobName).getBlocks()) {
+            if (!block.isCommitted()) {
+                continue;
+            }
+            byte[] id;
+            try {
+                id = Base64.getDecoder().decode(block.getBlockName());
+            } catch (IllegalArgumentException iae) {
+                return null;
+            }
+            if (id.length != Ints.BYTES) {
+                return null;
+            }
+            int partNumber = Ints.fromByteArray(id);
+            if (partNumber < AZURE_SUB_PARTS) {
+                return null;
+            }
+            parts.add(MultipartPart.create(partNumber,
+                    block.getContentLength(), null, null));
+        }
+        return create(eTag, partSizes(parts, AZURE_SUB_PARTS));
+    }
+
+    int getPartCount() {
+        return ends.length;
+    }
+
+    long getFirstByte(int partNumber) {
+        checkArgument(partNumber >= 1 && partNumber <= ends.length,
+                "Invalid part number: %s", partNumber);
+        return partNumber == 1 ? 0 : ends[partNumber - 2];
+    }
+
+    long getLastByte(int partNumber) {
+        checkArgument(partNumber >= 1 && partNumber <= ends.length,
+                "Invalid part number: %s", partNumber);
+        return ends[partNumber - 1] - 1;
+    }
+
+    long getObjectSize() {
+        return ends[ends.length - 1];
+    }
+
+    /** Whether these boundaries describe the object with the given ETag. */
+    boolean matches(@Nullable String otherETag) {
+        return otherETag != null && stripQuotes(eTag).equals(
+                stripQuotes(otherETag));
+    }
+
+    private static String stripQuotes(String eTag) {
+        if (eTag.length() >= 2 && eTag.startsWith("\"") &&
+                eTag.endsWith("\"")) {
+            return eTag.substring(1, eTag.length() - 1);
+        }
+        return eTag;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Check a signed body against its x-amz-content-sha256 header while the
+ * body streams to the backend.  The final read fails, before returning the
+ * last bytes, when the digest does not match so that consumers never see a
+ * complete, unverified body.
+ */
+final class PayloadVerifyingInputStream extends FilterInputStream {
+    private final MessageDigest digest;
+    private final String expected;
+    private final long length;
+    private long count;
+    private boolean verified;
+
+    /**
+     * @param length body length from Content-Length or -1 if unknown, in
+     *     which case the digest is checked at end of stream
+     */
+    PayloadVerifyingInputStream(InputStream is, MessageDigest digest,
+            String expected, long length) {
+        super(is);
+        this.digest = digest;
+        this.expected = expected;
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            verify();
+        } else {
+            digest.update((byte) b);
+            if (++count == length) {
+                verify();
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n == -1) {
+            verify();
+        } else {
+            digest.update(b, off, n);
+            count += n;
+            if (length != -1 && count >= length) {
+                verify();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes must still be hashed
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int bytesRead = read(buffer, 0, (int) Math.min(n - skipped,
+                    buffer.length));
+            if (bytesRead == -1) {
+                break;
+            }
+            skipped += bytesRead;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void verify() throws IOException {
+        if (verified) {
+            return;
+        }
+        verified = true;
+        if (!expected.equals(BaseEncoding.base16().lowerCase().encode(
+                digest.digest()))) {
+            throw new IOException(new S3Exception(
+                    S3ErrorCode.X_AMZ_CONTENT_S_H_A_256_MISMATCH));
+        }
+    }
+}
@@ -99,6 +99,12 @@ final class Quirks {
             "transient"
     );
 
+    /** Blobstores which can copy a range into a part server-side. */
+    static final Set<String> SERVER_SIDE_COPY_PART = ImmutableSet.of(
+            "aws-s3",
+            "s3"
+    );
+
     /** Blobstores with opaque ETags. */
     static final Set<String> OPAQUE_ETAG = ImmutableSet.of(
             "azureblob",
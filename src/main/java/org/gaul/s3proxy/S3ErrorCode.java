@@ -59,16 +59,29 @@ enum S3ErrorCode {
             " a Region for Your Buckets."),
     INVALID_RANGE(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
             "The requested range is not satisfiable"),
+    INVALID_POLICY_DOCUMENT(HttpServletResponse.SC_BAD_REQUEST,
+            "The content of the form does not meet the conditions specified" +
+            " in the policy document."),
     INVALID_PART(HttpServletResponse.SC_BAD_REQUEST,
             "One or more of the specified parts could not be found." +
             "  The part may not have been uploaded, or the specified entity" +
             " tag may not match the part's entity tag."),
+    INVALID_PART_NUMBER(
+            HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+            "The requested partnumber is not satisfiable"),
     INVALID_REQUEST(HttpServletResponse.SC_BAD_REQUEST, "Bad Request"),
+    MALFORMED_P_O_S_T_REQUEST(HttpServletResponse.SC_BAD_REQUEST,
+            "The body of your POST request is not well-formed" +
+            " multipart/form-data."),
     MALFORMED_X_M_L(HttpServletResponse.SC_BAD_REQUEST,
             "The XML you provided was not well-formed or did not validate" +
             " against our published schema."),
     MAX_MESSAGE_LENGTH_EXCEEDED(HttpServletResponse.SC_BAD_REQUEST,
             "Your request was too big."),
+    MAX_POST_PRE_DATA_LENGTH_EXCEEDED_ERROR(
+            HttpServletResponse.SC_BAD_REQUEST,
+            "Your POST request fields preceding the upload file were too" +
+            " large."),
     METHOD_NOT_ALLOWED(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
             "Method Not Allowed"),
     MISSING_CONTENT_LENGTH(HttpServletResponse.SC_LENGTH_REQUIRED,
@@ -88,6 +101,8 @@ enum S3ErrorCode {
     REQUEST_TIME_TOO_SKEWED(HttpServletResponse.SC_FORBIDDEN, "Forbidden"),
     REQUEST_TIMEOUT(HttpServletResponse.SC_BAD_REQUEST, "Bad Request"),
     SIGNATURE_DOES_NOT_MATCH(HttpServletResponse.SC_FORBIDDEN, "Forbidden"),
+    SLOW_DOWN(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Please reduce your request rate."),
     X_AMZ_CONTENT_S_H_A_256_MISMATCH(HttpServletResponse.SC_BAD_REQUEST,
             "The provided 'x-amz-content-sha256' header does not match what" +
             " was computed.");
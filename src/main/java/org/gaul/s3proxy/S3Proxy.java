@@ -121,6 +121,13 @@ public final class S3Proxy {
                 builder.v4MaxNonChunkedRequestSize,
                 builder.ignoreUnknownHeaders, builder.corsRules,
                 builder.servicePath, builder.maximumTimeSkew);
+        handler.getHandler().setCopyBufferSize(builder.copyBufferSize);
+        handler.getHandler().setCompleteMultipartUploadThreads(
+                builder.completeMultipartUploadThreads);
+        handler.getHandler().setSubPartMemoryBudget(
+                builder.subPartMemoryBudget);
+        handler.getHandler().setServerSideCopyPart(
+                builder.serverSideCopyPart);
         server.setHandler(handler);
     }
 
@@ -142,6 +149,12 @@ public final class S3Proxy {
         private CrossOriginResourceSharing corsRules;
         private int jettyMaxThreads = 200;  // sourced from QueuedThreadPool()
         private int maximumTimeSkew = 15 * 60;
+        private int copyBufferSize = BufferPool.DEFAULT_COPY_BUFFER_SIZE;
+        private int completeMultipartUploadThreads =
+                CompletionExecutor.DEFAULT_THREADS;
+        private long subPartMemoryBudget =
+                SubPartUploader.DEFAULT_MEMORY_BUDGET;
+        private boolean serverSideCopyPart = true;
 
         Builder() {
         }
@@ -245,6 +258,34 @@ public final class S3Proxy {
                         v4MaxNonChunkedRequestSize));
             }
 
+            String copyBufferSize = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_COPY_BUFFER_SIZE);
+            if (copyBufferSize != null) {
+                builder.copyBufferSize(Integer.parseInt(copyBufferSize));
+            }
+
+            String completeMultipartUploadThreads = properties.getProperty(
+                    S3ProxyConstants
+                            .PROPERTY_COMPLETE_MULTIPART_UPLOAD_THREADS);
+            if (completeMultipartUploadThreads != null) {
+                builder.completeMultipartUploadThreads(Integer.parseInt(
+                        completeMultipartUploadThreads));
+            }
+
+            String subPartMemoryBudget = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_SUB_PART_MEMORY_BUDGET);
+            if (subPartMemoryBudget != null) {
+                builder.subPartMemoryBudget(Long.parseLong(
+                        subPartMemoryBudget));
+            }
+
+            String serverSideCopyPart = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_SERVER_SIDE_COPY_PART);
+            if (!Strings.isNullOrEmpty(serverSideCopyPart)) {
+                builder.serverSideCopyPart(Boolean.parseBoolean(
+                        serverSideCopyPart));
+            }
+
             String ignoreUnknownHeaders = properties.getProperty(
                     S3ProxyConstants.PROPERTY_IGNORE_UNKNOWN_HEADERS);
             if (!Strings.isNullOrEmpty(ignoreUnknownHeaders)) {
@@ -355,6 +396,38 @@ public final class S3Proxy {
             return this;
         }
 
+        public Builder copyBufferSize(int copyBufferSize) {
+            if (copyBufferSize <= 0) {
+                throw new IllegalArgumentException(
+                        "must be greater than zero, was: " + copyBufferSize);
+            }
+            this.copyBufferSize = copyBufferSize;
+            return this;
+        }
+
+        public Builder completeMultipartUploadThreads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException(
+                        "must be greater than zero, was: " + threads);
+            }
+            this.completeMultipartUploadThreads = threads;
+            return this;
+        }
+
+        public Builder subPartMemoryBudget(long subPartMemoryBudget) {
+            if (subPartMemoryBudget < 0) {
+                throw new IllegalArgumentException(
+                        "must be non-negative, was: " + subPartMemoryBudget);
+            }
+            this.subPartMemoryBudget = subPartMemoryBudget;
+            return this;
+        }
+
+        public Builder serverSideCopyPart(boolean serverSideCopyPart) {
+            this.serverSideCopyPart = serverSideCopyPart;
+            return this;
+        }
+
         public Builder ignoreUnknownHeaders(boolean ignoreUnknownHeaders) {
             this.ignoreUnknownHeaders = ignoreUnknownHeaders;
             return this;
@@ -429,6 +502,11 @@ public final class S3Proxy {
                             that.maxSinglePartObjectSize &&
                     this.v4MaxNonChunkedRequestSize ==
                             that.v4MaxNonChunkedRequestSize &&
+                    this.copyBufferSize == that.copyBufferSize &&
+                    this.completeMultipartUploadThreads ==
+                            that.completeMultipartUploadThreads &&
+                    this.subPartMemoryBudget == that.subPartMemoryBudget &&
+                    this.serverSideCopyPart == that.serverSideCopyPart &&
                     this.ignoreUnknownHeaders == that.ignoreUnknownHeaders &&
                     this.corsRules.equals(that.corsRules);
         }
@@ -438,6 +516,8 @@ public final class S3Proxy {
             return Objects.hash(endpoint, secureEndpoint, keyStorePath,
                     keyStorePassword, virtualHost, servicePath,
                     maxSinglePartObjectSize, v4MaxNonChunkedRequestSize,
+                    copyBufferSize, completeMultipartUploadThreads,
+                    subPartMemoryBudget, serverSideCopyPart,
                     ignoreUnknownHeaders, corsRules);
         }
     }
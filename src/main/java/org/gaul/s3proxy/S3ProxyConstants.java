@@ -66,6 +66,30 @@ public final class S3ProxyConstants {
             "s3proxy.max-single-part-object-size";
     public static final String PROPERTY_V4_MAX_NON_CHUNKED_REQUEST_SIZE =
             "s3proxy.v4-max-non-chunked-request-size";
+    /** Size, in bytes, of the buffer used to copy object bodies. */
+    public static final String PROPERTY_COPY_BUFFER_SIZE =
+            "s3proxy.copy-buffer-size";
+    /**
+     * Maximum number of concurrent CompleteMultipartUpload operations
+     * against the backend.  Further requests queue and then receive
+     * SlowDown.
+     */
+    public static final String PROPERTY_COMPLETE_MULTIPART_UPLOAD_THREADS =
+            "s3proxy.complete-multipart-upload.threads";
+    /**
+     * Maximum bytes buffered while uploading S3 parts which the backend
+     * splits into smaller parts, e.g., Azure blocks, concurrently.  Zero
+     * uploads them sequentially.
+     */
+    public static final String PROPERTY_SUB_PART_MEMORY_BUDGET =
+            "s3proxy.sub-part-memory-budget";
+    /**
+     * When false, stream UploadPartCopy through the proxy even for S3
+     * backends.  Middlewares which change how objects are stored disable
+     * backend copies.
+     */
+    public static final String PROPERTY_SERVER_SIDE_COPY_PART =
+            "s3proxy.server-side-copy-part";
     /** When true, model eventual consistency using two storage backends. */
     public static final String PROPERTY_EVENTUAL_CONSISTENCY =
             "s3proxy.eventual-consistency";
@@ -81,12 +105,166 @@ public final class S3ProxyConstants {
     /** Discard object data. */
     public static final String PROPERTY_NULL_BLOBSTORE =
             "s3proxy.null-blobstore";
+    /**
+     * Keep only object metadata in memory and generate object content on
+     * read, ignoring the configured backend.
+     */
+    public static final String PROPERTY_SYNTHETIC_BLOBSTORE =
+            "s3proxy.synthetic-blobstore";
     /** Prevent mutations. */
     public static final String PROPERTY_READ_ONLY_BLOBSTORE =
             "s3proxy.read-only-blobstore";
     /** Shard objects across a specified number of buckets. */
     public static final String PROPERTY_SHARDED_BLOBSTORE =
             "s3proxy.sharded-blobstore";
+    /** Maximum objects per second moved between layouts when resharding. */
+    public static final String PROPERTY_SHARDED_BLOBSTORE_MIGRATION_RATE =
+            "s3proxy.sharded-blobstore.migration-rate";
+    /**
+     * Prefix of jclouds properties of additional named backends, e.g.,
+     * s3proxy.backend.&lt;name&gt;.jclouds.provider.
+     */
+    public static final String PROPERTY_BACKEND = "s3proxy.backend";
+    /**
+     * Mirror writes to these comma-separated named backends in addition to
+     * the configured backend.
+     */
+    public static final String PROPERTY_MIRROR_BACKENDS =
+            "s3proxy.mirror.backends";
+    /** Number of replicas which must accept a write, defaults to all. */
+    public static final String PROPERTY_MIRROR_WRITE_QUORUM =
+            "s3proxy.mirror.write-quorum";
+    /** Time, in seconds, before retrying a failed replica repair. */
+    public static final String PROPERTY_MIRROR_REPAIR_DELAY =
+            "s3proxy.mirror.repair-delay";
+    /** Pack small objects into large backend blobs. */
+    public static final String PROPERTY_PACKING =
+            "s3proxy.packing";
+    /** Largest object, in bytes, eligible for packing. */
+    public static final String PROPERTY_PACKING_MAX_OBJECT_SIZE =
+            "s3proxy.packing.max-object-size";
+    /** Target size, in bytes, of each pack. */
+    public static final String PROPERTY_PACKING_PACK_SIZE =
+            "s3proxy.packing.pack-size";
+    /** Time, in milliseconds, a write waits for others to share its pack. */
+    public static final String PROPERTY_PACKING_COMMIT_DELAY =
+            "s3proxy.packing.commit-delay";
+    /** Fraction of dead space which triggers rewriting a pack. */
+    public static final String PROPERTY_PACKING_COMPACTION_THRESHOLD =
+            "s3proxy.packing.compaction-threshold";
+    /** Store payloads deflated in independently readable blocks. */
+    public static final String PROPERTY_COMPRESSION =
+            "s3proxy.compression";
+    /** Size, in bytes, of each independently compressed block. */
+    public static final String PROPERTY_COMPRESSION_BLOCK_SIZE =
+            "s3proxy.compression.block-size";
+    /** Store identical payloads once under their digest. */
+    public static final String PROPERTY_DEDUP =
+            "s3proxy.dedup";
+    /** Size, in bytes, above which payloads are spooled to disk. */
+    public static final String PROPERTY_DEDUP_SPOOL_THRESHOLD =
+            "s3proxy.dedup.spool-threshold";
+    /** Write large objects via backend multipart uploads. */
+    public static final String PROPERTY_AUTO_MULTIPART =
+            "s3proxy.auto-multipart";
+    /** Minimum object size, in bytes, which uses multipart uploads. */
+    public static final String PROPERTY_AUTO_MULTIPART_THRESHOLD =
+            "s3proxy.auto-multipart.threshold";
+    /** Minimum size, in bytes, of each part. */
+    public static final String PROPERTY_AUTO_MULTIPART_PART_SIZE =
+            "s3proxy.auto-multipart.part-size";
+    /** Maximum number of parts uploaded concurrently per object. */
+    public static final String PROPERTY_AUTO_MULTIPART_PARALLELISM =
+            "s3proxy.auto-multipart.parallelism";
+    /** Number of threads which upload parts. */
+    public static final String PROPERTY_AUTO_MULTIPART_THREADS =
+            "s3proxy.auto-multipart.threads";
+    /** Read large objects via concurrent range requests. */
+    public static final String PROPERTY_PARALLEL_GET =
+            "s3proxy.parallel-get";
+    /** Size, in bytes, of each range request. */
+    public static final String PROPERTY_PARALLEL_GET_PART_SIZE =
+            "s3proxy.parallel-get.part-size";
+    /** Maximum number of outstanding range requests per read. */
+    public static final String PROPERTY_PARALLEL_GET_PARALLELISM =
+            "s3proxy.parallel-get.parallelism";
+    /** Minimum read size, in bytes, which uses range requests. */
+    public static final String PROPERTY_PARALLEL_GET_THRESHOLD =
+            "s3proxy.parallel-get.threshold";
+    /** Maximum bytes, across all reads, of buffered range requests. */
+    public static final String PROPERTY_PARALLEL_GET_MAX_BUFFER_SIZE =
+            "s3proxy.parallel-get.max-buffer-size";
+    /** Number of threads which issue range requests. */
+    public static final String PROPERTY_PARALLEL_GET_THREADS =
+            "s3proxy.parallel-get.threads";
+    /** Share one backend fetch among concurrent reads of an object. */
+    public static final String PROPERTY_COALESCING =
+            "s3proxy.coalescing";
+    /** Bytes each shared fetch buffers for readers which lag. */
+    public static final String PROPERTY_COALESCING_BUFFER_SIZE =
+            "s3proxy.coalescing.buffer-size";
+    /** Cache small, frequently read objects in memory. */
+    public static final String PROPERTY_OBJECT_CACHE =
+            "s3proxy.object-cache";
+    /** Maximum total size, in bytes, of objects held in the cache. */
+    public static final String PROPERTY_OBJECT_CACHE_MAX_SIZE =
+            "s3proxy.object-cache.max-size";
+    /** Largest object, in bytes, eligible for caching. */
+    public static final String PROPERTY_OBJECT_CACHE_MAX_OBJECT_SIZE =
+            "s3proxy.object-cache.max-object-size";
+    /** Cache object metadata and access for a bounded time. */
+    public static final String PROPERTY_METADATA_CACHE =
+            "s3proxy.metadata-cache";
+    /** Time, in seconds, before cached metadata expires. */
+    public static final String PROPERTY_METADATA_CACHE_TTL =
+            "s3proxy.metadata-cache.ttl";
+    /** Maximum number of cached metadata entries. */
+    public static final String PROPERTY_METADATA_CACHE_MAX_ENTRIES =
+            "s3proxy.metadata-cache.max-entries";
+    /** Local directory which caches blocks of remote objects. */
+    public static final String PROPERTY_BLOCK_CACHE_DIRECTORY =
+            "s3proxy.block-cache.directory";
+    /** Maximum disk usage, in bytes, of the block cache. */
+    public static final String PROPERTY_BLOCK_CACHE_MAX_SIZE =
+            "s3proxy.block-cache.max-size";
+    /** Size, in bytes, of each cached block. */
+    public static final String PROPERTY_BLOCK_CACHE_BLOCK_SIZE =
+            "s3proxy.block-cache.block-size";
+    /** Time, in seconds, the block cache trusts object metadata. */
+    public static final String PROPERTY_BLOCK_CACHE_METADATA_TTL =
+            "s3proxy.block-cache.metadata-ttl";
+    /** Local directory which journals writes before uploading them. */
+    public static final String PROPERTY_WRITE_BEHIND_DIRECTORY =
+            "s3proxy.write-behind.directory";
+    /** Size, in bytes, after which the journal starts a new segment. */
+    public static final String PROPERTY_WRITE_BEHIND_SEGMENT_SIZE =
+            "s3proxy.write-behind.segment-size";
+    /** Number of threads which upload journaled writes. */
+    public static final String PROPERTY_WRITE_BEHIND_THREADS =
+            "s3proxy.write-behind.threads";
+    /**
+     * Time, in seconds, that copies and other operations wait for a
+     * journaled write to upload before failing with SlowDown.
+     */
+    public static final String PROPERTY_WRITE_BEHIND_FLUSH_TIMEOUT =
+            "s3proxy.write-behind.flush-timeout";
+
+    /**
+     * Age, in seconds, after which incomplete multipart uploads and their
+     * stubs are reaped.  Suffix with .bucket to override for one bucket;
+     * only those buckets are reaped without the unsuffixed property.
+     */
+    public static final String PROPERTY_MULTIPART_REAPER_MAX_AGE =
+            "s3proxy.multipart-reaper.max-age";
+    /** Interval, in seconds, between reaper scans. */
+    public static final String PROPERTY_MULTIPART_REAPER_INTERVAL =
+            "s3proxy.multipart-reaper.interval";
+    /** Number of uploads which the reaper aborts concurrently. */
+    public static final String PROPERTY_MULTIPART_REAPER_PARALLELISM =
+            "s3proxy.multipart-reaper.parallelism";
+    /** Maximum backend operations per second issued by the reaper. */
+    public static final String PROPERTY_MULTIPART_REAPER_RATE =
+            "s3proxy.multipart-reaper.rate";
 
     /** Maximum time skew allowed in signed requests. */
     public static final String PROPERTY_MAXIMUM_TIME_SKEW =
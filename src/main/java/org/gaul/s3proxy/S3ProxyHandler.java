@@ -17,10 +17,9 @@
 package org.gaul.s3proxy;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.PushbackInputStream;
@@ -33,11 +32,14 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -47,8 +49,11 @@ import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 import javax.crypto.Mac;
@@ -60,6 +65,8 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
@@ -74,15 +81,20 @@ import com.google.common.escape.Escaper;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
-import com.google.common.hash.HashingInputStream;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.FileBackedOutputStream;
 import com.google.common.net.HostAndPort;
 import com.google.common.net.HttpHeaders;
 import com.google.common.net.PercentEscaper;
 
-import org.apache.commons.fileupload.MultipartStream;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.UploadContext;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.KeyNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
@@ -92,6 +104,7 @@ import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.ContainerAccess;
 import org.jclouds.blobstore.domain.MultipartPart;
 import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.domain.Tier;
@@ -101,12 +114,14 @@ import org.jclouds.blobstore.options.CreateContainerOptions;
 import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
 import org.jclouds.domain.Location;
 import org.jclouds.io.ContentMetadata;
 import org.jclouds.io.ContentMetadataBuilder;
 import org.jclouds.io.Payload;
 import org.jclouds.io.Payloads;
 import org.jclouds.rest.AuthorizationException;
+import org.jclouds.s3.S3Client;
 import org.jclouds.s3.domain.ObjectMetadata.StorageClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -130,6 +145,8 @@ public class S3ProxyHandler {
     private static final String FAKE_INITIATOR_DISPLAY_NAME =
             "umat-user-11116a31-17b5-4fb7-9df5-b288870f11xx";
     private static final String FAKE_REQUEST_ID = "4442587FB7D0A2F9";
+    /** User metadata key which marks MULTIPART_REQUIRES_STUB stubs. */
+    static final String MULTIPART_STUB_MARKER = "s3proxy-multipart-stub";
     private static final CharMatcher VALID_BUCKET_FIRST_CHAR =
             CharMatcher.inRange('a', 'z')
                     .or(CharMatcher.inRange('A', 'Z'))
@@ -141,6 +158,9 @@ public class S3ProxyHandler {
                     .or(CharMatcher.is('-'));
     private static final long MAX_MULTIPART_COPY_SIZE =
             5L * 1024L * 1024L * 1024L;
+    /** Amazon limits the POST form fields preceding the file to 20 KB. */
+    private static final long MAX_POST_FORM_SIZE = 20 * 1024;
+    private static final int POST_SPOOL_THRESHOLD = 1024 * 1024;
     private static final Set<String> UNSUPPORTED_PARAMETERS = ImmutableSet.of(
             "accelerate",
             "analytics",
@@ -200,6 +220,14 @@ public class S3ProxyHandler {
     private final CrossOriginResourceSharing corsRules;
     private final String servicePath;
     private final int maximumTimeSkew;
+    private int copyBufferSize = BufferPool.DEFAULT_COPY_BUFFER_SIZE;
+    private CompletionExecutor completionExecutor = newCompletionExecutor(
+            CompletionExecutor.DEFAULT_THREADS);
+    private SubPartUploader subPartUploader = newSubPartUploader(
+            SubPartUploader.DEFAULT_MEMORY_BUDGET);
+    private boolean serverSideCopyPart = true;
+    private final ExecutorService composeExecutor =
+            GcsMultipartTree.newExecutor(GcsMultipartTree.DEFAULT_THREADS);
     private final XMLOutputFactory xmlOutputFactory =
             XMLOutputFactory.newInstance();
     private BlobStoreLocator blobStoreLocator;
@@ -216,6 +244,28 @@ public class S3ProxyHandler {
             .maximumSize(10000)
             .expireAfterWrite(10, TimeUnit.MINUTES)
             .build();
+    /**
+     * Multipart upload state keyed by container and upload ID.  This avoids
+     * reading the stub blob on every part upload and listing parts on
+     * completion.  Entries can be missing, e.g., after eviction or when
+     * another S3Proxy instance initiated the upload, so callers fall back
+     * to the backend.
+     */
+    private final Cache<Map.Entry<String, String>, UploadState> uploadStates =
+            CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .build();
+    /**
+     * Part boundaries of objects completed by this instance keyed by
+     * container and blob name.  Entries carry the ETag of the object they
+     * describe so that overwritten objects are served as a single part.
+     */
+    private final Cache<Map.Entry<String, String>, PartBoundaries>
+            partBoundaries = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(1, TimeUnit.DAYS)
+            .build();
 
     public S3ProxyHandler(final BlobStore blobStore,
             AuthenticationType authenticationType, final String identity,
@@ -266,6 +316,11 @@ public class S3ProxyHandler {
         this.maximumTimeSkew = maximumTimeSkew;
     }
 
+    /** Executor for CompleteMultipartUpload, exposed for its metrics. */
+    final CompletionExecutor getCompletionExecutor() {
+        return completionExecutor;
+    }
+
     private static String getBlobStoreType(BlobStore blobStore) {
         return blobStore.getContext().unwrap().getProviderMetadata().getId();
     }
@@ -362,6 +417,7 @@ public class S3ProxyHandler {
 
 
         BlobStore blobStore;
+        String payloadHashAlgorithm = null;
         String requestIdentity = null;
         String headerAuthorization = request.getHeader(
                 HttpHeaders.AUTHORIZATION);
@@ -570,28 +626,13 @@ public class S3ProxyHandler {
                         is = new ChunkedInputStream(is);
                     } else if ("UNSIGNED-PAYLOAD".equals(contentSha256)) {
                         payload = new byte[0];
+                    } else if (contentSha256 != null) {
+                        // sign with the declared digest and check the body
+                        // once the request is validated
+                        payload = null;
+                        payloadHashAlgorithm = authHeader.getHashAlgorithm();
                     } else {
-                        // buffer the entire stream to calculate digest
-                        // why input stream read contentlength of header?
-                        payload = ByteStreams.toByteArray(ByteStreams.limit(
-                                is, v4MaxNonChunkedRequestSize + 1));
-                        if (payload.length == v4MaxNonChunkedRequestSize + 1) {
-                            throw new S3Exception(
-                                    S3ErrorCode.MAX_MESSAGE_LENGTH_EXCEEDED);
-                        }
-
-                        // maybe we should check this when signing,
-                        // a lot of dup code with aws sign code.
-                        MessageDigest md = MessageDigest.getInstance(
-                            authHeader.getHashAlgorithm());
-                        byte[] hash = md.digest(payload);
-                        if  (!contentSha256.equals(
-                              BaseEncoding.base16().lowerCase()
-                              .encode(hash))) {
-                            throw new S3Exception(
-                                    S3ErrorCode
-                                    .X_AMZ_CONTENT_S_H_A_256_MISMATCH);
-                        }
+                        payload = readPayload(is);
                         is = new ByteArrayInputStream(payload);
                     }
 
@@ -650,6 +691,21 @@ public class S3ProxyHandler {
             }
         }
 
+        if (payloadHashAlgorithm != null) {
+            String contentSha256 = request.getHeader(
+                    AwsHttpHeaders.CONTENT_SHA256);
+            if (method.equals("PUT") && path.length > 2 &&
+                    !path[2].isEmpty() && request.getParameter("acl") == null) {
+                // object bodies stream to the backend and are checked as they
+                // are read, after the handler validates the request
+                is = new PayloadVerifyingInputStream(is,
+                        newMessageDigest(payloadHashAlgorithm), contentSha256,
+                        request.getContentLengthLong());
+            } else {
+                is = verifyPayload(is, contentSha256, payloadHashAlgorithm);
+            }
+        }
+
         String uploadId = request.getParameter("uploadId");
         switch (method) {
         case "DELETE":
@@ -767,6 +823,58 @@ public class S3ProxyHandler {
         throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED);
     }
 
+    /** Buffer a non-chunked V4 body so that it can be hashed. */
+    private byte[] readPayload(InputStream is)
+            throws IOException, S3Exception {
+        byte[] payload = ByteStreams.toByteArray(ByteStreams.limit(
+                is, v4MaxNonChunkedRequestSize + 1));
+        if (payload.length == v4MaxNonChunkedRequestSize + 1) {
+            throw new S3Exception(S3ErrorCode.MAX_MESSAGE_LENGTH_EXCEEDED);
+        }
+        return payload;
+    }
+
+    /**
+     * Check a small signed body, e.g., an XML document, against its
+     * x-amz-content-sha256 header.  This runs after authentication and
+     * request validation so that rejected requests never read the body and
+     * Expect: 100-continue is not answered for them.
+     */
+    private InputStream verifyPayload(InputStream is, String contentSha256,
+            String hashAlgorithm) throws IOException, S3Exception {
+        byte[] payload = readPayload(is);
+        byte[] hash = newMessageDigest(hashAlgorithm).digest(payload);
+        if (!contentSha256.equals(BaseEncoding.base16().lowerCase()
+                .encode(hash))) {
+            throw new S3Exception(
+                    S3ErrorCode.X_AMZ_CONTENT_S_H_A_256_MISMATCH);
+        }
+        return new ByteArrayInputStream(payload);
+    }
+
+    private static MessageDigest newMessageDigest(String hashAlgorithm)
+            throws S3Exception {
+        try {
+            return MessageDigest.getInstance(hashAlgorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT, nsae);
+        }
+    }
+
+    /**
+     * Backends usually discover a missing container only after consuming the
+     * payload.  Check up front when the client waits for 100 Continue so
+     * that it does not send a body which will be discarded.
+     */
+    private static void checkContainerBeforeBody(HttpServletRequest request,
+            BlobStore blobStore, String containerName) throws S3Exception {
+        if ("100-continue".equalsIgnoreCase(request.getHeader(
+                HttpHeaders.EXPECT)) &&
+                !blobStore.containerExists(containerName)) {
+            throw new S3Exception(S3ErrorCode.NO_SUCH_BUCKET);
+        }
+    }
+
     private static boolean checkPublicAccess(BlobStore blobStore,
             String containerName, String blobName) {
         String blobStoreType = getBlobStoreType(blobStore);
@@ -1585,14 +1693,20 @@ public class S3ProxyHandler {
         }
     }
 
-    private static void handleBlobMetadata(HttpServletRequest request,
+    private void handleBlobMetadata(HttpServletRequest request,
             HttpServletResponse response,
             BlobStore blobStore, String containerName,
             String blobName) throws IOException, S3Exception {
+        Integer partNumber = parsePartNumber(request);
         BlobMetadata metadata = blobStore.blobMetadata(containerName, blobName);
         if (metadata == null) {
             throw new S3Exception(S3ErrorCode.NO_SUCH_KEY);
         }
+        PartBoundaries boundaries = null;
+        if (partNumber != null) {
+            boundaries = getPartBoundaries(blobStore, containerName,
+                    blobName, metadata, partNumber);
+        }
 
         // BlobStore.blobMetadata does not support GetOptions so we emulate
         // conditional requests.
@@ -1628,8 +1742,126 @@ public class S3ProxyHandler {
             }
         }
 
-        response.setStatus(HttpServletResponse.SC_OK);
         addMetadataToResponse(request, response, metadata);
+        if (boundaries != null) {
+            long first = boundaries.getFirstByte(partNumber);
+            long last = boundaries.getLastByte(partNumber);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_LENGTH,
+                    String.valueOf(last - first + 1));
+            addPartResponseHeaders(response, boundaries, partNumber);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+    }
+
+    /** @return the partNumber of a GET or HEAD request, or null */
+    @Nullable
+    private static Integer parsePartNumber(HttpServletRequest request)
+            throws S3Exception {
+        String partNumberString = request.getParameter("partNumber");
+        if (partNumberString == null) {
+            return null;
+        }
+        int partNumber;
+        try {
+            partNumber = Integer.parseInt(partNumberString);
+        } catch (NumberFormatException nfe) {
+            throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT,
+                    "Part number must be an integer between 1 and 10000" +
+                    ", inclusive", nfe, ImmutableMap.of(
+                            "ArgumentName", "partNumber",
+                            "ArgumentValue", partNumberString));
+        }
+        if (partNumber < 1 || partNumber > 10_000) {
+            throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT,
+                    "Part number must be an integer between 1 and 10000" +
+                    ", inclusive", (Throwable) null, ImmutableMap.of(
+                            "ArgumentName", "partNumber",
+                            "ArgumentValue", partNumberString));
+        }
+        return partNumber;
+    }
+
+    /**
+     * Find the parts of the given object from completions seen by this
+     * instance or, for Azure, from its block list.  Objects without known
+     * parts, e.g., those uploaded with a single PUT, consist of one part
+     * unless their ETag has the multipart form md5-count.  The part sizes
+     * of such objects are unknown, e.g., when another instance completed
+     * them, so partNumber is rejected as not implemented.  Backends whose
+     * multipart ETags lack the part count, like transient, return the
+     * entire object for partNumber 1.
+     *
+     * @return boundaries containing partNumber, or null to return the
+     *     entire object for partNumber 1
+     */
+    @Nullable
+    private PartBoundaries getPartBoundaries(BlobStore blobStore,
+            String containerName, String blobName, BlobMetadata metadata,
+            int partNumber) throws S3Exception {
+        Map.Entry<String, String> key = Maps.immutableEntry(containerName,
+                blobName);
+        PartBoundaries boundaries = partBoundaries.getIfPresent(key);
+        if (boundaries == null || !boundaries.matches(metadata.getETag())) {
+            boundaries = null;
+            if (getBlobStoreType(blobStore).equals("azureblob") &&
+                    !(blobStore instanceof ForwardingBlobStore)) {
+                boundaries = PartBoundaries.fromAzureBlockList(blobStore,
+                        containerName, blobName, metadata.getETag());
+            }
+            if (boundaries != null) {
+                partBoundaries.put(key, boundaries);
+            } else {
+                partBoundaries.invalidate(key);
+            }
+        }
+        int partCount;
+        if (boundaries != null) {
+            partCount = boundaries.getPartCount();
+        } else if (Quirks.OPAQUE_ETAG.contains(getBlobStoreType(blobStore))) {
+            partCount = 1;
+        } else {
+            partCount = multipartETagPartCount(metadata.getETag());
+        }
+        if (partNumber > partCount) {
+            throw new S3Exception(S3ErrorCode.INVALID_PART_NUMBER);
+        }
+        if (boundaries == null && partCount > 1) {
+            throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED,
+                    "Part sizes of " + blobName + " are unknown");
+        }
+        return boundaries;
+    }
+
+    /** @return the part count of an md5-count ETag, otherwise 1 */
+    private static int multipartETagPartCount(@Nullable String eTag) {
+        if (eTag == null) {
+            return 1;
+        }
+        if (eTag.endsWith("\"")) {
+            eTag = eTag.substring(0, eTag.length() - 1);
+        }
+        int index = eTag.lastIndexOf('-');
+        if (index == -1) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(eTag.substring(index + 1)));
+        } catch (NumberFormatException nfe) {
+            return 1;
+        }
+    }
+
+    private static void addPartResponseHeaders(HttpServletResponse response,
+            PartBoundaries boundaries, int partNumber) {
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " +
+                boundaries.getFirstByte(partNumber) + "-" +
+                boundaries.getLastByte(partNumber) + "/" +
+                boundaries.getObjectSize());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(AwsHttpHeaders.MP_PARTS_COUNT,
+                String.valueOf(boundaries.getPartCount()));
     }
 
     private void handleOptionsBlob(HttpServletRequest request,
@@ -1704,8 +1936,44 @@ public class S3ProxyHandler {
             options.ifUnmodifiedSince(new Date(ifUnmodifiedSince));
         }
 
+        PartBoundaries boundaries = null;
+        Integer partNumber = parsePartNumber(request);
         String range = request.getHeader(HttpHeaders.RANGE);
-        if (range != null && range.startsWith("bytes=") &&
+        if (partNumber != null) {
+            if (range != null) {
+                throw new S3Exception(S3ErrorCode.INVALID_REQUEST,
+                        "Cannot specify both Range header and partNumber" +
+                        " query parameter");
+            }
+            BlobMetadata metadata = blobStore.blobMetadata(containerName,
+                    blobName);
+            if (metadata == null) {
+                throw new S3Exception(S3ErrorCode.NO_SUCH_KEY);
+            }
+            boundaries = getPartBoundaries(blobStore, containerName,
+                    blobName, metadata, partNumber);
+            if (metadata.getETag() != null) {
+                // Evaluate client conditions against the object whose
+                // parts we measured, then pin the GET to its ETag so that a
+                // concurrent overwrite fails instead of serving other bytes.
+                int conditionStatus = ConditionalRequests.status(metadata,
+                        options);
+                if (conditionStatus ==
+                        HttpServletResponse.SC_PRECONDITION_FAILED) {
+                    throw new S3Exception(S3ErrorCode.PRECONDITION_FAILED);
+                } else if (conditionStatus ==
+                        HttpServletResponse.SC_NOT_MODIFIED) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+                options = new GetOptions().ifETagMatches(metadata.getETag());
+            }
+            if (boundaries != null) {
+                options.range(boundaries.getFirstByte(partNumber),
+                        boundaries.getLastByte(partNumber));
+                status = HttpServletResponse.SC_PARTIAL_CONTENT;
+            }
+        } else if (range != null && range.startsWith("bytes=") &&
                 // ignore multiple ranges
                 range.indexOf(',') == -1) {
             range = range.substring("bytes=".length());
@@ -1734,7 +2002,9 @@ public class S3ProxyHandler {
         // TODO: handles only a single range due to jclouds limitations
         Collection<String> contentRanges =
                 blob.getAllHeaders().get(HttpHeaders.CONTENT_RANGE);
-        if (!contentRanges.isEmpty()) {
+        if (boundaries != null) {
+            addPartResponseHeaders(response, boundaries, partNumber);
+        } else if (!contentRanges.isEmpty()) {
             response.addHeader(HttpHeaders.CONTENT_RANGE,
                     contentRanges.iterator().next());
             response.addHeader(HttpHeaders.ACCEPT_RANGES,
@@ -1743,7 +2013,7 @@ public class S3ProxyHandler {
 
         try (InputStream is = blob.getPayload().openStream();
              OutputStream os = response.getOutputStream()) {
-            ByteStreams.copy(is, os);
+            BufferPool.getDefault().copy(is, os, copyBufferSize);
             os.flush();
         }
     }
@@ -1936,6 +2206,8 @@ public class S3ProxyHandler {
             return;
         }
 
+        checkContainerBeforeBody(request, blobStore, containerName);
+
         PutOptions options = new PutOptions().setBlobAccess(access);
 
         String blobStoreType = getBlobStoreType(blobStore);
@@ -1980,50 +2252,50 @@ public class S3ProxyHandler {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
-        String boundary =
-                boundaryHeader.substring(boundaryHeader.indexOf('=') + 1);
-
-        String blobName = null;
-        String contentType = null;
-        String identity = null;
-        // TODO: handle policy
-        byte[] policy = null;
-        String signature = null;
-        String algorithm = null;
-        byte[] payload = null;
-        MultipartStream multipartStream = new MultipartStream(is,
-                boundary.getBytes(StandardCharsets.UTF_8), 4096, null);
-        boolean nextPart = multipartStream.skipPreamble();
-        while (nextPart) {
-            String header = multipartStream.readHeaders();
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                multipartStream.readBodyData(baos);
-                if (isField(header, "acl")) {
-                    // TODO: acl
-                } else if (isField(header, "AWSAccessKeyId") ||
-                        isField(header, "X-Amz-Credential")) {
-                    identity = new String(baos.toByteArray());
-                } else if (isField(header, "Content-Type")) {
-                    contentType = new String(baos.toByteArray());
-                } else if (isField(header, "file")) {
-                    // TODO: buffers entire payload
-                    payload = baos.toByteArray();
-                } else if (isField(header, "key")) {
-                    blobName = new String(baos.toByteArray());
-                } else if (isField(header, "policy")) {
-                    policy = baos.toByteArray();
-                } else if (isField(header, "signature") ||
-                        isField(header, "X-Amz-Signature")) {
-                    signature = new String(baos.toByteArray());
-                } else if (isField(header, "X-Amz-Algorithm")) {
-                    algorithm = new String(baos.toByteArray());
+
+        // read the form fields which precede the file
+        Map<String, String> fields = new HashMap<>();
+        FileItemStream file = null;
+        long formSize = 0;
+        try {
+            FileItemIterator iterator = new FileUpload().getItemIterator(
+                    new PostUploadContext(request, is));
+            while (iterator.hasNext()) {
+                FileItemStream item = iterator.next();
+                if (item.getFieldName().equalsIgnoreCase("file")) {
+                    // Amazon ignores fields after the file
+                    file = item;
+                    break;
+                }
+                byte[] value;
+                try (InputStream field = item.openStream()) {
+                    value = ByteStreams.toByteArray(ByteStreams.limit(field,
+                            MAX_POST_FORM_SIZE - formSize + 1));
                 }
+                formSize += value.length;
+                if (formSize > MAX_POST_FORM_SIZE) {
+                    throw new S3Exception(S3ErrorCode
+                            .MAX_POST_PRE_DATA_LENGTH_EXCEEDED_ERROR);
+                }
+                fields.put(item.getFieldName().toLowerCase(),
+                        new String(value, StandardCharsets.UTF_8));
             }
-            nextPart = multipartStream.readBoundary();
+        } catch (FileUploadException fue) {
+            throw new S3Exception(S3ErrorCode.MALFORMED_P_O_S_T_REQUEST, fue);
         }
 
+        // TODO: acl
+        String blobName = fields.get("key");
+        String contentType = fields.get("content-type");
+        String identity = fields.containsKey("awsaccesskeyid") ?
+                fields.get("awsaccesskeyid") : fields.get("x-amz-credential");
+        String signature = fields.containsKey("signature") ?
+                fields.get("signature") : fields.get("x-amz-signature");
+        String algorithm = fields.get("x-amz-algorithm");
+        byte[] policy = fields.containsKey("policy") ?
+                fields.get("policy").getBytes(StandardCharsets.UTF_8) : null;
 
-        if (blobName == null || policy == null) {
+        if (blobName == null || policy == null || file == null) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
@@ -2123,14 +2395,48 @@ public class S3ProxyHandler {
             }
         }
 
-        BlobBuilder.PayloadBlobBuilder builder = blobStore
-                .blobBuilder(blobName)
-                .payload(payload);
-        if (contentType != null) {
-            builder.contentType(contentType);
+        fields.put("bucket", containerName);
+        long[] lengthRange = checkPostPolicy(policy, fields);
+        if (file.getName() != null) {
+            blobName = blobName.replace("${filename}", file.getName());
+        }
+
+        // Spool the file with bounded memory since backends need its length
+        // before the upload starts.
+        long maxSize = Math.min(lengthRange[1], maxSinglePartObjectSize);
+        FileBackedOutputStream spool = new FileBackedOutputStream(
+                POST_SPOOL_THRESHOLD);
+        try {
+            long size;
+            try (InputStream fileStream = file.openStream()) {
+                size = BufferPool.getDefault().copy(
+                        ByteStreams.limit(fileStream, maxSize + 1), spool,
+                        BufferPool.DEFAULT_COPY_BUFFER_SIZE);
+            } catch (FileUploadBase.FileUploadIOException fuioe) {
+                throw new S3Exception(S3ErrorCode.MALFORMED_P_O_S_T_REQUEST,
+                        fuioe);
+            }
+            if (size > maxSize) {
+                throw new S3Exception(S3ErrorCode.ENTITY_TOO_LARGE);
+            }
+            if (size < lengthRange[0]) {
+                throw new S3Exception(S3ErrorCode.ENTITY_TOO_SMALL,
+                        "Your proposed upload is smaller than the minimum" +
+                        " allowed size");
+            }
+
+            BlobBuilder.PayloadBlobBuilder builder = blobStore
+                    .blobBuilder(blobName)
+                    .payload(spool.asByteSource())
+                    .contentLength(size);
+            if (contentType != null) {
+                builder.contentType(contentType);
+            }
+            Blob blob = builder.build();
+            blobStore.putBlob(containerName, blob);
+        } finally {
+            spool.reset();
         }
-        Blob blob = builder.build();
-        blobStore.putBlob(containerName, blob);
 
         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
 
@@ -2174,8 +2480,19 @@ public class S3ProxyHandler {
 
         if (Quirks.MULTIPART_REQUIRES_STUB.contains(getBlobStoreType(
                 blobStore))) {
-            blobStore.putBlob(containerName, builder.name(mpu.id()).build(),
-                    options);
+            Blob stub = builder.name(mpu.id()).build();
+            BlobMetadata metadata = new MutableBlobMetadataImpl(
+                    stub.getMetadata());
+            Map<String, String> userMetadata = new HashMap<>(
+                    metadata.getUserMetadata());
+            userMetadata.put(MULTIPART_STUB_MARKER, "true");
+            stub.getMetadata().setUserMetadata(userMetadata);
+            blobStore.putBlob(containerName, stub, options);
+            uploadStates.put(Maps.immutableEntry(containerName, mpu.id()),
+                    new UploadState(metadata, options));
+        } else {
+            uploadStates.put(Maps.immutableEntry(containerName, mpu.id()),
+                    new UploadState(null, null));
         }
 
         response.setCharacterEncoding(UTF_8);
@@ -2204,14 +2521,25 @@ public class S3ProxyHandler {
             HttpServletResponse response, InputStream is,
             final BlobStore blobStore, String containerName, String blobName,
             String uploadId) throws IOException, S3Exception {
+        UploadState state = uploadStates.getIfPresent(
+                Maps.immutableEntry(containerName, uploadId));
         BlobMetadata metadata;
         PutOptions options;
         if (Quirks.MULTIPART_REQUIRES_STUB.contains(getBlobStoreType(
                 blobStore))) {
-            metadata = blobStore.getBlob(containerName, uploadId).getMetadata();
-            BlobAccess access = blobStore.getBlobAccess(containerName,
-                    uploadId);
-            options = new PutOptions().setBlobAccess(access);
+            if (state != null && state.metadata != null) {
+                metadata = state.metadata;
+                options = state.options;
+            } else {
+                metadata = blobStore.blobMetadata(containerName, uploadId);
+                if (metadata == null) {
+                    throw new S3Exception(S3ErrorCode.NO_SUCH_UPLOAD);
+                }
+                metadata = withoutStubMarker(metadata);
+                BlobAccess access = blobStore.getBlobAccess(containerName,
+                        uploadId);
+                options = new PutOptions().setBlobAccess(access);
+            }
         } else {
             metadata = new MutableBlobMetadataImpl();
             options = new PutOptions();
@@ -2219,112 +2547,66 @@ public class S3ProxyHandler {
         final MultipartUpload mpu = MultipartUpload.create(containerName,
                 blobName, uploadId, metadata, options);
 
-        // List parts to get part sizes and to map multiple Azure parts
-        // into single parts.
-        ImmutableMap.Builder<Integer, MultipartPart> builder =
-                ImmutableMap.builder();
-        for (MultipartPart part : blobStore.listMultipartUpload(mpu)) {
-            builder.put(part.partNumber(), part);
-        }
-
         final List<MultipartPart> parts = new ArrayList<>();
+        final Map<Integer, Long> composedPartSizes = new ConcurrentHashMap<>();
+        Callable<String> complete = () ->
+                blobStore.completeMultipartUpload(mpu, parts);
         String blobStoreType = getBlobStoreType(blobStore);
         if (blobStoreType.equals("azureblob")) {
             // TODO: how to sanity check parts?
-            for (MultipartPart part : blobStore.listMultipartUpload(mpu)) {
-                parts.add(part);
-            }
+            parts.addAll(blobStore.listMultipartUpload(mpu));
         } else if (blobStoreType.equals("google-cloud-storage")) {
-            // GCS only supports 32 parts but we can support up to 1024 by
-            // recursively combining objects.
-            for (int partNumber = 1;; ++partNumber) {
-                MultipartUpload mpu2 = MultipartUpload.create(
-                        containerName,
-                        String.format("%s_%08d", mpu.id(), partNumber),
-                        String.format("%s_%08d", mpu.id(), partNumber),
-                        metadata, options);
-                List<MultipartPart> subParts = blobStore.listMultipartUpload(
-                        mpu2);
-                if (subParts.isEmpty()) {
-                    break;
-                }
-                long partSize = 0;
-                for (MultipartPart part : subParts) {
-                    partSize += part.partSize();
-                }
-                String eTag = blobStore.completeMultipartUpload(mpu2, subParts);
-                parts.add(MultipartPart.create(
-                        partNumber, partSize, eTag, /*lastModified=*/ null));
-            }
-        } else {
-            CompleteMultipartUploadRequest cmu;
+            // GCS only supports 32 parts so compose the leaves and branches
+            // holding the requested parts before composing the object.
+            SortedMap<Integer, String> requestParts =
+                    parseCompleteMultipartUpload(is);
+            if (requestParts.isEmpty()) {
+                throw new S3Exception(S3ErrorCode.MALFORMED_X_M_L);
+            }
+            List<GcsMultipartTree.Leaf> leaves;
             try {
-                cmu = new XmlMapper().readValue(
-                        is, CompleteMultipartUploadRequest.class);
-            } catch (JsonParseException jpe) {
-                throw new S3Exception(S3ErrorCode.MALFORMED_X_M_L, jpe);
-            }
-
-            // use TreeMap to allow runt last part
-            SortedMap<Integer, String> requestParts = new TreeMap<>();
-            if (cmu.parts != null) {
-                for (CompleteMultipartUploadRequest.Part part : cmu.parts) {
-                    requestParts.put(part.partNumber, part.eTag);
-                }
-            }
-
-            ImmutableMap<Integer, MultipartPart> partsByListing =
-                    builder.build();
-            for (Iterator<Map.Entry<Integer, String>> it =
-                    requestParts.entrySet().iterator(); it.hasNext();) {
-                Map.Entry<Integer, String> entry = it.next();
-                MultipartPart part = partsByListing.get(entry.getKey());
-                if (part == null) {
-                    throw new S3Exception(S3ErrorCode.INVALID_PART);
-                }
-                long partSize = part.partSize();
-                if (it.hasNext() && partSize != -1 &&
-                        (partSize < 5 * 1024 * 1024 || partSize <
-                                blobStore.getMinimumMultipartPartSize())) {
-                    throw new S3Exception(S3ErrorCode.ENTITY_TOO_SMALL);
-                }
-                if (part.partETag() != null &&
-                        !equalsIgnoringSurroundingQuotes(part.partETag(),
-                                entry.getValue())) {
-                    throw new S3Exception(S3ErrorCode.INVALID_PART);
+                leaves = GcsMultipartTree.listLeaves(blobStore, mpu,
+                        requestParts, composedPartSizes, composeExecutor);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            complete = () -> blobStore.completeMultipartUpload(mpu,
+                    GcsMultipartTree.composeBranches(blobStore, mpu, leaves,
+                            composeExecutor));
+        } else {
+            SortedMap<Integer, String> requestParts =
+                    parseCompleteMultipartUpload(is);
+
+            // Parts seen by this instance usually suffice but may be stale
+            // or incomplete, so consult the backend listing on a mismatch.
+            if (state == null || !matchParts(requestParts, state.parts,
+                    blobStore, parts, /*strict=*/ false)) {
+                Map<Integer, MultipartPart> partsByListing = new HashMap<>();
+                for (MultipartPart part : blobStore.listMultipartUpload(mpu)) {
+                    partsByListing.put(part.partNumber(), part);
                 }
-                parts.add(MultipartPart.create(entry.getKey(),
-                        partSize, part.partETag(), part.lastModified()));
+                parts.clear();
+                matchParts(requestParts, partsByListing, blobStore, parts,
+                        /*strict=*/ true);
             }
         }
 
-        if (parts.isEmpty()) {
+        if (parts.isEmpty() &&
+                !blobStoreType.equals("google-cloud-storage")) {
             // Amazon requires at least one part
             throw new S3Exception(S3ErrorCode.MALFORMED_X_M_L);
         }
 
+        // Complete asynchronously to allow the request thread to emit
+        // newlines to the client while completeMultipartUpload processes.
+        Future<String> future = completionExecutor.submit(complete);
+
         response.setCharacterEncoding(UTF_8);
         try (PrintWriter writer = response.getWriter()) {
             response.setStatus(HttpServletResponse.SC_OK);
             response.setContentType(XML_CONTENT_TYPE);
 
-            // Launch async thread to allow main thread to emit newlines to
-            // the client while completeMultipartUpload processes.
-            final AtomicReference<String> eTag = new AtomicReference<>();
-            final AtomicReference<RuntimeException> exception =
-                    new AtomicReference<>();
-            Thread thread = new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        eTag.set(blobStore.completeMultipartUpload(mpu, parts));
-                    } catch (RuntimeException re) {
-                        exception.set(re);
-                    }
-                }
-            };
-            thread.start();
-
             XMLStreamWriter xml = xmlOutputFactory.createXMLStreamWriter(
                     writer);
             xml.writeStartDocument();
@@ -2332,18 +2614,37 @@ public class S3ProxyHandler {
             xml.writeDefaultNamespace(AWS_XMLNS);
             xml.flush();
 
-            while (thread.isAlive()) {
-                try {
-                    thread.join(1000);
-                } catch (InterruptedException ie) {
-                    // ignore
-                }
-                writer.write("\n");
-                writer.flush();
-            }
+            String eTag = completionExecutor.await(future, writer);
+            uploadStates.invalidate(Maps.immutableEntry(containerName,
+                    uploadId));
 
-            if (exception.get() != null) {
-                throw exception.get();
+            SortedMap<Integer, Long> partSizes;
+            if (blobStoreType.equals("google-cloud-storage")) {
+                partSizes = new TreeMap<>(composedPartSizes);
+            } else {
+                // Azure parts are sub-parts numbered 10,000 * partNumber + n
+                partSizes = PartBoundaries.partSizes(parts,
+                        blobStoreType.equals("azureblob") ? 10_000 : 1);
+            }
+            // Some backends, e.g., transient, store a different ETag than
+            // they return from completion so record the stored one.
+            BlobMetadata completed = blobStore.blobMetadata(containerName,
+                    blobName);
+            PartBoundaries boundaries = null;
+            if (completed != null) {
+                boundaries = PartBoundaries.create(completed.getETag(),
+                        partSizes);
+            }
+            if (boundaries != null && boundaries.getObjectSize() !=
+                    completed.getContentMetadata().getContentLength()) {
+                boundaries = null;
+            }
+            if (boundaries != null) {
+                partBoundaries.put(Maps.immutableEntry(containerName,
+                        blobName), boundaries);
+            } else {
+                partBoundaries.invalidate(Maps.immutableEntry(containerName,
+                        blobName));
             }
 
             if (Quirks.MULTIPART_REQUIRES_STUB.contains(getBlobStoreType(
@@ -2358,8 +2659,8 @@ public class S3ProxyHandler {
             writeSimpleElement(xml, "Bucket", containerName);
             writeSimpleElement(xml, "Key", blobName);
 
-            if (eTag.get() != null) {
-                writeSimpleElement(xml, "ETag", maybeQuoteETag(eTag.get()));
+            if (eTag != null) {
+                writeSimpleElement(xml, "ETag", maybeQuoteETag(eTag));
             }
 
             xml.writeEndElement();
@@ -2371,6 +2672,26 @@ public class S3ProxyHandler {
         addCorsResponseHeader(request, response);
     }
 
+    private static SortedMap<Integer, String> parseCompleteMultipartUpload(
+            InputStream is) throws IOException, S3Exception {
+        CompleteMultipartUploadRequest cmu;
+        try {
+            cmu = new XmlMapper().readValue(
+                    is, CompleteMultipartUploadRequest.class);
+        } catch (JsonParseException jpe) {
+            throw new S3Exception(S3ErrorCode.MALFORMED_X_M_L, jpe);
+        }
+
+        // use TreeMap to allow runt last part
+        SortedMap<Integer, String> requestParts = new TreeMap<>();
+        if (cmu.parts != null) {
+            for (CompleteMultipartUploadRequest.Part part : cmu.parts) {
+                requestParts.put(part.partNumber, part.eTag);
+            }
+        }
+        return requestParts;
+    }
+
     private void handleAbortMultipartUpload(HttpServletRequest request,
             HttpServletResponse response, BlobStore blobStore,
             String containerName, String blobName,
@@ -2383,7 +2704,7 @@ public class S3ProxyHandler {
 
             blobStore.removeBlob(containerName, uploadId);
         }
-
+        uploadStates.invalidate(Maps.immutableEntry(containerName, uploadId));
 
         addCorsResponseHeader(request, response);
 
@@ -2574,11 +2895,56 @@ public class S3ProxyHandler {
                             "ArgumentValue", partNumberString));
         }
 
+        String blobStoreType = getBlobStoreType(blobStore);
+        if (blobStoreType.equals("google-cloud-storage")) {
+            uploadId = GcsMultipartTree.leafUploadId(uploadId, partNumber);
+            partNumber = GcsMultipartTree.leafPartNumber(partNumber);
+        }
+
         // TODO: how to reconstruct original mpu?
         MultipartUpload mpu = MultipartUpload.create(containerName,
                 blobName, uploadId, createFakeBlobMetadata(blobStore),
                 new PutOptions());
 
+        if (serverSideCopyPart &&
+                Quirks.SERVER_SIDE_COPY_PART.contains(blobStoreType)) {
+            // Have the backend copy the range instead of streaming it
+            // through the proxy.
+            BlobMetadata sourceMetadata = blobStore.blobMetadata(
+                    sourceContainerName, sourceBlobName);
+            if (sourceMetadata == null) {
+                throw new S3Exception(S3ErrorCode.NO_SUCH_KEY);
+            }
+            checkCopySourceConditions(request, sourceMetadata);
+            long size = sourceMetadata.getSize();
+            long offset = 0;
+            long count = size;
+            if (!options.getRanges().isEmpty()) {
+                long[] resolved = ByteRanges.parse(
+                        options.getRanges().get(0), size);
+                if (resolved == null) {
+                    throw new S3Exception(S3ErrorCode.INVALID_RANGE);
+                }
+                offset = resolved[0];
+                count = resolved[1];
+            }
+            if (expectedSize != -1 && count < expectedSize) {
+                throw new S3Exception(S3ErrorCode.INVALID_RANGE);
+            }
+            // S3 cannot express an empty range so stream empty sources
+            if (count > 0) {
+                String eTag = blobStore.getContext().unwrapApi(S3Client.class)
+                        .uploadPartCopy(containerName, blobName, partNumber,
+                                uploadId, sourceContainerName, sourceBlobName,
+                                offset, offset + count - 1);
+                recordPart(containerName, uploadId, MultipartPart.create(
+                        partNumber, count, eTag, new Date()));
+                writeCopyPartResult(request, response,
+                        sourceMetadata.getLastModified(), eTag);
+                return;
+            }
+        }
+
         Blob blob = blobStore.getBlob(sourceContainerName, sourceBlobName,
                 options);
         if (blob == null) {
@@ -2590,7 +2956,40 @@ public class S3ProxyHandler {
         if (expectedSize != -1 && blobMetadata.getSize() < expectedSize) {
             throw new S3Exception(S3ErrorCode.INVALID_RANGE);
         }
+        checkCopySourceConditions(request, blobMetadata);
+
+        String eTag;
+        long contentLength =
+                blobMetadata.getContentMetadata().getContentLength();
+
+        try (InputStream is = blob.getPayload().openStream()) {
+            if (blobStoreType.equals("azureblob")) {
+                // Azure has a smaller maximum part size than S3.  Split a
+                // single S3 part multiple Azure parts.
+                HashCode hash = subPartUploader.upload(blobStore, mpu,
+                        10_000 * partNumber, is, contentLength,
+                        blobStore.getMaximumMultipartPartSize(), MD5);
+                eTag = BaseEncoding.base16().lowerCase().encode(
+                        hash.asBytes());
+            } else {
+                Payload payload = Payloads.newInputStreamPayload(is);
+                payload.getContentMetadata().setContentLength(contentLength);
+
+                MultipartPart part = blobStore.uploadMultipartPart(mpu,
+                        partNumber, payload);
+                eTag = part.partETag();
+                if (!blobStoreType.equals("google-cloud-storage")) {
+                    recordPart(containerName, uploadId, part);
+                }
+            }
+        }
 
+        writeCopyPartResult(request, response, blobMetadata.getLastModified(),
+                eTag);
+    }
+
+    private static void checkCopySourceConditions(HttpServletRequest request,
+            BlobMetadata blobMetadata) throws S3Exception {
         String ifMatch = request.getHeader(
                 AwsHttpHeaders.COPY_SOURCE_IF_MATCH);
         String ifNoneMatch = request.getHeader(
@@ -2621,43 +3020,21 @@ public class S3ProxyHandler {
                 throw new S3Exception(S3ErrorCode.PRECONDITION_FAILED);
             }
         }
+    }
 
-        long contentLength =
-                blobMetadata.getContentMetadata().getContentLength();
-
-        String blobStoreType = getBlobStoreType(blobStore);
-        try (InputStream is = blob.getPayload().openStream()) {
-            if (blobStoreType.equals("azureblob")) {
-                // Azure has a smaller maximum part size than S3.  Split a
-                // single S3 part multiple Azure parts.
-                long azureMaximumMultipartPartSize =
-                        blobStore.getMaximumMultipartPartSize();
-                HashingInputStream his = new HashingInputStream(MD5, is);
-                int subPartNumber = 0;
-                for (long offset = 0; offset < contentLength;
-                        offset += azureMaximumMultipartPartSize,
-                        ++subPartNumber) {
-                    Payload payload = Payloads.newInputStreamPayload(
-                            new UncloseableInputStream(ByteStreams.limit(his,
-                                    azureMaximumMultipartPartSize)));
-                    payload.getContentMetadata().setContentLength(
-                            Math.min(azureMaximumMultipartPartSize,
-                                    contentLength - offset));
-                    blobStore.uploadMultipartPart(mpu,
-                            10_000 * partNumber + subPartNumber, payload);
-                }
-                eTag = BaseEncoding.base16().lowerCase().encode(
-                        his.hash().asBytes());
-            } else {
-                Payload payload = Payloads.newInputStreamPayload(is);
-                payload.getContentMetadata().setContentLength(contentLength);
-
-                MultipartPart part = blobStore.uploadMultipartPart(mpu,
-                        partNumber, payload);
-                eTag = part.partETag();
-            }
+    /** Remember a part for a later CompleteMultipartUpload. */
+    private void recordPart(String containerName, String uploadId,
+            MultipartPart part) {
+        UploadState state = uploadStates.getIfPresent(
+                Maps.immutableEntry(containerName, uploadId));
+        if (state != null) {
+            state.parts.put(part.partNumber(), part);
         }
+    }
 
+    private void writeCopyPartResult(HttpServletRequest request,
+            HttpServletResponse response, Date lastModified, String eTag)
+            throws IOException {
         response.setCharacterEncoding(UTF_8);
         try (Writer writer = response.getWriter()) {
             response.setContentType(XML_CONTENT_TYPE);
@@ -2753,20 +3130,30 @@ public class S3ProxyHandler {
                             "ArgumentValue", partNumberString));
         }
 
-        // GCS only supports 32 parts so partition MPU into 32-part chunks.
+        checkContainerBeforeBody(request, blobStore, containerName);
+
+        UploadState state = uploadStates.getIfPresent(
+                Maps.immutableEntry(containerName, uploadId));
+
+        // GCS only supports 32 parts so partition MPU into 32-part leaves.
         String blobStoreType = getBlobStoreType(blobStore);
         if (blobStoreType.equals("google-cloud-storage")) {
-            // fix up 1-based part numbers
-            uploadId = String.format(
-                    "%s_%08d", uploadId, ((partNumber - 1) / 32) + 1);
-            partNumber = ((partNumber - 1) % 32) + 1;
+            uploadId = GcsMultipartTree.leafUploadId(uploadId, partNumber);
+            partNumber = GcsMultipartTree.leafPartNumber(partNumber);
+            // parts are tracked per leaf
+            state = null;
         }
 
         // TODO: how to reconstruct original mpu?
         BlobMetadata blobMetadata;
         if (Quirks.MULTIPART_REQUIRES_STUB.contains(getBlobStoreType(
                 blobStore))) {
-            blobMetadata = blobStore.blobMetadata(containerName, uploadId);
+            if (state != null && state.metadata != null) {
+                blobMetadata = state.metadata;
+            } else {
+                blobMetadata = blobStore.blobMetadata(containerName,
+                        uploadId);
+            }
         } else {
             blobMetadata = createFakeBlobMetadata(blobStore);
         }
@@ -2776,25 +3163,12 @@ public class S3ProxyHandler {
         if (getBlobStoreType(blobStore).equals("azureblob")) {
             // Azure has a smaller maximum part size than S3.  Split a single
             // S3 part multiple Azure parts.
-            long azureMaximumMultipartPartSize =
-                        blobStore.getMaximumMultipartPartSize();
-            HashingInputStream his = new HashingInputStream(MD5, is);
-            int subPartNumber = 0;
-            for (long offset = 0; offset < contentLength;
-                    offset += azureMaximumMultipartPartSize,
-                    ++subPartNumber) {
-                Payload payload = Payloads.newInputStreamPayload(
-                        ByteStreams.limit(his,
-                                azureMaximumMultipartPartSize));
-                payload.getContentMetadata().setContentLength(
-                        Math.min(azureMaximumMultipartPartSize,
-                                contentLength - offset));
-                blobStore.uploadMultipartPart(mpu,
-                        10_000 * partNumber + subPartNumber, payload);
-            }
+            HashCode hash = subPartUploader.upload(blobStore, mpu,
+                    10_000 * partNumber, is, contentLength,
+                    blobStore.getMaximumMultipartPartSize(), MD5);
             response.addHeader(HttpHeaders.ETAG, maybeQuoteETag(
                     BaseEncoding.base16().lowerCase().encode(
-                            his.hash().asBytes())));
+                            hash.asBytes())));
         } else {
             MultipartPart part;
             Payload payload = Payloads.newInputStreamPayload(is);
@@ -2804,6 +3178,9 @@ public class S3ProxyHandler {
             }
 
             part = blobStore.uploadMultipartPart(mpu, partNumber, payload);
+            if (state != null) {
+                state.parts.put(partNumber, part);
+            }
 
             if (part.partETag() != null) {
                 response.addHeader(HttpHeaders.ETAG,
@@ -2814,6 +3191,47 @@ public class S3ProxyHandler {
         addCorsResponseHeader(request, response);
     }
 
+    /**
+     * Select the requested parts from those available, validating their
+     * ETags and sizes.  When not strict, return false instead of throwing
+     * so that the caller can retry with an authoritative listing.
+     */
+    private static boolean matchParts(SortedMap<Integer, String> requestParts,
+            Map<Integer, MultipartPart> available, BlobStore blobStore,
+            List<MultipartPart> parts, boolean strict) throws S3Exception {
+        for (Iterator<Map.Entry<Integer, String>> it =
+                requestParts.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, String> entry = it.next();
+            MultipartPart part = available.get(entry.getKey());
+            if (part == null) {
+                if (!strict) {
+                    return false;
+                }
+                throw new S3Exception(S3ErrorCode.INVALID_PART);
+            }
+            long partSize = part.partSize();
+            if (it.hasNext() && partSize != -1 &&
+                    (partSize < 5 * 1024 * 1024 || partSize <
+                            blobStore.getMinimumMultipartPartSize())) {
+                if (!strict) {
+                    return false;
+                }
+                throw new S3Exception(S3ErrorCode.ENTITY_TOO_SMALL);
+            }
+            if (part.partETag() != null &&
+                    !equalsIgnoringSurroundingQuotes(part.partETag(),
+                            entry.getValue())) {
+                if (!strict) {
+                    return false;
+                }
+                throw new S3Exception(S3ErrorCode.INVALID_PART);
+            }
+            parts.add(MultipartPart.create(entry.getKey(),
+                    partSize, part.partETag(), part.lastModified()));
+        }
+        return true;
+    }
+
     private static void addResponseHeaderWithOverride(
             HttpServletRequest request, HttpServletResponse response,
             String headerName, String overrideHeaderName, String value) {
@@ -3034,6 +3452,16 @@ public class S3ProxyHandler {
                 .getMetadata();
     }
 
+    /** Copy stub metadata without the marker for the completed blob. */
+    private static BlobMetadata withoutStubMarker(BlobMetadata metadata) {
+        MutableBlobMetadata copy = new MutableBlobMetadataImpl(metadata);
+        Map<String, String> userMetadata = new HashMap<>(
+                metadata.getUserMetadata());
+        userMetadata.remove(MULTIPART_STUB_MARKER);
+        copy.setUserMetadata(userMetadata);
+        return copy;
+    }
+
     private static boolean equalsIgnoringSurroundingQuotes(String s1,
             String s2) {
         if (s1.length() >= 2 && s1.startsWith("\"") && s1.endsWith("\"")) {
@@ -3045,7 +3473,7 @@ public class S3ProxyHandler {
         return s1.equals(s2);
     }
 
-    private static String maybeQuoteETag(String eTag) {
+    static String maybeQuoteETag(String eTag) {
         if (!eTag.startsWith("\"") && !eTag.endsWith("\"")) {
             eTag = "\"" + eTag + "\"";
         }
@@ -3056,9 +3484,91 @@ public class S3ProxyHandler {
         return string.toLowerCase().startsWith(prefix.toLowerCase());
     }
 
-    private static boolean isField(String string, String field) {
-        return startsWithIgnoreCase(string,
-                "Content-Disposition: form-data; name=\"" + field + "\"");
+    /**
+     * Check the form fields against the conditions of a POST policy.
+     *
+     * @return minimum and maximum allowed file size
+     */
+    private static long[] checkPostPolicy(byte[] policy,
+            Map<String, String> fields) throws S3Exception {
+        JsonNode document;
+        try {
+            document = new ObjectMapper().readTree(
+                    Base64.getDecoder().decode(policy));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new S3Exception(S3ErrorCode.INVALID_POLICY_DOCUMENT, e);
+        }
+        if (document == null || !document.isObject()) {
+            throw new S3Exception(S3ErrorCode.INVALID_POLICY_DOCUMENT);
+        }
+
+        JsonNode expiration = document.get("expiration");
+        if (expiration != null) {
+            Instant expires;
+            try {
+                expires = Instant.parse(expiration.asText());
+            } catch (DateTimeParseException dtpe) {
+                throw new S3Exception(S3ErrorCode.INVALID_POLICY_DOCUMENT,
+                        dtpe);
+            }
+            if (expires.isBefore(Instant.now())) {
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
+                        "Invalid according to Policy: Policy expired.");
+            }
+        }
+
+        long[] lengthRange = {0, Long.MAX_VALUE};
+        JsonNode conditions = document.get("conditions");
+        if (conditions == null) {
+            return lengthRange;
+        }
+        for (JsonNode condition : conditions) {
+            String operator;
+            String field;
+            String expected;
+            if (condition.isObject() && condition.size() == 1) {
+                Map.Entry<String, JsonNode> entry =
+                        condition.fields().next();
+                operator = "eq";
+                field = entry.getKey();
+                expected = entry.getValue().asText();
+            } else if (condition.isArray() && condition.size() == 3) {
+                operator = condition.get(0).asText().toLowerCase();
+                if (operator.equals("content-length-range")) {
+                    lengthRange[0] = condition.get(1).asLong();
+                    lengthRange[1] = condition.get(2).asLong();
+                    continue;
+                }
+                field = condition.get(1).asText();
+                if (!field.startsWith("$")) {
+                    throw new S3Exception(
+                            S3ErrorCode.INVALID_POLICY_DOCUMENT);
+                }
+                field = field.substring(1);
+                expected = condition.get(2).asText();
+            } else {
+                throw new S3Exception(S3ErrorCode.INVALID_POLICY_DOCUMENT);
+            }
+
+            // a condition also requires its field to be present
+            String actual = fields.get(field.toLowerCase());
+            boolean matches;
+            if (actual == null) {
+                matches = false;
+            } else if (operator.equals("eq")) {
+                matches = actual.equals(expected);
+            } else if (operator.equals("starts-with")) {
+                matches = actual.startsWith(expected);
+            } else {
+                throw new S3Exception(S3ErrorCode.INVALID_POLICY_DOCUMENT);
+            }
+            if (!matches) {
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
+                        "Invalid according to Policy: Policy Condition" +
+                        " failed: " + condition);
+            }
+        }
+        return lengthRange;
     }
 
     private static byte[] hmac(String algorithm, byte[] data, byte[] key) {
@@ -3081,14 +3591,56 @@ public class S3ProxyHandler {
         }
     }
 
-    private static final class UncloseableInputStream
-            extends FilterInputStream {
-        UncloseableInputStream(InputStream is) {
-            super(is);
+    /** Multipart upload metadata and the parts uploaded through us. */
+    private static final class UploadState {
+        /** Stub metadata, or null for backends without stubs. */
+        @Nullable private final BlobMetadata metadata;
+        @Nullable private final PutOptions options;
+        private final Map<Integer, MultipartPart> parts =
+                new ConcurrentHashMap<>();
+
+        UploadState(@Nullable BlobMetadata metadata,
+                @Nullable PutOptions options) {
+            this.metadata = metadata;
+            this.options = options;
+        }
+    }
+
+    /** Adapt a POST request body for the streaming form parser. */
+    private static final class PostUploadContext implements UploadContext {
+        private final HttpServletRequest request;
+        private final InputStream is;
+
+        PostUploadContext(HttpServletRequest request, InputStream is) {
+            this.request = request;
+            this.is = is;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return request.getCharacterEncoding();
+        }
+
+        @Override
+        public String getContentType() {
+            return request.getContentType();
         }
 
+        /** @deprecated superseded by {@link #contentLength}. */
         @Override
-        public void close() throws IOException {
+        @Deprecated
+        public int getContentLength() {
+            return request.getContentLength();
+        }
+
+        @Override
+        public long contentLength() {
+            return request.getContentLengthLong();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return is;
         }
     }
 
@@ -3100,6 +3652,44 @@ public class S3ProxyHandler {
         this.blobStoreLocator = locator;
     }
 
+    /** Set the buffer size used to copy object bodies to clients. */
+    public final void setCopyBufferSize(int copyBufferSize) {
+        if (copyBufferSize <= 0) {
+            throw new IllegalArgumentException("copy buffer size " +
+                    "must be greater than zero, was: " + copyBufferSize);
+        }
+        this.copyBufferSize = copyBufferSize;
+    }
+
+    /**
+     * Set whether to copy parts within S3 backends.  Disable this when a
+     * middleware changes how objects are stored in the backend.
+     */
+    public final void setServerSideCopyPart(boolean serverSideCopyPart) {
+        this.serverSideCopyPart = serverSideCopyPart;
+    }
+
+    /** Set the number of threads completing multipart uploads. */
+    public final void setCompleteMultipartUploadThreads(int threads) {
+        this.completionExecutor = newCompletionExecutor(threads);
+    }
+
+    /** Set the memory budget for buffering sub-parts of large parts. */
+    public final void setSubPartMemoryBudget(long subPartMemoryBudget) {
+        this.subPartUploader = newSubPartUploader(subPartMemoryBudget);
+    }
+
+    private static CompletionExecutor newCompletionExecutor(int threads) {
+        return new CompletionExecutor(threads,
+                CompletionExecutor.DEFAULT_QUEUE_SIZE,
+                CompletionExecutor.DEFAULT_KEEP_ALIVE_INTERVAL_MILLIS);
+    }
+
+    private static SubPartUploader newSubPartUploader(long memoryBudget) {
+        return new SubPartUploader(SubPartUploader.DEFAULT_THREADS,
+                memoryBudget, BufferPool.getDefault());
+    }
+
     private static boolean validateIpAddress(String string) {
         List<String> parts = Splitter.on('.').splitToList(string);
         if (parts.size() != 4) {
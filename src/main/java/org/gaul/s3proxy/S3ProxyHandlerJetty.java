@@ -68,7 +68,7 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
     public void handle(String target, Request baseRequest,
             HttpServletRequest request, HttpServletResponse response)
             throws IOException {
-        try (InputStream is = request.getInputStream()) {
+        try (InputStream is = new DeferredInputStream(request)) {
 
             // Set query encoding
             baseRequest.setAttribute(S3ProxyConstants.ATTRIBUTE_QUERY_ENCODING,
@@ -107,6 +107,10 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
                 sendS3Exception(request, response,
                     new S3Exception(S3ErrorCode.BAD_DIGEST));
                 break;
+            case HttpServletResponse.SC_SERVICE_UNAVAILABLE:
+                sendS3Exception(request, response,
+                        new S3Exception(S3ErrorCode.SLOW_DOWN));
+                break;
             default:
                 response.sendError(status, hre.getContent());
                 break;
@@ -134,7 +138,14 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
             baseRequest.setHandled(true);
             return;
         } catch (Throwable throwable) {
-            if (Throwables2.getFirstThrowableOfType(throwable,
+            // middlewares wrap S3 errors they cannot otherwise express
+            S3Exception se = Throwables2.getFirstThrowableOfType(throwable,
+                    S3Exception.class);
+            if (se != null) {
+                sendS3Exception(request, response, se);
+                baseRequest.setHandled(true);
+                return;
+            } else if (Throwables2.getFirstThrowableOfType(throwable,
                     AuthorizationException.class) != null) {
                 S3ErrorCode code = S3ErrorCode.ACCESS_DENIED;
                 handler.sendSimpleErrorResponse(request, response, code,
@@ -158,4 +169,53 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
     public S3ProxyHandler getHandler() {
         return this.handler;
     }
+
+    /**
+     * Defer opening the request body until the handler first reads it.
+     * Jetty answers Expect: 100-continue from getInputStream so this lets
+     * authentication and request validation reject a request before the
+     * client sends its body.
+     */
+    private static final class DeferredInputStream extends InputStream {
+        private final HttpServletRequest request;
+        @Nullable private InputStream delegate;
+
+        DeferredInputStream(HttpServletRequest request) {
+            this.request = request;
+        }
+
+        private InputStream delegate() throws IOException {
+            if (delegate == null) {
+                delegate = request.getInputStream();
+            }
+            return delegate;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return delegate().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return delegate().read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return delegate().skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return delegate == null ? 0 : delegate.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+    }
 }
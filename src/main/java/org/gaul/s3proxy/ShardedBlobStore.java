@@ -19,6 +19,7 @@ package org.gaul.s3proxy;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -29,23 +30,38 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.KeyNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.BlobAccess;
 import org.jclouds.blobstore.domain.BlobMetadata;
@@ -55,6 +71,7 @@ import org.jclouds.blobstore.domain.MultipartUpload;
 import org.jclouds.blobstore.domain.MutableStorageMetadata;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
 import org.jclouds.blobstore.domain.internal.MutableStorageMetadataImpl;
 import org.jclouds.blobstore.domain.internal.PageSetImpl;
 import org.jclouds.blobstore.options.CopyOptions;
@@ -64,7 +81,12 @@ import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.blobstore.util.ForwardingBlobStore;
 import org.jclouds.domain.Location;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
 import org.jclouds.io.Payload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This class implements the ability to split objects destined for specified
@@ -79,43 +101,130 @@ import org.jclouds.io.Payload;
  * corresponding to the shards from 0 to the specified number. If a
  * &lt;prefix&gt; is not specified, the name of the bucket is used instead.
  *
+ * A sharded bucket can also span several independent backends, each
+ * configured with its own jclouds properties in the form:
+ *   s3proxy.backend.&lt;backend name&gt;.jclouds.provider=&lt;provider&gt;
+ * and listed in order with:
+ *   s3proxy.sharded-blobstore.&lt;bucket name&gt;.backends=&lt;name,...&gt;.
+ * Shard n lives on backend n modulo the number of backends, so objects
+ * still map to shards with consistent hashing while capacity and
+ * throughput scale across backends.  The superblock records the backend
+ * names so that a reordered or shortened list fails loudly.
+ *
+ * The number of shards of a bucket can change online by setting the new
+ * count in .shards and the count recorded in the superblock in:
+ *   s3proxy.sharded-blobstore.&lt;bucket name&gt;.previous-shards=&lt;n&gt;.
+ * While the bucket migrates, reads consult the new layout and fall back to
+ * the old one, writes go to the new layout and remove any copy from the old
+ * one, and a background migrator moves the remaining objects at a limited
+ * rate.  Moves and writes of the same key serialize on a striped lock.  When
+ * every object has moved the migrator rewrites the superblock with a single
+ * PUT, after which previous-shards can be removed from the configuration.
+ * After a failure the migrator re-reads the superblocks and retries with
+ * exponential backoff; objects which already moved are no longer listed in
+ * the old shards so each attempt resumes where the last one stopped.
+ *
  * Requests for all other buckets are passed through unchanged. Shards must
  * be pre-created either out of band or by issuing the CreateBucket API with
  * the sharded bucket name. The sharded bucket itself will not be
  * instantiated on the backend.
+ *
+ * Container-wide operations, e.g., countBlobs and clearContainer, fan out
+ * to all shards in parallel on an executor shared by the store and
+ * aggregate the results.
  */
 final class ShardedBlobStore extends ForwardingBlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(
+            ShardedBlobStore.class);
     public static final Pattern PROPERTIES_PREFIX_RE = Pattern.compile(
             S3ProxyConstants.PROPERTY_SHARDED_BLOBSTORE +
                     "\\.(?<bucket>.*)\\.prefix$");
     private static final Pattern PROPERTIES_SHARDS_RE = Pattern.compile(
             S3ProxyConstants.PROPERTY_SHARDED_BLOBSTORE +
             "\\.(?<bucket>.*)\\.shards$");
+    private static final Pattern PROPERTIES_BACKENDS_RE = Pattern.compile(
+            S3ProxyConstants.PROPERTY_SHARDED_BLOBSTORE +
+            "\\.(?<bucket>.*)\\.backends$");
+    private static final Pattern PROPERTIES_PREVIOUS_SHARDS_RE =
+            Pattern.compile(S3ProxyConstants.PROPERTY_SHARDED_BLOBSTORE +
+            "\\.(?<bucket>.*)\\.previous-shards$");
     private static final Pattern SHARD_RE = Pattern.compile(
             "(?<prefix>.*)-(?<shard>[0-9]+)$");
     private static final HashFunction SHARD_HASH = Hashing.murmur3_128();
     private static final int MAX_SHARD_THREADS = 10;
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
     private static final String SUPERBLOCK_VERSION = "1.0";
     private static final String SUPERBLOCK_BLOB_NAME =
             ".s3proxy-sharded-superblock";
     private static final int MAX_SHARDS = 1000;
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
     private final ImmutableMap<String, ShardedBucket> buckets;
     private final ImmutableMap<String, String> prefixMap;
+    private final ThreadPoolExecutor executor;
+    /** Serializes writes with migration moves of the same key. */
+    private final Striped<Lock> keyLocks = Striped.lock(256);
 
     private static final class ShardedBucket {
         private final String prefix;
         private final int shards;
-
-        private ShardedBucket(String name, int shards) {
+        /** Shard count of the old layout, or 0 when not migrating. */
+        private volatile int previousShards;
+        /** Backend names, or empty if all shards use the delegate. */
+        private final ImmutableList<String> backendNames;
+        private final ImmutableList<BlobStore> backends;
+
+        private ShardedBucket(String name, int shards, int previousShards,
+                              ImmutableList<String> backendNames,
+                              ImmutableList<BlobStore> backends) {
             this.prefix = Objects.requireNonNull(name);
             this.shards = shards;
+            this.previousShards = previousShards;
+            this.backendNames = backendNames;
+            this.backends = backends;
+        }
+
+        /** Shard count which the superblock records. */
+        private int recordedShards() {
+            int previous = previousShards;
+            return previous != 0 ? previous : shards;
+        }
+
+        /** Number of shard containers which may hold objects. */
+        private int physicalShards() {
+            return Math.max(shards, previousShards);
+        }
+    }
+
+    /** A shard container and the backend which stores it. */
+    private static final class Shard {
+        private final BlobStore blobStore;
+        private final String container;
+
+        private Shard(BlobStore blobStore, String container) {
+            this.blobStore = blobStore;
+            this.container = container;
         }
     }
 
     private ShardedBlobStore(BlobStore blobStore,
                              ImmutableMap<String, Integer> shards,
-                             ImmutableMap<String, String> prefixes) {
+                             ImmutableMap<String, String> prefixes,
+                             ImmutableMap<String, Integer> previousShards,
+                             ImmutableMap<String, ImmutableList<String>>
+                                     bucketBackends,
+                             ImmutableMap<String, BlobStore> backends) {
         super(blobStore);
+        Set<String> missingPreviousShards = Sets.difference(
+                previousShards.keySet(), shards.keySet());
+        checkArgument(missingPreviousShards.isEmpty(),
+                "Number of shards unset for sharded buckets: %s",
+                missingPreviousShards);
+        Set<String> missingBackendShards = Sets.difference(
+                bucketBackends.keySet(), shards.keySet());
+        checkArgument(missingBackendShards.isEmpty(),
+                "Number of shards unset for sharded buckets: %s",
+                missingBackendShards);
         Set<String> missingShards = Sets.difference(
                 prefixes.keySet(), shards.keySet());
         if (!missingShards.isEmpty()) {
@@ -133,8 +242,30 @@ final class ShardedBlobStore extends ForwardingBlobStore {
             if (prefix == null) {
                 prefix = bucket;
             }
+            ImmutableList<String> backendNames = bucketBackends.getOrDefault(
+                    bucket, ImmutableList.of());
+            ImmutableList.Builder<BlobStore> bucketBlobStores =
+                    new ImmutableList.Builder<>();
+            for (String backendName : backendNames) {
+                BlobStore backend = backends.get(backendName);
+                checkArgument(backend != null,
+                        "Unknown backend %s for sharded bucket %s",
+                        backendName, bucket);
+                bucketBlobStores.add(backend);
+            }
+            if (backendNames.isEmpty()) {
+                bucketBlobStores.add(blobStore);
+            }
+            checkArgument(shards.get(bucket) >= backendNames.size(),
+                    "Fewer shards than backends for sharded bucket %s",
+                    bucket);
+            int previous = previousShards.getOrDefault(bucket, 0);
+            if (previous == shards.get(bucket)) {
+                previous = 0;
+            }
             bucketsBuilder.put(bucket, new ShardedBucket(prefix,
-                    shards.get(bucket)));
+                    shards.get(bucket), previous, backendNames,
+                    bucketBlobStores.build()));
         }
         this.buckets = bucketsBuilder.build();
 
@@ -145,6 +276,15 @@ final class ShardedBlobStore extends ForwardingBlobStore {
             prefixMapBuilder.put(prefix, virtualBucket);
         }
         this.prefixMap = prefixMapBuilder.build();
+
+        this.executor = new ThreadPoolExecutor(MAX_SHARD_THREADS,
+                MAX_SHARD_THREADS, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("sharded-blobstore-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
     }
 
     public static ImmutableMap<String, Integer> parseBucketShards(
@@ -181,11 +321,67 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         return prefixesMap.build();
     }
 
+    /** Parse the old shard count of each migrating bucket. */
+    public static ImmutableMap<String, Integer> parsePreviousShards(
+            Properties properties) {
+        ImmutableMap.Builder<String, Integer> shardsMap =
+                new ImmutableMap.Builder<>();
+        for (String key : properties.stringPropertyNames()) {
+            Matcher matcher = PROPERTIES_PREVIOUS_SHARDS_RE.matcher(key);
+            if (!matcher.matches()) {
+                continue;
+            }
+            String bucket = matcher.group("bucket");
+            int shards = Integer.parseInt(properties.getProperty(key));
+            checkArgument(shards > 0 && shards < MAX_SHARDS,
+                    "number of shards must be between 1 and 1000 for %s",
+                        bucket);
+            shardsMap.put(bucket, shards);
+        }
+        return shardsMap.build();
+    }
+
+    /** Parse the ordered backend names of each sharded bucket. */
+    public static ImmutableMap<String, ImmutableList<String>> parseBackends(
+            Properties properties) {
+        ImmutableMap.Builder<String, ImmutableList<String>> backendsMap =
+                new ImmutableMap.Builder<>();
+        for (String key : properties.stringPropertyNames()) {
+            Matcher matcher = PROPERTIES_BACKENDS_RE.matcher(key);
+            if (!matcher.matches()) {
+                continue;
+            }
+            backendsMap.put(matcher.group("bucket"), ImmutableList.copyOf(
+                    Splitter.on(',').trimResults().omitEmptyStrings()
+                            .split(properties.getProperty(key))));
+        }
+        return backendsMap.build();
+    }
+
     static ShardedBlobStore newShardedBlobStore(
             BlobStore blobStore,
             ImmutableMap<String, Integer> shards,
             ImmutableMap<String, String> prefixes) {
-        return new ShardedBlobStore(blobStore, shards, prefixes);
+        return newShardedBlobStore(blobStore, shards, prefixes,
+                ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of());
+    }
+
+    /**
+     * @param previousShards old shard counts of buckets which migrate to a
+     *     new shard count
+     * @param bucketBackends ordered backend names for buckets which span
+     *     several backends
+     * @param backends blobstores keyed by backend name
+     */
+    static ShardedBlobStore newShardedBlobStore(
+            BlobStore blobStore,
+            ImmutableMap<String, Integer> shards,
+            ImmutableMap<String, String> prefixes,
+            ImmutableMap<String, Integer> previousShards,
+            ImmutableMap<String, ImmutableList<String>> bucketBackends,
+            ImmutableMap<String, BlobStore> backends) {
+        return new ShardedBlobStore(blobStore, shards, prefixes,
+                previousShards, bucketBackends, backends);
     }
 
     private Map<String, String> createSuperblockMeta(ShardedBucket bucket) {
@@ -194,7 +390,12 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         meta.put("s3proxy-sharded-superblock-version", SUPERBLOCK_VERSION);
         meta.put("s3proxy-sharded-superblock-prefix", bucket.prefix);
         meta.put("s3proxy-sharded-superblock-shards",
-                Integer.toString(bucket.shards));
+                Integer.toString(bucket.recordedShards()));
+        // omitted for single-backend buckets to match older superblocks
+        if (!bucket.backendNames.isEmpty()) {
+            meta.put("s3proxy-sharded-superblock-backends",
+                    String.join(",", bucket.backendNames));
+        }
         return meta.build();
     }
 
@@ -202,14 +403,26 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         return String.format("%s-%d", bucket.prefix, shard);
     }
 
-    private String getShard(String containerName, String blob) {
+    private static int getShardIndex(ShardedBucket bucket, String blob) {
+        return getShardIndex(bucket.shards, blob);
+    }
+
+    private static int getShardIndex(int shards, String blob) {
+        HashCode hash = SHARD_HASH.hashString(blob, StandardCharsets.UTF_8);
+        return Hashing.consistentHash(hash, shards);
+    }
+
+    private static Shard getShard(ShardedBucket bucket, int shard) {
+        return new Shard(bucket.backends.get(shard % bucket.backends.size()),
+                getShardContainer(bucket, shard));
+    }
+
+    private Shard getShard(String containerName, String blob) {
         ShardedBucket bucket = buckets.get(containerName);
         if (bucket == null) {
-            return containerName;
+            return new Shard(this.delegate(), containerName);
         }
-        HashCode hash = SHARD_HASH.hashString(blob, StandardCharsets.UTF_8);
-        return ShardedBlobStore.getShardContainer(
-                bucket, Hashing.consistentHash(hash, bucket.shards));
+        return getShard(bucket, getShardIndex(bucket, blob));
     }
 
     private void checkSuperBlock(Blob blob, Map<String, String> expectedMeta,
@@ -227,32 +440,248 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         }
     }
 
+    @SuppressWarnings("EmptyCatch")
+    @Nullable
+    private static Blob getSuperblock(ShardedBucket bucket) {
+        Shard zeroShard = getShard(bucket, 0);
+        try {
+            return zeroShard.blobStore.getBlob(zeroShard.container,
+                    SUPERBLOCK_BLOB_NAME);
+        } catch (ContainerNotFoundException ignored) {
+            return null;
+        }
+    }
+
+    /** @return whether the superblock already records the new layout */
+    private static boolean isMigrated(ShardedBucket bucket,
+                                      Blob superblockBlob) {
+        return Integer.toString(bucket.shards).equals(
+                superblockBlob.getMetadata().getUserMetadata().get(
+                        "s3proxy-sharded-superblock-shards"));
+    }
+
+    private void putSuperblock(ShardedBucket bucket) {
+        Shard zeroShard = getShard(bucket, 0);
+        Blob superblockBlob = zeroShard.blobStore.blobBuilder(
+                SUPERBLOCK_BLOB_NAME)
+                .payload("")
+                .userMetadata(this.createSuperblockMeta(bucket))
+                .build();
+        zeroShard.blobStore.putBlob(zeroShard.container, superblockBlob);
+    }
+
+    /**
+     * Apply task to every shard of bucket in parallel and return the results
+     * in shard order.
+     */
+    private <T> List<T> forEachShard(ShardedBucket bucket,
+                                     Function<Shard, T> task) {
+        int shards = bucket.physicalShards();
+        List<Future<T>> futures = new ArrayList<>(shards);
+        for (int n = 0; n < shards; ++n) {
+            Shard shard = getShard(bucket, n);
+            Callable<T> callable = () -> task.apply(shard);
+            futures.add(executor.submit(callable));
+        }
+        return getAll(futures);
+    }
+
+    /**
+     * Wait for all futures, rethrowing the first failure unwrapped so that
+     * callers see the same exceptions as from an unsharded bucket.
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
     private boolean createShards(ShardedBucket bucket, Location location,
                                  CreateContainerOptions options) {
-        ImmutableList.Builder<Future<Boolean>> futuresBuilder =
-                new ImmutableList.Builder<>();
-        ExecutorService executor = Executors.newFixedThreadPool(
-                Math.min(bucket.shards, MAX_SHARD_THREADS));
-        BlobStore blobStore = this.delegate();
-        for (int n = 0; n < bucket.shards; ++n) {
-            String shardContainer = ShardedBlobStore.getShardContainer(
-                    bucket, n);
-            futuresBuilder.add(executor.submit(
-                () -> blobStore.createContainerInLocation(
-                        location, shardContainer, options)));
-        }
-        ImmutableList<Future<Boolean>> futures = futuresBuilder.build();
-        executor.shutdown();
-        boolean ret = true;
-        for (Future<Boolean> future : futures) {
-            try {
-                ret &= future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException("Failed to create some shards", e);
+        // locations are specific to the provider of the delegate
+        Function<Shard, Boolean> create = shard ->
+                shard.blobStore.createContainerInLocation(
+                        shard.blobStore == this.delegate() ? location : null,
+                        shard.container, options);
+        return !forEachShard(bucket, create).contains(false);
+    }
+
+    /**
+     * Prepare migrating buckets and move their objects in the background,
+     * issuing at most objectsPerSecond moves.  Call before serving requests
+     * since preparation creates the new shards which writes target.
+     */
+    void startMigration(double objectsPerSecond) {
+        checkArgument(objectsPerSecond > 0,
+                "Rate must be positive, was: %s", objectsPerSecond);
+        if (!prepareMigration()) {
+            return;
+        }
+        RateLimiter rateLimiter = RateLimiter.create(objectsPerSecond);
+        ExecutorService migrator = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("sharded-blobstore-migrator")
+                        .setDaemon(true)
+                        .build());
+        migrator.execute(() -> {
+            long delay = INITIAL_RETRY_DELAY_MILLIS;
+            boolean prepared = true;
+            while (true) {
+                try {
+                    // skip buckets whose superblock records the new layout
+                    if (prepared || prepareMigration()) {
+                        migrate(rateLimiter);
+                    }
+                    return;
+                } catch (RuntimeException re) {
+                    logger.warn("Could not migrate sharded buckets," +
+                            " retrying in {} ms", delay, re);
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                delay = Math.min(2 * delay, MAX_RETRY_DELAY_MILLIS);
+                prepared = false;
             }
+        });
+        migrator.shutdown();
+    }
+
+    /**
+     * Check the superblock of each migrating bucket and create the shards
+     * which only its new layout uses.
+     *
+     * @return whether any bucket has objects to migrate
+     */
+    boolean prepareMigration() {
+        boolean migrating = false;
+        for (Map.Entry<String, ShardedBucket> entry : buckets.entrySet()) {
+            ShardedBucket bucket = entry.getValue();
+            if (bucket.previousShards == 0) {
+                continue;
+            }
+            Blob superblockBlob = getSuperblock(bucket);
+            if (superblockBlob == null ||
+                    isMigrated(bucket, superblockBlob)) {
+                bucket.previousShards = 0;
+                continue;
+            }
+            checkSuperBlock(superblockBlob, createSuperblockMeta(bucket),
+                    entry.getKey());
+            for (int n = bucket.previousShards; n < bucket.shards; ++n) {
+                Shard shard = getShard(bucket, n);
+                shard.blobStore.createContainerInLocation(null,
+                        shard.container);
+            }
+            migrating = true;
         }
+        return migrating;
+    }
 
-        return ret;
+    /** Move the objects of every migrating bucket to the new layout. */
+    void migrate(RateLimiter rateLimiter) {
+        for (Map.Entry<String, ShardedBucket> entry : buckets.entrySet()) {
+            if (entry.getValue().previousShards != 0) {
+                migrate(entry.getKey(), entry.getValue(), rateLimiter);
+            }
+        }
+    }
+
+    private void migrate(String container, ShardedBucket bucket,
+                         RateLimiter rateLimiter) {
+        int previousShards = bucket.previousShards;
+        long moved = 0;
+        long failed = 0;
+        for (int n = 0; n < previousShards; ++n) {
+            Shard shard = getShard(bucket, n);
+            String marker = null;
+            do {
+                ListContainerOptions options =
+                        new ListContainerOptions().recursive();
+                if (marker != null) {
+                    options.afterMarker(marker);
+                }
+                PageSet<? extends StorageMetadata> set = shard.blobStore.list(
+                        shard.container, options);
+                for (StorageMetadata sm : set) {
+                    String name = sm.getName();
+                    if (sm.getType() != StorageType.BLOB ||
+                            name.equals(SUPERBLOCK_BLOB_NAME)) {
+                        continue;
+                    }
+                    int index = getShardIndex(bucket, name);
+                    if (index == n) {
+                        continue;
+                    }
+                    rateLimiter.acquire();
+                    try {
+                        if (move(container, name, shard,
+                                getShard(bucket, index))) {
+                            ++moved;
+                        }
+                    } catch (RuntimeException re) {
+                        // keep moving other objects and retry this one later
+                        logger.debug("Could not move {} of {}", name,
+                                container, re);
+                        ++failed;
+                    }
+                }
+                marker = set.getNextMarker();
+            } while (marker != null);
+        }
+        if (failed != 0) {
+            throw new IllegalStateException("Could not move " + failed +
+                    " objects of " + container + " after moving " + moved);
+        }
+
+        // a single PUT replaces the superblock atomically
+        bucket.previousShards = 0;
+        putSuperblock(bucket);
+        for (int n = bucket.shards; n < previousShards; ++n) {
+            Shard shard = getShard(bucket, n);
+            shard.blobStore.deleteContainerIfEmpty(shard.container);
+        }
+        logger.info("Migrated {} objects of {} from {} to {} shards", moved,
+                container, previousShards, bucket.shards);
+    }
+
+    /** @return whether the blob moved */
+    private boolean move(String container, String name, Shard srcShard,
+                         Shard dstShard) {
+        Lock lock = keyLocks.get(container + "/" + name);
+        lock.lock();
+        try {
+            if (!srcShard.blobStore.blobExists(srcShard.container, name)) {
+                return false;
+            }
+            // writes already removed the old copy so any copy in the new
+            // layout is at least as new
+            if (!dstShard.blobStore.blobExists(dstShard.container, name)) {
+                copy(srcShard, name, dstShard, name, CopyOptions.NONE,
+                        /*preserveAccess=*/ true);
+            }
+            srcShard.blobStore.removeBlob(srcShard.container, name);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -262,7 +691,6 @@ final class ShardedBlobStore extends ForwardingBlobStore {
                 location, container, CreateContainerOptions.NONE);
     }
 
-    @SuppressWarnings("EmptyCatch")
     @Override
     public boolean createContainerInLocation(
             Location location, String container,
@@ -274,28 +702,23 @@ final class ShardedBlobStore extends ForwardingBlobStore {
                     location, container, createContainerOptions);
         }
 
-        Map<String, String> superblockMeta = this.createSuperblockMeta(bucket);
-        Blob superblockBlob = null;
-        try {
-            superblockBlob = this.delegate().getBlob(
-                    ShardedBlobStore.getShardContainer(bucket, 0),
-                    SUPERBLOCK_BLOB_NAME);
-        } catch (ContainerNotFoundException ignored) {
-        }
-        if (superblockBlob != null) {
-            checkSuperBlock(superblockBlob, superblockMeta, container);
+        Blob superblockBlob = getSuperblock(bucket);
+        if (superblockBlob == null) {
+            // a new bucket has nothing to migrate
+            bucket.previousShards = 0;
+        } else {
+            if (isMigrated(bucket, superblockBlob)) {
+                bucket.previousShards = 0;
+            }
+            checkSuperBlock(superblockBlob, this.createSuperblockMeta(bucket),
+                    container);
         }
 
         boolean ret = createShards(bucket, location, createContainerOptions);
 
         // Upload the superblock
         if (superblockBlob == null) {
-            superblockBlob = this.delegate().blobBuilder(SUPERBLOCK_BLOB_NAME)
-                    .payload("")
-                    .userMetadata(superblockMeta)
-                    .build();
-            this.delegate().putBlob(ShardedBlobStore.getShardContainer(
-                    bucket, 0), superblockBlob);
+            putSuperblock(bucket);
         }
 
         return ret;
@@ -339,6 +762,22 @@ final class ShardedBlobStore extends ForwardingBlobStore {
                 results.add(virtualBucket);
             }
         }
+        // shards on other backends do not appear in the delegate listing
+        for (Map.Entry<String, ShardedBucket> entry : buckets.entrySet()) {
+            ShardedBucket bucket = entry.getValue();
+            if (bucket.backendNames.isEmpty() ||
+                    virtualBuckets.contains(bucket.prefix)) {
+                continue;
+            }
+            Shard zeroShard = getShard(bucket, 0);
+            if (zeroShard.blobStore.containerExists(zeroShard.container)) {
+                MutableStorageMetadata virtualBucket =
+                        new MutableStorageMetadataImpl();
+                virtualBucket.setName(entry.getKey());
+                virtualBucket.setType(StorageType.CONTAINER);
+                results.add(virtualBucket);
+            }
+        }
         return new PageSetImpl<>(results.build(), upstream.getNextMarker());
     }
 
@@ -370,60 +809,94 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         return true;
     }
 
+    /**
+     * Shards can diverge if a fan-out partially fails so only report
+     * public-read when every shard is.
+     */
     @Override
     public ContainerAccess getContainerAccess(String container) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             return this.delegate().getContainerAccess(container);
         }
-        throw new UnsupportedOperationException("sharded bucket");
+        Function<Shard, ContainerAccess> getAccess = shard ->
+                shard.blobStore.getContainerAccess(shard.container);
+        List<ContainerAccess> accesses = forEachShard(bucket, getAccess);
+        return accesses.contains(ContainerAccess.PRIVATE) ?
+                ContainerAccess.PRIVATE : ContainerAccess.PUBLIC_READ;
     }
 
     @Override
     public void setContainerAccess(String container,
                                    ContainerAccess containerAccess) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             this.delegate().setContainerAccess(container, containerAccess);
+            return;
         }
-        throw new UnsupportedOperationException("sharded bucket");
+        forEachShard(bucket, shard -> {
+            shard.blobStore.setContainerAccess(shard.container,
+                    containerAccess);
+            return null;
+        });
     }
 
     @Override
     public void clearContainer(String container) {
-        clearContainer(container, new ListContainerOptions());
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
+            this.delegate().clearContainer(container);
+            return;
+        }
+        clearShards(bucket, shard -> {
+            shard.blobStore.clearContainer(shard.container);
+            return null;
+        });
     }
 
     @Override
     public void clearContainer(String container, ListContainerOptions options) {
-        throw new UnsupportedOperationException("sharded bucket");
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
+            this.delegate().clearContainer(container, options);
+            return;
+        }
+        clearShards(bucket, shard -> {
+            shard.blobStore.clearContainer(shard.container, options);
+            return null;
+        });
+    }
+
+    /** Clear every shard while preserving the superblock in shard 0. */
+    private void clearShards(ShardedBucket bucket,
+                             Function<Shard, Void> clear) {
+        Shard zeroShard = getShard(bucket, 0);
+        boolean hasSuperblock = zeroShard.blobStore.blobExists(
+                zeroShard.container, SUPERBLOCK_BLOB_NAME);
+        forEachShard(bucket, clear);
+        if (hasSuperblock && !zeroShard.blobStore.blobExists(
+                zeroShard.container, SUPERBLOCK_BLOB_NAME)) {
+            putSuperblock(bucket);
+        }
     }
 
     @Override
     public void deleteContainer(String container) {
-        throw new UnsupportedOperationException("sharded bucket");
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
+            this.delegate().deleteContainer(container);
+            return;
+        }
+        forEachShard(bucket, shard -> {
+            shard.blobStore.deleteContainer(shard.container);
+            return null;
+        });
     }
 
     private boolean deleteShards(ShardedBucket bucket) {
-        ImmutableList.Builder<Future<Boolean>> futuresBuilder =
-                new ImmutableList.Builder<>();
-        ExecutorService executor = Executors.newFixedThreadPool(
-                Math.min(bucket.shards, MAX_SHARD_THREADS));
-        for (int n = 0; n < bucket.shards; ++n) {
-            String shard = ShardedBlobStore.getShardContainer(bucket, n);
-            futuresBuilder.add(executor.submit(
-                () -> this.delegate().deleteContainerIfEmpty(shard)));
-        }
-        executor.shutdown();
-        ImmutableList<Future<Boolean>> futures = futuresBuilder.build();
-        boolean ret = true;
-        for (Future<Boolean> future : futures) {
-            try {
-                ret &= future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException("Failed to delete shards", e);
-            }
-        }
-
-        return ret;
+        Function<Shard, Boolean> delete = shard ->
+                shard.blobStore.deleteContainerIfEmpty(shard.container);
+        return !forEachShard(bucket, delete).contains(false);
     }
 
     @Override
@@ -433,19 +906,14 @@ final class ShardedBlobStore extends ForwardingBlobStore {
             return this.delegate().deleteContainerIfEmpty(container);
         }
 
-        String zeroShardContainer = ShardedBlobStore.getShardContainer(
-                bucket, 0);
-        PageSet<? extends StorageMetadata> listing = this.delegate().list(
-                zeroShardContainer);
-        if (listing.size() > 1) {
-            return false;
-        }
-        StorageMetadata sm = listing.iterator().next();
-        if (!sm.getName().equals(SUPERBLOCK_BLOB_NAME)) {
+        // check every shard, not only the one holding the superblock
+        if (this.countBlobs(container) > 0) {
             return false;
         }
+        Shard zeroShard = getShard(bucket, 0);
         // Remove the superblock
-        this.delegate().removeBlob(zeroShardContainer, SUPERBLOCK_BLOB_NAME);
+        zeroShard.blobStore.removeBlob(zeroShard.container,
+                SUPERBLOCK_BLOB_NAME);
         return this.deleteShards(bucket);
     }
 
@@ -464,106 +932,320 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         throw new UnsupportedOperationException("sharded bucket");
     }
 
+    /**
+     * Read a blob from the new layout and, while its bucket migrates, fall
+     * back to the old layout.  The new layout is consulted again last since
+     * the migrator may move the blob between the first two reads.
+     *
+     * @param reader returns null when the blob does not exist in a shard
+     */
+    @Nullable
+    private <T> T read(String containerName, String blobName,
+                       Function<Shard, T> reader) {
+        ShardedBucket bucket = buckets.get(containerName);
+        if (bucket == null) {
+            return reader.apply(new Shard(this.delegate(), containerName));
+        }
+        int index = getShardIndex(bucket, blobName);
+        Shard shard = getShard(bucket, index);
+        int previousShards = bucket.previousShards;
+        if (previousShards == 0) {
+            return reader.apply(shard);
+        }
+        int previousIndex = getShardIndex(previousShards, blobName);
+        T result = reader.apply(shard);
+        if (result != null || previousIndex == index) {
+            return result;
+        }
+        result = reader.apply(getShard(bucket, previousIndex));
+        if (result != null) {
+            return result;
+        }
+        return reader.apply(shard);
+    }
+
+    /** @return the shard which holds a blob, or its new shard if none */
+    private Shard locate(String containerName, String blobName) {
+        Shard shard = read(containerName, blobName, candidate ->
+                candidate.blobStore.blobExists(candidate.container,
+                        blobName) ? candidate : null);
+        if (shard == null) {
+            shard = getShard(containerName, blobName);
+        }
+        return shard;
+    }
+
+    /**
+     * Write a blob to the new layout.  While its bucket migrates, hold the
+     * key lock so that the migrator cannot move a stale copy over the
+     * write, and remove any copy from the old layout.
+     */
+    private <T> T write(String containerName, String blobName,
+                        Function<Shard, T> writer) {
+        ShardedBucket bucket = buckets.get(containerName);
+        if (bucket == null) {
+            return writer.apply(new Shard(this.delegate(), containerName));
+        }
+        int index = getShardIndex(bucket, blobName);
+        int previousShards = bucket.previousShards;
+        if (previousShards == 0) {
+            return writer.apply(getShard(bucket, index));
+        }
+        int previousIndex = getShardIndex(previousShards, blobName);
+        Lock lock = keyLocks.get(containerName + "/" + blobName);
+        lock.lock();
+        try {
+            T result = writer.apply(getShard(bucket, index));
+            if (previousIndex != index) {
+                Shard previous = getShard(bucket, previousIndex);
+                previous.blobStore.removeBlob(previous.container, blobName);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public boolean blobExists(String container, String name) {
-        return this.delegate().blobExists(this.getShard(container, name), name);
+        return read(container, name, shard ->
+                shard.blobStore.blobExists(shard.container, name) ?
+                        Boolean.TRUE : null) != null;
     }
 
     @Override
     public String putBlob(String containerName, Blob blob) {
-        return this.delegate().putBlob(this.getShard(containerName,
-                blob.getMetadata().getName()), blob);
+        return write(containerName, blob.getMetadata().getName(), shard ->
+                shard.blobStore.putBlob(shard.container, blob));
     }
 
     @Override
     public String putBlob(final String containerName, Blob blob,
                           final PutOptions putOptions) {
-        return this.delegate().putBlob(
-                this.getShard(containerName, blob.getMetadata().getName()),
-                blob, putOptions);
+        return write(containerName, blob.getMetadata().getName(), shard ->
+                shard.blobStore.putBlob(shard.container, blob, putOptions));
     }
 
     @Override
     public String copyBlob(String fromContainer, String fromName,
                            String toContainer, String toName,
                            CopyOptions options) {
-        String srcShard = this.getShard(fromContainer, fromName);
-        String dstShard = this.getShard(toContainer, toName);
-        return this.delegate().copyBlob(srcShard, fromName,
-                dstShard, toName, options);
+        Shard srcShard = this.locate(fromContainer, fromName);
+        // like CopyObject, client copies do not inherit the source ACL
+        return write(toContainer, toName, dstShard ->
+                copy(srcShard, fromName, dstShard, toName, options,
+                        /*preserveAccess=*/ false));
+    }
+
+    private static String copy(Shard srcShard, String fromName,
+                               Shard dstShard, String toName,
+                               CopyOptions options, boolean preserveAccess) {
+        if (srcShard.blobStore == dstShard.blobStore) {
+            String eTag = srcShard.blobStore.copyBlob(srcShard.container,
+                    fromName, dstShard.container, toName, options);
+            if (preserveAccess) {
+                BlobAccess access = srcShard.blobStore.getBlobAccess(
+                        srcShard.container, fromName);
+                if (access != BlobAccess.PRIVATE) {
+                    dstShard.blobStore.setBlobAccess(dstShard.container,
+                            toName, access);
+                }
+            }
+            return eTag;
+        }
+        return copyBetweenBackends(srcShard, fromName, dstShard, toName,
+                options, preserveAccess);
+    }
+
+    /**
+     * Copy by streaming the source through S3Proxy.  This carries over the
+     * content metadata and, if requested, the ACL of the source.
+     */
+    private static String copyBetweenBackends(Shard srcShard, String fromName,
+                                              Shard dstShard, String toName,
+                                              CopyOptions options,
+                                              boolean preserveAccess) {
+        PutOptions putOptions = new PutOptions();
+        if (preserveAccess) {
+            putOptions.setBlobAccess(srcShard.blobStore.getBlobAccess(
+                    srcShard.container, fromName));
+        }
+        Blob blob = srcShard.blobStore.getBlob(srcShard.container, fromName);
+        if (blob == null) {
+            throw new KeyNotFoundException(srcShard.container, fromName,
+                    "while copying");
+        }
+        try (InputStream is = blob.getPayload().openStream()) {
+            if (ConditionalRequests.status(blob.getMetadata(),
+                    ConditionalRequests.toGetOptions(options)) != 200) {
+                throw new HttpResponseException("conditional copy failed",
+                        null, HttpResponse.builder().statusCode(412).build());
+            }
+            ContentMetadata contentMetadata = options.contentMetadata();
+            if (contentMetadata == null) {
+                contentMetadata = blob.getMetadata().getContentMetadata();
+            }
+            Map<String, String> userMetadata = options.userMetadata();
+            if (userMetadata == null) {
+                userMetadata = blob.getMetadata().getUserMetadata();
+            }
+            Blob toBlob = dstShard.blobStore.blobBuilder(toName)
+                    .payload(is)
+                    .contentLength(blob.getMetadata().getContentMetadata()
+                            .getContentLength())
+                    .cacheControl(contentMetadata.getCacheControl())
+                    .contentDisposition(
+                            contentMetadata.getContentDisposition())
+                    .contentEncoding(contentMetadata.getContentEncoding())
+                    .contentLanguage(contentMetadata.getContentLanguage())
+                    .contentType(contentMetadata.getContentType())
+                    .expires(contentMetadata.getExpires())
+                    .userMetadata(userMetadata)
+                    .build();
+            return dstShard.blobStore.putBlob(dstShard.container, toBlob,
+                    putOptions);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
     }
 
     @Override
     public BlobMetadata blobMetadata(String container, String name) {
-        return this.delegate().blobMetadata(this.getShard(container, name),
-                name);
+        return read(container, name, shard ->
+                shard.blobStore.blobMetadata(shard.container, name));
     }
 
     @Override
     public Blob getBlob(String containerName, String blobName) {
-        return this.delegate().getBlob(this.getShard(containerName, blobName),
-                blobName);
+        return read(containerName, blobName, shard ->
+                shard.blobStore.getBlob(shard.container, blobName));
     }
 
     @Override
     public Blob getBlob(String containerName, String blobName,
                         GetOptions getOptions) {
-        return this.delegate()
-                .getBlob(this.getShard(containerName, blobName), blobName,
-                        getOptions);
+        return read(containerName, blobName, shard ->
+                shard.blobStore.getBlob(shard.container, blobName,
+                        getOptions));
     }
 
     @Override
     public void removeBlob(String container, String name) {
-        this.delegate().removeBlob(this.getShard(container, name), name);
+        write(container, name, shard -> {
+            shard.blobStore.removeBlob(shard.container, name);
+            return null;
+        });
     }
 
     @Override
     public void removeBlobs(String container, Iterable<String> iterable) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             this.delegate().removeBlobs(container, iterable);
+            return;
+        }
+        if (bucket.previousShards != 0) {
+            // remove from both layouts under the key locks
+            for (String blob : iterable) {
+                removeBlob(container, blob);
+            }
+            return;
         }
 
-        Map<String, List<String>> shardMap = new HashMap<>();
+        Map<Integer, List<String>> shardMap = new HashMap<>();
         for (String blob : iterable) {
-            List<String> shardBlobs =
-                    shardMap.computeIfAbsent(this.getShard(container, blob),
-                        k -> new ArrayList<>());
+            List<String> shardBlobs = shardMap.computeIfAbsent(
+                    getShardIndex(bucket, blob), k -> new ArrayList<>());
             shardBlobs.add(blob);
         }
 
-        for (Map.Entry<String, List<String>> entry : shardMap.entrySet()) {
-            this.delegate().removeBlobs(entry.getKey(), entry.getValue());
+        List<Future<Void>> futures = new ArrayList<>(shardMap.size());
+        for (Map.Entry<Integer, List<String>> entry : shardMap.entrySet()) {
+            Shard shard = getShard(bucket, entry.getKey());
+            Callable<Void> task = () -> {
+                shard.blobStore.removeBlobs(shard.container, entry.getValue());
+                return null;
+            };
+            futures.add(executor.submit(task));
         }
+        getAll(futures);
     }
 
     @Override
     public BlobAccess getBlobAccess(String container, String name) {
-        return this.delegate()
-                .getBlobAccess(this.getShard(container, name), name);
+        return withKeyLock(container, name, () -> {
+            Shard shard = this.locate(container, name);
+            return shard.blobStore.getBlobAccess(shard.container, name);
+        });
     }
 
     @Override
     public void setBlobAccess(String container, String name,
                               BlobAccess access) {
-        this.delegate()
-                .setBlobAccess(this.getShard(container, name), name, access);
+        withKeyLock(container, name, () -> {
+            Shard shard = this.locate(container, name);
+            shard.blobStore.setBlobAccess(shard.container, name, access);
+            return null;
+        });
+    }
+
+    /**
+     * Run an operation on the shard which holds a blob.  While its bucket
+     * migrates, hold the key lock so that the blob cannot move meanwhile.
+     */
+    private <T> T withKeyLock(String container, String name,
+                              Supplier<T> operation) {
+        ShardedBucket bucket = buckets.get(container);
+        if (bucket == null || bucket.previousShards == 0) {
+            return operation.get();
+        }
+        Lock lock = keyLocks.get(container + "/" + name);
+        lock.lock();
+        try {
+            return operation.get();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public long countBlobs(String container) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             return this.delegate().countBlobs(container);
         }
-        throw new UnsupportedOperationException("sharded bucket");
+        Function<Shard, Long> count = shard ->
+                shard.blobStore.countBlobs(shard.container);
+        return sumShards(bucket, count, true);
     }
 
     @Override
     public long countBlobs(String container, ListContainerOptions options) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             return this.delegate().countBlobs(container, options);
         }
-        throw new UnsupportedOperationException("sharded bucket");
+        boolean matchesSuperblock = options.getDir() == null &&
+                (options.getPrefix() == null ||
+                        SUPERBLOCK_BLOB_NAME.startsWith(options.getPrefix()));
+        Function<Shard, Long> count = shard ->
+                shard.blobStore.countBlobs(shard.container, options);
+        return sumShards(bucket, count, matchesSuperblock);
+    }
+
+    /** Sum per-shard counts, excluding the superblock when it matches. */
+    private long sumShards(ShardedBucket bucket, Function<Shard, Long> count,
+                           boolean matchesSuperblock) {
+        long sum = 0;
+        for (long shardCount : forEachShard(bucket, count)) {
+            sum += shardCount;
+        }
+        Shard zeroShard = getShard(bucket, 0);
+        if (matchesSuperblock && sum > 0 && zeroShard.blobStore.blobExists(
+                zeroShard.container, SUPERBLOCK_BLOB_NAME)) {
+            --sum;
+        }
+        return sum;
     }
 
     @Override
@@ -581,6 +1263,7 @@ final class ShardedBlobStore extends ForwardingBlobStore {
     public void abortMultipartUpload(MultipartUpload mpu) {
         if (!this.buckets.containsKey(mpu.containerName())) {
             this.delegate().abortMultipartUpload(mpu);
+            return;
         }
         throw new UnsupportedOperationException("sharded bucket");
     }
@@ -622,27 +1305,28 @@ final class ShardedBlobStore extends ForwardingBlobStore {
 
     @Override
     public void downloadBlob(String container, String name, File destination) {
-        this.delegate().downloadBlob(this.getShard(container, name), name,
-                destination);
+        Shard shard = this.locate(container, name);
+        shard.blobStore.downloadBlob(shard.container, name, destination);
     }
 
     @Override
     public void downloadBlob(String container, String name, File destination,
                              ExecutorService executor) {
-        this.delegate()
-                .downloadBlob(this.getShard(container, name), name, destination,
-                        executor);
+        Shard shard = this.locate(container, name);
+        shard.blobStore.downloadBlob(shard.container, name, destination,
+                executor);
     }
 
     @Override
     public InputStream streamBlob(String container, String name) {
-        return this.delegate().streamBlob(this.getShard(container, name), name);
+        Shard shard = this.locate(container, name);
+        return shard.blobStore.streamBlob(shard.container, name);
     }
 
     @Override
     public InputStream streamBlob(String container, String name,
                                   ExecutorService executor) {
-        return this.delegate()
-                .streamBlob(this.getShard(container, name), name, executor);
+        Shard shard = this.locate(container, name);
+        return shard.blobStore.streamBlob(shard.container, name, executor);
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * Generation counters which let caches detect invalidations that race with
+ * a fetch.  Counters are striped by container and by key so that a write
+ * only delays admission of fetches which share its stripe instead of every
+ * fetch in flight.  Callers must compare generations under the same lock
+ * which guards their invalidations.
+ */
+final class StripedGenerations {
+    private static final int STRIPES = 1024;
+
+    private final AtomicLongArray containers = new AtomicLongArray(STRIPES);
+    private final AtomicLongArray keys = new AtomicLongArray(STRIPES);
+
+    /** @return generation of a key, or of the container if name is null */
+    long get(String container, @Nullable String name) {
+        long generation = containers.get(index(container.hashCode()));
+        if (name != null) {
+            generation += keys.get(index(31 * container.hashCode() +
+                    name.hashCode()));
+        }
+        return generation;
+    }
+
+    void invalidate(String container, String name) {
+        keys.incrementAndGet(index(31 * container.hashCode() +
+                name.hashCode()));
+    }
+
+    /** Invalidate the container and every key in it. */
+    void invalidateContainer(String container) {
+        containers.incrementAndGet(index(container.hashCode()));
+    }
+
+    private static int index(int hash) {
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
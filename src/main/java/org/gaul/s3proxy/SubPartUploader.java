@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+/**
+ * Uploads one S3 part as several smaller backend parts, e.g., Azure blocks.
+ * The request thread reads each sub-part into pooled buffers, hashing the
+ * content in order, while a bounded pool uploads the previous sub-parts.  A
+ * memory budget shared by all requests limits the buffered bytes; parts
+ * with a single sub-part or sub-parts larger than the budget stream
+ * sequentially instead.
+ */
+final class SubPartUploader {
+    static final int DEFAULT_THREADS = 16;
+    static final long DEFAULT_MEMORY_BUDGET = 512L * 1024 * 1024;
+    private static final int CHUNK_SIZE = BufferPool.MAX_BUFFER_SIZE;
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final BufferPool bufferPool;
+    /** Permits are buffered chunks of CHUNK_SIZE bytes. */
+    private final Semaphore budget;
+    private final int budgetChunks;
+
+    SubPartUploader(int threads, long memoryBudget, BufferPool bufferPool) {
+        checkArgument(threads > 0, "Threads must be positive, was: %s",
+                threads);
+        checkArgument(memoryBudget >= 0,
+                "Memory budget must be non-negative, was: %s", memoryBudget);
+        this.budgetChunks = (int) Math.min(Integer.MAX_VALUE,
+                memoryBudget / CHUNK_SIZE);
+        this.budget = new Semaphore(budgetChunks, /*fair=*/ true);
+        this.bufferPool = bufferPool;
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("sub-part-upload-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Upload contentLength bytes from is as backend parts firstPartNumber,
+     * firstPartNumber + 1, ... of at most subPartSize bytes each.
+     *
+     * @return hash of the entire content
+     */
+    HashCode upload(BlobStore blobStore, MultipartUpload mpu,
+            int firstPartNumber, InputStream is, long contentLength,
+            long subPartSize, HashFunction hashFunction) throws IOException {
+        HashingInputStream his = new HashingInputStream(hashFunction, is);
+        if (contentLength <= subPartSize ||
+                chunks(subPartSize) > budgetChunks) {
+            uploadSequentially(blobStore, mpu, firstPartNumber, his,
+                    contentLength, subPartSize);
+        } else {
+            uploadConcurrently(blobStore, mpu, firstPartNumber, his,
+                    contentLength, subPartSize);
+        }
+        return his.hash();
+    }
+
+    private static void uploadSequentially(BlobStore blobStore,
+            MultipartUpload mpu, int firstPartNumber, InputStream is,
+            long contentLength, long subPartSize) {
+        int subPartNumber = 0;
+        for (long offset = 0; offset < contentLength;
+                offset += subPartSize, ++subPartNumber) {
+            Payload payload = Payloads.newInputStreamPayload(
+                    new UncloseableInputStream(ByteStreams.limit(is,
+                            subPartSize)));
+            payload.getContentMetadata().setContentLength(
+                    Math.min(subPartSize, contentLength - offset));
+            blobStore.uploadMultipartPart(mpu,
+                    firstPartNumber + subPartNumber, payload);
+        }
+    }
+
+    private void uploadConcurrently(BlobStore blobStore,
+            MultipartUpload mpu, int firstPartNumber, InputStream is,
+            long contentLength, long subPartSize) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        // queued uploads skip the backend after a failure but still
+        // release their buffers
+        AtomicBoolean aborted = new AtomicBoolean();
+        try {
+            int subPartNumber = 0;
+            for (long offset = 0; offset < contentLength;
+                    offset += subPartSize, ++subPartNumber) {
+                for (Future<?> future : futures) {
+                    if (future.isDone()) {
+                        getUnchecked(future);
+                    }
+                }
+                long length = Math.min(subPartSize, contentLength - offset);
+                List<byte[]> buffers = read(is, length);
+                ByteSource source = concat(buffers, length);
+                int partNumber = firstPartNumber + subPartNumber;
+                Callable<Void> task = () -> {
+                    try {
+                        if (!aborted.get()) {
+                            Payload payload = Payloads.newByteSourcePayload(
+                                    source);
+                            payload.getContentMetadata().setContentLength(
+                                    length);
+                            blobStore.uploadMultipartPart(mpu, partNumber,
+                                    payload);
+                        }
+                        return null;
+                    } finally {
+                        release(buffers);
+                    }
+                };
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                getUnchecked(future);
+            }
+        } catch (IOException | RuntimeException e) {
+            aborted.set(true);
+            throw e;
+        } finally {
+            // wait for outstanding uploads so that a client retrying this
+            // part does not race with them
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    // reported above
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Read length bytes into pooled chunks, waiting for budget. */
+    private List<byte[]> read(InputStream is, long length)
+            throws IOException {
+        int chunks = chunks(length);
+        try {
+            budget.acquire(chunks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        List<byte[]> buffers = new ArrayList<>(chunks);
+        try {
+            for (long offset = 0; offset < length; offset += CHUNK_SIZE) {
+                byte[] buffer = bufferPool.acquire(CHUNK_SIZE);
+                buffers.add(buffer);
+                ByteStreams.readFully(is, buffer, 0,
+                        (int) Math.min(CHUNK_SIZE, length - offset));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (byte[] buffer : buffers) {
+                bufferPool.release(buffer);
+            }
+            budget.release(chunks);
+            throw e;
+        }
+        return buffers;
+    }
+
+    private void release(List<byte[]> buffers) {
+        for (byte[] buffer : buffers) {
+            bufferPool.release(buffer);
+        }
+        budget.release(buffers.size());
+    }
+
+    private static ByteSource concat(List<byte[]> buffers, long length) {
+        List<ByteSource> sources = new ArrayList<>(buffers.size());
+        long offset = 0;
+        for (byte[] buffer : buffers) {
+            sources.add(ByteSource.wrap(buffer).slice(0,
+                    Math.min(CHUNK_SIZE, length - offset)));
+            offset += CHUNK_SIZE;
+        }
+        return ByteSource.concat(sources);
+    }
+
+    private static int chunks(long length) {
+        return (int) Math.min(Integer.MAX_VALUE,
+                (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static void getUnchecked(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (ExecutionException ee) {
+            Throwables.throwIfInstanceOf(ee.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /** Bytes currently available for buffering sub-parts. */
+    long getAvailableBudget() {
+        return (long) budget.availablePermits() * CHUNK_SIZE;
+    }
+
+    private static final class UncloseableInputStream
+            extends FilterInputStream {
+        UncloseableInputStream(InputStream is) {
+            super(is);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,739 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.net.HttpHeaders;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.KeyNotFoundException;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.ContainerAccess;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.MutableStorageMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.Tier;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.domain.internal.MutableStorageMetadataImpl;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.CreateContainerOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.domain.Location;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
+import org.jclouds.io.MutableContentMetadata;
+import org.jclouds.io.Payload;
+import org.jclouds.io.payloads.ByteSourcePayload;
+
+/**
+ * Fully synthetic backend for measuring the overhead of S3Proxy itself.
+ * Containers, objects and multipart uploads exist only as metadata in
+ * concurrent maps and reads generate deterministic bytes from a per-object
+ * seed instead of returning the written content.  Writes drain and hash
+ * their payload so that PUT returns the MD5 of what clients sent.  Stored
+ * objects instead report the multipart-style ETag of a single part upload
+ * since the bytes served do not have that MD5; clients skip validating such
+ * ETags.  Thus If-Match with the ETag returned by PUT fails.  The delegate
+ * only supplies the context and blob builders and never sees any data.
+ */
+final class SyntheticBlobStore extends ForwardingBlobStore {
+    private static final int DEFAULT_MAX_RESULTS = 1000;
+
+    private final ConcurrentMap<String, Container> containers =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Upload> uploads =
+            new ConcurrentHashMap<>();
+
+    private SyntheticBlobStore(BlobStore blobStore) {
+        super(blobStore);
+    }
+
+    static BlobStore newSyntheticBlobStore(BlobStore blobStore) {
+        return new SyntheticBlobStore(blobStore);
+    }
+
+    @Override
+    public boolean containerExists(String container) {
+        return containers.containsKey(container);
+    }
+
+    @Override
+    public boolean createContainerInLocation(@Nullable Location location,
+            String container) {
+        return createContainerInLocation(location, container,
+                CreateContainerOptions.NONE);
+    }
+
+    @Override
+    public boolean createContainerInLocation(@Nullable Location location,
+            String container, CreateContainerOptions options) {
+        Container created = new Container(options.isPublicRead() ?
+                ContainerAccess.PUBLIC_READ : ContainerAccess.PRIVATE);
+        return containers.putIfAbsent(container, created) == null;
+    }
+
+    @Override
+    public ContainerAccess getContainerAccess(String container) {
+        return getContainer(container).access;
+    }
+
+    @Override
+    public void setContainerAccess(String container, ContainerAccess access) {
+        getContainer(container).access = access;
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list() {
+        List<StorageMetadata> list = new ArrayList<>();
+        for (Map.Entry<String, Container> entry : containers.entrySet()) {
+            MutableStorageMetadata metadata =
+                    new MutableStorageMetadataImpl();
+            metadata.setName(entry.getKey());
+            metadata.setType(StorageType.CONTAINER);
+            metadata.setCreationDate(entry.getValue().creationDate);
+            metadata.setLastModified(entry.getValue().creationDate);
+            list.add(metadata);
+        }
+        return new PageSetImpl<>(list, null);
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(String container) {
+        return list(container, ListContainerOptions.NONE);
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(String container,
+            ListContainerOptions options) {
+        NavigableMap<String, Entry> blobs = getContainer(container).blobs;
+        String prefix = options.getPrefix();
+        if (options.getDir() != null) {
+            prefix = options.getDir() + "/";
+        }
+        String delimiter = options.getDelimiter();
+        if (delimiter == null && !options.isRecursive()) {
+            delimiter = "/";
+        }
+        int maxResults = options.getMaxResults() == null ?
+                DEFAULT_MAX_RESULTS : options.getMaxResults();
+
+        String marker = options.getMarker();
+        Map.Entry<String, Entry> next;
+        if (marker == null) {
+            next = prefix == null ? blobs.firstEntry() :
+                    blobs.ceilingEntry(prefix);
+        } else if (delimiter != null && marker.endsWith(delimiter)) {
+            // marker is a common prefix so skip all of its keys
+            next = blobs.ceilingEntry(successor(marker));
+        } else {
+            next = blobs.higherEntry(marker);
+        }
+        if (next != null && prefix != null &&
+                next.getKey().compareTo(prefix) < 0) {
+            next = blobs.ceilingEntry(prefix);
+        }
+
+        List<StorageMetadata> list = new ArrayList<>();
+        String lastName = null;
+        boolean truncated = false;
+        while (next != null) {
+            String name = next.getKey();
+            if (prefix != null && !name.startsWith(prefix)) {
+                break;
+            }
+            if (list.size() == maxResults) {
+                truncated = true;
+                break;
+            }
+            int index = delimiter == null ? -1 : name.indexOf(delimiter,
+                    prefix == null ? 0 : prefix.length());
+            if (index == -1) {
+                list.add(toMetadata(container, next.getValue()));
+                lastName = name;
+                next = blobs.higherEntry(name);
+            } else {
+                String commonPrefix = name.substring(0,
+                        index + delimiter.length());
+                MutableStorageMetadata metadata =
+                        new MutableStorageMetadataImpl();
+                metadata.setName(commonPrefix);
+                metadata.setType(StorageType.RELATIVE_PATH);
+                list.add(metadata);
+                lastName = commonPrefix;
+                next = blobs.ceilingEntry(successor(commonPrefix));
+            }
+        }
+        return new PageSetImpl<>(list, truncated ? lastName : null);
+    }
+
+    /** Smallest string greater than every string starting with prefix. */
+    private static String successor(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        getContainer(container).blobs.clear();
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        NavigableMap<String, Entry> blobs = getContainer(container).blobs;
+        String prefix = options.getDir() != null ? options.getDir() + "/" :
+                options.getPrefix();
+        if (prefix == null) {
+            blobs.clear();
+        } else {
+            blobs.keySet().removeIf(name -> name.startsWith(prefix));
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        containers.remove(container);
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        Container existing = containers.get(container);
+        if (existing == null) {
+            return true;
+        }
+        if (!existing.blobs.isEmpty()) {
+            return false;
+        }
+        return containers.remove(container, existing);
+    }
+
+    @Override
+    public boolean blobExists(String container, String name) {
+        return getContainer(container).blobs.containsKey(name);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        Container existing = getContainer(container);
+        Payload payload = blob.getPayload();
+        Hasher hasher = Hashing.md5().newHasher();
+        long size = drain(payload, hasher);
+        HashCode md5 = hasher.hash();
+        HashCode expectedMD5 =
+                payload.getContentMetadata().getContentMD5AsHashCode();
+        if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+            throw new HttpResponseException("Content-MD5 mismatch", null,
+                    HttpResponse.builder().statusCode(400).build());
+        }
+        BlobMetadata metadata = blob.getMetadata();
+        String eTag = Hashing.md5().hashBytes(md5.asBytes()) + "-1";
+        Entry entry = new Entry(metadata.getName(), size, eTag,
+                payload.getContentMetadata(), metadata.getUserMetadata(),
+                options.getBlobAccess(), metadata.getTier());
+        existing.blobs.put(entry.name, entry);
+        return md5.toString();
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        Entry from = getContainer(fromContainer).blobs.get(fromName);
+        if (from == null) {
+            throw new KeyNotFoundException(fromContainer, fromName,
+                    "while copying");
+        }
+        Container to = getContainer(toContainer);
+        int status = ConditionalRequests.status(
+                toMetadata(fromContainer, from),
+                ConditionalRequests.toGetOptions(options));
+        if (status != 200) {
+            throw new HttpResponseException("conditional copy failed", null,
+                    HttpResponse.builder().statusCode(412).build());
+        }
+        ContentMetadata contentMetadata = options.contentMetadata() != null ?
+                options.contentMetadata() : from.contentMetadata;
+        Map<String, String> userMetadata = options.userMetadata() != null ?
+                options.userMetadata() : from.userMetadata;
+        Entry entry = new Entry(toName, from.size, from.eTag,
+                contentMetadata, userMetadata, from.access, from.tier);
+        to.blobs.put(toName, entry);
+        return entry.eTag;
+    }
+
+    @Override
+    @Nullable
+    public BlobMetadata blobMetadata(String container, String name) {
+        Entry entry = getContainer(container).blobs.get(name);
+        if (entry == null) {
+            return null;
+        }
+        return toMetadata(container, entry);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    @Nullable
+    public Blob getBlob(String container, String name, GetOptions options) {
+        Entry entry = getContainer(container).blobs.get(name);
+        if (entry == null) {
+            return null;
+        }
+        MutableBlobMetadata metadata = toMetadata(container, entry);
+        int status = ConditionalRequests.status(metadata,
+                options);
+        if (status != 200) {
+            throw new HttpResponseException("conditional request failed",
+                    null, HttpResponse.builder().statusCode(status).build());
+        }
+
+        long offset = 0;
+        long count = entry.size;
+        String range = options.getRanges().isEmpty() ? null :
+                options.getRanges().get(0);
+        if (range != null) {
+            long[] resolved = ByteRanges.parse(range, entry.size);
+            if (resolved == null) {
+                throw new HttpResponseException("invalid range", null,
+                        HttpResponse.builder().statusCode(416).build());
+            }
+            offset = resolved[0];
+            count = resolved[1];
+        }
+
+        Blob blob = new BlobImpl(metadata);
+        ByteSourcePayload payload = new ByteSourcePayload(
+                new SyntheticByteSource(entry.seed, offset, count));
+        copyContentMetadata(entry.contentMetadata,
+                payload.getContentMetadata());
+        payload.getContentMetadata().setContentLength(count);
+        blob.setPayload(payload);
+        if (range != null) {
+            blob.setAllHeaders(ImmutableMultimap.of(
+                    HttpHeaders.CONTENT_RANGE,
+                    ByteRanges.contentRange(offset, count, entry.size)));
+        }
+        return blob;
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        Container existing = containers.get(container);
+        if (existing != null) {
+            existing.blobs.remove(name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        for (String name : names) {
+            removeBlob(container, name);
+        }
+    }
+
+    @Override
+    public BlobAccess getBlobAccess(String container, String name) {
+        Entry entry = getContainer(container).blobs.get(name);
+        if (entry == null) {
+            throw new KeyNotFoundException(container, name,
+                    "while getting access");
+        }
+        return entry.access;
+    }
+
+    @Override
+    public void setBlobAccess(String container, String name,
+            BlobAccess access) {
+        Container existing = getContainer(container);
+        Entry entry = existing.blobs.get(name);
+        if (entry == null) {
+            throw new KeyNotFoundException(container, name,
+                    "while setting access");
+        }
+        existing.blobs.put(name, new Entry(name, entry.size, entry.eTag,
+                entry.contentMetadata, entry.userMetadata, access,
+                entry.tier));
+    }
+
+    @Override
+    public long countBlobs(String container) {
+        return getContainer(container).blobs.size();
+    }
+
+    @Override
+    public long countBlobs(String container, ListContainerOptions options) {
+        NavigableMap<String, Entry> blobs = getContainer(container).blobs;
+        String prefix = options.getDir() != null ? options.getDir() + "/" :
+                options.getPrefix();
+        if (prefix == null || prefix.isEmpty()) {
+            return blobs.size();
+        }
+        return blobs.subMap(prefix, successor(prefix)).size();
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String container,
+            BlobMetadata blobMetadata, PutOptions options) {
+        getContainer(container);
+        MultipartUpload mpu = MultipartUpload.create(container,
+                blobMetadata.getName(), UUID.randomUUID().toString(),
+                blobMetadata, options);
+        uploads.put(mpu.id(), new Upload(mpu));
+        return mpu;
+    }
+
+    @Override
+    public void abortMultipartUpload(MultipartUpload mpu) {
+        uploads.remove(mpu.id());
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        Upload upload = uploads.get(mpu.id());
+        if (upload == null) {
+            throw new KeyNotFoundException(mpu.containerName(), mpu.id(),
+                    "no such upload");
+        }
+        Container existing = getContainer(mpu.containerName());
+        long size = 0;
+        Hasher hasher = Hashing.md5().newHasher();
+        for (MultipartPart part : parts) {
+            MultipartPart uploaded = upload.parts.get(part.partNumber());
+            if (uploaded == null) {
+                throw new IllegalArgumentException("Part not uploaded: " +
+                        part.partNumber());
+            }
+            size += uploaded.partSize();
+            hasher.putBytes(HashCode.fromString(uploaded.partETag())
+                    .asBytes());
+        }
+        String eTag = hasher.hash() + "-" + parts.size();
+        BlobMetadata metadata = upload.mpu.blobMetadata();
+        PutOptions options = upload.mpu.putOptions();
+        Entry entry = new Entry(mpu.blobName(), size, eTag,
+                metadata.getContentMetadata(), metadata.getUserMetadata(),
+                options == null ? BlobAccess.PRIVATE : options.getBlobAccess(),
+                metadata.getTier());
+        existing.blobs.put(entry.name, entry);
+        uploads.remove(mpu.id());
+        return eTag;
+    }
+
+    @Override
+    public MultipartPart uploadMultipartPart(MultipartUpload mpu,
+            int partNumber, Payload payload) {
+        Upload upload = uploads.get(mpu.id());
+        if (upload == null) {
+            throw new KeyNotFoundException(mpu.containerName(), mpu.id(),
+                    "no such upload");
+        }
+        Hasher hasher = Hashing.md5().newHasher();
+        long size = drain(payload, hasher);
+        MultipartPart part = MultipartPart.create(partNumber, size,
+                hasher.hash().toString(), new Date());
+        upload.parts.put(partNumber, part);
+        return part;
+    }
+
+    @Override
+    public List<MultipartPart> listMultipartUpload(MultipartUpload mpu) {
+        Upload upload = uploads.get(mpu.id());
+        if (upload == null) {
+            throw new KeyNotFoundException(mpu.containerName(), mpu.id(),
+                    "no such upload");
+        }
+        return ImmutableList.copyOf(upload.parts.values());
+    }
+
+    @Override
+    public List<MultipartUpload> listMultipartUploads(String container) {
+        getContainer(container);
+        List<MultipartUpload> list = new ArrayList<>();
+        for (Upload upload : uploads.values()) {
+            if (upload.mpu.containerName().equals(container)) {
+                list.add(upload.mpu);
+            }
+        }
+        return list;
+    }
+
+    private Container getContainer(String container) {
+        Container existing = containers.get(container);
+        if (existing == null) {
+            throw new ContainerNotFoundException(container, "");
+        }
+        return existing;
+    }
+
+    private static MutableBlobMetadata toMetadata(String container,
+            Entry entry) {
+        MutableBlobMetadata metadata = new MutableBlobMetadataImpl();
+        metadata.setName(entry.name);
+        metadata.setContainer(container);
+        metadata.setType(StorageType.BLOB);
+        metadata.setSize(entry.size);
+        metadata.setETag(entry.eTag);
+        metadata.setCreationDate(entry.lastModified);
+        metadata.setLastModified(entry.lastModified);
+        metadata.setUserMetadata(entry.userMetadata);
+        metadata.setTier(entry.tier);
+        copyContentMetadata(entry.contentMetadata,
+                metadata.getContentMetadata());
+        metadata.getContentMetadata().setContentLength(entry.size);
+        return metadata;
+    }
+
+    private static void copyContentMetadata(ContentMetadata from,
+            MutableContentMetadata to) {
+        to.setCacheControl(from.getCacheControl());
+        to.setContentDisposition(from.getContentDisposition());
+        to.setContentEncoding(from.getContentEncoding());
+        to.setContentLanguage(from.getContentLanguage());
+        to.setContentType(from.getContentType());
+        to.setExpires(from.getExpires());
+    }
+
+    /** Read and hash a payload, discarding its content. */
+    private static long drain(Payload payload, Hasher hasher) {
+        try (InputStream is = payload.openStream()) {
+            return BufferPool.getDefault().copy(is, new OutputStream() {
+                @Override
+                public void write(int b) {
+                    hasher.putByte((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    hasher.putBytes(b, off, len);
+                }
+            }, BufferPool.DEFAULT_COPY_BUFFER_SIZE);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /** SplitMix64 finalizer, a fast bijective mix of 64 bits. */
+    static long splitMix64(long x) {
+        long z = x + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class Container {
+        private final ConcurrentNavigableMap<String, Entry> blobs =
+                new ConcurrentSkipListMap<>();
+        private final Date creationDate = new Date();
+        private volatile ContainerAccess access;
+
+        Container(ContainerAccess access) {
+            this.access = access;
+        }
+    }
+
+    /** Immutable metadata of one object; its content is never stored. */
+    private static final class Entry {
+        private final String name;
+        private final long size;
+        private final String eTag;
+        private final long seed;
+        private final Date lastModified = new Date();
+        private final ContentMetadata contentMetadata;
+        private final Map<String, String> userMetadata;
+        private final BlobAccess access;
+        @Nullable private final Tier tier;
+
+        Entry(String name, long size, String eTag,
+                ContentMetadata contentMetadata,
+                @Nullable Map<String, String> userMetadata,
+                @Nullable BlobAccess access, @Nullable Tier tier) {
+            this.name = name;
+            this.size = size;
+            this.eTag = eTag;
+            this.seed = Hashing.murmur3_128().newHasher()
+                    .putString(name, StandardCharsets.UTF_8)
+                    .putString(eTag, StandardCharsets.UTF_8)
+                    .hash().asLong();
+            MutableContentMetadata copy = new MutableBlobMetadataImpl()
+                    .getContentMetadata();
+            copyContentMetadata(contentMetadata, copy);
+            this.contentMetadata = copy;
+            this.userMetadata = userMetadata == null ?
+                    ImmutableMap.<String, String>of() :
+                    ImmutableMap.copyOf(userMetadata);
+            this.access = access == null ? BlobAccess.PRIVATE : access;
+            this.tier = tier;
+        }
+    }
+
+    private static final class Upload {
+        private final MultipartUpload mpu;
+        private final ConcurrentNavigableMap<Integer, MultipartPart> parts =
+                new ConcurrentSkipListMap<>();
+
+        Upload(MultipartUpload mpu) {
+            this.mpu = mpu;
+        }
+    }
+
+    /** Bytes where position i depends only on the seed and i. */
+    private static final class SyntheticByteSource extends ByteSource {
+        private final long seed;
+        private final long offset;
+        private final long length;
+
+        SyntheticByteSource(long seed, long offset, long length) {
+            this.seed = seed;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new SyntheticInputStream(seed, offset, offset + length);
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public ByteSource slice(long sliceOffset, long sliceLength) {
+            long start = Math.min(sliceOffset, length);
+            return new SyntheticByteSource(seed, offset + start,
+                    Math.min(sliceLength, length - start));
+        }
+    }
+
+    private static final class SyntheticInputStream extends InputStream {
+        private final long seed;
+        private final long end;
+        private long position;
+        private boolean closed;
+
+        SyntheticInputStream(long seed, long position, long end) {
+            this.seed = seed;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed) {
+                throw new IOException("Stream already closed");
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int b = (int) (splitMix64(seed + (position >>> 3)) >>>
+                    ((position & 7) << 3)) & 0xFF;
+            ++position;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream already closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int count = (int) Math.min(len, end - position);
+            int i = 0;
+            while (i < count) {
+                long word = splitMix64(seed + (position >>> 3));
+                int shift = (int) (position & 7);
+                int n = Math.min(8 - shift, count - i);
+                for (int j = 0; j < n; ++j) {
+                    b[off + i + j] = (byte) (word >>> ((shift + j) << 3));
+                }
+                i += n;
+                position += n;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,1041 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.internal.BlobImpl;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
+import org.jclouds.io.MutableContentMetadata;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which acknowledges writes once they are
+ * durable in a local journal and uploads them to the backend in the
+ * background.  The journal is a sequence of append-only segment files; each
+ * record is fsynced before the client sees success.  Only the latest write
+ * of each key is uploaded so that repeated overwrites coalesce, and reads of
+ * keys which are not yet uploaded are served from the journal.  Unflushed
+ * records are replayed at startup and a segment is deleted once all of its
+ * records are uploaded or superseded.  Listings reflect the backend and may
+ * lag pending writes.
+ */
+final class WriteBehindBlobStore extends ForwardingBlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(
+            WriteBehindBlobStore.class);
+    private static final int RECORD_MAGIC = 0x53335742;
+    private static final int RECORD_END = 0x454e4421;
+    private static final int MAX_HEADER_SIZE = 1024 * 1024;
+    private static final int TRAILER_SIZE = 16 + 4;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    /** Drop the pending write of a key which was written around the log. */
+    private static final byte TYPE_FORGET = 3;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+    private static final HashCode EMPTY_MD5 = Hashing.md5().hashBytes(
+            new byte[0]);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final ScheduledExecutorService executorService;
+    private final long flushTimeoutNanos;
+    /** Latest journaled write of each key which is not yet uploaded. */
+    private final Map<Map.Entry<String, String>, Entry> pending =
+            new HashMap<>();
+    private final Set<Map.Entry<String, String>> uploading = new HashSet<>();
+    private final Set<String> knownContainers =
+            ConcurrentHashMap.newKeySet();
+    private Segment active;
+    private long nextSegmentId;
+    private long nextSequence;
+    private final AtomicLong uploadCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private WriteBehindBlobStore(BlobStore blobStore, Path directory,
+            long segmentSize, int threads, long flushTimeout, TimeUnit unit)
+            throws IOException {
+        super(blobStore);
+        checkArgument(segmentSize > 0,
+                "Segment size must be positive, was: %s", segmentSize);
+        checkArgument(threads > 0, "Threads must be positive, was: %s",
+                threads);
+        this.directory = requireNonNull(directory);
+        this.segmentSize = segmentSize;
+        this.flushTimeoutNanos = unit.toNanos(flushTimeout);
+        this.executorService = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("write-behind-%d")
+                        .setDaemon(true)
+                        .build());
+        Files.createDirectories(directory);
+        synchronized (this) {
+            replay();
+            active = newSegment();
+            for (Map.Entry<String, String> key : pending.keySet()) {
+                scheduleUpload(key, 0);
+            }
+        }
+    }
+
+    /**
+     * @param flushTimeout how long operations which need a pending write to
+     *     reach the backend, e.g., server-side copies, wait before failing
+     *     with 503
+     */
+    static WriteBehindBlobStore newWriteBehindBlobStore(BlobStore blobStore,
+            Path directory, long segmentSize, int threads, long flushTimeout,
+            TimeUnit unit) throws IOException {
+        return new WriteBehindBlobStore(blobStore, directory, segmentSize,
+                threads, flushTimeout, unit);
+    }
+
+    @Override
+    public boolean blobExists(String container, String name) {
+        Entry entry = getPending(container, name);
+        if (entry != null) {
+            return entry.type == TYPE_PUT;
+        }
+        return super.blobExists(container, name);
+    }
+
+    @Override
+    public BlobMetadata blobMetadata(String container, String name) {
+        Entry entry = getPending(container, name);
+        if (entry != null) {
+            return entry.type == TYPE_PUT ?
+                    new MutableBlobMetadataImpl(entry.metadata) : null;
+        }
+        return super.blobMetadata(container, name);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name) {
+        return getBlob(container, name, GetOptions.NONE);
+    }
+
+    @Override
+    public Blob getBlob(String container, String name, GetOptions options) {
+        if (options.getRanges().size() > 1) {
+            awaitFlushed(Maps.immutableEntry(container, name));
+            return super.getBlob(container, name, options);
+        }
+        Entry entry;
+        InputStream is;
+        synchronized (this) {
+            entry = pending.get(Maps.immutableEntry(container, name));
+            if (entry == null) {
+                is = null;
+            } else if (entry.type != TYPE_PUT) {
+                return null;
+            } else {
+                try {
+                    is = openBody(entry);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        }
+        if (entry == null) {
+            return super.getBlob(container, name, options);
+        }
+
+        try {
+            int status = ConditionalRequests.status(
+                    entry.metadata, options);
+            if (status != 200) {
+                throw new HttpResponseException(
+                        "conditional request failed", null,
+                        HttpResponse.builder().statusCode(status).build());
+            }
+            return toBlob(entry, is, options.getRanges().isEmpty() ? null :
+                    options.getRanges().get(0));
+        } catch (IOException | RuntimeException e) {
+            try {
+                is.close();
+            } catch (IOException ioe) {
+                logger.debug("Could not close journal stream", ioe);
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob) {
+        return putBlob(container, blob, PutOptions.NONE);
+    }
+
+    @Override
+    public String putBlob(String container, Blob blob, PutOptions options) {
+        String name = blob.getMetadata().getName();
+        ContentMetadata contentMetadata =
+                blob.getMetadata().getContentMetadata();
+        Long contentLength = contentMetadata.getContentLength();
+        if (contentLength == null) {
+            forget(container, name);
+            return super.putBlob(container, blob, options);
+        }
+        checkContainer(container);
+
+        long length = contentLength;
+        BlobAccess access = options.getBlobAccess();
+        Entry entry;
+        try {
+            entry = reserve(TYPE_PUT, container, name, blob.getMetadata(),
+                    access, length);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        try {
+            HashCode md5;
+            try (InputStream is = blob.getPayload().openStream()) {
+                md5 = writeBody(entry, is);
+            }
+            HashCode expectedMD5 = contentMetadata.getContentMD5AsHashCode();
+            if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+                // without a trailer replay skips the record
+                throw new HttpResponseException("Content-MD5 mismatch", null,
+                        HttpResponse.builder().statusCode(400).build());
+            }
+            commit(entry, md5);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                release(entry.segment);
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new RuntimeException(e);
+        }
+        return entry.md5.toString();
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            Entry entry = reserve(TYPE_DELETE, container, name, null, null,
+                    0);
+            try {
+                commit(entry, EMPTY_MD5);
+            } catch (IOException ioe) {
+                synchronized (this) {
+                    release(entry.segment);
+                }
+                throw ioe;
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        for (String name : names) {
+            removeBlob(container, name);
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        awaitFlushed(Maps.immutableEntry(fromContainer, fromName));
+        forget(toContainer, toName);
+        return super.copyBlob(fromContainer, fromName, toContainer, toName,
+                options);
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        forget(mpu.containerName(), mpu.blobName());
+        return super.completeMultipartUpload(mpu, parts);
+    }
+
+    @Override
+    public BlobAccess getBlobAccess(String container, String name) {
+        Entry entry = getPending(container, name);
+        if (entry != null && entry.type == TYPE_PUT) {
+            return entry.access;
+        }
+        return super.getBlobAccess(container, name);
+    }
+
+    @Override
+    public void setBlobAccess(String container, String name,
+            BlobAccess access) {
+        awaitFlushed(Maps.immutableEntry(container, name));
+        super.setBlobAccess(container, name, access);
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        forgetContainer(container);
+        super.clearContainer(container);
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        for (Map.Entry<String, String> key : pendingKeys(container)) {
+            awaitFlushed(key);
+        }
+        knownContainers.remove(container);
+        return super.deleteContainerIfEmpty(container);
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        forgetContainer(container);
+        knownContainers.remove(container);
+        super.deleteContainer(container);
+    }
+
+    /** Number of keys with journaled writes not yet uploaded. */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    long getUploadCount() {
+        return uploadCount.get();
+    }
+
+    /** Number of writes replaced before they were uploaded. */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Wait until all journaled writes are uploaded.
+     *
+     * @return false if the timeout elapsed first
+     */
+    synchronized boolean awaitFlush(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!pending.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /** Stop uploading, leaving pending writes in the journal. */
+    void shutdown() {
+        executorService.shutdownNow();
+        synchronized (this) {
+            try {
+                active.channel.close();
+            } catch (IOException ioe) {
+                logger.debug("Could not close {}", active.path, ioe);
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized Entry getPending(String container, String name) {
+        return pending.get(Maps.immutableEntry(container, name));
+    }
+
+    private synchronized List<Map.Entry<String, String>> pendingKeys(
+            String container) {
+        List<Map.Entry<String, String>> keys = new ArrayList<>();
+        for (Map.Entry<String, String> key : pending.keySet()) {
+            if (key.getKey().equals(container)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private void checkContainer(String container) {
+        if (knownContainers.contains(container)) {
+            return;
+        }
+        if (!super.containerExists(container)) {
+            throw new ContainerNotFoundException(container, "");
+        }
+        knownContainers.add(container);
+    }
+
+    /**
+     * Reserve space for a record in the active segment and write its header.
+     * The returned entry holds a reference on the segment.  Headers are
+     * written in sequence order under the lock so that the fsync of any later
+     * record also persists every earlier header.
+     */
+    private synchronized Entry reserve(byte type, String container,
+            String name, @Nullable BlobMetadata metadata,
+            @Nullable BlobAccess access, long length) throws IOException {
+        if (active.size >= segmentSize) {
+            Segment previous = active;
+            active = newSegment();
+            if (previous.refs == 0) {
+                deleteSegment(previous);
+            }
+        }
+        long sequence = nextSequence++;
+        long lastModified = System.currentTimeMillis();
+        byte[] header = encodeHeader(type, sequence, lastModified, container,
+                name, metadata, access, length);
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + header.length + 4);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(header.length);
+        buffer.put(header);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Segment segment = active;
+        long bodyOffset = segment.size + buffer.remaining();
+        writeFully(segment.channel, buffer, segment.size);
+        segment.size = bodyOffset + length + TRAILER_SIZE;
+        ++segment.refs;
+        return new Entry(type, sequence, container, name, segment,
+                bodyOffset, length,
+                type == TYPE_PUT ? toMetadata(container, name, metadata,
+                        lastModified, length) : null,
+                access == null ? BlobAccess.PRIVATE : access);
+    }
+
+    /** Copy the body into the reserved space, returning its MD5. */
+    private static HashCode writeBody(Entry entry, InputStream is)
+            throws IOException {
+        Hasher hasher = Hashing.md5().newHasher();
+        byte[] buffer = BufferPool.getDefault().acquire(
+                BufferPool.DEFAULT_COPY_BUFFER_SIZE);
+        try {
+            long position = entry.bodyOffset;
+            long remaining = entry.length;
+            while (remaining > 0) {
+                int count = is.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new EOFException("Expected " + entry.length +
+                            " bytes, received " +
+                            (entry.length - remaining));
+                }
+                hasher.putBytes(buffer, 0, count);
+                writeFully(entry.segment.channel,
+                        ByteBuffer.wrap(buffer, 0, count), position);
+                position += count;
+                remaining -= count;
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * Write the trailer, fsync the segment and make the record visible.  This
+     * consumes the reference taken by reserve.
+     */
+    private void commit(Entry entry, HashCode md5) throws IOException {
+        entry.md5 = md5;
+        if (entry.metadata != null) {
+            entry.metadata.setETag(md5.toString());
+            entry.metadata.getContentMetadata().setContentMD5(md5);
+        }
+        writeTrailer(entry, md5);
+
+        Map.Entry<String, String> key = Maps.immutableEntry(
+                entry.container, entry.name);
+        synchronized (this) {
+            apply(key, entry);
+        }
+        scheduleUpload(key, 0);
+    }
+
+    /** Mark the record complete and fsync its segment. */
+    private static void writeTrailer(Entry entry, HashCode md5)
+            throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.put(md5.asBytes());
+        trailer.putInt(RECORD_END);
+        trailer.flip();
+        writeFully(entry.segment.channel, trailer,
+                entry.bodyOffset + entry.length);
+        entry.segment.channel.force(true);
+    }
+
+    /** Make entry the pending write of key unless a newer one exists. */
+    private void apply(Map.Entry<String, String> key, Entry entry) {
+        Entry previous = pending.get(key);
+        if (previous != null && previous.sequence > entry.sequence) {
+            release(entry.segment);
+            return;
+        }
+        pending.put(key, entry);
+        if (previous != null) {
+            coalescedCount.incrementAndGet();
+            release(previous.segment);
+        }
+    }
+
+    /**
+     * Drop the pending write of a key before writing it directly to the
+     * backend.  Waits for any upload in progress so that it cannot land after
+     * the direct write.
+     */
+    private void forget(String container, String name) {
+        Map.Entry<String, String> key = Maps.immutableEntry(container, name);
+        synchronized (this) {
+            awaitUpload(key);
+            if (!pending.containsKey(key)) {
+                return;
+            }
+        }
+        try {
+            Entry entry = reserve(TYPE_FORGET, container, name, null, null,
+                    0);
+            writeTrailer(entry, EMPTY_MD5);
+            synchronized (this) {
+                awaitUpload(key);
+                Entry previous = pending.get(key);
+                if (previous != null && previous.sequence < entry.sequence) {
+                    pending.remove(key);
+                    release(previous.segment);
+                    notifyAll();
+                }
+                release(entry.segment);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private void forgetContainer(String container) {
+        for (Map.Entry<String, String> key : pendingKeys(container)) {
+            forget(key.getKey(), key.getValue());
+        }
+    }
+
+    private void awaitUpload(Map.Entry<String, String> key) {
+        try {
+            while (uploading.contains(key)) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     * Block until key has no pending write, e.g., before a server copy.  A
+     * backend outage can hold writes indefinitely so fail with 503 after
+     * flushTimeout instead of tying up the request thread.
+     */
+    private synchronized void awaitFlushed(Map.Entry<String, String> key) {
+        long deadline = System.nanoTime() + flushTimeoutNanos;
+        try {
+            while (pending.containsKey(key)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new HttpResponseException(
+                            "write not yet uploaded: " + key.getValue(), null,
+                            HttpResponse.builder().statusCode(503).build());
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+    }
+
+    private void scheduleUpload(Map.Entry<String, String> key,
+            long delayMillis) {
+        executorService.schedule(() -> upload(key), delayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void upload(Map.Entry<String, String> key) {
+        Entry entry;
+        InputStream is = null;
+        synchronized (this) {
+            entry = pending.get(key);
+            if (entry == null || !uploading.add(key)) {
+                return;
+            }
+            if (entry.type == TYPE_PUT) {
+                try {
+                    is = openBody(entry);
+                } catch (IOException ioe) {
+                    uploading.remove(key);
+                    logger.error("Could not read journal for {}/{}",
+                            entry.container, entry.name, ioe);
+                    return;
+                }
+            }
+        }
+
+        boolean success = false;
+        try {
+            if (entry.type == TYPE_PUT) {
+                try (InputStream body = is) {
+                    super.putBlob(entry.container, toBackendBlob(entry, body),
+                            new PutOptions().setBlobAccess(entry.access));
+                }
+            } else {
+                super.removeBlob(entry.container, entry.name);
+            }
+            uploadCount.incrementAndGet();
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not upload {}/{}, attempt {}",
+                    entry.container, entry.name, entry.attempts + 1, e);
+        }
+
+        long delay = -1;
+        synchronized (this) {
+            uploading.remove(key);
+            Entry latest = pending.get(key);
+            if (latest == entry && success) {
+                pending.remove(key);
+                release(entry.segment);
+            } else if (latest == entry) {
+                ++entry.attempts;
+                delay = Math.min(MIN_RETRY_DELAY_MS <<
+                        Math.min(entry.attempts - 1, 16), MAX_RETRY_DELAY_MS);
+            } else if (latest != null) {
+                delay = 0;
+            }
+            notifyAll();
+        }
+        if (delay >= 0) {
+            scheduleUpload(key, delay);
+        }
+    }
+
+    private Blob toBackendBlob(Entry entry, InputStream is) {
+        ContentMetadata contentMetadata = entry.metadata.getContentMetadata();
+        Blob blob = blobBuilder(entry.name)
+                .userMetadata(entry.metadata.getUserMetadata())
+                .payload(is)
+                .build();
+        MutableContentMetadata metadata =
+                blob.getPayload().getContentMetadata();
+        metadata.setCacheControl(contentMetadata.getCacheControl());
+        metadata.setContentDisposition(
+                contentMetadata.getContentDisposition());
+        metadata.setContentEncoding(contentMetadata.getContentEncoding());
+        metadata.setContentLanguage(contentMetadata.getContentLanguage());
+        metadata.setContentType(contentMetadata.getContentType());
+        metadata.setExpires(contentMetadata.getExpires());
+        metadata.setContentLength(entry.length);
+        metadata.setContentMD5(entry.md5);
+        return blob;
+    }
+
+    private static Blob toBlob(Entry entry, InputStream is,
+            @Nullable String range) throws IOException {
+        long offset = 0;
+        long count = entry.length;
+        if (range != null) {
+            long[] resolved = ByteRanges.parse(range, entry.length);
+            if (resolved == null) {
+                throw new HttpResponseException("invalid range", null,
+                        HttpResponse.builder().statusCode(416).build());
+            }
+            offset = resolved[0];
+            count = resolved[1];
+            ByteStreams.skipFully(is, offset);
+        }
+
+        MutableBlobMetadataImpl blobMetadata =
+                new MutableBlobMetadataImpl(entry.metadata);
+        Blob blob = new BlobImpl(blobMetadata);
+        Payload payload = Payloads.newInputStreamPayload(
+                ByteStreams.limit(is, count));
+        payload.setContentMetadata(blobMetadata.getContentMetadata());
+        payload.getContentMetadata().setContentLength(count);
+        blob.setPayload(payload);
+        if (range != null) {
+            payload.getContentMetadata().setContentMD5((HashCode) null);
+            blob.setAllHeaders(ImmutableMultimap.of(
+                    HttpHeaders.CONTENT_RANGE,
+                    ByteRanges.contentRange(offset, count, entry.length)));
+        }
+        return blob;
+    }
+
+    /**
+     * Open the body of a journaled write.  Callers hold the lock so that the
+     * segment cannot be deleted first; the open file outlives deletion.
+     */
+    private static InputStream openBody(Entry entry) throws IOException {
+        FileChannel channel = FileChannel.open(entry.segment.path,
+                StandardOpenOption.READ);
+        channel.position(entry.bodyOffset);
+        return ByteStreams.limit(Channels.newInputStream(channel),
+                entry.length);
+    }
+
+    private Segment newSegment() throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s",
+                SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+        return new Segment(path, FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    }
+
+    private void release(Segment segment) {
+        if (--segment.refs == 0 && segment != active) {
+            deleteSegment(segment);
+        }
+    }
+
+    private static void deleteSegment(Segment segment) {
+        try {
+            if (segment.channel != null) {
+                segment.channel.close();
+            }
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ioe) {
+            logger.warn("Could not delete {}", segment.path, ioe);
+        }
+    }
+
+    /** Rebuild the pending writes from the segments left by a prior run. */
+    private void replay() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            String fileName = path.getFileName().toString();
+            long id;
+            try {
+                id = Long.parseLong(fileName.substring(
+                        SEGMENT_PREFIX.length(),
+                        fileName.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            Segment segment = new Segment(path, null);
+            // hold a reference while reading so that release deletes
+            // segments without live records
+            segment.refs = 1;
+            replaySegment(segment);
+            release(segment);
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Replayed {} pending writes from {}", pending.size(),
+                    directory);
+        }
+    }
+
+    private void replaySegment(Segment segment) throws IOException {
+        try (CountingInputStream cis = new CountingInputStream(
+                new BufferedInputStream(Files.newInputStream(
+                        segment.path)))) {
+            DataInputStream in = new DataInputStream(cis);
+            while (true) {
+                Entry entry;
+                HashCode md5;
+                boolean valid;
+                try {
+                    if (in.readInt() != RECORD_MAGIC) {
+                        break;
+                    }
+                    int headerLength = in.readInt();
+                    if (headerLength < 0 || headerLength > MAX_HEADER_SIZE) {
+                        break;
+                    }
+                    byte[] header = new byte[headerLength];
+                    in.readFully(header);
+                    CRC32 crc = new CRC32();
+                    crc.update(header);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    entry = decodeHeader(header, segment, cis.getCount());
+                    HashingInputStream his = new HashingInputStream(
+                            Hashing.md5(), ByteStreams.limit(in,
+                                    entry.length));
+                    if (ByteStreams.exhaust(his) != entry.length) {
+                        break;
+                    }
+                    md5 = his.hash();
+                    byte[] expected = new byte[16];
+                    in.readFully(expected);
+                    valid = md5.equals(HashCode.fromBytes(expected)) &&
+                            in.readInt() == RECORD_END;
+                } catch (EOFException eofe) {
+                    break;
+                }
+
+                nextSequence = Math.max(nextSequence, entry.sequence + 1);
+                if (!valid) {
+                    // torn or aborted write which was never acknowledged
+                    continue;
+                }
+                Map.Entry<String, String> key = Maps.immutableEntry(
+                        entry.container, entry.name);
+                if (entry.type == TYPE_FORGET) {
+                    Entry previous = pending.get(key);
+                    if (previous != null &&
+                            previous.sequence < entry.sequence) {
+                        pending.remove(key);
+                        release(previous.segment);
+                    }
+                    continue;
+                }
+                entry.md5 = md5;
+                if (entry.metadata != null) {
+                    entry.metadata.setETag(md5.toString());
+                    entry.metadata.getContentMetadata().setContentMD5(md5);
+                }
+                ++segment.refs;
+                apply(key, entry);
+            }
+        }
+    }
+
+    private static byte[] encodeHeader(byte type, long sequence,
+            long lastModified, String container, String name,
+            @Nullable BlobMetadata metadata, @Nullable BlobAccess access,
+            long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeLong(lastModified);
+        out.writeUTF(container);
+        out.writeUTF(name);
+        out.writeLong(length);
+        if (metadata != null) {
+            out.writeUTF((access == null ? BlobAccess.PRIVATE : access)
+                    .name());
+            ContentMetadata contentMetadata = metadata.getContentMetadata();
+            writeNullableString(out, contentMetadata.getCacheControl());
+            writeNullableString(out,
+                    contentMetadata.getContentDisposition());
+            writeNullableString(out, contentMetadata.getContentEncoding());
+            writeNullableString(out, contentMetadata.getContentLanguage());
+            writeNullableString(out, contentMetadata.getContentType());
+            Date expires = contentMetadata.getExpires();
+            out.writeLong(expires == null ? -1 : expires.getTime());
+            Map<String, String> userMetadata = metadata.getUserMetadata();
+            if (userMetadata == null) {
+                userMetadata = Collections.emptyMap();
+            }
+            out.writeInt(userMetadata.size());
+            for (Map.Entry<String, String> entry : userMetadata.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decodeHeader(byte[] header, Segment segment,
+            long bodyOffset) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(header));
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        long lastModified = in.readLong();
+        String container = in.readUTF();
+        String name = in.readUTF();
+        long length = in.readLong();
+        if (type != TYPE_PUT) {
+            return new Entry(type, sequence, container, name, segment,
+                    bodyOffset, length, null, BlobAccess.PRIVATE);
+        }
+
+        BlobAccess access = BlobAccess.valueOf(in.readUTF());
+        MutableBlobMetadata metadata = toMetadata(container, name, null,
+                lastModified, length);
+        MutableContentMetadata contentMetadata =
+                metadata.getContentMetadata();
+        contentMetadata.setCacheControl(readNullableString(in));
+        contentMetadata.setContentDisposition(readNullableString(in));
+        contentMetadata.setContentEncoding(readNullableString(in));
+        contentMetadata.setContentLanguage(readNullableString(in));
+        contentMetadata.setContentType(readNullableString(in));
+        long expires = in.readLong();
+        contentMetadata.setExpires(expires == -1 ? null : new Date(expires));
+        int count = in.readInt();
+        Map<String, String> userMetadata = new HashMap<>();
+        for (int i = 0; i < count; ++i) {
+            userMetadata.put(in.readUTF(), in.readUTF());
+        }
+        metadata.setUserMetadata(userMetadata);
+        return new Entry(type, sequence, container, name, segment,
+                bodyOffset, length, metadata, access);
+    }
+
+    private static MutableBlobMetadata toMetadata(String container,
+            String name, @Nullable BlobMetadata source, long lastModified,
+            long length) {
+        MutableBlobMetadata metadata = source == null ?
+                new MutableBlobMetadataImpl() :
+                new MutableBlobMetadataImpl(source);
+        metadata.setType(StorageType.BLOB);
+        metadata.setContainer(container);
+        metadata.setName(name);
+        metadata.setLastModified(new Date(lastModified));
+        metadata.setSize(length);
+        metadata.getContentMetadata().setContentLength(length);
+        return metadata;
+    }
+
+    private static void writeNullableString(DataOutputStream out,
+            @Nullable String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(DataInputStream in)
+            throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        @Nullable
+        private final FileChannel channel;
+        /** Next free offset; reservations may run ahead of the file size. */
+        private long size;
+        /** Pending entries and in-progress writes which use this segment. */
+        private int refs;
+
+        Segment(Path path, @Nullable FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Entry {
+        private final byte type;
+        private final long sequence;
+        private final String container;
+        private final String name;
+        private final Segment segment;
+        private final long bodyOffset;
+        private final long length;
+        @Nullable
+        private final MutableBlobMetadata metadata;
+        private final BlobAccess access;
+        private HashCode md5;
+        private int attempts;
+
+        Entry(byte type, long sequence, String container, String name,
+                Segment segment, long bodyOffset, long length,
+                @Nullable MutableBlobMetadata metadata, BlobAccess access) {
+            this.type = type;
+            this.sequence = sequence;
+            this.container = container;
+            this.name = name;
+            this.segment = segment;
+            this.bodyOffset = bodyOffset;
+            this.length = length;
+            this.metadata = metadata;
+            this.access = access;
+        }
+    }
+}
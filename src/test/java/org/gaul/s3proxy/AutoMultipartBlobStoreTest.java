@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payload;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class AutoMultipartBlobStoreTest {
+    private static final long PART_SIZE = 1024 * 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private ExecutorService executorService;
+    private final AtomicInteger uploadCount = new AtomicInteger();
+    private final AtomicInteger failuresRemaining = new AtomicInteger();
+    private BlobStore autoMultipartBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        executorService = Executors.newFixedThreadPool(4);
+        BlobStore flakyBlobStore = new ForwardingBlobStore(blobStore) {
+            @Override
+            public MultipartPart uploadMultipartPart(MultipartUpload mpu,
+                    int partNumber, Payload payload) {
+                uploadCount.incrementAndGet();
+                if (failuresRemaining.getAndDecrement() > 0) {
+                    throw new RuntimeException("injected failure");
+                }
+                return super.uploadMultipartPart(mpu, partNumber, payload);
+            }
+        };
+        autoMultipartBlobStore =
+                AutoMultipartBlobStore.newAutoMultipartBlobStore(
+                        flakyBlobStore, executorService, 2 * PART_SIZE,
+                        PART_SIZE, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testPutLargeBlob() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                5 * PART_SIZE + 1);
+        String eTag = autoMultipartBlobStore.putBlob(containerName,
+                makeBlob(blobName, content));
+
+        // the ETag of the completed upload, which later reads observe
+        assertThat(eTag.replace("\"", "")).isEqualTo(blobStore.blobMetadata(
+                containerName, blobName).getETag().replace("\"", ""));
+        assertThat(uploadCount.get()).isEqualTo(6);
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+    }
+
+    @Test
+    public void testPutSmallBlob() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                PART_SIZE);
+        autoMultipartBlobStore.putBlob(containerName, makeBlob(blobName,
+                content));
+
+        assertThat(uploadCount.get()).isZero();
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+    }
+
+    @Test
+    public void testRetryPart() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                3 * PART_SIZE);
+        failuresRemaining.set(1);
+        autoMultipartBlobStore.putBlob(containerName, makeBlob(blobName,
+                content));
+
+        assertThat(uploadCount.get()).isEqualTo(4);
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+    }
+
+    @Test
+    public void testBadDigest() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                3 * PART_SIZE);
+        Blob blob = makeBlob(blobName, content);
+        blob.getMetadata().getContentMetadata().setContentMD5(
+                Hashing.md5().hashInt(0));
+        try {
+            autoMultipartBlobStore.putBlob(containerName, blob);
+            Fail.failBecauseExceptionWasNotThrown(
+                    HttpResponseException.class);
+        } catch (HttpResponseException hre) {
+            assertThat(hre.getResponse().getStatusCode()).isEqualTo(400);
+        }
+        assertThat(blobStore.blobExists(containerName, blobName)).isFalse();
+        assertThat(blobStore.listMultipartUploads(containerName)).isEmpty();
+    }
+
+    private Blob makeBlob(String blobName, ByteSource content)
+            throws Exception {
+        return blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Module;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class BlockCacheBlobStoreTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private Path directory;
+    private BlockCacheBlobStore cacheBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        directory = Files.createTempDirectory("s3proxy-block-cache");
+        cacheBlobStore = BlockCacheBlobStore.newBlockCacheBlobStore(
+                blobStore, directory, 8 * BLOCK_SIZE, BLOCK_SIZE, 0,
+                TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+        if (directory != null) {
+            MoreFiles.deleteRecursively(directory,
+                    RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testGetBlob() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                3 * BLOCK_SIZE + 100);
+        putBlob(blobName, content);
+
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getMissCount()).isEqualTo(4);
+        assertThat(cacheBlobStore.getSize()).isEqualTo(content.size());
+
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getHitCount()).isEqualTo(4);
+        assertThat(cacheBlobStore.getMissCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testGetBlobRange() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                3 * BLOCK_SIZE + 100);
+        putBlob(blobName, content);
+
+        // spans the second and third blocks
+        long offset = BLOCK_SIZE + 10;
+        Blob blob = cacheBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(offset, offset + BLOCK_SIZE - 1));
+        assertContent(blob, content.slice(offset, BLOCK_SIZE));
+        assertThat(blob.getAllHeaders().get(HttpHeaders.CONTENT_RANGE))
+                .containsExactly("bytes " + offset + "-" +
+                        (offset + BLOCK_SIZE - 1) + "/" + content.size());
+        assertThat(cacheBlobStore.getMissCount()).isEqualTo(2);
+
+        blob = cacheBlobStore.getBlob(containerName, blobName,
+                new GetOptions().tail(50));
+        assertContent(blob, content.slice(content.size() - 50, 50));
+        assertThat(cacheBlobStore.getMissCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testOverwriteChangesETag() throws Exception {
+        String blobName = "blob";
+        ByteSource oldContent = TestUtils.randomByteSource().slice(0,
+                BLOCK_SIZE);
+        putBlob(blobName, oldContent);
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                oldContent);
+
+        ByteSource content = TestUtils.randomByteSource().slice(1,
+                BLOCK_SIZE);
+        putBlob(blobName, content);
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getHitCount()).isZero();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                10 * BLOCK_SIZE);
+        putBlob(blobName, content);
+
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getEvictionCount()).isEqualTo(2);
+        assertThat(cacheBlobStore.getSize()).isEqualTo(8 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void testIndexSurvivesRestart() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                2 * BLOCK_SIZE);
+        putBlob(blobName, content);
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+
+        BlockCacheBlobStore restarted =
+                BlockCacheBlobStore.newBlockCacheBlobStore(blobStore,
+                        directory, 8 * BLOCK_SIZE, BLOCK_SIZE, 0,
+                        TimeUnit.SECONDS);
+        assertThat(restarted.getSize()).isEqualTo(content.size());
+        assertContent(restarted.getBlob(containerName, blobName), content);
+        assertThat(restarted.getHitCount()).isEqualTo(2);
+        assertThat(restarted.getMissCount()).isZero();
+    }
+
+    @Test
+    public void testMetadataTtl() throws Exception {
+        CountingBlobStore counting = new CountingBlobStore(blobStore);
+        BlockCacheBlobStore ttlBlobStore =
+                BlockCacheBlobStore.newBlockCacheBlobStore(counting,
+                        directory, 8 * BLOCK_SIZE, BLOCK_SIZE, 1,
+                        TimeUnit.HOURS);
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                BLOCK_SIZE);
+        putBlob(blobName, content);
+
+        assertContent(ttlBlobStore.getBlob(containerName, blobName), content);
+        assertContent(ttlBlobStore.getBlob(containerName, blobName), content);
+        assertThat(counting.metadataCount).isEqualTo(1);
+
+        // writes through the cache invalidate its metadata
+        ByteSource newContent = TestUtils.randomByteSource().slice(1,
+                BLOCK_SIZE);
+        ttlBlobStore.putBlob(containerName, ttlBlobStore.blobBuilder(blobName)
+                .payload(newContent)
+                .contentLength(newContent.size())
+                .build());
+        assertContent(ttlBlobStore.getBlob(containerName, blobName),
+                newContent);
+        assertThat(counting.metadataCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetBlobMissing() throws Exception {
+        assertThat(cacheBlobStore.getBlob(containerName, "missing")).isNull();
+    }
+
+    private void putBlob(String blobName, ByteSource content)
+            throws Exception {
+        Blob blob = blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        blobStore.putBlob(containerName, blob);
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+
+    /** Counts metadata requests which reach the backend. */
+    private static final class CountingBlobStore extends ForwardingBlobStore {
+        private int metadataCount;
+
+        CountingBlobStore(BlobStore blobStore) {
+            super(blobStore);
+        }
+
+        @Override
+        public BlobMetadata blobMetadata(String container, String name) {
+            metadataCount++;
+            return super.blobMetadata(container, name);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import com.google.common.io.ByteSource;
+
+import org.junit.Test;
+
+public final class BufferPoolTest {
+    @Test
+    public void testSizeClasses() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        assertThat(pool.acquire(1).length).isEqualTo(
+                BufferPool.MIN_BUFFER_SIZE);
+        assertThat(pool.acquire(BufferPool.MIN_BUFFER_SIZE + 1).length)
+                .isEqualTo(2 * BufferPool.MIN_BUFFER_SIZE);
+        assertThat(pool.acquire(BufferPool.MAX_BUFFER_SIZE).length)
+                .isEqualTo(BufferPool.MAX_BUFFER_SIZE);
+        assertThat(pool.acquire(BufferPool.MAX_BUFFER_SIZE + 1).length)
+                .isEqualTo(BufferPool.MAX_BUFFER_SIZE + 1);
+        assertThat(pool.getOutstandingCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        byte[] buffer = pool.acquire(10000);
+        pool.release(buffer);
+        assertThat(pool.acquire(10000)).isSameAs(buffer);
+        assertThat(pool.getAcquireCount()).isEqualTo(2);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+        assertThat(pool.getOutstandingCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPoolBounded() throws Exception {
+        int size = BufferPool.MIN_BUFFER_SIZE;
+        BufferPool pool = new BufferPool(3 * size);
+        byte[][] buffers = new byte[4][];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = pool.acquire(size);
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        // two per-thread cached buffers and one in the shared pool
+        assertThat(pool.getPooledBytes()).isEqualTo(3 * size);
+        for (int i = 0; i < buffers.length; ++i) {
+            pool.acquire(size);
+        }
+        assertThat(pool.getHitCount()).isEqualTo(3);
+        assertThat(pool.getPooledBytes()).isZero();
+    }
+
+    @Test
+    public void testReleaseOnOtherThreadsBounded() throws Exception {
+        int size = BufferPool.MIN_BUFFER_SIZE;
+        BufferPool pool = new BufferPool(2 * size);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            byte[] buffer = pool.acquire(size);
+            threads[i] = new Thread(() -> pool.release(buffer));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(pool.getPooledBytes()).isEqualTo(2 * size);
+        assertThat(pool.getOutstandingCount()).isZero();
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                1024 * 1024 + 1);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (InputStream is = content.openStream()) {
+            assertThat(pool.copy(is, os, 8192)).isEqualTo(content.size());
+        }
+        assertThat(os.toByteArray()).isEqualTo(content.read());
+        assertThat(pool.getOutstandingCount()).isZero();
+    }
+}
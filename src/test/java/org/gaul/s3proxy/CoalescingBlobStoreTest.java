@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Module;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CoalescingBlobStoreTest {
+    private static final long BUFFER_SIZE = 64 * 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private CoalescingBlobStore coalescingBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        coalescingBlobStore = CoalescingBlobStore.newCoalescingBlobStore(
+                blobStore, BUFFER_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsShareFetch() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                BUFFER_SIZE / 2);
+        putBlob(blobName, content);
+
+        Blob blob1 = coalescingBlobStore.getBlob(containerName, blobName);
+        Blob blob2 = coalescingBlobStore.getBlob(containerName, blobName);
+        assertThat(coalescingBlobStore.getFetchCount()).isEqualTo(1);
+        assertThat(coalescingBlobStore.getCoalescedCount()).isEqualTo(1);
+        assertContent(blob1, content);
+        assertContent(blob2, content);
+
+        // completed fetches are not reused
+        assertContent(coalescingBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(coalescingBlobStore.getFetchCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRangesDoNotShareFetch() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        putBlob(blobName, content);
+
+        Blob blob1 = coalescingBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(0, 99));
+        Blob blob2 = coalescingBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(100, 199));
+        Blob blob3 = coalescingBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(100, 199));
+        assertThat(coalescingBlobStore.getFetchCount()).isEqualTo(2);
+        assertContent(blob1, content.slice(0, 100));
+        assertContent(blob2, content.slice(100, 100));
+        assertContent(blob3, content.slice(100, 100));
+    }
+
+    @Test
+    public void testSlowReaderFallsBack() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                8 * BUFFER_SIZE);
+        putBlob(blobName, content);
+
+        Blob fast = coalescingBlobStore.getBlob(containerName, blobName);
+        Blob slow = coalescingBlobStore.getBlob(containerName, blobName);
+        try (InputStream is = slow.getPayload().openStream()) {
+            byte[] prefix = new byte[100];
+            ByteStreams.readFully(is, prefix);
+            assertContent(fast, content);
+            assertThat(ByteStreams.toByteArray(is)).isEqualTo(
+                    content.slice(100, content.size() - 100).read());
+        }
+        assertThat(coalescingBlobStore.getFetchCount()).isEqualTo(1);
+        assertThat(coalescingBlobStore.getFallbackCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testWriteInvalidatesFetch() throws Exception {
+        String blobName = "blob";
+        ByteSource oldContent = TestUtils.randomByteSource().slice(0, 1000);
+        putBlob(blobName, oldContent);
+        Blob oldBlob = coalescingBlobStore.getBlob(containerName, blobName);
+
+        ByteSource content = TestUtils.randomByteSource().slice(1, 1000);
+        Blob blob = coalescingBlobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        coalescingBlobStore.putBlob(containerName, blob);
+
+        assertContent(coalescingBlobStore.getBlob(containerName, blobName),
+                content);
+        assertContent(oldBlob, oldContent);
+    }
+
+    @Test
+    public void testClearContainerInvalidatesFetch() throws Exception {
+        String blobName = "blob";
+        ByteSource oldContent = TestUtils.randomByteSource().slice(0, 1000);
+        putBlob(blobName, oldContent);
+        Blob oldBlob = coalescingBlobStore.getBlob(containerName, blobName);
+
+        coalescingBlobStore.clearContainer(containerName);
+        ByteSource content = TestUtils.randomByteSource().slice(1, 1000);
+        putBlob(blobName, content);
+
+        assertContent(coalescingBlobStore.getBlob(containerName, blobName),
+                content);
+        assertContent(oldBlob, oldContent);
+    }
+
+    @Test
+    public void testLoneReaderReleasesWindow() throws Exception {
+        CoalescingBlobStore store = CoalescingBlobStore.newCoalescingBlobStore(
+                blobStore, 4 * BUFFER_SIZE);
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                8 * BUFFER_SIZE);
+        putBlob(blobName, content);
+
+        Blob blob = store.getBlob(containerName, blobName);
+        try (InputStream is = blob.getPayload().openStream()) {
+            byte[] prefix = new byte[(int) (6 * BUFFER_SIZE)];
+            ByteStreams.readFully(is, prefix);
+            assertThat(prefix).isEqualTo(
+                    content.slice(0, prefix.length).read());
+            // the window slid, so no reader can join and only the chunk
+            // being read is retained
+            assertThat(store.getBufferedBytes()).isLessThanOrEqualTo(
+                    BUFFER_SIZE);
+        }
+        assertThat(store.getBufferedBytes()).isZero();
+    }
+
+    @Test
+    public void testGetBlobMissing() throws Exception {
+        assertThat(coalescingBlobStore.getBlob(containerName, "missing"))
+                .isNull();
+        assertThat(coalescingBlobStore.getBlob(containerName, "missing"))
+                .isNull();
+        assertThat(coalescingBlobStore.getFetchCount()).isEqualTo(2);
+    }
+
+    private void putBlob(String blobName, ByteSource content)
+            throws Exception {
+        Blob blob = blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        blobStore.putBlob(containerName, blob);
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
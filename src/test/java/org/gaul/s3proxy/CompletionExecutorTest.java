@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Fail;
+import org.junit.Test;
+
+public final class CompletionExecutorTest {
+    @Test
+    public void testAwaitWritesKeepAlives() throws Exception {
+        CompletionExecutor executor = new CompletionExecutor(2, 2, 20);
+        Future<String> future = executor.submit(() -> {
+            Thread.sleep(200);
+            return "etag";
+        });
+        StringWriter output = new StringWriter();
+        assertThat(executor.await(future, new PrintWriter(output)))
+                .isEqualTo("etag");
+
+        assertThat(output.toString()).startsWith("\n").matches("\n+");
+        assertThat(executor.getCompletedCount()).isEqualTo(1);
+        assertThat(executor.getMaxLatencyNanos()).isGreaterThanOrEqualTo(
+                TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(executor.getMeanLatencyNanos()).isEqualTo(
+                executor.getMaxLatencyNanos());
+    }
+
+    @Test
+    public void testAwaitRethrowsFailure() throws Exception {
+        CompletionExecutor executor = new CompletionExecutor(1, 1, 20);
+        Future<String> future = executor.submit(() -> {
+            throw new IllegalStateException("backend failure");
+        });
+        try {
+            executor.await(future, new PrintWriter(new StringWriter()));
+            Fail.failBecauseExceptionWasNotThrown(
+                    IllegalStateException.class);
+        } catch (IllegalStateException ise) {
+            assertThat(ise.getMessage()).isEqualTo("backend failure");
+        }
+    }
+
+    @Test
+    public void testQueueFullRejected() throws Exception {
+        CompletionExecutor executor = new CompletionExecutor(1, 1, 20);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> {
+            started.countDown();
+            release.await();
+            return "first";
+        });
+        started.await();
+        Future<String> queued = executor.submit(() -> "second");
+        assertThat(executor.getActiveCount()).isEqualTo(1);
+        assertThat(executor.getQueueDepth()).isEqualTo(1);
+
+        try {
+            executor.submit(() -> "third");
+            Fail.failBecauseExceptionWasNotThrown(S3Exception.class);
+        } catch (S3Exception se) {
+            assertThat(se.getError()).isEqualTo(S3ErrorCode.SLOW_DOWN);
+        }
+        assertThat(executor.getRejectedCount()).isEqualTo(1);
+
+        release.countDown();
+        assertThat(queued.get()).isEqualTo("second");
+    }
+
+    @Test
+    public void testDisconnectCancelsCompletion() throws Exception {
+        CompletionExecutor executor = new CompletionExecutor(1, 1, 20);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Future<String> future = executor.submit(() -> {
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException ie) {
+                interrupted.countDown();
+            }
+            return "etag";
+        });
+
+        try {
+            executor.await(future, new PrintWriter(new DisconnectedWriter()));
+            Fail.failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException ioe) {
+            // expected
+        }
+        assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.getCancelledCount()).isEqualTo(1);
+    }
+
+    private static final class DisconnectedWriter extends Writer {
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.Payloads;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CompressionBlobStoreTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private CompressionBlobStore compressionBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        compressionBlobStore = CompressionBlobStore.newCompressionBlobStore(
+                blobStore, BLOCK_SIZE, 4096, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testCompressibleRoundTrip() throws Exception {
+        String blobName = "blob";
+        ByteSource content = textByteSource(10000);
+        Blob blob = makeBlob(blobName, content);
+        blob.getMetadata().setUserMetadata(ImmutableMap.of("key", "value"));
+        blob.getMetadata().getContentMetadata().setContentType("text/plain");
+        String eTag = compressionBlobStore.putBlob(containerName, blob);
+        assertThat(eTag).isEqualTo(content.hash(Hashing.md5()).toString());
+
+        assertThat(blobStore.blobMetadata(containerName, blobName).getSize())
+                .isLessThan(content.size() / 2);
+        assertThat(compressionBlobStore.getStoredBytes()).isLessThan(
+                compressionBlobStore.getLogicalBytes() / 2);
+
+        BlobMetadata metadata = compressionBlobStore.blobMetadata(
+                containerName, blobName);
+        assertThat(metadata.getSize()).isEqualTo(content.size());
+        assertThat(metadata.getETag()).isEqualTo(eTag);
+        assertThat(metadata.getUserMetadata()).isEqualTo(
+                ImmutableMap.of("key", "value"));
+        assertThat(metadata.getContentMetadata().getContentType())
+                .isEqualTo("text/plain");
+
+        Blob actual = compressionBlobStore.getBlob(containerName, blobName);
+        assertThat(actual.getMetadata().getContentMetadata()
+                .getContentLength()).isEqualTo(content.size());
+        assertThat(actual.getMetadata().getETag()).isEqualTo(eTag);
+        assertContent(actual, content);
+    }
+
+    @Test
+    public void testRangeSpanningBlocks() throws Exception {
+        String blobName = "blob";
+        ByteSource content = textByteSource(10000);
+        compressionBlobStore.putBlob(containerName,
+                makeBlob(blobName, content));
+
+        assertContent(compressionBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(1000, 3099)),
+                content.slice(1000, 2100));
+        assertContent(compressionBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(BLOCK_SIZE, 2 * BLOCK_SIZE - 1)),
+                content.slice(BLOCK_SIZE, BLOCK_SIZE));
+        assertContent(compressionBlobStore.getBlob(containerName, blobName,
+                new GetOptions().tail(10)), content.slice(9990, 10));
+    }
+
+    @Test
+    public void testIncompressibleRoundTrip() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 5000);
+        compressionBlobStore.putBlob(containerName,
+                makeBlob(blobName, content));
+
+        assertThat(blobStore.blobMetadata(containerName, blobName).getSize())
+                .isEqualTo(content.size());
+        assertContent(compressionBlobStore.getBlob(containerName, blobName),
+                content);
+        assertContent(compressionBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(2000, 2999)),
+                content.slice(2000, 1000));
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        String blobName = "blob";
+        ByteSource part1 = textByteSource(5000);
+        ByteSource part2 = TestUtils.randomByteSource().slice(0, 3000);
+        MultipartUpload mpu = compressionBlobStore.initiateMultipartUpload(
+                containerName, makeBlob(blobName, part1).getMetadata(),
+                new PutOptions());
+        compressionBlobStore.uploadMultipartPart(mpu, 1,
+                Payloads.newByteSourcePayload(part1));
+        compressionBlobStore.uploadMultipartPart(mpu, 2,
+                Payloads.newByteSourcePayload(part2));
+
+        List<MultipartPart> parts = compressionBlobStore.listMultipartUpload(
+                mpu);
+        assertThat(parts).hasSize(2);
+        assertThat(parts.get(0).partSize()).isEqualTo(part1.size());
+        assertThat(parts.get(0).partETag()).isEqualTo(
+                part1.hash(Hashing.md5()).toString());
+        compressionBlobStore.completeMultipartUpload(mpu, parts);
+
+        ByteSource content = ByteSource.concat(part1, part2);
+        assertThat(compressionBlobStore.blobMetadata(containerName, blobName)
+                .getSize()).isEqualTo(content.size());
+        assertContent(compressionBlobStore.getBlob(containerName, blobName),
+                content);
+        assertContent(compressionBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(4000, 5999)),
+                content.slice(4000, 2000));
+        assertThat(blobStore.list(containerName, new ListContainerOptions()
+                .prefix(CompressionBlobStore.COMPRESSION_PREFIX + "parts/")
+                .recursive())).isEmpty();
+    }
+
+    @Test
+    public void testCompleteWithInvalidPart() throws Exception {
+        String blobName = "blob";
+        ByteSource part1 = textByteSource(5000);
+        MultipartUpload mpu = compressionBlobStore.initiateMultipartUpload(
+                containerName, makeBlob(blobName, part1).getMetadata(),
+                new PutOptions());
+        MultipartPart part = compressionBlobStore.uploadMultipartPart(mpu, 1,
+                Payloads.newByteSourcePayload(part1));
+        try {
+            compressionBlobStore.completeMultipartUpload(mpu,
+                    ImmutableList.of(MultipartPart.create(1,
+                            part.partSize(), "wrong", null)));
+            Fail.failBecauseExceptionWasNotThrown(RuntimeException.class);
+        } catch (RuntimeException re) {
+            assertThat(re.getCause()).isInstanceOf(S3Exception.class);
+            assertThat(((S3Exception) re.getCause()).getError())
+                    .isEqualTo(S3ErrorCode.INVALID_PART);
+        }
+    }
+
+    @Test
+    public void testCopyListAndRemove() throws Exception {
+        ByteSource content = textByteSource(10000);
+        compressionBlobStore.putBlob(containerName, makeBlob("a", content));
+        compressionBlobStore.copyBlob(containerName, "a", containerName, "b",
+                CopyOptions.NONE);
+        blobStore.putBlob(containerName, makeBlob("c", content));
+
+        List<String> names = new ArrayList<>();
+        for (StorageMetadata metadata : compressionBlobStore.list(
+                containerName, new ListContainerOptions().recursive())) {
+            names.add(metadata.getName());
+            assertThat(metadata.getSize()).isEqualTo(content.size());
+        }
+        assertThat(names).containsExactly("a", "b", "c");
+        assertContent(compressionBlobStore.getBlob(containerName, "b"),
+                content);
+
+        compressionBlobStore.removeBlob(containerName, "a");
+        compressionBlobStore.removeBlob(containerName, "b");
+        compressionBlobStore.removeBlob(containerName, "c");
+        assertThat(blobStore.list(containerName,
+                new ListContainerOptions().recursive())).isEmpty();
+    }
+
+    @Test
+    public void testFailedPutKeepsPreviousVersion() throws Exception {
+        AtomicBoolean failData = new AtomicBoolean();
+        BlobStore flaky = new ForwardingBlobStore(blobStore) {
+            @Override
+            public String putBlob(String container, Blob blob,
+                    PutOptions options) {
+                if (failData.get() && !blob.getMetadata().getName()
+                        .startsWith(".s3proxy-compression/")) {
+                    throw new RuntimeException("injected failure");
+                }
+                return super.putBlob(container, blob, options);
+            }
+        };
+        CompressionBlobStore store =
+                CompressionBlobStore.newCompressionBlobStore(
+                        flaky, BLOCK_SIZE, 4096, 10000);
+        ByteSource v1 = textByteSource(10000);
+        store.putBlob(containerName, makeBlob("blob", v1));
+
+        failData.set(true);
+        try {
+            store.putBlob(containerName, makeBlob("blob",
+                    textByteSource(5000)));
+            Fail.failBecauseExceptionWasNotThrown(RuntimeException.class);
+        } catch (RuntimeException re) {
+            assertThat(re.getMessage()).isEqualTo("injected failure");
+        }
+        failData.set(false);
+
+        assertContent(store.getBlob(containerName, "blob"), v1);
+        // a fresh instance has no cached manifest
+        CompressionBlobStore uncached =
+                CompressionBlobStore.newCompressionBlobStore(
+                        blobStore, BLOCK_SIZE, 4096, 10000);
+        assertThat(uncached.blobMetadata(containerName, "blob").getSize())
+                .isEqualTo(v1.size());
+        assertContent(uncached.getBlob(containerName, "blob"), v1);
+    }
+
+    private static ByteSource textByteSource(int size) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < size; ++i) {
+            builder.append("line ").append(i).append(" of a log file\n");
+        }
+        return ByteSource.wrap(builder.toString().getBytes(
+                StandardCharsets.UTF_8)).slice(0, size);
+    }
+
+    private Blob makeBlob(String blobName, ByteSource content)
+            throws Exception {
+        return blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
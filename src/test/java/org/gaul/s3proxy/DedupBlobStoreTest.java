@@ -0,0 +1,300 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class DedupBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private DedupBlobStore dedupBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        dedupBlobStore = DedupBlobStore.newDedupBlobStore(blobStore, 1024,
+                1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testDuplicatesStoredOnce() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        for (int i = 0; i < 3; ++i) {
+            String eTag = dedupBlobStore.putBlob(containerName,
+                    makeBlob("blob" + i, content));
+            assertThat(eTag).isEqualTo(
+                    content.hash(Hashing.md5()).toString());
+        }
+
+        assertThat(contentCount()).isEqualTo(1);
+        assertThat(dedupBlobStore.getDuplicateCount()).isEqualTo(2);
+        assertThat(dedupBlobStore.getStoredBytes()).isEqualTo(
+                content.size());
+        assertThat(dedupBlobStore.getDedupRatio()).isEqualTo(3.0);
+        for (int i = 0; i < 3; ++i) {
+            assertContent(dedupBlobStore.getBlob(containerName, "blob" + i),
+                    content);
+        }
+    }
+
+    @Test
+    public void testMetadataAndRange() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        Blob blob = makeBlob(blobName, content);
+        blob.getMetadata().setUserMetadata(ImmutableMap.of("key", "value"));
+        blob.getMetadata().getContentMetadata().setContentType("text/plain");
+        dedupBlobStore.putBlob(containerName, blob);
+
+        BlobMetadata metadata = dedupBlobStore.blobMetadata(containerName,
+                blobName);
+        assertThat(metadata.getSize()).isEqualTo(content.size());
+        assertThat(metadata.getETag()).isEqualTo(
+                content.hash(Hashing.md5()).toString());
+        assertThat(metadata.getUserMetadata()).isEqualTo(
+                ImmutableMap.of("key", "value"));
+        assertThat(metadata.getContentMetadata().getContentType())
+                .isEqualTo("text/plain");
+
+        Blob range = dedupBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(100, 199));
+        assertContent(range, content.slice(100, 100));
+        assertThat(range.getMetadata().getName()).isEqualTo(blobName);
+    }
+
+    @Test
+    public void testCopyIsMetadataOnly() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        dedupBlobStore.putBlob(containerName, makeBlob("from", content));
+        dedupBlobStore.copyBlob(containerName, "from", containerName, "to",
+                CopyOptions.builder()
+                        .userMetadata(ImmutableMap.of("key", "value"))
+                        .build());
+
+        assertThat(contentCount()).isEqualTo(1);
+        assertThat(dedupBlobStore.getStoredBytes()).isEqualTo(
+                content.size());
+        assertContent(dedupBlobStore.getBlob(containerName, "to"), content);
+        assertThat(dedupBlobStore.blobMetadata(containerName, "to")
+                .getUserMetadata()).isEqualTo(
+                        ImmutableMap.of("key", "value"));
+    }
+
+    @Test
+    public void testRemoveReclaimsContent() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        dedupBlobStore.putBlob(containerName, makeBlob("a", content));
+        dedupBlobStore.putBlob(containerName, makeBlob("b", content));
+
+        dedupBlobStore.removeBlob(containerName, "a");
+        assertThat(dedupBlobStore.blobExists(containerName, "a")).isFalse();
+        assertThat(contentCount()).isEqualTo(1);
+        assertContent(dedupBlobStore.getBlob(containerName, "b"), content);
+
+        // overwriting the last reference also reclaims the content
+        ByteSource other = TestUtils.randomByteSource().slice(1, 10000);
+        dedupBlobStore.putBlob(containerName, makeBlob("b", other));
+        assertThat(contentCount()).isEqualTo(1);
+        dedupBlobStore.removeBlob(containerName, "b");
+        assertThat(blobStore.list(containerName,
+                new ListContainerOptions().recursive())).isEmpty();
+    }
+
+    @Test
+    public void testListReportsLogicalSize() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        dedupBlobStore.putBlob(containerName, makeBlob("a", content));
+        dedupBlobStore.putBlob(containerName, makeBlob("b", content));
+
+        List<String> names = new ArrayList<>();
+        for (StorageMetadata metadata : dedupBlobStore.list(containerName,
+                new ListContainerOptions().recursive())) {
+            names.add(metadata.getName());
+            assertThat(metadata.getSize()).isEqualTo(content.size());
+            assertThat(metadata.getETag()).isEqualTo(
+                    content.hash(Hashing.md5()).toString());
+        }
+        assertThat(names).containsExactly("a", "b");
+    }
+
+    @Test
+    public void testGetWithoutHead() throws Exception {
+        AtomicInteger headCount = new AtomicInteger();
+        DedupBlobStore store = DedupBlobStore.newDedupBlobStore(
+                new ForwardingBlobStore(blobStore) {
+                    @Override
+                    public BlobMetadata blobMetadata(String container,
+                            String name) {
+                        headCount.incrementAndGet();
+                        return super.blobMetadata(container, name);
+                    }
+                }, 1024, 1000);
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        dedupBlobStore.putBlob(containerName, makeBlob("blob", content));
+        String eTag = content.hash(Hashing.md5()).toString();
+
+        assertContent(store.getBlob(containerName, "blob"), content);
+        assertThat(headCount.get()).isZero();
+
+        // conditions apply to the logical object, not the empty pointer
+        assertContent(store.getBlob(containerName, "blob",
+                new GetOptions().ifETagMatches(eTag)), content);
+        try {
+            store.getBlob(containerName, "blob",
+                    new GetOptions().ifETagDoesntMatch(eTag));
+            Fail.failBecauseExceptionWasNotThrown(
+                    HttpResponseException.class);
+        } catch (HttpResponseException hre) {
+            assertThat(hre.getResponse().getStatusCode()).isEqualTo(304);
+        }
+    }
+
+    @Test
+    public void testCrossContainerCopyConditional() throws Exception {
+        String otherContainer = createRandomContainerName();
+        blobStore.createContainerInLocation(null, otherContainer);
+        try {
+            ByteSource content = TestUtils.randomByteSource().slice(0,
+                    10000);
+            dedupBlobStore.putBlob(containerName, makeBlob("from", content));
+            try {
+                dedupBlobStore.copyBlob(containerName, "from",
+                        otherContainer, "to", CopyOptions.builder()
+                                .ifMatch("\"fake\"").build());
+                Fail.failBecauseExceptionWasNotThrown(
+                        HttpResponseException.class);
+            } catch (HttpResponseException hre) {
+                assertThat(hre.getResponse().getStatusCode())
+                        .isEqualTo(412);
+            }
+            assertThat(blobStore.blobExists(otherContainer, "to")).isFalse();
+
+            dedupBlobStore.copyBlob(containerName, "from", otherContainer,
+                    "to", CopyOptions.builder()
+                            .ifMatch(content.hash(Hashing.md5()).toString())
+                            .build());
+            assertContent(dedupBlobStore.getBlob(otherContainer, "to"),
+                    content);
+            assertThat(blobStore.blobExists(otherContainer, "from"))
+                    .isFalse();
+        } finally {
+            blobStore.deleteContainer(otherContainer);
+        }
+    }
+
+    @Test
+    public void testRejectForgedPointer() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        dedupBlobStore.putBlob(containerName, makeBlob("a", content));
+        String digest = content.hash(Hashing.sha256()).toString();
+
+        try {
+            dedupBlobStore.putBlob(containerName, makeBlob(
+                    DedupBlobStore.CONTENT_PREFIX + digest,
+                    ByteSource.empty()));
+            Fail.failBecauseExceptionWasNotThrown(RuntimeException.class);
+        } catch (RuntimeException re) {
+            assertThat(re.getCause()).isInstanceOf(S3Exception.class);
+        }
+
+        // copying a plain object with pointer keys must not alias a
+        ByteSource other = TestUtils.randomByteSource().slice(1, 100);
+        blobStore.putBlob(containerName, makeBlob("plain", other));
+        dedupBlobStore.copyBlob(containerName, "plain", containerName, "b",
+                CopyOptions.builder().userMetadata(ImmutableMap.of(
+                        "s3proxy-dedup-digest", digest,
+                        "s3proxy-dedup-size", String.valueOf(content.size()),
+                        "s3proxy-dedup-etag",
+                        content.hash(Hashing.md5()).toString())).build());
+        assertThat(dedupBlobStore.blobMetadata(containerName, "b")
+                .getSize()).isEqualTo(other.size());
+        assertContent(dedupBlobStore.getBlob(containerName, "b"), other);
+    }
+
+    private int contentCount() {
+        return blobStore.list(containerName, new ListContainerOptions()
+                .prefix(DedupBlobStore.CONTENT_PREFIX).recursive()).size();
+    }
+
+    private Blob makeBlob(String blobName, ByteSource content)
+            throws Exception {
+        return blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
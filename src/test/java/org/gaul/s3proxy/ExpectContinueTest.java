@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ExpectContinueTest {
+    private static final String BODY = "0123456789";
+
+    private S3Proxy s3Proxy;
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private String identity;
+    private String credential;
+    private String servicePath;
+    private URI endpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtils.S3ProxyLaunchInfo info = TestUtils.startS3Proxy(
+                "s3proxy.conf");
+        s3Proxy = info.getS3Proxy();
+        blobStore = info.getBlobStore();
+        context = blobStore.getContext();
+        identity = info.getS3Identity();
+        credential = info.getS3Credential();
+        servicePath = info.getServicePath();
+        endpoint = info.getEndpoint();
+        containerName = TestUtils.createRandomContainerName();
+        blobStore.createContainerInLocation(null, containerName);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (s3Proxy != null) {
+            s3Proxy.stop();
+        }
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testContinueAfterAuthentication() throws Exception {
+        try (Socket socket = new Socket(endpoint.getHost(),
+                endpoint.getPort())) {
+            BufferedReader reader = sendHeaders(socket, containerName,
+                    credential);
+            assertThat(readStatus(reader)).contains(" 100 ");
+
+            OutputStream os = socket.getOutputStream();
+            os.write(BODY.getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            assertThat(readStatus(reader)).contains(" 200 ");
+        }
+        assertThat(blobStore.blobExists(containerName, "blob")).isTrue();
+    }
+
+    @Test
+    public void testBadSignatureRejectedBeforeBody() throws Exception {
+        try (Socket socket = new Socket(endpoint.getHost(),
+                endpoint.getPort())) {
+            BufferedReader reader = sendHeaders(socket, containerName,
+                    "bad-credential");
+            assertThat(readStatus(reader)).contains(" 403 ");
+        }
+        assertThat(blobStore.blobExists(containerName, "blob")).isFalse();
+    }
+
+    @Test
+    public void testMissingBucketRejectedBeforeBody() throws Exception {
+        try (Socket socket = new Socket(endpoint.getHost(),
+                endpoint.getPort())) {
+            BufferedReader reader = sendHeaders(socket,
+                    containerName + "-missing", credential);
+            assertThat(readStatus(reader)).contains(" 404 ");
+        }
+    }
+
+    @Test
+    public void testV4SignedPayloadContinueAfterAuthentication()
+            throws Exception {
+        try (Socket socket = new Socket(endpoint.getHost(),
+                endpoint.getPort())) {
+            BufferedReader reader = sendV4Headers(socket, containerName,
+                    sha256Hex(BODY));
+            assertThat(readStatus(reader)).contains(" 100 ");
+
+            OutputStream os = socket.getOutputStream();
+            os.write(BODY.getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            assertThat(readStatus(reader)).contains(" 200 ");
+        }
+        assertThat(blobStore.blobExists(containerName, "blob")).isTrue();
+    }
+
+    @Test
+    public void testV4SignedPayloadMissingBucketRejectedBeforeBody()
+            throws Exception {
+        try (Socket socket = new Socket(endpoint.getHost(),
+                endpoint.getPort())) {
+            BufferedReader reader = sendV4Headers(socket,
+                    containerName + "-missing", sha256Hex(BODY));
+            assertThat(readStatus(reader)).contains(" 404 ");
+        }
+    }
+
+    @Test
+    public void testV4SignedPayloadMismatch() throws Exception {
+        try (Socket socket = new Socket(endpoint.getHost(),
+                endpoint.getPort())) {
+            BufferedReader reader = sendV4Headers(socket, containerName,
+                    sha256Hex("other"));
+            assertThat(readStatus(reader)).contains(" 100 ");
+
+            OutputStream os = socket.getOutputStream();
+            os.write(BODY.getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            assertThat(readStatus(reader)).contains(" 400 ");
+        }
+        assertThat(blobStore.blobExists(containerName, "blob")).isFalse();
+    }
+
+    /** Send a V2-signed PUT which waits for 100 Continue. */
+    private BufferedReader sendHeaders(Socket socket, String container,
+            String signingCredential) throws Exception {
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.now(ZoneOffset.UTC));
+        String path = servicePath + "/" + container + "/blob";
+        String stringToSign = "PUT\n\n\n" + date + "\n" + path;
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(signingCredential.getBytes(
+                StandardCharsets.UTF_8), "HmacSHA1"));
+        String signature = Base64.getEncoder().encodeToString(mac.doFinal(
+                stringToSign.getBytes(StandardCharsets.UTF_8)));
+
+        String headers = "PUT " + path + " HTTP/1.1\r\n" +
+                "Host: " + endpoint.getHost() + ":" + endpoint.getPort() +
+                "\r\n" +
+                "Date: " + date + "\r\n" +
+                "Authorization: AWS " + identity + ":" + signature + "\r\n" +
+                "Content-Length: " + BODY.length() + "\r\n" +
+                "Expect: 100-continue\r\n" +
+                "\r\n";
+        OutputStream os = socket.getOutputStream();
+        os.write(headers.getBytes(StandardCharsets.UTF_8));
+        os.flush();
+        return new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    /** Send a V4-signed PUT declaring a payload digest. */
+    private BufferedReader sendV4Headers(Socket socket, String container,
+            String contentSha256) throws Exception {
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        String date = DateTimeFormatter.ofPattern("yyyyMMdd").format(now);
+        String amzDate = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+                .format(now);
+        String host = endpoint.getHost() + ":" + endpoint.getPort();
+        String path = servicePath + "/" + container + "/blob";
+        String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        String canonicalRequest = "PUT\n" + path + "\n\n" +
+                "host:" + host + "\n" +
+                "x-amz-content-sha256:" + contentSha256 + "\n" +
+                "x-amz-date:" + amzDate + "\n\n" +
+                signedHeaders + "\n" + contentSha256;
+        String scope = date + "/us-east-1/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" +
+                scope + "\n" + sha256Hex(canonicalRequest);
+        byte[] key = ("AWS4" + credential).getBytes(StandardCharsets.UTF_8);
+        for (String part : new String[] {date, "us-east-1", "s3",
+                "aws4_request"}) {
+            key = hmacSha256(key, part);
+        }
+        String signature = BaseEncoding.base16().lowerCase().encode(
+                hmacSha256(key, stringToSign));
+
+        String headers = "PUT " + path + " HTTP/1.1\r\n" +
+                "Host: " + host + "\r\n" +
+                "x-amz-content-sha256: " + contentSha256 + "\r\n" +
+                "x-amz-date: " + amzDate + "\r\n" +
+                "Authorization: AWS4-HMAC-SHA256 Credential=" + identity +
+                "/" + scope + ", SignedHeaders=" + signedHeaders +
+                ", Signature=" + signature + "\r\n" +
+                "Content-Length: " + BODY.length() + "\r\n" +
+                "Expect: 100-continue\r\n" +
+                "\r\n";
+        OutputStream os = socket.getOutputStream();
+        os.write(headers.getBytes(StandardCharsets.UTF_8));
+        os.flush();
+        return new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    private static String sha256Hex(String value) {
+        return Hashing.sha256().hashString(value, StandardCharsets.UTF_8)
+                .toString();
+    }
+
+    private static byte[] hmacSha256(byte[] key, String value)
+            throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Read a status line and skip its headers, but not its body. */
+    private static String readStatus(BufferedReader reader)
+            throws Exception {
+        String status = reader.readLine();
+        while (!Strings.isNullOrEmpty(reader.readLine())) {
+            // skip headers
+        }
+        return status;
+    }
+}
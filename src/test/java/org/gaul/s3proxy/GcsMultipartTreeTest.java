@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.Payload;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class GcsMultipartTreeTest {
+    private static final int PART_SIZE = 10;
+
+    private BlobStoreContext context;
+    private GcsLikeBlobStore blobStore;
+    private ExecutorService executor;
+    private String containerName;
+    // ETags of uploaded parts, which tests pass as the requested parts
+    private final SortedMap<Integer, String> eTags = new TreeMap<>();
+
+    @Before
+    public void setUp() {
+        containerName = TestUtils.createRandomContainerName();
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .build(BlobStoreContext.class);
+        blobStore = new GcsLikeBlobStore(context.getBlobStore());
+        blobStore.createContainerInLocation(null, containerName);
+        executor = GcsMultipartTree.newExecutor(4);
+    }
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (context != null) {
+            context.getBlobStore().deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testLeafMapping() {
+        assertThat(GcsMultipartTree.leafUploadId("id", 1)).isEqualTo(
+                "id_00000001_00000001");
+        assertThat(GcsMultipartTree.leafPartNumber(1)).isEqualTo(1);
+        assertThat(GcsMultipartTree.leafUploadId("id", 33)).isEqualTo(
+                "id_00000001_00000002");
+        assertThat(GcsMultipartTree.leafPartNumber(33)).isEqualTo(1);
+        assertThat(GcsMultipartTree.leafUploadId("id", 10_000)).isEqualTo(
+                "id_00000010_00000025");
+        assertThat(GcsMultipartTree.leafPartNumber(10_000)).isEqualTo(16);
+    }
+
+    @Test
+    public void testComposeBeyondOneBranch() throws Exception {
+        Set<Integer> partNumbers = new TreeSet<>();
+        for (int partNumber = 1; partNumber <= 1100; ++partNumber) {
+            partNumbers.add(partNumber);
+        }
+        ByteSource expected = uploadParts(partNumbers);
+        MultipartUpload mpu = newUpload("blob");
+
+        Map<Integer, Long> partSizes = new ConcurrentHashMap<>();
+        List<GcsMultipartTree.Leaf> leaves = GcsMultipartTree.listLeaves(
+                blobStore, mpu, eTags, partSizes, executor);
+        List<MultipartPart> branches = GcsMultipartTree.composeBranches(
+                blobStore, mpu, leaves, executor);
+        assertThat(branches).hasSize(2);
+        assertThat(partSizes).hasSize(1100);
+        assertThat(partSizes.get(1100)).isEqualTo((long) PART_SIZE);
+        assertThat(branches.get(0).partSize()).isEqualTo(1024 * PART_SIZE);
+        assertThat(branches.get(1).partSize()).isEqualTo(76 * PART_SIZE);
+        blobStore.completeMultipartUpload(mpu, branches);
+
+        assertContent("blob", expected);
+        assertThat(blobStore.maxConcurrentComposes.get()).isGreaterThan(1);
+    }
+
+    @Test
+    public void testComposeSingleBranchSkipsBranchLevel() throws Exception {
+        Set<Integer> partNumbers = new TreeSet<>(ImmutableList.of(1, 2, 100));
+        ByteSource expected = uploadParts(partNumbers);
+        MultipartUpload mpu = newUpload("blob");
+
+        // parts 33-64 were never uploaded so their leaf is not composed
+        Map<Integer, Long> partSizes = new ConcurrentHashMap<>();
+        List<GcsMultipartTree.Leaf> leaves = GcsMultipartTree.listLeaves(
+                blobStore, mpu, eTags, partSizes, executor);
+        List<MultipartPart> parts = GcsMultipartTree.composeBranches(
+                blobStore, mpu, leaves, executor);
+        assertThat(partSizes.keySet()).containsOnly(1, 2, 100);
+        assertThat(parts).extracting(MultipartPart::partNumber)
+                .containsExactly(1, 4);
+        blobStore.completeMultipartUpload(mpu, parts);
+
+        // two leaves and the object itself
+        assertThat(blobStore.composeCount.get()).isEqualTo(3);
+        assertContent("blob", expected);
+    }
+
+    @Test
+    public void testComposeOnlyRequestedParts() throws Exception {
+        uploadParts(new TreeSet<>(ImmutableList.of(1, 2, 3)));
+        MultipartUpload mpu = newUpload("blob");
+        eTags.remove(2);
+
+        List<GcsMultipartTree.Leaf> leaves = GcsMultipartTree.listLeaves(
+                blobStore, mpu, eTags, new ConcurrentHashMap<>(), executor);
+        blobStore.completeMultipartUpload(mpu,
+                GcsMultipartTree.composeBranches(blobStore, mpu, leaves,
+                        executor));
+
+        ByteSource expected = ByteSource.concat(partContent(1),
+                partContent(3));
+        assertContent("blob", expected);
+        assertThat(blobStore.blobExists(containerName,
+                GcsMultipartTree.leafUploadId("upload", 2) + "_00000002"))
+                .isFalse();
+    }
+
+    @Test
+    public void testComposeLegacyLayout() throws Exception {
+        // earlier versions stored part p in upload id_((p - 1) / 32 + 1)
+        List<ByteSource> sources = new ArrayList<>();
+        for (int partNumber : ImmutableList.of(1, 2, 40)) {
+            String leafId = String.format("upload_%08d",
+                    (partNumber - 1) / GcsMultipartTree.MAX_COMPOSE_PARTS +
+                    1);
+            ByteSource source = partContent(partNumber);
+            Blob part = blobStore.blobBuilder("ignored")
+                    .payload(source.read())
+                    .build();
+            MultipartPart uploaded = blobStore.uploadMultipartPart(
+                    MultipartUpload.create(containerName, leafId, leafId,
+                            new MutableBlobMetadataImpl(), new PutOptions()),
+                    GcsMultipartTree.leafPartNumber(partNumber),
+                    part.getPayload());
+            eTags.put(partNumber, uploaded.partETag());
+            sources.add(source);
+        }
+        MultipartUpload mpu = newUpload("blob");
+
+        Map<Integer, Long> partSizes = new ConcurrentHashMap<>();
+        List<GcsMultipartTree.Leaf> leaves = GcsMultipartTree.listLeaves(
+                blobStore, mpu, eTags, partSizes, executor);
+        blobStore.completeMultipartUpload(mpu,
+                GcsMultipartTree.composeBranches(blobStore, mpu, leaves,
+                        executor));
+
+        assertThat(partSizes.keySet()).containsOnly(1, 2, 40);
+        assertContent("blob", ByteSource.concat(sources));
+    }
+
+    @Test
+    public void testMissingPartRejected() throws Exception {
+        uploadParts(new TreeSet<>(ImmutableList.of(1, 2)));
+        eTags.put(40, "\"missing\"");
+        assertInvalidPart();
+    }
+
+    @Test
+    public void testWrongETagRejected() throws Exception {
+        uploadParts(new TreeSet<>(ImmutableList.of(1, 2)));
+        eTags.put(2, "\"wrong\"");
+        assertInvalidPart();
+    }
+
+    private void assertInvalidPart() throws Exception {
+        try {
+            GcsMultipartTree.listLeaves(blobStore, newUpload("blob"), eTags,
+                    new ConcurrentHashMap<>(), executor);
+            Fail.failBecauseExceptionWasNotThrown(S3Exception.class);
+        } catch (S3Exception se) {
+            assertThat(se.getError()).isEqualTo(S3ErrorCode.INVALID_PART);
+        }
+    }
+
+    private MultipartUpload newUpload(String blobName) {
+        return MultipartUpload.create(containerName, blobName, "upload",
+                new MutableBlobMetadataImpl(), new PutOptions());
+    }
+
+    private ByteSource uploadParts(Set<Integer> partNumbers)
+            throws IOException {
+        List<ByteSource> sources = new ArrayList<>();
+        for (int partNumber : partNumbers) {
+            String leafId = GcsMultipartTree.leafUploadId("upload",
+                    partNumber);
+            ByteSource source = partContent(partNumber);
+            Blob part = blobStore.blobBuilder("ignored")
+                    .payload(source.read())
+                    .build();
+            MultipartPart uploaded = blobStore.uploadMultipartPart(
+                    MultipartUpload.create(containerName, leafId, leafId,
+                            new MutableBlobMetadataImpl(), new PutOptions()),
+                    GcsMultipartTree.leafPartNumber(partNumber),
+                    part.getPayload());
+            eTags.put(partNumber, uploaded.partETag());
+            sources.add(source);
+        }
+        return ByteSource.concat(sources);
+    }
+
+    private static ByteSource partContent(int partNumber) {
+        return TestUtils.randomByteSource().slice(partNumber * PART_SIZE,
+                PART_SIZE);
+    }
+
+    private void assertContent(String blobName, ByteSource expected)
+            throws IOException {
+        Blob blob = blobStore.getBlob(containerName, blobName);
+        try (InputStream actual = blob.getPayload().openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    expected.read());
+        }
+    }
+
+    /**
+     * Emulates the Google Cloud Storage provider: parts are objects named
+     * id_partNumber and compose accepts at most 32 of them.
+     */
+    private static final class GcsLikeBlobStore extends ForwardingBlobStore {
+        private final AtomicInteger concurrentComposes = new AtomicInteger();
+        private final AtomicInteger maxConcurrentComposes =
+                new AtomicInteger();
+        private final AtomicInteger composeCount = new AtomicInteger();
+
+        GcsLikeBlobStore(BlobStore blobStore) {
+            super(blobStore);
+        }
+
+        @Override
+        public MultipartPart uploadMultipartPart(MultipartUpload mpu,
+                int partNumber, Payload payload) {
+            String eTag = putBlob(mpu.containerName(), blobBuilder(
+                    partName(mpu.id(), partNumber))
+                    .payload(payload)
+                    .build());
+            return MultipartPart.create(partNumber,
+                    payload.getContentMetadata().getContentLength(), eTag,
+                    new Date());
+        }
+
+        @Override
+        public List<MultipartPart> listMultipartUpload(MultipartUpload mpu) {
+            List<MultipartPart> parts = new ArrayList<>();
+            for (StorageMetadata sm : list(mpu.containerName(),
+                    new ListContainerOptions().prefix(mpu.id() + "_")
+                            .recursive())) {
+                String name = sm.getName();
+                parts.add(MultipartPart.create(Integer.parseInt(
+                        name.substring(name.lastIndexOf('_') + 1)),
+                        sm.getSize(), sm.getETag(), sm.getLastModified()));
+            }
+            return parts;
+        }
+
+        @Override
+        public String completeMultipartUpload(MultipartUpload mpu,
+                List<MultipartPart> parts) {
+            assertThat(parts.size()).isLessThanOrEqualTo(
+                    GcsMultipartTree.MAX_COMPOSE_PARTS);
+            composeCount.incrementAndGet();
+            int concurrent = concurrentComposes.incrementAndGet();
+            maxConcurrentComposes.accumulateAndGet(concurrent, Math::max);
+            try {
+                // widen the window in which composes overlap
+                Uninterruptibles.sleepUninterruptibly(5,
+                        TimeUnit.MILLISECONDS);
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                List<String> names = new ArrayList<>();
+                for (MultipartPart part : parts) {
+                    String name = partName(mpu.id(), part.partNumber());
+                    Blob blob = getBlob(mpu.containerName(), name);
+                    try (InputStream is = blob.getPayload().openStream()) {
+                        ByteStreams.copy(is, os);
+                    }
+                    names.add(name);
+                }
+                String eTag = putBlob(mpu.containerName(),
+                        blobBuilder(mpu.blobName())
+                                .payload(os.toByteArray())
+                                .build());
+                removeBlobs(mpu.containerName(), names);
+                return eTag;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            } finally {
+                concurrentComposes.decrementAndGet();
+            }
+        }
+
+        private static String partName(String id, int partNumber) {
+            return String.format("%s_%08d", id, partNumber);
+        }
+    }
+}
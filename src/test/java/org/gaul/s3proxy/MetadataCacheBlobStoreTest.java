@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class MetadataCacheBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private BlobStore cacheBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        cacheBlobStore = MetadataCacheBlobStore.newMetadataCacheBlobStore(
+                blobStore, 1, TimeUnit.HOURS, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testBlobMetadataCached() throws Exception {
+        String blobName = "blob";
+        putBlob(blobStore, blobName, 100);
+        BlobMetadata metadata = cacheBlobStore.blobMetadata(containerName,
+                blobName);
+
+        // modify the backend directly; the cache does not observe this
+        putBlob(blobStore, blobName, 200);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName)
+                .getETag()).isEqualTo(metadata.getETag());
+
+        // writes through the cache invalidate
+        putBlob(cacheBlobStore, blobName, 300);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName)
+                .getContentMetadata().getContentLength()).isEqualTo(300);
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        String blobName = "blob";
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName))
+                .isNull();
+
+        putBlob(blobStore, blobName, 100);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName))
+                .isNull();
+        assertThat(cacheBlobStore.getBlob(containerName, blobName)).isNull();
+
+        cacheBlobStore.removeBlob(containerName, blobName);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName))
+                .isNull();
+        putBlob(cacheBlobStore, blobName, 100);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName))
+                .isNotNull();
+    }
+
+    @Test
+    public void testGetBlobPopulatesCache() throws Exception {
+        String blobName = "blob";
+        putBlob(blobStore, blobName, 100);
+        Blob blob = cacheBlobStore.getBlob(containerName, blobName);
+        String eTag = blob.getMetadata().getETag();
+
+        // remove from the backend to prove the backend is not consulted
+        blobStore.removeBlob(containerName, blobName);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName)
+                .getETag()).isEqualTo(eTag);
+        assertStatus(new GetOptions().ifETagDoesntMatch(eTag), 304);
+    }
+
+    @Test
+    public void testRangedGetDoesNotPopulateCache() throws Exception {
+        String blobName = "blob";
+        putBlob(blobStore, blobName, 100);
+        cacheBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(0, 9));
+
+        blobStore.removeBlob(containerName, blobName);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName))
+                .isNull();
+    }
+
+    @Test
+    public void testConditionalGetShortCircuit() throws Exception {
+        String blobName = "blob";
+        putBlob(blobStore, blobName, 100);
+        BlobMetadata metadata = cacheBlobStore.blobMetadata(containerName,
+                blobName);
+        String eTag = metadata.getETag();
+
+        // remove from the backend to prove the backend is not consulted
+        blobStore.removeBlob(containerName, blobName);
+
+        assertStatus(new GetOptions().ifETagDoesntMatch(eTag), 304);
+        assertStatus(new GetOptions().ifETagMatches("\"fake\""), 412);
+        assertStatus(new GetOptions().ifModifiedSince(new Date(
+                metadata.getLastModified().getTime() + 1000)), 304);
+        assertStatus(new GetOptions().ifUnmodifiedSince(new Date(
+                metadata.getLastModified().getTime() - 1000)), 412);
+
+        // ETag lists match if any member matches
+        assertStatus(new GetOptions().ifETagDoesntMatch(
+                "\"fake\", " + eTag), 304);
+        assertStatus(new GetOptions().ifETagMatches(
+                "\"fake\", \"other\""), 412);
+        assertThat(ConditionalRequests.status(metadata,
+                new GetOptions().ifETagMatches("\"fake\", " + eTag)))
+                .isEqualTo(200);
+    }
+
+    @Test
+    public void testInvalidationDuringFetch() throws Exception {
+        String blobName = "blob";
+        putBlob(blobStore, blobName, 100);
+        // a write through the cache races with the backend HEAD
+        BlobStore[] racing = new BlobStore[1];
+        racing[0] = MetadataCacheBlobStore.newMetadataCacheBlobStore(
+                new ForwardingBlobStore(blobStore) {
+                    @Override
+                    public BlobMetadata blobMetadata(String container,
+                            String name) {
+                        BlobMetadata metadata = super.blobMetadata(
+                                container, name);
+                        try {
+                            putBlob(racing[0], name, 200);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        return metadata;
+                    }
+                }, 1, TimeUnit.HOURS, 1000);
+
+        assertThat(racing[0].blobMetadata(containerName, blobName)
+                .getContentMetadata().getContentLength()).isEqualTo(100);
+        // the stale result was not cached
+        assertThat(blobStore.blobMetadata(containerName, blobName)
+                .getContentMetadata().getContentLength()).isEqualTo(200);
+        assertThat(racing[0].blobMetadata(containerName, blobName)
+                .getContentMetadata().getContentLength()).isEqualTo(200);
+    }
+
+    @Test
+    public void testBlobAccessCached() throws Exception {
+        String blobName = "blob";
+        putBlob(blobStore, blobName, 100);
+        assertThat(cacheBlobStore.getBlobAccess(containerName, blobName))
+                .isEqualTo(BlobAccess.PRIVATE);
+
+        cacheBlobStore.setBlobAccess(containerName, blobName,
+                BlobAccess.PUBLIC_READ);
+        assertThat(cacheBlobStore.getBlobAccess(containerName, blobName))
+                .isEqualTo(BlobAccess.PUBLIC_READ);
+    }
+
+    private void assertStatus(GetOptions options, int status) {
+        try {
+            cacheBlobStore.getBlob(containerName, "blob", options);
+            Fail.failBecauseExceptionWasNotThrown(
+                    HttpResponseException.class);
+        } catch (HttpResponseException hre) {
+            assertThat(hre.getResponse().getStatusCode()).isEqualTo(status);
+        }
+    }
+
+    private void putBlob(BlobStore store, String blobName, long size)
+            throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, size);
+        Blob blob = store.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        store.putBlob(containerName, blob);
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
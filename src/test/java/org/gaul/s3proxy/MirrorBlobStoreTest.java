@@ -0,0 +1,326 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.Payloads;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class MirrorBlobStoreTest {
+    private static final ByteSource BYTE_SOURCE =
+            TestUtils.randomByteSource().slice(0, 1024);
+
+    private BlobStoreContext primaryContext;
+    private BlobStoreContext secondaryContext;
+    private BlobStore primary;
+    private BlobStore secondary;
+    private FlakyBlobStore flakySecondary;
+    private String containerName;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = TestUtils.createRandomContainerName();
+        primaryContext = newTransientContext();
+        primary = primaryContext.getBlobStore();
+        secondaryContext = newTransientContext();
+        secondary = secondaryContext.getBlobStore();
+        flakySecondary = new FlakyBlobStore(secondary);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (primaryContext != null) {
+            primaryContext.close();
+        }
+        if (secondaryContext != null) {
+            secondaryContext.close();
+        }
+    }
+
+    @Test
+    public void testPutGetCopyRemove() throws Exception {
+        BlobStore mirror = newMirrorBlobStore(2);
+        mirror.createContainerInLocation(null, containerName);
+        assertThat(secondary.containerExists(containerName)).isTrue();
+
+        mirror.putBlob(containerName, mirror.blobBuilder("blob")
+                .payload(BYTE_SOURCE.openStream())
+                .contentLength(BYTE_SOURCE.size())
+                .build());
+        assertContent(primary, "blob");
+        assertContent(secondary, "blob");
+        assertContent(mirror, "blob");
+
+        mirror.copyBlob(containerName, "blob", containerName, "copy",
+                CopyOptions.NONE);
+        assertContent(primary, "copy");
+        assertContent(secondary, "copy");
+
+        mirror.removeBlob(containerName, "blob");
+        assertThat(primary.blobExists(containerName, "blob")).isFalse();
+        assertThat(secondary.blobExists(containerName, "blob")).isFalse();
+    }
+
+    @Test
+    public void testReadFallsBackToReplicaAwaitingRepair() throws Exception {
+        // the flaky replica comes first in the read order
+        BlobStore mirror = MirrorBlobStore.newMirrorBlobStore(
+                ImmutableList.of(flakySecondary, primary), 1, 0, 1,
+                TimeUnit.HOURS, 1000);
+        mirror.createContainerInLocation(null, containerName);
+        flakySecondary.failing = true;
+        mirror.putBlob(containerName, mirror.blobBuilder("blob")
+                .payload(BYTE_SOURCE).build());
+        assertThat(secondary.blobExists(containerName, "blob")).isFalse();
+
+        assertContent(mirror, "blob");
+        assertThat(mirror.blobExists(containerName, "blob")).isTrue();
+        assertThat(mirror.blobMetadata(containerName, "blob")).isNotNull();
+        assertThat(mirror.blobMetadata(containerName, "missing")).isNull();
+    }
+
+    @Test
+    public void testMissingObjectWithoutRepairDoesNotFallBack()
+            throws Exception {
+        BlobStore mirror = newMirrorBlobStore(2);
+        mirror.createContainerInLocation(null, containerName);
+        // the primary is first in the read order of a new mirror
+        secondary.putBlob(containerName, secondary.blobBuilder("blob")
+                .payload(BYTE_SOURCE).build());
+        assertThat(mirror.getBlob(containerName, "blob")).isNull();
+    }
+
+    @Test
+    public void testRejectMixedProviders() throws Exception {
+        Path directory = Files.createTempDirectory("s3proxy-mirror");
+        Properties properties = new Properties();
+        properties.setProperty("jclouds.filesystem.basedir",
+                directory.toString());
+        BlobStoreContext filesystemContext = ContextBuilder
+                .newBuilder("filesystem")
+                .overrides(properties)
+                .build(BlobStoreContext.class);
+        try {
+            MirrorBlobStore.newMirrorBlobStore(ImmutableList.of(primary,
+                    filesystemContext.getBlobStore()), 1, 0, 10,
+                    TimeUnit.MILLISECONDS, 1000);
+            Fail.failBecauseExceptionWasNotThrown(
+                    IllegalArgumentException.class);
+        } catch (IllegalArgumentException iae) {
+            // expected
+        } finally {
+            filesystemContext.close();
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testWriteQuorumNotMet() throws Exception {
+        BlobStore mirror = newMirrorBlobStore(2);
+        mirror.createContainerInLocation(null, containerName);
+        flakySecondary.failing = true;
+        try {
+            mirror.putBlob(containerName, mirror.blobBuilder("blob")
+                    .payload(BYTE_SOURCE).build());
+            Fail.failBecauseExceptionWasNotThrown(
+                    UnsupportedOperationException.class);
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRepairMissedWrite() throws Exception {
+        MirrorBlobStore mirror = newMirrorBlobStore(1);
+        mirror.createContainerInLocation(null, containerName);
+        flakySecondary.failing = true;
+        mirror.putBlob(containerName, mirror.blobBuilder("blob")
+                .payload(BYTE_SOURCE).build());
+        assertContent(primary, "blob");
+        assertContent(mirror, "blob");
+
+        flakySecondary.failing = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mirror.getRepairedCount() == 0 &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(mirror.getRepairedCount()).isEqualTo(1);
+        assertContent(secondary, "blob");
+    }
+
+    @Test
+    public void testRepairKeepsMetadata() throws Exception {
+        MirrorBlobStore mirror = newMirrorBlobStore(1);
+        mirror.createContainerInLocation(null, containerName);
+        flakySecondary.failing = true;
+        mirror.putBlob(containerName, mirror.blobBuilder("blob")
+                .payload(BYTE_SOURCE)
+                .cacheControl("max-age=3600")
+                .build(), new PutOptions().setBlobAccess(
+                        BlobAccess.PUBLIC_READ));
+        assertThat(primary.blobMetadata(containerName, "blob")
+                .getContentMetadata().getCacheControl())
+                .isEqualTo("max-age=3600");
+
+        flakySecondary.failing = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mirror.getRepairedCount() == 0 &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertContent(secondary, "blob");
+        assertThat(secondary.blobMetadata(containerName, "blob")
+                .getContentMetadata().getCacheControl())
+                .isEqualTo("max-age=3600");
+        assertThat(secondary.getBlobAccess(containerName, "blob"))
+                .isEqualTo(BlobAccess.PUBLIC_READ);
+    }
+
+    @Test
+    public void testDroppedRepairMarksReplicaStale() throws Exception {
+        MirrorBlobStore mirror = MirrorBlobStore.newMirrorBlobStore(
+                ImmutableList.of(primary, flakySecondary), 1, 0, 1,
+                TimeUnit.HOURS, 1);
+        mirror.createContainerInLocation(null, containerName);
+        flakySecondary.failing = true;
+        // uploads unknown to the mirror complete on the primary alone
+        MultipartUpload mpu = primary.initiateMultipartUpload(containerName,
+                primary.blobBuilder("blob1").build().getMetadata(),
+                PutOptions.NONE);
+        MultipartPart part = primary.uploadMultipartPart(mpu, 1,
+                Payloads.newByteSourcePayload(BYTE_SOURCE));
+        mirror.completeMultipartUpload(mpu, ImmutableList.of(part));
+        // wait for the repair to fail and wait for its retry
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((flakySecondary.attempts.get() == 0 ||
+                mirror.getPendingRepairCount() == 0) &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(mirror.getPendingRepairCount()).isEqualTo(1);
+        assertThat(mirror.getStaleReplicaCount()).isZero();
+
+        mirror.putBlob(containerName, mirror.blobBuilder("blob2")
+                .payload(BYTE_SOURCE).build());
+        while (mirror.getStaleReplicaCount() == 0 &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(mirror.getStaleReplicaCount()).isEqualTo(1);
+        assertThat(mirror.getPendingRepairCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        BlobStore mirror = newMirrorBlobStore(2);
+        mirror.createContainerInLocation(null, containerName);
+        MultipartUpload mpu = mirror.initiateMultipartUpload(containerName,
+                mirror.blobBuilder("blob").build().getMetadata(),
+                PutOptions.NONE);
+        ByteSource part1 = BYTE_SOURCE.slice(0, 512);
+        ByteSource part2 = BYTE_SOURCE.slice(512, 512);
+        MultipartPart mpuPart1 = mirror.uploadMultipartPart(mpu, 1,
+                Payloads.newByteSourcePayload(part1));
+        MultipartPart mpuPart2 = mirror.uploadMultipartPart(mpu, 2,
+                Payloads.newByteSourcePayload(part2));
+        mirror.completeMultipartUpload(mpu,
+                ImmutableList.of(mpuPart1, mpuPart2));
+        assertContent(primary, "blob");
+        assertContent(secondary, "blob");
+    }
+
+    private MirrorBlobStore newMirrorBlobStore(int writeQuorum) {
+        return MirrorBlobStore.newMirrorBlobStore(
+                ImmutableList.of(primary, flakySecondary), writeQuorum, 0,
+                10, TimeUnit.MILLISECONDS, 1000);
+    }
+
+    private void assertContent(BlobStore blobStore, String name)
+            throws Exception {
+        Blob blob = blobStore.getBlob(containerName, name);
+        assertThat(blob).isNotNull();
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream expected = BYTE_SOURCE.openStream()) {
+            assertThat(actual).hasContentEqualTo(expected);
+        }
+    }
+
+    private static BlobStoreContext newTransientContext() {
+        return ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+    }
+
+    /** Fails writes of blobs while failing is set. */
+    private static final class FlakyBlobStore extends ForwardingBlobStore {
+        private volatile boolean failing;
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        FlakyBlobStore(BlobStore blobStore) {
+            super(blobStore);
+        }
+
+        @Override
+        public String putBlob(String container, Blob blob) {
+            checkFailing();
+            return super.putBlob(container, blob);
+        }
+
+        @Override
+        public String putBlob(String container, Blob blob,
+                PutOptions options) {
+            checkFailing();
+            return super.putBlob(container, blob, options);
+        }
+
+        private void checkFailing() {
+            attempts.incrementAndGet();
+            if (failing) {
+                throw new UnsupportedOperationException("failing replica");
+            }
+        }
+    }
+}
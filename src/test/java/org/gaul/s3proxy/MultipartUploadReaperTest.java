@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.Payloads;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class MultipartUploadReaperTest {
+    private static final Clock LATER = Clock.offset(Clock.systemUTC(),
+            Duration.ofDays(2));
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private String otherContainerName;
+
+    @Before
+    public void setUp() {
+        containerName = TestUtils.createRandomContainerName();
+        otherContainerName = TestUtils.createRandomContainerName();
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        blobStore.createContainerInLocation(null, otherContainerName);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            blobStore.deleteContainer(otherContainerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testReapAbandonedUpload() {
+        MultipartUpload mpu = initiate(containerName);
+        MultipartUploadReaper reaper = new MultipartUploadReaper(blobStore,
+                Duration.ofDays(1), ImmutableMap.of(), 2, 1000, LATER);
+        reaper.reap();
+
+        assertThat(blobStore.listMultipartUploads(containerName)).isEmpty();
+        assertThat(blobStore.blobExists(containerName, mpu.id())).isFalse();
+        assertThat(reaper.getAbortedUploadCount()).isEqualTo(1);
+        assertThat(reaper.getRemovedStubCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testKeepRecentUpload() {
+        MultipartUpload mpu = initiate(containerName);
+        MultipartUploadReaper reaper = new MultipartUploadReaper(blobStore,
+                Duration.ofDays(1), ImmutableMap.of(), 2, 1000,
+                Clock.systemUTC());
+        reaper.reap();
+
+        assertThat(blobStore.listMultipartUploads(containerName)).hasSize(1);
+        assertThat(blobStore.blobExists(containerName, mpu.id())).isTrue();
+        assertThat(reaper.getAbortedUploadCount()).isZero();
+    }
+
+    @Test
+    public void testRemoveOrphanedStubOnly() {
+        String stub = UUID.randomUUID().toString();
+        putStub(containerName, stub);
+        String notStub = UUID.randomUUID().toString();
+        blobStore.putBlob(containerName, blobStore.blobBuilder(notStub)
+                .payload(new byte[1]).build());
+        blobStore.putBlob(containerName, blobStore.blobBuilder("empty")
+                .payload(new byte[0]).build());
+        MultipartUploadReaper reaper = new MultipartUploadReaper(blobStore,
+                Duration.ofDays(1), ImmutableMap.of(), 2, 1000, LATER);
+        reaper.reap();
+
+        assertThat(blobStore.blobExists(containerName, stub)).isFalse();
+        assertThat(blobStore.blobExists(containerName, notStub)).isTrue();
+        assertThat(blobStore.blobExists(containerName, "empty")).isTrue();
+        assertThat(reaper.getRemovedStubCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testKeepUnmarkedEmptyUuidBlob() {
+        String name = UUID.randomUUID().toString();
+        blobStore.putBlob(containerName, blobStore.blobBuilder(name)
+                .payload(new byte[0]).build());
+        MultipartUploadReaper reaper = new MultipartUploadReaper(blobStore,
+                Duration.ofDays(1), ImmutableMap.of(), 2, 1000, LATER);
+        reaper.reap();
+
+        assertThat(blobStore.blobExists(containerName, name)).isTrue();
+        assertThat(reaper.getRemovedStubCount()).isZero();
+        assertThat(reaper.getAbortedUploadCount()).isZero();
+    }
+
+    @Test
+    public void testPerBucketMaxAge() {
+        Properties properties = new Properties();
+        properties.setProperty(
+                S3ProxyConstants.PROPERTY_MULTIPART_REAPER_MAX_AGE + "." +
+                containerName, "86400");
+        ImmutableMap<String, Duration> maxAges =
+                MultipartUploadReaper.parseMaxAges(properties);
+        assertThat(maxAges).isEqualTo(ImmutableMap.of(containerName,
+                Duration.ofDays(1)));
+
+        initiate(containerName);
+        initiate(otherContainerName);
+        MultipartUploadReaper reaper = new MultipartUploadReaper(blobStore,
+                null, maxAges, 2, 1000, LATER);
+        reaper.reap();
+
+        assertThat(blobStore.listMultipartUploads(containerName)).isEmpty();
+        assertThat(blobStore.listMultipartUploads(otherContainerName))
+                .hasSize(1);
+    }
+
+    /** Initiate an upload with a part and stub as S3ProxyHandler does. */
+    private MultipartUpload initiate(String container) {
+        MultipartUpload mpu = blobStore.initiateMultipartUpload(container,
+                blobStore.blobBuilder("blob").build().getMetadata(),
+                new PutOptions());
+        putStub(container, mpu.id());
+        blobStore.uploadMultipartPart(mpu, 1,
+                Payloads.newByteArrayPayload(new byte[5]));
+        return mpu;
+    }
+
+    private void putStub(String container, String name) {
+        blobStore.putBlob(container, blobStore.blobBuilder(name)
+                .payload(new byte[0])
+                .userMetadata(ImmutableMap.of(
+                        S3ProxyHandler.MULTIPART_STUB_MARKER, "true"))
+                .build());
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Module;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ObjectCacheBlobStoreTest {
+    private static final long MAX_OBJECT_SIZE = 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private ObjectCacheBlobStore cacheBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        cacheBlobStore = ObjectCacheBlobStore.newObjectCacheBlobStore(
+                blobStore, 16 * MAX_OBJECT_SIZE, MAX_OBJECT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testGetBlobHit() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        putBlob(blobName, content);
+
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getMissCount()).isEqualTo(1);
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getHitCount()).isEqualTo(1);
+        assertThat(cacheBlobStore.getSize()).isEqualTo(100);
+        assertThat(cacheBlobStore.blobMetadata(containerName, blobName)
+                .getContentMetadata().getContentLength()).isEqualTo(100);
+        assertThat(cacheBlobStore.getHitCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetBlobRange() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        putBlob(blobName, content);
+        cacheBlobStore.getBlob(containerName, blobName);
+
+        Blob blob = cacheBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(10, 19));
+        assertThat(cacheBlobStore.getHitCount()).isEqualTo(1);
+        assertContent(blob, content.slice(10, 10));
+        assertThat(blob.getAllHeaders().get(HttpHeaders.CONTENT_RANGE))
+                .containsExactly("bytes 10-19/100");
+
+        blob = cacheBlobStore.getBlob(containerName, blobName,
+                new GetOptions().tail(5));
+        assertContent(blob, content.slice(95, 5));
+        assertThat(blob.getAllHeaders().get(HttpHeaders.CONTENT_RANGE))
+                .containsExactly("bytes 95-99/100");
+    }
+
+    @Test
+    public void testPutBlobInvalidates() throws Exception {
+        String blobName = "blob";
+        putBlob(blobName, TestUtils.randomByteSource().slice(0, 100));
+        cacheBlobStore.getBlob(containerName, blobName);
+
+        ByteSource content = TestUtils.randomByteSource().slice(0, 200);
+        Blob blob = cacheBlobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        cacheBlobStore.putBlob(containerName, blob);
+        assertThat(cacheBlobStore.getSize()).isZero();
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+
+        cacheBlobStore.removeBlob(containerName, blobName);
+        assertThat(cacheBlobStore.getBlob(containerName, blobName)).isNull();
+    }
+
+    @Test
+    public void testLargeObjectNotCached() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE + 1);
+        putBlob(blobName, content);
+
+        assertContent(cacheBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(cacheBlobStore.getSize()).isZero();
+    }
+
+    @Test
+    public void testWriteDuringFetch() throws Exception {
+        // pick a key whose invalidation stripe differs from that of blob
+        StripedGenerations generations = new StripedGenerations();
+        String unrelated = null;
+        for (int i = 0; unrelated == null; ++i) {
+            long before = generations.get(containerName, "blob");
+            generations.invalidate(containerName, "other-" + i);
+            if (generations.get(containerName, "blob") == before) {
+                unrelated = "other-" + i;
+            }
+        }
+
+        putBlob("blob", TestUtils.randomByteSource().slice(0, 100));
+        ObjectCacheBlobStore[] racing = new ObjectCacheBlobStore[1];
+        String[] written = new String[1];
+        racing[0] = ObjectCacheBlobStore.newObjectCacheBlobStore(
+                new ForwardingBlobStore(blobStore) {
+                    @Override
+                    public Blob getBlob(String container, String name,
+                            GetOptions options) {
+                        Blob blob = super.getBlob(container, name, options);
+                        racing[0].removeBlob(container, written[0]);
+                        return blob;
+                    }
+                }, 16 * MAX_OBJECT_SIZE, MAX_OBJECT_SIZE);
+
+        // writes to other keys do not block admission
+        written[0] = unrelated;
+        racing[0].getBlob(containerName, "blob");
+        assertThat(racing[0].getSize()).isEqualTo(100);
+
+        // a write to the fetched key does
+        racing[0].removeBlob(containerName, "blob");
+        written[0] = "blob";
+        putBlob("blob", TestUtils.randomByteSource().slice(0, 100));
+        racing[0].getBlob(containerName, "blob");
+        assertThat(racing[0].getSize()).isZero();
+    }
+
+    @Test
+    public void testAdmissionRejectsColdObject() throws Exception {
+        // fill the cache with frequently read objects
+        for (int i = 0; i < 16; ++i) {
+            putBlob("hot-" + i, TestUtils.randomByteSource().slice(0,
+                    MAX_OBJECT_SIZE));
+            for (int j = 0; j < 4; ++j) {
+                cacheBlobStore.getBlob(containerName, "hot-" + i);
+            }
+        }
+        putBlob("cold", TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE));
+        cacheBlobStore.getBlob(containerName, "cold");
+
+        assertThat(cacheBlobStore.getRejectionCount()).isEqualTo(1);
+        assertThat(cacheBlobStore.getEvictionCount()).isZero();
+    }
+
+    @Test
+    public void testRejectionKeepsVictims() throws Exception {
+        // a cold and a hot object at the LRU end of a full cache
+        putBlob("cold", TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE / 2));
+        cacheBlobStore.getBlob(containerName, "cold");
+        putBlob("hot", TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE / 2));
+        for (int j = 0; j < 4; ++j) {
+            cacheBlobStore.getBlob(containerName, "hot");
+        }
+        for (int i = 0; i < 15; ++i) {
+            putBlob("hot-" + i, TestUtils.randomByteSource().slice(0,
+                    MAX_OBJECT_SIZE));
+            for (int j = 0; j < 4; ++j) {
+                cacheBlobStore.getBlob(containerName, "hot-" + i);
+            }
+        }
+        assertThat(cacheBlobStore.getSize()).isEqualTo(16 * MAX_OBJECT_SIZE);
+
+        // the candidate beats the cold object but not the hot one
+        putBlob("candidate", TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE));
+        cacheBlobStore.getBlob(containerName, "candidate");
+        cacheBlobStore.getBlob(containerName, "candidate");
+
+        assertThat(cacheBlobStore.getRejectionCount()).isEqualTo(2);
+        assertThat(cacheBlobStore.getEvictionCount()).isZero();
+        assertThat(cacheBlobStore.getSize()).isEqualTo(16 * MAX_OBJECT_SIZE);
+    }
+
+    @Test
+    public void testZipfianHitRate() throws Exception {
+        int numBlobs = 256;
+        for (int i = 0; i < numBlobs; ++i) {
+            putBlob("blob-" + i, TestUtils.randomByteSource().slice(0,
+                    MAX_OBJECT_SIZE));
+        }
+
+        // cumulative distribution with exponent 1
+        double[] cdf = new double[numBlobs];
+        double sum = 0;
+        for (int i = 0; i < numBlobs; ++i) {
+            sum += 1.0 / (i + 1);
+            cdf[i] = sum;
+        }
+        Random random = new Random(0);
+        int numRequests = 20_000;
+        for (int i = 0; i < numRequests; ++i) {
+            double value = random.nextDouble() * sum;
+            int index = 0;
+            while (cdf[index] < value) {
+                ++index;
+            }
+            cacheBlobStore.getBlob(containerName, "blob-" + index);
+        }
+
+        // caching 16 of 256 objects should serve about half of the requests
+        assertThat(cacheBlobStore.getHitCount() * 100 / numRequests)
+                .isGreaterThan(40);
+    }
+
+    private void putBlob(String blobName, ByteSource content)
+            throws Exception {
+        Blob blob = blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        blobStore.putBlob(containerName, blob);
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PackingBlobStoreTest {
+    private static final long MAX_OBJECT_SIZE = 1024;
+    private static final long PACK_SIZE = 64 * 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private PackingBlobStore packingBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        packingBlobStore = newPackingBlobStore();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentPutsSharePack() throws Exception {
+        int count = 16;
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                count);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                String blobName = "blob" + i;
+                ByteSource content = TestUtils.randomByteSource().slice(i,
+                        100 + i);
+                futures.add(executorService.submit(() ->
+                        packingBlobStore.putBlob(containerName,
+                                makeBlob(blobName, content))));
+            }
+            for (Future<String> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertThat(packingBlobStore.getPackedObjectCount()).isEqualTo(count);
+        assertThat(packingBlobStore.getPackCount()).isLessThan(count);
+        for (int i = 0; i < count; ++i) {
+            ByteSource content = TestUtils.randomByteSource().slice(i,
+                    100 + i);
+            assertContent(packingBlobStore.getBlob(containerName,
+                    "blob" + i), content);
+        }
+        for (StorageMetadata metadata : blobStore.list(containerName,
+                new ListContainerOptions().recursive())) {
+            assertThat(metadata.getName()).startsWith(
+                    PackingBlobStore.PACK_PREFIX);
+        }
+    }
+
+    @Test
+    public void testGetBlobRange() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        packingBlobStore.putBlob(containerName, makeBlob(blobName, content));
+
+        Blob blob = packingBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(100, 199));
+        assertContent(blob, content.slice(100, 100));
+        assertThat(packingBlobStore.blobMetadata(containerName, blobName)
+                .getSize()).isEqualTo(content.size());
+    }
+
+    @Test
+    public void testLargeBlobBypassesPacking() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE + 1);
+        packingBlobStore.putBlob(containerName, makeBlob(blobName, content));
+
+        assertThat(packingBlobStore.getPackCount()).isZero();
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+    }
+
+    @Test
+    public void testOverwritePackedWithLarge() throws Exception {
+        String blobName = "blob";
+        packingBlobStore.putBlob(containerName, makeBlob(blobName,
+                TestUtils.randomByteSource().slice(0, 100)));
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                MAX_OBJECT_SIZE + 1);
+        packingBlobStore.putBlob(containerName, makeBlob(blobName, content));
+
+        assertContent(packingBlobStore.getBlob(containerName, blobName),
+                content);
+        awaitCompactions(2);
+        assertContent(newPackingBlobStore().getBlob(containerName,
+                blobName), content);
+    }
+
+    @Test
+    public void testListMergesIndex() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        packingBlobStore.putBlob(containerName, makeBlob("a", content));
+        packingBlobStore.putBlob(containerName, makeBlob("dir/b", content));
+        blobStore.putBlob(containerName, makeBlob("c", content));
+
+        List<String> names = new ArrayList<>();
+        for (StorageMetadata metadata : packingBlobStore.list(
+                containerName, new ListContainerOptions().recursive())) {
+            names.add(metadata.getName());
+        }
+        assertThat(names).containsExactly("a", "c", "dir/b");
+
+        PageSet<? extends StorageMetadata> page = packingBlobStore.list(
+                containerName, new ListContainerOptions().delimiter("/"));
+        names.clear();
+        for (StorageMetadata metadata : page) {
+            names.add(metadata.getName());
+            if (metadata.getName().equals("dir/")) {
+                assertThat(metadata.getType()).isEqualTo(
+                        StorageType.RELATIVE_PATH);
+            }
+        }
+        assertThat(names).containsExactly("a", "c", "dir/");
+
+        page = packingBlobStore.list(containerName,
+                new ListContainerOptions().recursive().maxResults(2));
+        assertThat(page).hasSize(2);
+        assertThat(page.getNextMarker()).isEqualTo("c");
+    }
+
+    @Test
+    public void testRemoveAndCompaction() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        packingBlobStore.putBlob(containerName, makeBlob("a", content));
+        packingBlobStore.putBlob(containerName, makeBlob("b", content));
+        packingBlobStore.removeBlob(containerName, "a");
+        assertThat(packingBlobStore.blobExists(containerName, "a")).isFalse();
+        assertThat(packingBlobStore.getBlob(containerName, "a")).isNull();
+
+        // the pack holding a and then the tombstone are compacted away
+        awaitCompactions(2);
+        assertThat(blobStore.list(containerName,
+                new ListContainerOptions().recursive())).hasSize(1);
+
+        PackingBlobStore restarted = newPackingBlobStore();
+        assertThat(restarted.blobExists(containerName, "a")).isFalse();
+        assertContent(restarted.getBlob(containerName, "b"), content);
+    }
+
+    @Test
+    public void testRejectPackPrefix() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        packingBlobStore.putBlob(containerName, makeBlob("a", content));
+        String packName = blobStore.list(containerName,
+                new ListContainerOptions().prefix(
+                        PackingBlobStore.PACK_PREFIX).recursive())
+                .iterator().next().getName();
+
+        assertAccessDenied(() -> packingBlobStore.putBlob(containerName,
+                makeBlob(packName, content)));
+        assertAccessDenied(() -> packingBlobStore.removeBlob(containerName,
+                packName));
+        assertAccessDenied(() -> packingBlobStore.copyBlob(containerName,
+                packName, containerName, "b", CopyOptions.NONE));
+        assertAccessDenied(() -> packingBlobStore.copyBlob(containerName,
+                "a", containerName, packName, CopyOptions.NONE));
+        assertContent(packingBlobStore.getBlob(containerName, "a"), content);
+    }
+
+    @Test
+    public void testSetBlobAccessUnpacks() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        packingBlobStore.putBlob(containerName, makeBlob(blobName, content));
+
+        packingBlobStore.setBlobAccess(containerName, blobName,
+                BlobAccess.PUBLIC_READ);
+        assertThat(packingBlobStore.getBlobAccess(containerName, blobName))
+                .isEqualTo(BlobAccess.PUBLIC_READ);
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+        assertContent(packingBlobStore.getBlob(containerName, blobName),
+                content);
+    }
+
+    @Test
+    public void testFullIndexBypassesPacking() throws Exception {
+        PackingBlobStore store = PackingBlobStore.newPackingBlobStore(
+                blobStore, MAX_OBJECT_SIZE, PACK_SIZE, 0,
+                TimeUnit.MILLISECONDS, 0.5, 1);
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100);
+        store.putBlob(containerName, makeBlob("a", content));
+        store.putBlob(containerName, makeBlob("b", content));
+
+        assertThat(store.getPackedObjectCount()).isEqualTo(1);
+        assertContent(blobStore.getBlob(containerName, "b"), content);
+        // keys already in the index are still packed
+        store.putBlob(containerName, makeBlob("a", content));
+        assertThat(store.getPackedObjectCount()).isEqualTo(2);
+    }
+
+    private static void assertAccessDenied(Runnable runnable) {
+        try {
+            runnable.run();
+            Fail.failBecauseExceptionWasNotThrown(S3Exception.class);
+        } catch (RuntimeException re) {
+            assertThat(re.getCause()).isInstanceOf(S3Exception.class);
+            assertThat(((S3Exception) re.getCause()).getError()).isEqualTo(
+                    S3ErrorCode.ACCESS_DENIED);
+        }
+    }
+
+    private void awaitCompactions(long count) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (packingBlobStore.getCompactionCount() < count &&
+                System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(packingBlobStore.getCompactionCount()).isEqualTo(count);
+    }
+
+    private PackingBlobStore newPackingBlobStore() {
+        return PackingBlobStore.newPackingBlobStore(blobStore,
+                MAX_OBJECT_SIZE, PACK_SIZE, 100, TimeUnit.MILLISECONDS, 0.5,
+                1000);
+    }
+
+    private Blob makeBlob(String blobName, ByteSource content)
+            throws Exception {
+        return blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
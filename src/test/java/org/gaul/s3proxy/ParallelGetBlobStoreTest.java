@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ParallelGetBlobStoreTest {
+    private static final long PART_SIZE = 1024;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private ExecutorService executorService;
+    private final AtomicInteger headCount = new AtomicInteger();
+    private final AtomicInteger getCount = new AtomicInteger();
+    private BlobStore countingBlobStore;
+    private ParallelGetBlobStore parallelBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        executorService = Executors.newFixedThreadPool(4);
+        countingBlobStore = new ForwardingBlobStore(blobStore) {
+            @Override
+            public BlobMetadata blobMetadata(String container,
+                    String name) {
+                headCount.incrementAndGet();
+                return super.blobMetadata(container, name);
+            }
+
+            @Override
+            public Blob getBlob(String container, String name,
+                    GetOptions options) {
+                getCount.incrementAndGet();
+                return super.getBlob(container, name, options);
+            }
+        };
+        parallelBlobStore = ParallelGetBlobStore.newParallelGetBlobStore(
+                countingBlobStore, executorService, PART_SIZE, 2,
+                2 * PART_SIZE, 16 * PART_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetBlob() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                10 * PART_SIZE + 17);
+        putBlob(blobName, content);
+
+        Blob blob = parallelBlobStore.getBlob(containerName, blobName);
+        assertThat(blob.getMetadata().getContentMetadata().getContentLength())
+                .isEqualTo(content.size());
+        assertContent(blob, content);
+    }
+
+    @Test
+    public void testGetBlobRange() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                10 * PART_SIZE);
+        putBlob(blobName, content);
+
+        long offset = PART_SIZE / 2;
+        long count = 5 * PART_SIZE;
+        Blob blob = parallelBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(offset, offset + count - 1));
+        assertThat(blob.getAllHeaders().get(HttpHeaders.CONTENT_RANGE))
+                .containsExactly("bytes " + offset + "-" +
+                        (offset + count - 1) + "/" + content.size());
+        assertContent(blob, content.slice(offset, count));
+    }
+
+    @Test
+    public void testGetSmallBlob() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, PART_SIZE);
+        putBlob(blobName, content);
+
+        assertContent(parallelBlobStore.getBlob(containerName, blobName),
+                content);
+        // the first range request replaces the HEAD
+        assertThat(headCount.get()).isZero();
+        assertThat(getCount.get()).isEqualTo(1);
+        assertThat(parallelBlobStore.getBlob(containerName, "missing"))
+                .isNull();
+    }
+
+    @Test
+    public void testGetEmptyBlob() throws Exception {
+        putBlob("blob", ByteSource.empty());
+        assertContent(parallelBlobStore.getBlob(containerName, "blob"),
+                ByteSource.empty());
+    }
+
+    @Test
+    public void testBufferBudgetShared() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                10 * PART_SIZE);
+        putBlob("blob", content);
+        ParallelGetBlobStore budgeted =
+                ParallelGetBlobStore.newParallelGetBlobStore(blobStore,
+                        executorService, PART_SIZE, 2, 2 * PART_SIZE,
+                        PART_SIZE);
+
+        // the first reader takes the only buffered part so the second
+        // streams its remainder directly
+        try (InputStream first = budgeted.getBlob(containerName, "blob")
+                     .getPayload().openStream();
+             InputStream second = budgeted.getBlob(containerName, "blob")
+                     .getPayload().openStream();
+             InputStream expected1 = content.openStream();
+             InputStream expected2 = content.openStream()) {
+            assertThat(first.read()).isEqualTo(expected1.read());
+            assertThat(budgeted.getAvailableBufferedParts()).isZero();
+            assertThat(second).hasContentEqualTo(expected2);
+            assertThat(first).hasContentEqualTo(expected1);
+        }
+        assertThat(budgeted.getAvailableBufferedParts()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOverwriteDuringRead() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                4 * PART_SIZE);
+        putBlob(blobName, content);
+
+        Blob blob = parallelBlobStore.getBlob(containerName, blobName);
+        putBlob(blobName, TestUtils.randomByteSource().slice(1,
+                4 * PART_SIZE));
+        try (InputStream is = blob.getPayload().openStream()) {
+            ByteStreams.exhaust(is);
+            Fail.failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    private void putBlob(String blobName, ByteSource content)
+            throws Exception {
+        Blob blob = blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+        blobStore.putBlob(containerName, blob);
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.internal.SkipMd5CheckStrategy;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PartNumberGetTest {
+    private static final long PART_SIZE = 5 * 1024 * 1024;
+    private static final long LAST_PART_SIZE = 1000;
+
+    private S3Proxy s3Proxy;
+    private BlobStore blobStore;
+    private String credential;
+    private AmazonS3 client;
+    private String containerName;
+    private ByteSource content;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtils.S3ProxyLaunchInfo info = TestUtils.startS3Proxy(
+                "s3proxy.conf");
+        s3Proxy = info.getS3Proxy();
+        blobStore = info.getBlobStore();
+        credential = info.getS3Credential();
+        containerName = TestUtils.createRandomContainerName();
+        blobStore.createContainerInLocation(null, containerName);
+        client = AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(
+                        new BasicAWSCredentials(info.getS3Identity(),
+                                info.getS3Credential())))
+                .withEndpointConfiguration(new EndpointConfiguration(
+                        info.getEndpoint().toString() +
+                                info.getServicePath(),
+                        "us-east-1"))
+                .build();
+        content = TestUtils.randomByteSource().slice(0,
+                2 * PART_SIZE + LAST_PART_SIZE);
+        // transient returns the whole-object MD5 as the ETag of a
+        // multipart object which does not match a single part
+        System.setProperty(SkipMd5CheckStrategy
+                .DISABLE_GET_OBJECT_MD5_VALIDATION_PROPERTY, "true");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(SkipMd5CheckStrategy
+                .DISABLE_GET_OBJECT_MD5_VALIDATION_PROPERTY);
+        if (client != null) {
+            client.shutdown();
+        }
+        if (s3Proxy != null) {
+            s3Proxy.stop();
+        }
+        if (blobStore != null) {
+            blobStore.deleteContainer(containerName);
+            blobStore.getContext().close();
+        }
+    }
+
+    @Test
+    public void testGetPart() throws Exception {
+        uploadMultipart("blob");
+
+        S3Object object = client.getObject(new GetObjectRequest(
+                containerName, "blob").withPartNumber(2));
+        assertThat(object.getObjectMetadata().getPartCount()).isEqualTo(3);
+        assertThat(object.getObjectMetadata().getContentLength()).isEqualTo(
+                PART_SIZE);
+        assertThat(object.getObjectMetadata().getContentRange())
+                .containsExactly(PART_SIZE, 2 * PART_SIZE - 1);
+        assertContent(object, content.slice(PART_SIZE, PART_SIZE));
+
+        object = client.getObject(new GetObjectRequest(containerName, "blob")
+                .withPartNumber(3));
+        assertContent(object, content.slice(2 * PART_SIZE, LAST_PART_SIZE));
+    }
+
+    @Test
+    public void testGetPartConditional() throws Exception {
+        uploadMultipart("blob");
+        String eTag = client.getObjectMetadata(containerName, "blob")
+                .getETag();
+
+        S3Object object = client.getObject(new GetObjectRequest(
+                containerName, "blob").withPartNumber(2)
+                .withMatchingETagConstraint(eTag));
+        assertContent(object, content.slice(PART_SIZE, PART_SIZE));
+
+        assertThat(client.getObject(new GetObjectRequest(containerName,
+                "blob").withPartNumber(2)
+                .withNonmatchingETagConstraint(eTag))).isNull();
+        assertThat(client.getObject(new GetObjectRequest(containerName,
+                "blob").withPartNumber(2)
+                .withMatchingETagConstraint("\"other\""))).isNull();
+    }
+
+    @Test
+    public void testHeadPart() throws Exception {
+        uploadMultipart("blob");
+
+        ObjectMetadata metadata = client.getObjectMetadata(
+                new GetObjectMetadataRequest(containerName, "blob")
+                        .withPartNumber(3));
+        assertThat(metadata.getPartCount()).isEqualTo(3);
+        assertThat(metadata.getContentLength()).isEqualTo(LAST_PART_SIZE);
+    }
+
+    @Test
+    public void testPartNumberOutOfRange() throws Exception {
+        uploadMultipart("blob");
+
+        try {
+            client.getObject(new GetObjectRequest(containerName, "blob")
+                    .withPartNumber(4));
+            Fail.failBecauseExceptionWasNotThrown(AmazonS3Exception.class);
+        } catch (AmazonS3Exception e) {
+            assertThat(e.getErrorCode()).isEqualTo("InvalidPartNumber");
+        }
+    }
+
+    @Test
+    public void testSinglePartObject() throws Exception {
+        uploadMultipart("blob");
+        // overwriting discards the recorded parts
+        ByteSource single = content.slice(0, LAST_PART_SIZE);
+        client.putObject(containerName, "blob", single.openStream(),
+                newMetadata(LAST_PART_SIZE));
+
+        S3Object object = client.getObject(new GetObjectRequest(
+                containerName, "blob").withPartNumber(1));
+        assertThat(object.getObjectMetadata().getPartCount()).isNull();
+        assertContent(object, single);
+
+        try {
+            client.getObjectMetadata(new GetObjectMetadataRequest(
+                    containerName, "blob").withPartNumber(2));
+            Fail.failBecauseExceptionWasNotThrown(AmazonS3Exception.class);
+        } catch (AmazonS3Exception e) {
+            assertThat(e.getStatusCode()).isEqualTo(416);
+        }
+    }
+
+    @Test
+    public void testUnknownMultipartLayout() throws Exception {
+        client.putObject(containerName, "blob",
+                content.slice(0, LAST_PART_SIZE).openStream(),
+                newMetadata(LAST_PART_SIZE));
+        // a multipart ETag without recorded parts, e.g., from an object
+        // which another instance completed
+        BlobStore multipartETags = new ForwardingBlobStore(blobStore) {
+            @Override
+            public BlobMetadata blobMetadata(String container, String name) {
+                BlobMetadata metadata = super.blobMetadata(container, name);
+                if (metadata == null) {
+                    return null;
+                }
+                MutableBlobMetadata mutable = new MutableBlobMetadataImpl(
+                        metadata);
+                mutable.setETag(metadata.getETag() + "-3");
+                return mutable;
+            }
+        };
+        s3Proxy.setBlobStoreLocator(new BlobStoreLocator() {
+            @Override
+            public Map.Entry<String, BlobStore> locateBlobStore(
+                    String identity, String container, String blob) {
+                return Maps.immutableEntry(credential, multipartETags);
+            }
+        });
+
+        try {
+            client.getObject(new GetObjectRequest(containerName, "blob")
+                    .withPartNumber(1));
+            Fail.failBecauseExceptionWasNotThrown(AmazonS3Exception.class);
+        } catch (AmazonS3Exception e) {
+            assertThat(e.getStatusCode()).isEqualTo(501);
+        }
+        try {
+            client.getObject(new GetObjectRequest(containerName, "blob")
+                    .withPartNumber(4));
+            Fail.failBecauseExceptionWasNotThrown(AmazonS3Exception.class);
+        } catch (AmazonS3Exception e) {
+            assertThat(e.getErrorCode()).isEqualTo("InvalidPartNumber");
+        }
+    }
+
+    private void uploadMultipart(String key) throws IOException {
+        InitiateMultipartUploadResult init = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(containerName, key));
+        List<PartETag> eTags = new ArrayList<>();
+        long[] sizes = {PART_SIZE, PART_SIZE, LAST_PART_SIZE};
+        long offset = 0;
+        for (int i = 0; i < sizes.length; ++i) {
+            try (InputStream is = content.slice(offset, sizes[i])
+                    .openStream()) {
+                eTags.add(client.uploadPart(new UploadPartRequest()
+                        .withBucketName(containerName)
+                        .withKey(key)
+                        .withUploadId(init.getUploadId())
+                        .withPartNumber(i + 1)
+                        .withPartSize(sizes[i])
+                        .withInputStream(is)).getPartETag());
+            }
+            offset += sizes[i];
+        }
+        client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                containerName, key, init.getUploadId(), eTags));
+    }
+
+    private static ObjectMetadata newMetadata(long contentLength) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contentLength);
+        return metadata;
+    }
+
+    private static void assertContent(S3Object object, ByteSource expected)
+            throws IOException {
+        try (InputStream actual = object.getObjectContent();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+}
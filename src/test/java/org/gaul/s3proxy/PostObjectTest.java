@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PostObjectTest {
+    private static final String BOUNDARY = "s3proxy-post-boundary";
+
+    private S3Proxy s3Proxy;
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private String identity;
+    private String credential;
+    private String uri;
+    private CloseableHttpClient httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtils.S3ProxyLaunchInfo info = TestUtils.startS3Proxy(
+                "s3proxy.conf");
+        s3Proxy = info.getS3Proxy();
+        blobStore = info.getBlobStore();
+        context = blobStore.getContext();
+        identity = info.getS3Identity();
+        credential = info.getS3Credential();
+        containerName = TestUtils.createRandomContainerName();
+        blobStore.createContainerInLocation(null, containerName);
+        uri = info.getEndpoint().toString() + info.getServicePath() + "/" +
+                containerName;
+        httpClient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+        if (s3Proxy != null) {
+            s3Proxy.stop();
+        }
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testPostObject() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0,
+                3 * 1024 * 1024);
+        String policy = policy("uploads/", 0, 4 * 1024 * 1024);
+        HttpResponse response = post("uploads/${filename}", policy,
+                sign(policy), content);
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(
+                HttpStatus.SC_NO_CONTENT);
+
+        Blob blob = blobStore.getBlob(containerName, "uploads/file.bin");
+        assertThat(blob.getMetadata().getContentMetadata().getContentType())
+                .isEqualTo("application/octet-stream");
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream expected = content.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(expected));
+        }
+    }
+
+    @Test
+    public void testPostObjectTooLarge() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        String policy = policy("uploads/", 0, 999);
+        HttpResponse response = post("uploads/blob", policy, sign(policy),
+                content);
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(
+                HttpStatus.SC_BAD_REQUEST);
+        assertThat(blobStore.blobExists(containerName, "uploads/blob"))
+                .isFalse();
+    }
+
+    @Test
+    public void testPostObjectPolicyConditionFailed() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        String policy = policy("uploads/", 0, 1000);
+        HttpResponse response = post("other/blob", policy, sign(policy),
+                content);
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(
+                HttpStatus.SC_FORBIDDEN);
+        assertThat(blobStore.blobExists(containerName, "other/blob"))
+                .isFalse();
+    }
+
+    @Test
+    public void testPostObjectPolicyFieldMissing() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        String document = "{\"expiration\": \"2099-01-01T00:00:00.000Z\"," +
+                " \"conditions\": [" +
+                "{\"bucket\": \"" + containerName + "\"}," +
+                " [\"eq\", \"$x-amz-meta-tag\", \"\"]]}";
+        String policy = Base64.getEncoder().encodeToString(
+                document.getBytes(StandardCharsets.UTF_8));
+        HttpResponse response = post("uploads/blob", policy, sign(policy),
+                content);
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(
+                HttpStatus.SC_FORBIDDEN);
+        assertThat(blobStore.blobExists(containerName, "uploads/blob"))
+                .isFalse();
+    }
+
+    @Test
+    public void testPostObjectBadSignature() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        String policy = policy("uploads/", 0, 1000);
+        HttpResponse response = post("uploads/blob", policy,
+                sign(policy("", 0, 1000)), content);
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(
+                HttpStatus.SC_FORBIDDEN);
+        assertThat(blobStore.blobExists(containerName, "uploads/blob"))
+                .isFalse();
+    }
+
+    private String policy(String keyPrefix, long minSize, long maxSize) {
+        String document = "{\"expiration\": \"2099-01-01T00:00:00.000Z\"," +
+                " \"conditions\": [" +
+                "{\"bucket\": \"" + containerName + "\"}," +
+                " [\"starts-with\", \"$key\", \"" + keyPrefix + "\"]," +
+                " [\"content-length-range\", " + minSize + ", " + maxSize +
+                "]]}";
+        return Base64.getEncoder().encodeToString(
+                document.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String sign(String policy) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(credential.getBytes(
+                StandardCharsets.UTF_8), "HmacSHA1"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(
+                policy.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private HttpResponse post(String key, String policy, String signature,
+            ByteSource content) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeField(body, "key", key);
+        writeField(body, "AWSAccessKeyId", identity);
+        writeField(body, "policy", policy);
+        writeField(body, "signature", signature);
+        writeField(body, "Content-Type", "application/octet-stream");
+        writeString(body, "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\";" +
+                " filename=\"file.bin\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n");
+        content.copyTo(body);
+        writeString(body, "\r\n--" + BOUNDARY + "--\r\n");
+
+        HttpPost request = new HttpPost(uri);
+        request.setEntity(new ByteArrayEntity(body.toByteArray()));
+        request.setHeader("Content-Type",
+                "multipart/form-data; boundary=" + BOUNDARY);
+        HttpResponse response = httpClient.execute(request);
+        EntityUtils.consume(response.getEntity());
+        return response;
+    }
+
+    private static void writeField(ByteArrayOutputStream body, String name,
+            String value) {
+        writeString(body, "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + name + "\"" +
+                "\r\n\r\n" + value + "\r\n");
+    }
+
+    private static void writeString(ByteArrayOutputStream body,
+            String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        body.write(bytes, 0, bytes.length);
+    }
+}
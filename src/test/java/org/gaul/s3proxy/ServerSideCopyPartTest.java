@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Module;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.jclouds.s3.reference.S3Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Chain two S3Proxy instances so that the outer one uses the s3 provider
+ * and copies parts with UploadPartCopy against the inner one.
+ */
+public final class ServerSideCopyPartTest {
+    private S3Proxy innerProxy;
+    private BlobStore innerBlobStore;
+    private BlobStoreContext outerContext;
+    private final AtomicInteger sourceGetCount = new AtomicInteger();
+    private S3Proxy outerProxy;
+    private AmazonS3 client;
+    private String containerName;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtils.S3ProxyLaunchInfo info = TestUtils.startS3Proxy(
+                "s3proxy.conf");
+        innerProxy = info.getS3Proxy();
+        innerBlobStore = info.getBlobStore();
+        containerName = TestUtils.createRandomContainerName();
+        innerBlobStore.createContainerInLocation(null, containerName);
+
+        Properties properties = new Properties();
+        properties.setProperty(S3Constants.PROPERTY_S3_VIRTUAL_HOST_BUCKETS,
+                "false");
+        outerContext = ContextBuilder
+                .newBuilder("s3")
+                .endpoint(info.getEndpoint().toString() +
+                        info.getServicePath())
+                .credentials(info.getS3Identity(), info.getS3Credential())
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .overrides(properties)
+                .build(BlobStoreContext.class);
+
+        startOuterProxy(true);
+    }
+
+    private void startOuterProxy(boolean serverSideCopyPart)
+            throws Exception {
+        // count reads of the source which a streaming copy would issue
+        BlobStore countingBlobStore = new ForwardingBlobStore(
+                outerContext.getBlobStore()) {
+            @Override
+            public Blob getBlob(String container, String name) {
+                sourceGetCount.incrementAndGet();
+                return super.getBlob(container, name);
+            }
+
+            @Override
+            public Blob getBlob(String container, String name,
+                    GetOptions options) {
+                sourceGetCount.incrementAndGet();
+                return super.getBlob(container, name, options);
+            }
+        };
+        outerProxy = S3Proxy.builder()
+                .blobStore(countingBlobStore)
+                .endpoint(URI.create("http://127.0.0.1:0"))
+                .awsAuthentication(AuthenticationType.AWS_V2_OR_V4,
+                        "outer-identity", "outer-credential")
+                .serverSideCopyPart(serverSideCopyPart)
+                .build();
+        outerProxy.start();
+        while (!outerProxy.getState().equals(AbstractLifeCycle.STARTED)) {
+            Thread.sleep(1);
+        }
+
+        client = AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(
+                        new BasicAWSCredentials("outer-identity",
+                                "outer-credential")))
+                .withEndpointConfiguration(new EndpointConfiguration(
+                        "http://127.0.0.1:" + outerProxy.getPort(),
+                        "us-east-1"))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (outerProxy != null) {
+            outerProxy.stop();
+        }
+        if (outerContext != null) {
+            outerContext.close();
+        }
+        if (innerProxy != null) {
+            innerProxy.stop();
+        }
+        if (innerBlobStore != null) {
+            innerBlobStore.deleteContainer(containerName);
+            innerBlobStore.getContext().close();
+        }
+    }
+
+    @Test
+    public void testCopyPartRange() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100_000);
+        innerBlobStore.putBlob(containerName, innerBlobStore
+                .blobBuilder("source")
+                .payload(content)
+                .contentLength(content.size())
+                .build());
+
+        InitiateMultipartUploadResult init = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(containerName, "target"));
+        CopyPartResult part = client.copyPart(new CopyPartRequest()
+                .withSourceBucketName(containerName)
+                .withSourceKey("source")
+                .withDestinationBucketName(containerName)
+                .withDestinationKey("target")
+                .withUploadId(init.getUploadId())
+                .withPartNumber(1)
+                .withFirstByte(1000L)
+                .withLastByte(50_999L));
+        assertThat(sourceGetCount.get()).isZero();
+        client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                containerName, "target", init.getUploadId(),
+                ImmutableList.of(part.getPartETag())));
+
+        S3Object object = client.getObject(containerName, "target");
+        try (InputStream actual = object.getObjectContent();
+             InputStream expected = content.slice(1000, 50_000)
+                     .openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(expected));
+        }
+    }
+
+    @Test
+    public void testCopyPartStreamsWhenDisabled() throws Exception {
+        outerProxy.stop();
+        startOuterProxy(false);
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100_000);
+        innerBlobStore.putBlob(containerName, innerBlobStore
+                .blobBuilder("source")
+                .payload(content)
+                .contentLength(content.size())
+                .build());
+
+        InitiateMultipartUploadResult init = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(containerName, "target"));
+        client.copyPart(new CopyPartRequest()
+                .withSourceBucketName(containerName)
+                .withSourceKey("source")
+                .withDestinationBucketName(containerName)
+                .withDestinationKey("target")
+                .withUploadId(init.getUploadId())
+                .withPartNumber(1));
+        assertThat(sourceGetCount.get()).isPositive();
+        client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                containerName, "target", init.getUploadId()));
+    }
+}
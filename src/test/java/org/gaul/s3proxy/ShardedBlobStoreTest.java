@@ -20,20 +20,29 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.inject.Module;
 
+import org.assertj.core.api.Fail;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.ContainerAccess;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.ContentMetadata;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 
 import org.junit.After;
@@ -255,4 +264,318 @@ public final class ShardedBlobStoreTest {
             assertThat(actual).hasContentEqualTo(expected);
         }
     }
+
+    @Test
+    public void testCountAndClearContainer() {
+        this.createContainer(containerName);
+        List<String> blobNames = putBlobs(containerName, 50);
+        assertThat(shardedBlobStore.countBlobs(containerName)).isEqualTo(
+                blobNames.size());
+
+        shardedBlobStore.clearContainer(containerName);
+        assertThat(shardedBlobStore.countBlobs(containerName)).isZero();
+        // the superblock survives so the bucket can still be deleted
+        assertThat(blobStore.blobExists(prefix + "-0",
+                ".s3proxy-sharded-superblock")).isTrue();
+        assertThat(shardedBlobStore.deleteContainerIfEmpty(containerName))
+                .isTrue();
+    }
+
+    @Test
+    public void testRemoveBlobs() {
+        this.createContainer(containerName);
+        List<String> blobNames = putBlobs(containerName, 50);
+        shardedBlobStore.removeBlobs(containerName,
+                blobNames.subList(0, 40));
+        assertThat(shardedBlobStore.countBlobs(containerName)).isEqualTo(10);
+        for (String blobName : blobNames.subList(40, 50)) {
+            assertThat(shardedBlobStore.blobExists(containerName, blobName))
+                    .isTrue();
+        }
+    }
+
+    @Test
+    public void testRemoveBlobsUnsharded() {
+        String unshardedContainer = TestUtils.createRandomContainerName();
+        this.createContainer(unshardedContainer);
+        List<String> blobNames = putBlobs(unshardedContainer, 5);
+        shardedBlobStore.removeBlobs(unshardedContainer, blobNames);
+        assertThat(blobStore.countBlobs(unshardedContainer)).isZero();
+    }
+
+    @Test
+    public void testContainerAccess() {
+        this.createContainer(containerName);
+        assertThat(shardedBlobStore.getContainerAccess(containerName))
+                .isEqualTo(ContainerAccess.PRIVATE);
+        shardedBlobStore.setContainerAccess(containerName,
+                ContainerAccess.PUBLIC_READ);
+        assertThat(shardedBlobStore.getContainerAccess(containerName))
+                .isEqualTo(ContainerAccess.PUBLIC_READ);
+        for (int n = 0; n < shards; ++n) {
+            assertThat(blobStore.getContainerAccess(prefix + "-" + n))
+                    .isEqualTo(ContainerAccess.PUBLIC_READ);
+        }
+
+        // a single diverging shard makes the bucket private
+        blobStore.setContainerAccess(prefix + "-3", ContainerAccess.PRIVATE);
+        assertThat(shardedBlobStore.getContainerAccess(containerName))
+                .isEqualTo(ContainerAccess.PRIVATE);
+    }
+
+    @Test
+    public void testDeleteNonEmptyContainer() {
+        this.createContainer(containerName);
+        putBlobs(containerName, 20);
+        assertThat(shardedBlobStore.deleteContainerIfEmpty(containerName))
+                .isFalse();
+        shardedBlobStore.deleteContainer(containerName);
+        assertThat(this.countShards()).isZero();
+    }
+
+    @Test
+    public void testMultipleBackends() throws Exception {
+        BlobStoreContext contextA = newTransientContext();
+        BlobStoreContext contextB = newTransientContext();
+        try {
+            BlobStore multiBackend = ShardedBlobStore.newShardedBlobStore(
+                    blobStore, ImmutableMap.of(containerName, 4),
+                    prefixesMap, ImmutableMap.of(),
+                    ImmutableMap.of(containerName, ImmutableList.of("a", "b")),
+                    ImmutableMap.of("a", contextA.getBlobStore(),
+                            "b", contextB.getBlobStore()));
+            assertThat(multiBackend.createContainerInLocation(null,
+                    containerName)).isTrue();
+            // shards alternate between backends and none use the delegate
+            assertThat(contextA.getBlobStore().containerExists(prefix + "-0"))
+                    .isTrue();
+            assertThat(contextB.getBlobStore().containerExists(prefix + "-1"))
+                    .isTrue();
+            assertThat(contextA.getBlobStore().containerExists(prefix + "-1"))
+                    .isFalse();
+            assertThat(this.countShards()).isZero();
+            assertThat(contextA.getBlobStore().blobMetadata(prefix + "-0",
+                    ".s3proxy-sharded-superblock").getUserMetadata())
+                    .containsEntry("s3proxy-sharded-superblock-backends",
+                            "a,b");
+            assertThat(multiBackend.list()).extracting(StorageMetadata::getName)
+                    .contains(containerName);
+
+            ByteSource content = TestUtils.randomByteSource().slice(0, 1024);
+            for (int i = 0; i < 20; ++i) {
+                multiBackend.putBlob(containerName, multiBackend
+                        .blobBuilder("blob-" + i)
+                        .payload(content)
+                        .contentLength(content.size())
+                        .build());
+            }
+            assertThat(multiBackend.countBlobs(containerName)).isEqualTo(20);
+            assertThat(contextA.getBlobStore().countBlobs(prefix + "-0") +
+                    contextA.getBlobStore().countBlobs(prefix + "-2"))
+                    .isBetween(2L, 20L);
+
+            // some of these copies cross backends
+            for (int i = 0; i < 20; ++i) {
+                multiBackend.copyBlob(containerName, "blob-" + i,
+                        containerName, "copy-" + i, CopyOptions.NONE);
+                Blob blob = multiBackend.getBlob(containerName, "copy-" + i);
+                try (InputStream actual = blob.getPayload().openStream();
+                     InputStream expected = content.openStream()) {
+                    assertThat(actual).hasContentEqualTo(expected);
+                }
+            }
+
+            // a different layout must not reuse the shards
+            BlobStore reordered = ShardedBlobStore.newShardedBlobStore(
+                    blobStore, ImmutableMap.of(containerName, 4),
+                    prefixesMap, ImmutableMap.of(),
+                    ImmutableMap.of(containerName, ImmutableList.of("a")),
+                    ImmutableMap.of("a", contextA.getBlobStore()));
+            try {
+                reordered.createContainerInLocation(null, containerName);
+                Fail.failBecauseExceptionWasNotThrown(RuntimeException.class);
+            } catch (RuntimeException re) {
+                assertThat(re.getMessage()).contains("does not match");
+            }
+        } finally {
+            contextA.close();
+            contextB.close();
+        }
+    }
+
+    @Test
+    public void testCopyBetweenBackendsKeepsMetadata() throws Exception {
+        BlobStoreContext contextA = newTransientContext();
+        BlobStoreContext contextB = newTransientContext();
+        try {
+            ImmutableMap<String, ImmutableList<String>> bucketBackends =
+                    ImmutableMap.of(containerName,
+                            ImmutableList.of("a", "b"));
+            ImmutableMap<String, BlobStore> backends = ImmutableMap.of(
+                    "a", contextA.getBlobStore(),
+                    "b", contextB.getBlobStore());
+            BlobStore multiBackend = ShardedBlobStore.newShardedBlobStore(
+                    blobStore, ImmutableMap.of(containerName, 2),
+                    prefixesMap, ImmutableMap.of(), bucketBackends,
+                    backends);
+            multiBackend.createContainerInLocation(null, containerName);
+            for (int i = 0; i < 20; ++i) {
+                multiBackend.putBlob(containerName, multiBackend
+                        .blobBuilder("blob-" + i)
+                        .payload(new byte[1])
+                        .cacheControl("max-age=60")
+                        .contentType("text/plain")
+                        .build(),
+                        new PutOptions().setBlobAccess(
+                                BlobAccess.PUBLIC_READ));
+            }
+
+            // some of these copies cross backends
+            for (int i = 0; i < 20; ++i) {
+                multiBackend.copyBlob(containerName, "blob-" + i,
+                        containerName, "copy-" + i, CopyOptions.NONE);
+                ContentMetadata metadata = multiBackend.blobMetadata(
+                        containerName, "copy-" + i).getContentMetadata();
+                assertThat(metadata.getCacheControl()).isEqualTo(
+                        "max-age=60");
+                assertThat(metadata.getContentType()).isEqualTo(
+                        "text/plain");
+            }
+
+            // moving from two to three shards crosses backends
+            ShardedBlobStore resharded = ShardedBlobStore.newShardedBlobStore(
+                    blobStore, ImmutableMap.of(containerName, 3),
+                    prefixesMap, ImmutableMap.of(containerName, 2),
+                    bucketBackends, backends);
+            assertThat(resharded.prepareMigration()).isTrue();
+            resharded.migrate(RateLimiter.create(1000));
+            for (int i = 0; i < 20; ++i) {
+                String blobName = "blob-" + i;
+                assertThat(resharded.getBlobAccess(containerName, blobName))
+                        .isEqualTo(BlobAccess.PUBLIC_READ);
+                assertThat(resharded.blobMetadata(containerName, blobName)
+                        .getContentMetadata().getCacheControl())
+                        .isEqualTo("max-age=60");
+            }
+        } finally {
+            contextA.close();
+            contextB.close();
+        }
+    }
+
+    @Test
+    public void testResharding() throws Exception {
+        createContainer(containerName);
+        List<String> blobNames = putBlobs(containerName, 50);
+        int newShards = 16;
+        for (int n = shards; n < newShards; ++n) {
+            createdContainers.add(String.format("%s-%d", prefix, n));
+        }
+        ShardedBlobStore resharded = ShardedBlobStore.newShardedBlobStore(
+                blobStore, ImmutableMap.of(containerName, newShards),
+                prefixesMap, ImmutableMap.of(containerName, shards),
+                ImmutableMap.of(), ImmutableMap.of());
+        assertThat(resharded.prepareMigration()).isTrue();
+        assertThat(this.countShards()).isEqualTo(newShards);
+
+        // reads fall back to the old layout before objects move
+        for (String blobName : blobNames) {
+            assertThat(resharded.blobExists(containerName, blobName))
+                    .isTrue();
+        }
+        resharded.putBlob(containerName, resharded.blobBuilder("new-blob")
+                .payload(new byte[1]).build());
+        resharded.removeBlob(containerName, blobNames.get(0));
+        assertThat(resharded.countBlobs(containerName)).isEqualTo(50);
+
+        resharded.migrate(RateLimiter.create(1000));
+        assertThat(blobStore.blobMetadata(prefix + "-0",
+                ".s3proxy-sharded-superblock").getUserMetadata())
+                .containsEntry("s3proxy-sharded-superblock-shards",
+                        Integer.toString(newShards));
+
+        // the new layout alone now finds every object
+        BlobStore grown = ShardedBlobStore.newShardedBlobStore(blobStore,
+                ImmutableMap.of(containerName, newShards), prefixesMap);
+        grown.createContainerInLocation(null, containerName);
+        assertThat(grown.countBlobs(containerName)).isEqualTo(50);
+        assertThat(grown.blobExists(containerName, blobNames.get(0)))
+                .isFalse();
+        for (String blobName : blobNames.subList(1, blobNames.size())) {
+            assertThat(grown.blobExists(containerName, blobName)).isTrue();
+        }
+        assertThat(grown.blobExists(containerName, "new-blob")).isTrue();
+    }
+
+    @Test
+    public void testReshardingRetriesFailedMoves() throws Exception {
+        createContainer(containerName);
+        List<String> blobNames = putBlobs(containerName, 20);
+        int newShards = 16;
+        for (int n = shards; n < newShards; ++n) {
+            createdContainers.add(String.format("%s-%d", prefix, n));
+        }
+        // fail the first move, after its copy
+        AtomicBoolean fail = new AtomicBoolean(true);
+        BlobStore flaky = new ForwardingBlobStore(blobStore) {
+            @Override
+            public void removeBlob(String container, String name) {
+                if (fail.compareAndSet(true, false)) {
+                    throw new RuntimeException("injected failure");
+                }
+                super.removeBlob(container, name);
+            }
+        };
+        ShardedBlobStore resharded = ShardedBlobStore.newShardedBlobStore(
+                flaky, ImmutableMap.of(containerName, newShards),
+                prefixesMap, ImmutableMap.of(containerName, shards),
+                ImmutableMap.of(), ImmutableMap.of());
+        assertThat(resharded.prepareMigration()).isTrue();
+        try {
+            resharded.migrate(RateLimiter.create(1000));
+            Fail.failBecauseExceptionWasNotThrown(
+                    IllegalStateException.class);
+        } catch (IllegalStateException ise) {
+            assertThat(ise.getMessage()).contains("Could not move 1 ");
+        }
+        // the superblock still records the old layout
+        assertThat(blobStore.blobMetadata(prefix + "-0",
+                ".s3proxy-sharded-superblock").getUserMetadata())
+                .containsEntry("s3proxy-sharded-superblock-shards",
+                        Integer.toString(shards));
+
+        assertThat(resharded.prepareMigration()).isTrue();
+        resharded.migrate(RateLimiter.create(1000));
+        assertThat(blobStore.blobMetadata(prefix + "-0",
+                ".s3proxy-sharded-superblock").getUserMetadata())
+                .containsEntry("s3proxy-sharded-superblock-shards",
+                        Integer.toString(newShards));
+        assertThat(resharded.countBlobs(containerName)).isEqualTo(20);
+        for (String blobName : blobNames) {
+            assertThat(resharded.blobExists(containerName, blobName))
+                    .isTrue();
+        }
+    }
+
+    private static BlobStoreContext newTransientContext() {
+        return ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+    }
+
+    private List<String> putBlobs(String container, int count) {
+        List<String> blobNames = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            String blobName = "blob-" + i;
+            shardedBlobStore.putBlob(container, shardedBlobStore
+                    .blobBuilder(blobName)
+                    .payload(new byte[1])
+                    .build());
+            blobNames.add(blobName);
+        }
+        Collections.shuffle(blobNames);
+        return blobNames;
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.io.Payload;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SubPartUploaderTest {
+    private static final long SUB_PART_SIZE = 3 * 1024 * 1024;
+    private static final long MEMORY_BUDGET = 8 * 1024 * 1024;
+    private static final ByteSource CONTENT =
+            TestUtils.randomByteSource().slice(0, 10 * 1024 * 1024 + 17);
+
+    private BlobStoreContext context;
+    private CountingBlobStore blobStore;
+    private String containerName;
+
+    @Before
+    public void setUp() {
+        containerName = TestUtils.createRandomContainerName();
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .build(BlobStoreContext.class);
+        blobStore = new CountingBlobStore(context.getBlobStore());
+        blobStore.createContainerInLocation(null, containerName);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.getBlobStore().deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testUploadConcurrently() throws Exception {
+        SubPartUploader uploader = new SubPartUploader(4, MEMORY_BUDGET,
+                new BufferPool(0));
+        assertUpload(uploader);
+        assertThat(blobStore.maxConcurrentUploads.get()).isGreaterThan(1);
+        assertThat(uploader.getAvailableBudget()).isEqualTo(MEMORY_BUDGET);
+    }
+
+    @Test
+    public void testUploadSequentiallyWithoutBudget() throws Exception {
+        SubPartUploader uploader = new SubPartUploader(4, 0,
+                new BufferPool(0));
+        assertUpload(uploader);
+        assertThat(blobStore.maxConcurrentUploads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailureReleasesBudget() throws Exception {
+        SubPartUploader uploader = new SubPartUploader(4, MEMORY_BUDGET,
+                new BufferPool(0));
+        blobStore.failPartNumber = 10_002;
+        MultipartUpload mpu = blobStore.initiateMultipartUpload(
+                containerName, blobStore.blobBuilder("blob").build()
+                        .getMetadata(), new PutOptions());
+        try (InputStream is = CONTENT.openStream()) {
+            uploader.upload(blobStore, mpu, 10_000, is, CONTENT.size(),
+                    SUB_PART_SIZE, Hashing.md5());
+            Fail.failBecauseExceptionWasNotThrown(
+                    IllegalStateException.class);
+        } catch (IllegalStateException ise) {
+            assertThat(ise.getMessage()).isEqualTo("injected failure");
+        }
+        assertThat(uploader.getAvailableBudget()).isEqualTo(MEMORY_BUDGET);
+    }
+
+    private void assertUpload(SubPartUploader uploader) throws Exception {
+        MultipartUpload mpu = blobStore.initiateMultipartUpload(
+                containerName, blobStore.blobBuilder("blob").build()
+                        .getMetadata(), new PutOptions());
+        HashCode hash;
+        try (InputStream is = CONTENT.openStream()) {
+            hash = uploader.upload(blobStore, mpu, 10_000, is,
+                    CONTENT.size(), SUB_PART_SIZE, Hashing.md5());
+        }
+        assertThat(hash).isEqualTo(CONTENT.hash(Hashing.md5()));
+
+        List<MultipartPart> parts = blobStore.listMultipartUpload(mpu);
+        assertThat(parts).extracting(MultipartPart::partNumber)
+                .containsExactly(10_000, 10_001, 10_002, 10_003);
+        blobStore.completeMultipartUpload(mpu, parts);
+
+        Blob blob = blobStore.getBlob(containerName, "blob");
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream expected = CONTENT.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(expected));
+        }
+    }
+
+    /** Track concurrent part uploads and optionally fail one. */
+    private static final class CountingBlobStore
+            extends ForwardingBlobStore {
+        private final AtomicInteger concurrentUploads = new AtomicInteger();
+        private final AtomicInteger maxConcurrentUploads =
+                new AtomicInteger();
+        private volatile int failPartNumber = -1;
+
+        CountingBlobStore(BlobStore blobStore) {
+            super(blobStore);
+        }
+
+        @Override
+        public MultipartPart uploadMultipartPart(MultipartUpload mpu,
+                int partNumber, Payload payload) {
+            int concurrent = concurrentUploads.incrementAndGet();
+            maxConcurrentUploads.accumulateAndGet(concurrent, Math::max);
+            try {
+                // widen the window in which uploads overlap
+                Uninterruptibles.sleepUninterruptibly(50,
+                        TimeUnit.MILLISECONDS);
+                if (partNumber == failPartNumber) {
+                    throw new IllegalStateException("injected failure");
+                }
+                return super.uploadMultipartPart(mpu, partNumber, payload);
+            } finally {
+                concurrentUploads.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SyntheticBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore delegate;
+    private BlobStore blobStore;
+    private String containerName;
+
+    @Before
+    public void setUp() {
+        containerName = TestUtils.createRandomContainerName();
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .build(BlobStoreContext.class);
+        delegate = context.getBlobStore();
+        blobStore = SyntheticBlobStore.newSyntheticBlobStore(delegate);
+        blobStore.createContainerInLocation(null, containerName);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        ByteSource content = TestUtils.randomByteSource().slice(0, 100_000);
+        String eTag = blobStore.putBlob(containerName, blobStore
+                .blobBuilder("blob")
+                .payload(content)
+                .contentLength(content.size())
+                .contentType("text/plain")
+                .build());
+        assertThat(eTag).isEqualTo(content.hash(Hashing.md5()).toString());
+        // served bytes differ so the stored ETag must not look like an MD5
+        assertThat(blobStore.blobMetadata(containerName, "blob").getETag())
+                .endsWith("-1");
+        // no data reaches the backend
+        assertThat(delegate.list()).isEmpty();
+
+        Blob blob = blobStore.getBlob(containerName, "blob");
+        assertThat(blob.getMetadata().getSize()).isEqualTo(100_000);
+        assertThat(blob.getMetadata().getContentMetadata().getContentType())
+                .isEqualTo("text/plain");
+        byte[] first = read(blob);
+        assertThat(first).hasSize(100_000);
+        assertThat(read(blobStore.getBlob(containerName, "blob")))
+                .isEqualTo(first);
+
+        blob = blobStore.getBlob(containerName, "blob",
+                new GetOptions().range(1001, 2999));
+        assertThat(read(blob)).isEqualTo(ByteSource.wrap(first)
+                .slice(1001, 1999).read());
+    }
+
+    @Test
+    public void testListDelimiterAndMarker() throws Exception {
+        for (String name : ImmutableList.of("a/1", "a/2", "b", "c/1")) {
+            blobStore.putBlob(containerName, blobStore.blobBuilder(name)
+                    .payload(new byte[1])
+                    .build());
+        }
+
+        assertThat(names(blobStore.list(containerName))).containsExactly(
+                "a/", "b", "c/");
+        assertThat(names(blobStore.list(containerName,
+                new ListContainerOptions().recursive()))).containsExactly(
+                "a/1", "a/2", "b", "c/1");
+        assertThat(names(blobStore.list(containerName,
+                new ListContainerOptions().prefix("a/").recursive())))
+                .containsExactly("a/1", "a/2");
+
+        List<String> names = new ArrayList<>();
+        String marker = null;
+        do {
+            ListContainerOptions options = new ListContainerOptions()
+                    .maxResults(1);
+            if (marker != null) {
+                options.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> set = blobStore.list(
+                    containerName, options);
+            names.addAll(names(set));
+            marker = set.getNextMarker();
+        } while (marker != null);
+        assertThat(names).containsExactly("a/", "b", "c/");
+
+        assertThat(blobStore.countBlobs(containerName)).isEqualTo(4);
+        assertThat(blobStore.countBlobs(containerName,
+                new ListContainerOptions().prefix("a/"))).isEqualTo(2);
+        assertThat(blobStore.countBlobs(containerName,
+                new ListContainerOptions().inDirectory("c"))).isEqualTo(1);
+        assertThat(blobStore.countBlobs(containerName,
+                new ListContainerOptions().prefix("d"))).isZero();
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        MultipartUpload mpu = blobStore.initiateMultipartUpload(containerName,
+                blobStore.blobBuilder("blob").build().getMetadata(),
+                new PutOptions());
+        List<MultipartPart> parts = new ArrayList<>();
+        for (int partNumber = 1; partNumber <= 2; ++partNumber) {
+            ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+            Blob part = blobStore.blobBuilder("ignored")
+                    .payload(content)
+                    .contentLength(content.size())
+                    .build();
+            parts.add(blobStore.uploadMultipartPart(mpu, partNumber,
+                    part.getPayload()));
+        }
+        assertThat(blobStore.listMultipartUpload(mpu)).hasSize(2);
+        assertThat(blobStore.listMultipartUploads(containerName)).hasSize(1);
+
+        String eTag = blobStore.completeMultipartUpload(mpu, parts);
+        assertThat(eTag).endsWith("-2");
+        assertThat(blobStore.blobMetadata(containerName, "blob").getSize())
+                .isEqualTo(2000);
+        assertThat(blobStore.listMultipartUploads(containerName)).isEmpty();
+    }
+
+    @Test
+    public void testThroughS3Proxy() throws Exception {
+        S3Proxy s3Proxy = S3Proxy.builder()
+                .blobStore(blobStore)
+                .endpoint(URI.create("http://127.0.0.1:0"))
+                .awsAuthentication(AuthenticationType.AWS_V2_OR_V4,
+                        "identity", "credential")
+                .build();
+        s3Proxy.start();
+        try {
+            while (!s3Proxy.getState().equals(AbstractLifeCycle.STARTED)) {
+                Thread.sleep(1);
+            }
+            AmazonS3 client = AmazonS3ClientBuilder.standard()
+                    .withCredentials(new AWSStaticCredentialsProvider(
+                            new BasicAWSCredentials("identity",
+                                    "credential")))
+                    .withEndpointConfiguration(new EndpointConfiguration(
+                            "http://127.0.0.1:" + s3Proxy.getPort(),
+                            "us-east-1"))
+                    .build();
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(1000);
+            ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+            String eTag = client.putObject(containerName, "blob",
+                    content.openStream(), metadata).getETag();
+            assertThat(eTag).isEqualTo(
+                    content.hash(Hashing.md5()).toString());
+            assertThat(client.getObjectMetadata(containerName, "blob")
+                    .getContentLength()).isEqualTo(1000);
+            // the SDK validates the MD5 of GETs unless the ETag is
+            // multipart-style
+            S3Object object = client.getObject(containerName, "blob");
+            try (InputStream is = object.getObjectContent()) {
+                assertThat(ByteStreams.toByteArray(is)).hasSize(1000);
+            }
+            assertThat(client.listObjects(containerName)
+                    .getObjectSummaries()).hasSize(1);
+            client.shutdown();
+        } finally {
+            s3Proxy.stop();
+        }
+    }
+
+    private static List<String> names(
+            PageSet<? extends StorageMetadata> set) {
+        List<String> names = new ArrayList<>();
+        for (StorageMetadata sm : set) {
+            names.add(sm.getName());
+        }
+        return names;
+    }
+
+    private static byte[] read(Blob blob) throws IOException {
+        try (InputStream is = blob.getPayload().openStream()) {
+            return ByteStreams.toByteArray(is);
+        }
+    }
+}
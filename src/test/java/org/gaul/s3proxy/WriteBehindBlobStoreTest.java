@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.inject.Module;
+
+import org.assertj.core.api.Fail;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class WriteBehindBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private Path directory;
+    private volatile boolean available;
+    private final AtomicInteger putCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private BlobStore flakyBlobStore;
+    private WriteBehindBlobStore writeBehindBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        directory = Files.createTempDirectory("s3proxy-write-behind");
+        flakyBlobStore = new ForwardingBlobStore(blobStore) {
+            @Override
+            public String putBlob(String container, Blob blob,
+                    PutOptions options) {
+                if (!available) {
+                    failedCount.incrementAndGet();
+                    throw new RuntimeException("backend unavailable");
+                }
+                putCount.incrementAndGet();
+                return super.putBlob(container, blob, options);
+            }
+
+            @Override
+            public void removeBlob(String container, String name) {
+                if (!available) {
+                    throw new RuntimeException("backend unavailable");
+                }
+                super.removeBlob(container, name);
+            }
+        };
+        writeBehindBlobStore = WriteBehindBlobStore.newWriteBehindBlobStore(
+                flakyBlobStore, directory, 1024 * 1024, 2, 30,
+                TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (writeBehindBlobStore != null) {
+            writeBehindBlobStore.shutdown();
+        }
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+        if (directory != null) {
+            MoreFiles.deleteRecursively(directory,
+                    RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+
+    @Test
+    public void testReadBeforeUpload() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        Blob blob = makeBlob(blobName, content);
+        blob.getMetadata().setUserMetadata(ImmutableMap.of("key", "value"));
+        String eTag = writeBehindBlobStore.putBlob(containerName, blob);
+        assertThat(eTag).isEqualTo(content.hash(Hashing.md5()).toString());
+
+        assertThat(blobStore.blobExists(containerName, blobName)).isFalse();
+        BlobMetadata metadata = writeBehindBlobStore.blobMetadata(
+                containerName, blobName);
+        assertThat(metadata.getETag()).isEqualTo(eTag);
+        assertThat(metadata.getSize()).isEqualTo(content.size());
+        assertThat(metadata.getUserMetadata()).containsEntry("key", "value");
+        assertContent(writeBehindBlobStore.getBlob(containerName, blobName),
+                content);
+        assertContent(writeBehindBlobStore.getBlob(containerName, blobName,
+                new GetOptions().range(100, 199)), content.slice(100, 100));
+
+        available = true;
+        assertThat(writeBehindBlobStore.awaitFlush(30, TimeUnit.SECONDS))
+                .isTrue();
+        Blob uploaded = blobStore.getBlob(containerName, blobName);
+        assertContent(uploaded, content);
+        assertThat(uploaded.getMetadata().getUserMetadata())
+                .containsEntry("key", "value");
+    }
+
+    @Test
+    public void testOverwritesCoalesce() throws Exception {
+        String blobName = "blob";
+        ByteSource content = null;
+        for (int i = 0; i < 3; ++i) {
+            content = TestUtils.randomByteSource().slice(i, 1000);
+            writeBehindBlobStore.putBlob(containerName,
+                    makeBlob(blobName, content));
+        }
+        assertThat(writeBehindBlobStore.getPendingCount()).isEqualTo(1);
+        assertThat(writeBehindBlobStore.getCoalescedCount()).isEqualTo(2);
+        assertContent(writeBehindBlobStore.getBlob(containerName, blobName),
+                content);
+
+        available = true;
+        assertThat(writeBehindBlobStore.awaitFlush(30, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(putCount.get()).isEqualTo(1);
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+    }
+
+    @Test
+    public void testRemovePendingBlob() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        writeBehindBlobStore.putBlob(containerName,
+                makeBlob(blobName, content));
+        // wait for the first attempt so the retry sees the removal
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (failedCount.get() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        writeBehindBlobStore.removeBlob(containerName, blobName);
+        assertThat(writeBehindBlobStore.getBlob(containerName, blobName))
+                .isNull();
+        assertThat(writeBehindBlobStore.blobExists(containerName, blobName))
+                .isFalse();
+
+        available = true;
+        assertThat(writeBehindBlobStore.awaitFlush(30, TimeUnit.SECONDS))
+                .isTrue();
+        assertThat(putCount.get()).isZero();
+        assertThat(blobStore.blobExists(containerName, blobName)).isFalse();
+    }
+
+    @Test
+    public void testReplayAfterCrash() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 10000);
+        writeBehindBlobStore.putBlob(containerName,
+                makeBlob(blobName, content));
+        writeBehindBlobStore.putBlob(containerName,
+                makeBlob("removed", content));
+        writeBehindBlobStore.removeBlob(containerName, "removed");
+        writeBehindBlobStore.shutdown();
+
+        // simulate a write torn by the crash
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory)) {
+            for (Path path : stream) {
+                Files.write(path, new byte[] {0x53, 0x33},
+                        StandardOpenOption.APPEND);
+            }
+        }
+
+        available = true;
+        writeBehindBlobStore = WriteBehindBlobStore.newWriteBehindBlobStore(
+                flakyBlobStore, directory, 1024 * 1024, 2, 30,
+                TimeUnit.SECONDS);
+        assertContent(writeBehindBlobStore.getBlob(containerName, blobName),
+                content);
+        assertThat(writeBehindBlobStore.awaitFlush(30, TimeUnit.SECONDS))
+                .isTrue();
+        assertContent(blobStore.getBlob(containerName, blobName), content);
+        assertThat(blobStore.blobExists(containerName, "removed")).isFalse();
+
+        // only the new active segment remains
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory)) {
+            assertThat(stream).hasSize(1);
+        }
+    }
+
+    @Test
+    public void testBadDigest() throws Exception {
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        Blob blob = makeBlob(blobName, content);
+        blob.getMetadata().getContentMetadata().setContentMD5(
+                Hashing.md5().hashInt(0));
+        try {
+            writeBehindBlobStore.putBlob(containerName, blob);
+            Fail.failBecauseExceptionWasNotThrown(
+                    HttpResponseException.class);
+        } catch (HttpResponseException hre) {
+            assertThat(hre.getResponse().getStatusCode()).isEqualTo(400);
+        }
+        assertThat(writeBehindBlobStore.getPendingCount()).isZero();
+        assertThat(writeBehindBlobStore.blobExists(containerName, blobName))
+                .isFalse();
+    }
+
+    @Test
+    public void testCopyPendingBlobTimesOut() throws Exception {
+        writeBehindBlobStore.shutdown();
+        writeBehindBlobStore = WriteBehindBlobStore.newWriteBehindBlobStore(
+                flakyBlobStore, directory, 1024 * 1024, 2, 100,
+                TimeUnit.MILLISECONDS);
+        String blobName = "blob";
+        ByteSource content = TestUtils.randomByteSource().slice(0, 1000);
+        writeBehindBlobStore.putBlob(containerName, makeBlob(blobName,
+                content));
+
+        // the backend is unavailable so the write cannot be flushed
+        try {
+            writeBehindBlobStore.copyBlob(containerName, blobName,
+                    containerName, "copy", CopyOptions.NONE);
+            Fail.failBecauseExceptionWasNotThrown(
+                    HttpResponseException.class);
+        } catch (HttpResponseException hre) {
+            assertThat(hre.getResponse().getStatusCode()).isEqualTo(503);
+        }
+        assertThat(writeBehindBlobStore.getPendingCount()).isEqualTo(1);
+    }
+
+    private Blob makeBlob(String blobName, ByteSource content)
+            throws Exception {
+        return blobStore.blobBuilder(blobName)
+                .payload(content)
+                .contentLength(content.size())
+                .build();
+    }
+
+    private static void assertContent(Blob blob, ByteSource expected)
+            throws Exception {
+        try (InputStream actual = blob.getPayload().openStream();
+             InputStream is = expected.openStream()) {
+            assertThat(ByteStreams.toByteArray(actual)).isEqualTo(
+                    ByteStreams.toByteArray(is));
+        }
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}